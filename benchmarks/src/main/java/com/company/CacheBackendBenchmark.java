@@ -0,0 +1,61 @@
+package com.company;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+DNSCache (heap) against OffHeapDNSCache, filled with a million names (room for twice that)
+ - preEncodedHit: the server's fast path, lookup straight from a request packet and a patched copy of the response
+ - churn: inserts of new names, evicting once the cache is full
+Run with -prof gc to compare allocation and GC counts/time; CacheFootprint measures heap size and pause times
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheBackendBenchmark {
+    @Param({"heap", "offHeap"})
+    public String backend;
+
+    @Param({"1000000"})
+    public int names;
+
+    private DNSResponseCache cache;
+    private ByteBuffer[] requestPackets;
+    private final AtomicInteger nextName = new AtomicInteger();
+
+    @Setup
+    public void setup() throws IOException {
+        cache = CacheFootprint.newCache(backend, names * 2);
+        requestPackets = new ByteBuffer[names];
+        for (int i = 0; i < names; i++) {
+            String name = "host" + i + ".example.com";
+            requestPackets[i] = ByteBuffer.wrap(Packets.query(i, name));
+            DNSMessage response = DNSMessage.decodeMessage(Packets.answer(i, name, 3600, new byte[]{10, 0, 0, 1}));
+            cache.addToCache(response.getQuestions().get(0), response);
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public ByteBuffer preEncodedHit() {
+        ByteBuffer packet = requestPackets[ThreadLocalRandom.current().nextInt(names)];
+        int questionEnd = DNSMessage.simpleQueryQuestionEnd(packet);
+        return cache.lookup(packet, DNSHeader.HEADER_LENGTH, questionEnd).encodeFor(packet, questionEnd);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean churn() throws IOException {
+        int i = names + nextName.getAndIncrement();
+        DNSMessage response = DNSMessage.decodeMessage(Packets.answer(i, "new" + i + ".example.com", 3600, new byte[]{10, 0, 0, 2}));
+        return cache.addToCache(response.getQuestions().get(0), response);
+    }
+}
@@ -0,0 +1,89 @@
+package com.company;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/*
+DNSCache under contention
+ - lookup: every thread reading hot names
+ - mixed: readers and one writer replacing entries at the same time
+ - overflow: inserts into a full cache, so every put also evicts
+ - preEncodedHit: the server's fast path - lookup straight from a request packet and a patched copy
+   of the pre-encoded response
+Lookups use their own (equal, not identical) question objects, like decoded requests would
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheBenchmark {
+    @Param({"10000"})
+    public int names;
+
+    private DNSCache cache;
+    private DNSCache fullCache;
+    private DNSCache preEncodedCache;
+    private DNSQuestion[] requests;
+    private ByteBuffer[] requestPackets;
+    private DNSMessage[] responses;
+
+    @Setup
+    public void setup() throws IOException {
+        cache = new DNSCache(names * 2, false);
+        fullCache = new DNSCache(names / 2, false);
+        preEncodedCache = new DNSCache(names * 2, true);
+        requests = new DNSQuestion[names];
+        requestPackets = new ByteBuffer[names];
+        responses = new DNSMessage[names];
+        for (int i = 0; i < names; i++) {
+            String name = "host" + i + ".example.com";
+            requests[i] = DNSMessage.decodeMessage(Packets.query(i, name)).getQuestions().get(0).detach();
+            requestPackets[i] = ByteBuffer.wrap(Packets.query(i, name));
+            responses[i] = DNSMessage.decodeMessage(Packets.answer(i, name, 3600, new byte[]{10, 0, 0, 1}));
+            cache.addToCache(responses[i].getQuestions().get(0), responses[i]);
+            preEncodedCache.addToCache(responses[i].getQuestions().get(0), responses[i]);
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public DNSCacheEntry lookup() {
+        return cache.lookup(requests[ThreadLocalRandom.current().nextInt(names)]);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public DNSCacheEntry mixedLookup() {
+        return cache.lookup(requests[ThreadLocalRandom.current().nextInt(names)]);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public boolean mixedPut() {
+        DNSMessage response = responses[ThreadLocalRandom.current().nextInt(names)];
+        return cache.addToCache(response.getQuestions().get(0), response);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean overflow() {
+        DNSMessage response = responses[ThreadLocalRandom.current().nextInt(names)];
+        return fullCache.addToCache(response.getQuestions().get(0), response);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public ByteBuffer preEncodedHit() {
+        ByteBuffer packet = requestPackets[ThreadLocalRandom.current().nextInt(names)];
+        int questionEnd = DNSMessage.simpleQueryQuestionEnd(packet);
+        return preEncodedCache.lookup(packet, DNSHeader.HEADER_LENGTH, questionEnd).encodeFor(packet, questionEnd);
+    }
+}
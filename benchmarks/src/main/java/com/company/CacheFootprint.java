@@ -0,0 +1,131 @@
+package com.company;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+Heap footprint and GC cost of a full cache, heap backend against off-heap
+Not a JMH benchmark: it needs one JVM per backend and looks at the heap as a whole.
+ - fills the cache with N names and reports the heap still in use after a full GC, plus direct memory taken
+ - times one more full GC, which has to trace everything the cache keeps on the heap
+ - then churns for a while (4 threads: 90% hits, 10% inserts of new names that evict old ones)
+   and reports the collections and time spent in them, from the GC MXBeans
+Run from the benchmarks directory, one backend per JVM:
+    java -Xmx4g -cp target/benchmarks.jar com.company.CacheFootprint heap 2000000
+    java -Xmx4g -XX:MaxDirectMemorySize=2g -cp target/benchmarks.jar com.company.CacheFootprint offHeap 2000000
+ */
+public final class CacheFootprint {
+    private static final int CHURN_SECONDS = 20;
+    private static final int CHURN_THREADS = 4;
+    //Direct memory per entry for the off-heap backend: a one-A response fits a 96-byte chunk, this leaves room for bigger ones
+    private static final long OFF_HEAP_BYTES_PER_ENTRY = 256;
+
+    private CacheFootprint() {
+    }
+
+    static DNSResponseCache newCache(String backend, int names) {
+        switch (backend) {
+            case "heap":
+                return new DNSCache(names, true, 0);
+            case "offHeap":
+                return new OffHeapDNSCache(names, names * OFF_HEAP_BYTES_PER_ENTRY, 0);
+            default:
+                throw new IllegalArgumentException("Backend is heap or offHeap: " + backend);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String backend = args.length > 0 ? args[0] : "heap";
+        int names = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+
+        long baseline = usedHeapAfterGc();
+        DNSResponseCache cache = newCache(backend, names);
+        for (int i = 0; i < names; i++) {
+            add(cache, "host" + i + ".example.com", i);
+        }
+        long used = usedHeapAfterGc() - baseline;
+        System.out.printf("%s: %d entries, %d MB heap (%d bytes/entry)%s%n", backend, cache.size(), used >> 20, used / names,
+                cache instanceof OffHeapDNSCache ? ", " + (((OffHeapDNSCache) cache).getReservedBytes() >> 20) + " MB direct" : "");
+
+        long start = System.nanoTime();
+        System.gc();
+        System.out.printf("full GC with the cache live: %d ms%n", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        long collectionsBefore = collections();
+        long gcMillisBefore = gcMillis();
+        AtomicInteger nextName = new AtomicInteger(names);
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(CHURN_SECONDS);
+        Thread[] threads = new Thread[CHURN_THREADS];
+        long[] operations = new long[CHURN_THREADS];
+        for (int t = 0; t < threads.length; t++) {
+            int thread = t;
+            threads[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.nanoTime() < end) {
+                    try {
+                        if (random.nextInt(10) == 0) {
+                            int i = nextName.getAndIncrement();
+                            add(cache, "host" + i + ".example.com", i);
+                        } else {
+                            int i = random.nextInt(nextName.get());
+                            ByteBuffer packet = ByteBuffer.wrap(Packets.query(i, "host" + i + ".example.com"));
+                            int questionEnd = DNSMessage.simpleQueryQuestionEnd(packet);
+                            DNSCacheEntry entry = cache.lookup(packet, DNSHeader.HEADER_LENGTH, questionEnd);
+                            if (entry != null) {
+                                entry.encodeFor(packet, questionEnd);
+                            }
+                        }
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    operations[thread]++;
+                }
+            });
+            threads[t].start();
+        }
+        long total = 0;
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+            total += operations[t];
+        }
+        long collections = collections() - collectionsBefore;
+        long gcMillis = gcMillis() - gcMillisBefore;
+        System.out.printf("churn: %d ops/s, %d collections, %d ms in GC (%.2f ms each), %d evictions%n",
+                total / CHURN_SECONDS, collections, gcMillis, collections == 0 ? 0.0 : (double) gcMillis / collections,
+                cache.getEvictions());
+    }
+
+    private static void add(DNSResponseCache cache, String name, int i) throws IOException {
+        byte[] address = {10, (byte) (i >>> 16), (byte) (i >>> 8), (byte) i};
+        DNSMessage response = DNSMessage.decodeMessage(Packets.answer(i, name, 3600, address));
+        cache.addToCache(response.getQuestions().get(0), response);
+    }
+
+    private static long usedHeapAfterGc() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long collections() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(gc.getCollectionCount(), 0);
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(gc.getCollectionTime(), 0);
+        }
+        return millis;
+    }
+}
@@ -0,0 +1,73 @@
+package com.company;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/*
+Decode and encode cost of DNSMessage on captured-style packets
+Run with -prof gc to see bytes allocated per operation
+ - decode: parse only (names and data stay in the packet)
+ - decodeQuestionName: parse + read the question name out, what a cache lookup needs
+ - decodeAll: parse + read every name and every record's data out
+ - encode: write a response (header, question, all records, compression) to bytes
+ - encodeInPlace: the same into this thread's MessageEncoder buffer, as the server sends it (nothing allocated)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    @Param({"SMALL_A", "CNAME_CHAIN", "EDNS_QUERY"})
+    public Packets.Packet packet;
+
+    private byte[] bytes;
+    private DNSMessage response;
+
+    @Setup
+    public void setup() throws IOException {
+        bytes = packet.bytes();
+        DNSMessage decoded = DNSMessage.decodeMessage(bytes);
+        response = DNSMessage.buildResponse(decoded, decoded.getHeader().getRcode(),
+                decoded.getAnswers(), decoded.getAuthorityRecords(), decoded.getAdditionalRecordsWithoutOpt());
+        //Read everything out once so encode measures encoding only
+        response.toBytes();
+    }
+
+    @Benchmark
+    public DNSMessage decode() throws IOException {
+        return DNSMessage.decodeMessage(bytes);
+    }
+
+    @Benchmark
+    public byte[] decodeQuestionName() throws IOException {
+        return DNSMessage.decodeMessage(bytes).getQuestions().get(0).getDomainName();
+    }
+
+    @Benchmark
+    public int decodeAll() throws IOException {
+        DNSMessage message = DNSMessage.decodeMessage(bytes);
+        int length = message.getQuestions().get(0).getDomainName().length;
+        for (DNSRecord record : message.getAnswers()) {
+            length += record.getName().length + record.getRdata().length;
+        }
+        for (DNSRecord record : message.getAdditionalRecords()) {
+            length += record.getName().length + record.getRdata().length;
+        }
+        return length;
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return response.toBytes();
+    }
+
+    @Benchmark
+    public ByteBuffer encodeInPlace() {
+        return response.encode(MessageEncoder.local(), null);
+    }
+}
@@ -0,0 +1,97 @@
+package com.company;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+The whole server on loopback, against a FakeUpstream
+Each benchmark thread is one client sending a query and waiting for the reply
+ - cacheHit: the same name every time, answered from the cache
+ - cacheMiss: a new name every time, so every query goes through the upstream forwarder
+Reports ops/s and latency percentiles (SampleTime); add -prof gc for allocation rate
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class EndToEndBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class ServerState {
+        FakeUpstream upstream;
+        DNSServer server;
+        InetSocketAddress serverAddress;
+        final AtomicInteger nextName = new AtomicInteger();
+
+        @Setup(Level.Trial)
+        public void start() throws IOException {
+            upstream = new FakeUpstream(3600);
+            server = new DNSServer(0, Runtime.getRuntime().availableProcessors(), upstream.getAddress());
+            serverAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+            Thread thread = new Thread(() -> {
+                try {
+                    server.runServer();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "server-receive");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            server.stop();
+            upstream.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ClientState {
+        DatagramSocket socket;
+        byte[] hitQuery;
+        final byte[] reply = new byte[512];
+        DatagramPacket replyPacket;
+
+        @Setup(Level.Trial)
+        public void open(ServerState server) throws IOException {
+            socket = new DatagramSocket();
+            socket.connect(server.serverAddress);
+            socket.setSoTimeout(5000);
+            replyPacket = new DatagramPacket(reply, reply.length);
+            hitQuery = Packets.query(1, "www.example.com");
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            socket.close();
+        }
+
+        int roundTrip(byte[] query) throws IOException {
+            socket.send(new DatagramPacket(query, query.length));
+            replyPacket.setLength(reply.length);
+            socket.receive(replyPacket);
+            return replyPacket.getLength();
+        }
+    }
+
+    @Benchmark
+    public int cacheHit(ClientState client) throws IOException {
+        return client.roundTrip(client.hitQuery);
+    }
+
+    @Benchmark
+    public int cacheMiss(ServerState server, ClientState client) throws IOException {
+        int n = server.nextName.incrementAndGet();
+        return client.roundTrip(Packets.query(n, "n" + n + ".bench.example"));
+    }
+}
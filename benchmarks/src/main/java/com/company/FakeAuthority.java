@@ -0,0 +1,153 @@
+package com.company;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+A stand-in for a root, TLD or authoritative server on loopback, serving one zone from a thread of its own
+ - a question under a delegated child zone gets a referral: the child's NS records, plus A glue for
+   those given an address
+ - otherwise the zone's own records answer it, authoritatively (AA set): the records of that name and type,
+   or its CNAME; NODATA if the name has other records, NXDOMAIN if it has none, both with the zone's SOA
+Several can share a port on different loopback addresses (127.0.0.2, 127.0.0.3, ... all reach lo on Linux),
+as real name servers all share port 53
+Queries are counted, so a test can see who was asked
+ */
+class FakeAuthority implements Closeable {
+    private static final int TTL = 3600;
+
+    private final String zone;
+    private final DatagramSocket socket;
+    //name -> records, and child zone -> its NS and glue records
+    private final Map<String, List<DNSRecord>> records = new HashMap<>();
+    private final Map<String, List<DNSRecord>> delegations = new HashMap<>();
+    private final Map<String, List<DNSRecord>> glue = new HashMap<>();
+    private final DNSRecord soa;
+    private final LongAdder queries = new LongAdder();
+
+    //zone is dotted without the final dot, "" for the root
+    FakeAuthority(String zone, InetAddress address, int port) throws IOException {
+        this.zone = zone;
+        this.socket = new DatagramSocket(new InetSocketAddress(address, port));
+        this.soa = DNSRecord.of(DNSMessage.stringToOctets(zone), DNSRecord.TYPE_SOA, 1, TTL, soaData(zone));
+        Thread thread = new Thread(this::serve, "fake-authority-" + (zone.isEmpty() ? "root" : zone));
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    InetSocketAddress getAddress() {
+        return (InetSocketAddress) socket.getLocalSocketAddress();
+    }
+
+    long getQueries() { return queries.sum(); }
+
+    synchronized FakeAuthority a(String name, byte[] address) {
+        return add(name, DNSRecord.TYPE_A, address);
+    }
+
+    synchronized FakeAuthority cname(String name, String target) {
+        return add(name, DNSRecord.TYPE_CNAME, DNSMessage.stringToOctets(target));
+    }
+
+    //Delegate child to nameServer, with glue if address isn't null
+    synchronized FakeAuthority delegate(String child, String nameServer, byte[] address) {
+        delegations.computeIfAbsent(child, k -> new ArrayList<>())
+                .add(DNSRecord.of(DNSMessage.stringToOctets(child), DNSRecord.TYPE_NS, 1, TTL, DNSMessage.stringToOctets(nameServer)));
+        if (address != null) {
+            glue.computeIfAbsent(child, k -> new ArrayList<>())
+                    .add(DNSRecord.of(DNSMessage.stringToOctets(nameServer), DNSRecord.TYPE_A, 1, TTL, address));
+        }
+        return this;
+    }
+
+    private FakeAuthority add(String name, int type, byte[] data) {
+        records.computeIfAbsent(name, k -> new ArrayList<>()).add(DNSRecord.of(DNSMessage.stringToOctets(name), type, 1, TTL, data));
+        return this;
+    }
+
+    private void serve() {
+        byte[] buffer = new byte[512];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+        while (!socket.isClosed()) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                queries.increment();
+                DNSMessage query = DNSMessage.decodeMessage(Arrays.copyOf(buffer, packet.getLength()));
+                byte[] reply = answer(query);
+                socket.send(new DatagramPacket(reply, reply.length, packet.getSocketAddress()));
+            } catch (IOException | RuntimeException e) {
+                if (!socket.isClosed()) {
+                    System.err.println("Fake authority " + zone + ": " + e);
+                }
+            }
+        }
+    }
+
+    private synchronized byte[] answer(DNSMessage query) {
+        DNSQuestion question = query.getQuestions().get(0);
+        String name = DNSMessage.octetsToString(question.getDomainName()).toLowerCase(Locale.ROOT);
+
+        //Referral, if the name is in a child zone
+        for (String child = name; !child.equals(zone); child = child.substring(child.indexOf('.') + 1)) {
+            if (delegations.containsKey(child)) {
+                return encode(query, 0, false, List.of(), delegations.get(child), glue.getOrDefault(child, List.of()));
+            }
+            if (child.indexOf('.') < 0) {
+                break;
+            }
+        }
+
+        List<DNSRecord> owned = records.get(name);
+        if (owned == null) {
+            return encode(query, DNSCacheEntry.RCODE_NXDOMAIN, true, List.of(), List.of(soa), List.of());
+        }
+        List<DNSRecord> answers = new ArrayList<>();
+        for (DNSRecord record : owned) {
+            if (record.getType() == question.getQtype() || record.getType() == DNSRecord.TYPE_CNAME) {
+                answers.add(record);
+            }
+        }
+        return encode(query, 0, true, answers, answers.isEmpty() ? List.of(soa) : List.of(), List.of());
+    }
+
+    //The response, with AA set or cleared and RA cleared
+    private static byte[] encode(DNSMessage query, int rcode, boolean authoritative, List<DNSRecord> answers,
+                                 List<DNSRecord> authority, List<DNSRecord> additional) {
+        byte[] reply = DNSMessage.buildResponse(query, rcode, answers, authority, additional).toBytes();
+        reply[2] = (byte) (authoritative ? reply[2] | 0x04 : reply[2] & ~0x04);
+        reply[3] = (byte) (reply[3] & ~0x80);
+        return reply;
+    }
+
+    //ns.<zone> hostmaster.<zone> 1 3600 600 86400 60
+    private static byte[] soaData(String zone) {
+        String suffix = zone.isEmpty() ? "" : "." + zone;
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.writeBytes(DNSMessage.stringToOctets("ns" + suffix));
+        output.writeBytes(DNSMessage.stringToOctets("hostmaster" + suffix));
+        for (int value : new int[]{1, 3600, 600, 86400, 60}) {
+            Packets.writeShort(output, value >>> 16);
+            Packets.writeShort(output, value);
+        }
+        return output.toByteArray();
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
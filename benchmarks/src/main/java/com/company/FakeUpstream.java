@@ -0,0 +1,147 @@
+package com.company;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+A stand-in for Google on loopback
+Answers every A query with one A record (10.0.0.1), other types with NODATA, from a single thread
+By default it answers straight away and always; for load tests it can be told to behave more like the internet
+(changes take effect from the next query, so a run can change them as it goes):
+ - latency(ms, jitterMs): every answer waits ms plus up to jitterMs more, on a timer thread, so the receiving
+   thread keeps up however long the wait
+ - loss(ratio): that share of queries is dropped without an answer, at random
+ - nxdomain(ratio): that share of names gets NXDOMAIN. Which ones is decided by the name's hash, so a name
+   always gets the same answer, as it would from a real upstream (and the server can cache it)
+Negative answers carry an SOA with the same TTL as the positive ones
+ */
+class FakeUpstream implements Closeable {
+    private final DatagramSocket socket;
+    private final int ttl;
+    private final ScheduledExecutorService delayed;
+    private volatile int latencyMs;
+    private volatile int jitterMs;
+    private volatile double loss;
+    private volatile double nxdomain;
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder nxdomains = new LongAdder();
+
+    FakeUpstream(int ttl) throws IOException {
+        this.socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        this.ttl = ttl;
+        this.delayed = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "fake-upstream-delayed");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Thread thread = new Thread(this::serve, "fake-upstream");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    InetSocketAddress getAddress() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), socket.getLocalPort());
+    }
+
+    FakeUpstream latency(int ms, int jitterMs) {
+        this.latencyMs = ms;
+        this.jitterMs = jitterMs;
+        return this;
+    }
+
+    FakeUpstream loss(double ratio) {
+        this.loss = ratio;
+        return this;
+    }
+
+    FakeUpstream nxdomain(double ratio) {
+        this.nxdomain = ratio;
+        return this;
+    }
+
+    long getQueries() { return queries.sum(); }
+
+    long getDropped() { return dropped.sum(); }
+
+    long getNxdomains() { return nxdomains.sum(); }
+
+    private void serve() {
+        byte[] buffer = new byte[512];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        byte[] address = {10, 0, 0, 1};
+
+        while (!socket.isClosed()) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                queries.increment();
+                if (loss > 0 && ThreadLocalRandom.current().nextDouble() < loss) {
+                    dropped.increment();
+                    continue;
+                }
+                byte[] query = Arrays.copyOf(buffer, packet.getLength());
+                DNSQuestion question = DNSMessage.decodeMessage(query).getQuestions().get(0);
+                int questionEnd = question.getEndOffset();
+                byte[] answer;
+                if (isNxdomain(question.getDomainName())) {
+                    nxdomains.increment();
+                    answer = Packets.negative(query, questionEnd, DNSCacheEntry.RCODE_NXDOMAIN, ttl);
+                } else if (question.getQtype() == DNSRecord.TYPE_A) {
+                    answer = Packets.answer(query, questionEnd, ttl, address);
+                } else {
+                    answer = Packets.negative(query, questionEnd, 0, ttl);
+                }
+                reply(answer, packet.getSocketAddress());
+            } catch (IOException | RuntimeException e) {
+                if (!socket.isClosed()) {
+                    System.err.println("Fake upstream: " + e);
+                }
+            }
+        }
+    }
+
+    //Whether the name falls in the NXDOMAIN share, by its (case-insensitive) hash
+    private boolean isNxdomain(byte[] name) {
+        double ratio = nxdomain;
+        if (ratio <= 0) {
+            return false;
+        }
+        int hash = DomainName.of(name).hashCode();
+        return ((hash ^ (hash >>> 16)) & 0xffff) < ratio * 0x10000;
+    }
+
+    private void reply(byte[] answer, SocketAddress client) throws IOException {
+        int delayMs = latencyMs + (jitterMs > 0 ? ThreadLocalRandom.current().nextInt(jitterMs + 1) : 0);
+        if (delayMs <= 0) {
+            socket.send(new DatagramPacket(answer, answer.length, client));
+            return;
+        }
+        delayed.schedule(() -> {
+            try {
+                socket.send(new DatagramPacket(answer, answer.length, client));
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    System.err.println("Fake upstream: " + e);
+                }
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+        delayed.shutdownNow();
+    }
+}
@@ -0,0 +1,152 @@
+package com.company;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+Iterative resolution against a fake DNS hierarchy on loopback, all servers on one port:
+    .             127.0.0.2   com -> a.nic.com, net -> a.nic.net (with glue)
+    com           127.0.0.3   example.com -> ns1.example.com (with glue), glueless.com -> ns.other.net (no glue)
+    net           127.0.0.6   other.net -> ns1.other.net (with glue)
+    other.net     127.0.0.5   ns.other.net
+    example.com   127.0.0.4   hostN, www -> host1, alias -> www.glueless.com
+    glueless.com  127.0.0.7   www
+ - the first lookup under example.com is referred from the root to com to example.com
+ - later ones go straight to example.com's server, from the delegation cache
+ - a name in glueless.com has its name server looked up first (root, net, other.net), then is asked there
+ - CNAMEs are followed, within the zone and into another one; a name that doesn't exist gets NXDOMAIN
+Every step checks how many queries each server got, and stops with an exception if it isn't what it should be
+Then the same hierarchy behind a DNSServer in iterative mode, timing lookups of names not in its answer cache
+(one query each, to example.com's server) against the same names again from the cache
+Run from the benchmarks directory:
+    java -cp target/benchmarks.jar com.company.IterativeResolution [lookups]
+ */
+public final class IterativeResolution {
+    private static final int HOSTS = 10_000;
+
+    private IterativeResolution() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int lookups = args.length > 0 ? Math.min(Integer.parseInt(args[0]), HOSTS) : 2000;
+
+        try (FakeAuthority root = new FakeAuthority("", loopback(2), 0)) {
+            int port = root.getAddress().getPort();
+            try (FakeAuthority com = new FakeAuthority("com", loopback(3), port);
+                 FakeAuthority example = new FakeAuthority("example.com", loopback(4), port);
+                 FakeAuthority otherNet = new FakeAuthority("other.net", loopback(5), port);
+                 FakeAuthority net = new FakeAuthority("net", loopback(6), port);
+                 FakeAuthority glueless = new FakeAuthority("glueless.com", loopback(7), port)) {
+                root.delegate("com", "a.nic.com", address(3)).delegate("net", "a.nic.net", address(6));
+                com.delegate("example.com", "ns1.example.com", address(4)).delegate("glueless.com", "ns.other.net", null);
+                net.delegate("other.net", "ns1.other.net", address(5));
+                otherNet.a("ns.other.net", address(7));
+                for (int i = 0; i < HOSTS; i++) {
+                    example.a("host" + i + ".example.com", new byte[]{10, 0, (byte) (i >>> 8), (byte) i});
+                }
+                example.cname("www.example.com", "host1.example.com").cname("alias.example.com", "www.glueless.com");
+                glueless.a("www.glueless.com", new byte[]{10, 1, 0, 1});
+
+                FakeAuthority[] servers = {root, com, net, otherNet, example, glueless};
+                try (IterativeResolver resolver = new IterativeResolver(List.of(root.getAddress()), port, 2, 500)) {
+                    //                                               .  com net other example glueless
+                    check(resolver, servers, "host0.example.com", 0, 1, 1, 0, 0, 1, 0);
+                    check(resolver, servers, "host2.example.com", 0, 0, 0, 0, 0, 1, 0);
+                    check(resolver, servers, "www.example.com", 0, 0, 0, 0, 0, 2, 0);
+                    check(resolver, servers, "www.glueless.com", 0, 1, 1, 1, 1, 0, 1);
+                    check(resolver, servers, "alias.example.com", 0, 0, 0, 0, 0, 1, 1);
+                    check(resolver, servers, "nope.example.com", 3, 0, 0, 0, 0, 1, 0);
+                    System.out.println("Zone cuts cached: " + resolver.getDelegations().size()
+                            + ", referrals followed: " + resolver.getReferrals()
+                            + ", lookups started below the root: " + resolver.getDelegationHits());
+                }
+
+                timeServer(root.getAddress(), port, lookups);
+            }
+        }
+    }
+
+    //Resolve name/A and check the rcode and the queries each server got for it
+    private static void check(IterativeResolver resolver, FakeAuthority[] servers, String name, int rcode, long... queries)
+            throws Exception {
+        long[] before = new long[servers.length];
+        for (int i = 0; i < servers.length; i++) {
+            before[i] = servers[i].getQueries();
+        }
+        DNSMessage reply = resolver.resolve(DNSMessage.decodeMessage(Packets.query(1, name))).get(5, TimeUnit.SECONDS);
+
+        List<Long> asked = new ArrayList<>();
+        for (int i = 0; i < servers.length; i++) {
+            asked.add(servers[i].getQueries() - before[i]);
+        }
+        List<String> answers = new ArrayList<>();
+        reply.getAnswers().forEach(record -> answers.add(describe(record)));
+        System.out.printf("%-20s rcode=%d queries(. com net other.net example.com glueless.com)=%s answers=%s%n",
+                name, reply.getRcode(), asked, answers);
+
+        List<Long> expected = new ArrayList<>();
+        for (long count : queries) {
+            expected.add(count);
+        }
+        if (reply.getRcode() != rcode || !asked.equals(expected) || (rcode == 0 && answers.isEmpty())) {
+            throw new IllegalStateException(name + ": expected rcode " + rcode + " and queries " + expected);
+        }
+    }
+
+    //Misses through a server in iterative mode (one query each to example.com's server), then the same names as hits
+    private static void timeServer(InetSocketAddress rootHint, int port, int lookups) throws IOException {
+        DNSServer server = new DNSServer(0, Runtime.getRuntime().availableProcessors(), 1,
+                new IterativeResolver(List.of(rootHint), port, 2, 500), DNSServer.defaultCache());
+        Thread serverThread = new Thread(() -> {
+            try {
+                server.runServer();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "server-receive");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        try (DatagramSocket client = new DatagramSocket()) {
+            client.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+            client.setSoTimeout(5000);
+            for (String pass : new String[]{"misses", "hits"}) {
+                byte[] reply = new byte[512];
+                long start = System.nanoTime();
+                for (int i = 0; i < lookups; i++) {
+                    byte[] query = Packets.query(i, "host" + i + ".example.com");
+                    client.send(new DatagramPacket(query, query.length));
+                    client.receive(new DatagramPacket(reply, reply.length));
+                }
+                long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start) / lookups;
+                System.out.printf("server, %d %s one at a time: %d us each%n", lookups, pass, micros);
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static String describe(DNSRecord record) {
+        String name = DNSMessage.octetsToString(record.getName());
+        if (record.getType() == DNSRecord.TYPE_A) {
+            byte[] data = record.getRdata();
+            return name + " A " + (data[0] & 0xff) + "." + (data[1] & 0xff) + "." + (data[2] & 0xff) + "." + (data[3] & 0xff);
+        }
+        return name + " " + (record.getType() == DNSRecord.TYPE_CNAME ? "CNAME " + DNSMessage.octetsToString(record.getRdata())
+                : "type " + record.getType());
+    }
+
+    private static InetAddress loopback(int last) throws IOException {
+        return InetAddress.getByAddress(address(last));
+    }
+
+    private static byte[] address(int last) {
+        return new byte[]{127, 0, 0, (byte) last};
+    }
+}
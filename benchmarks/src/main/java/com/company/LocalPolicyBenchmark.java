@@ -0,0 +1,120 @@
+package com.company;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+Local policy lookups against a big list: names blocked as they are, plus every 10th as a wildcard
+(*.trackN.example) so lookups also walk the suffixes
+ - exactHit: a blocked name
+ - wildcardHit: a name two labels under a wildcard
+ - miss: a name with no rule, the case nearly every query is
+ - blockedAnswer: DNSServer.handleRequest for a blocked name, from the raw packet to the NXDOMAIN sent
+   (run with -prof gc: it should allocate nothing either)
+Queries are uppercase, so every byte is folded on the way
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+@State(Scope.Thread)
+public class LocalPolicyBenchmark {
+    //Queries cycled through, so the table isn't all in cache
+    private static final int QUERIES = 4096;
+
+    @Param({"1000000"})
+    public int names;
+
+    private Path file;
+    private LocalPolicy policy;
+    private FakeUpstream upstream;
+    private DNSServer server;
+    private ByteBuffer[] exact;
+    private ByteBuffer[] wildcard;
+    private ByteBuffer[] missing;
+    private final Sink sink = new Sink();
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        file = Files.createTempFile("local-policy", ".txt");
+        try (BufferedWriter out = Files.newBufferedWriter(file)) {
+            for (int i = 0; i < names; i++) {
+                out.write(i % 10 == 0 ? "*.track" + i + ".example\n" : "0.0.0.0 ads" + i + ".example.com\n");
+            }
+        }
+        policy = LocalPolicy.load(file);
+        upstream = new FakeUpstream(3600);
+        server = new DNSServer(0, 1, List.of(upstream.getAddress()), DNSServer.defaultCache());
+        server.enableLocalPolicy(file, 3600);
+
+        exact = new ByteBuffer[QUERIES];
+        wildcard = new ByteBuffer[QUERIES];
+        missing = new ByteBuffer[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            int n = (int) ((long) i * names / QUERIES);
+            exact[i] = direct(Packets.query(i, ("ads" + (n | 1) + ".example.com").toUpperCase()));
+            wildcard[i] = direct(Packets.query(i, ("www.cdn.track" + (n - n % 10) + ".example").toUpperCase()));
+            missing[i] = direct(Packets.query(i, ("www.host" + n + ".example.org").toUpperCase()));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.stop();
+        upstream.close();
+        Files.delete(file);
+    }
+
+    @Benchmark
+    public Object exactHit() {
+        return match(exact[next++ % QUERIES]);
+    }
+
+    @Benchmark
+    public Object wildcardHit() {
+        return match(wildcard[next++ % QUERIES]);
+    }
+
+    @Benchmark
+    public Object miss() {
+        return match(missing[next++ % QUERIES]);
+    }
+
+    @Benchmark
+    public int blockedAnswer() {
+        server.handleRequest(exact[next++ % QUERIES], sink);
+        return sink.length;
+    }
+
+    private LocalPolicy.Action match(ByteBuffer query) {
+        return policy.match(query, DNSHeader.HEADER_LENGTH, query.limit() - 4);
+    }
+
+    private static ByteBuffer direct(byte[] bytes) {
+        return ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+    }
+
+    //Takes the response's length and drops it
+    private static final class Sink implements ResponseChannel {
+        int length;
+
+        @Override
+        public void send(ByteBuffer response) {
+            length = response.remaining();
+        }
+
+        @Override
+        public int maxResponseSize(int advertisedUdpSize) {
+            return Math.min(advertisedUdpSize, DNSMessage.EDNS_UDP_PAYLOAD_SIZE);
+        }
+    }
+}
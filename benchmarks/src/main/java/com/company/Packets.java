@@ -0,0 +1,119 @@
+package com.company;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HexFormat;
+
+/*
+Wire-format packets for the benchmarks
+ - SMALL_A: one A answer plus an EDNS OPT record, the everyday case
+ - CNAME_CHAIN: www.microsoft.com -> three CNAMEs -> six A records on a CDN, heavily compressed
+ - EDNS_QUERY: a dig-style query with an OPT record carrying a client cookie
+Plus builders for made-up queries/answers (positive and negative), for filling caches and the fake upstream
+ */
+public final class Packets {
+    public enum Packet {
+        SMALL_A("1a2b8180000100010000000103777777076578616d706c6503636f6d0000010001c00c0001000100000e10"
+                + "00045db8d82200002904d0000000000000"),
+        CNAME_CHAIN("4d2e8180000100090000000103777777096d6963726f736f667403636f6d0000010001c00c0005000100000e10"
+                + "002303777777096d6963726f736f667407636f6d2d632d3307656467656b6579036e657400c02f00050001000003"
+                + "84003703777777096d6963726f736f667407636f6d2d632d3307656467656b6579036e65740b676c6f62616c7265"
+                + "64697206616b61646e73c04dc05e000500010000038400190665313336373804647363620a616b616d6169656467"
+                + "65c04dc0a100010001000000140004172de80ac0a100010001000000140004172de80bc0a1000100010000001400"
+                + "04172de80cc0a100010001000000140004172de80dc0a100010001000000140004172de80ec0a100010001000000"
+                + "140004172de80f00002904d0000000000000"),
+        EDNS_QUERY("9f0101200001000000000001046d61696c06676f6f676c6503636f6d0000010001000029100000000000000c00"
+                + "0a00088f3c2a1b9d7e6f50");
+
+        private final byte[] bytes;
+
+        Packet(String hex) {
+            this.bytes = HexFormat.of().parseHex(hex);
+        }
+
+        byte[] bytes() {
+            return bytes.clone();
+        }
+    }
+
+    private Packets() {
+    }
+
+    //A recursive query for name/A
+    static byte[] query(int id, String name) {
+        return query(id, name, DNSRecord.TYPE_A);
+    }
+
+    static byte[] query(int id, String name, int type) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        writeShort(output, id);
+        writeShort(output, 0x0100);
+        writeShort(output, 1);
+        writeShort(output, 0);
+        writeShort(output, 0);
+        writeShort(output, 0);
+        output.writeBytes(DNSMessage.stringToOctets(name));
+        writeShort(output, type);
+        writeShort(output, 1);
+        return output.toByteArray();
+    }
+
+    //The answer to a query: its question echoed back plus one A record pointing at it
+    static byte[] answer(byte[] query, int questionEnd, int ttl, byte[] address) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(questionEnd + 16);
+        output.write(query[0]);
+        output.write(query[1]);
+        writeShort(output, 0x8180);
+        writeShort(output, 1);
+        writeShort(output, 1);
+        writeShort(output, 0);
+        writeShort(output, 0);
+        output.write(query, DNSHeader.HEADER_LENGTH, questionEnd - DNSHeader.HEADER_LENGTH);
+        writeShort(output, 0xC000 | DNSHeader.HEADER_LENGTH);
+        writeShort(output, DNSRecord.TYPE_A);
+        writeShort(output, 1);
+        writeShort(output, ttl >>> 16);
+        writeShort(output, ttl);
+        writeShort(output, address.length);
+        output.writeBytes(address);
+        return output.toByteArray();
+    }
+
+    //A negative answer to a query (NXDOMAIN, or NODATA with rcode 0): its question echoed back plus an SOA for the
+    //root whose TTL and MINIMUM are ttl, so it can be cached
+    static byte[] negative(byte[] query, int questionEnd, int rcode, int ttl) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(questionEnd + 40);
+        output.write(query[0]);
+        output.write(query[1]);
+        writeShort(output, 0x8180 | rcode);
+        writeShort(output, 1);
+        writeShort(output, 0);
+        writeShort(output, 1);
+        writeShort(output, 0);
+        output.write(query, DNSHeader.HEADER_LENGTH, questionEnd - DNSHeader.HEADER_LENGTH);
+        output.write(0);
+        writeShort(output, DNSRecord.TYPE_SOA);
+        writeShort(output, 1);
+        writeShort(output, ttl >>> 16);
+        writeShort(output, ttl);
+        writeShort(output, 22);
+        //mname and rname both the root, then serial, refresh, retry, expire, minimum
+        output.write(0);
+        output.write(0);
+        for (int value : new int[]{1, 3600, 600, 86400, ttl}) {
+            writeShort(output, value >>> 16);
+            writeShort(output, value);
+        }
+        return output.toByteArray();
+    }
+
+    static byte[] answer(int id, String name, int ttl, byte[] address) {
+        byte[] query = query(id, name);
+        return answer(query, query.length, ttl, address);
+    }
+
+    //Big-endian, as everything on the wire is
+    static void writeShort(ByteArrayOutputStream output, int value) {
+        output.write(value >>> 8);
+        output.write(value);
+    }
+}
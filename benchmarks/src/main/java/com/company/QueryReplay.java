@@ -0,0 +1,396 @@
+package com.company;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+Capacity test: how many queries per second a DNSServer keeps up with before its latency collapses
+Queries go out open-loop at a fixed rate, one step after another at higher and higher rates, whatever the
+server does, and each step is reported:
+    target and achieved queries/s, loss, latency percentiles, cache hit ratio, SERVFAIL and NXDOMAIN answers
+ - the names come from a query log (replay.log), or are made up: replay.names names whose popularity follows
+   Zipf's law with exponent replay.zipf (a few names are most of the queries, as on a real resolver)
+ - a log line is "name [type]" ("www.example.com AAAA"), or a BIND query log line ("... query: name IN type ...");
+   blank lines and ones starting with # or ; are skipped. The log is replayed in order, over and over
+ - the server runs in this JVM with the default cache, and forwards to a FakeUpstream on loopback with
+   upstream.latencyMs (+ up to upstream.jitterMs), upstream.loss and upstream.nxdomain. Nothing leaves the machine
+ - open loop: every query has a time it's due (start + i / rate) and goes out then, or straight away if the
+   sender is behind - never later because an answer hasn't come back. Latency counts from when the query was
+   due, so a server that stalls shows it in the latency instead of quietly being sent less (coordinated omission)
+ - every sender has a socket of its own, with a receiver thread; a query is matched to its answer by ID.
+   Answers that haven't come DRAIN_MS after a step's last query count as lost
+ - first a warm-up of replay.warmupSeconds at the first rate, reported but not judged: the JIT compiling the
+   server's hot path stalls it for a few hundred ms, which would otherwise land in the first step's p99
+ - steps stop after the first one the server doesn't keep up with: more than replay.maxLoss lost, or a p99 above
+   replay.p99Ms. The highest rate that passed is the capacity; with replay.requireQps set, a capacity below that
+   exits with status 1, for CI
+The cache stays warm from one step to the next, as it would in service
+Run from the benchmarks directory, e.g.
+    java -Dreplay.rates=5000,10000,20000,40000 -Dreplay.names=100000 -Dupstream.latencyMs=20 -Dupstream.loss=0.01 \
+         -cp target/benchmarks.jar com.company.QueryReplay
+    java -Dreplay.log=queries.log -Dreplay.seconds=30 -cp target/benchmarks.jar com.company.QueryReplay
+ */
+public final class QueryReplay {
+    //Answers later than this after a step's last query are counted as lost
+    private static final int DRAIN_MS = 2000;
+    private static final int RECEIVE_TIMEOUT_MS = 100;
+    private static final int RCODE_SERVFAIL = 2;
+    private static final String[] TYPE_NAMES = {"A", "NS", "CNAME", "SOA", "PTR", "MX", "TXT", "AAAA", "SRV", "HTTPS", "ANY"};
+    private static final int[] TYPES = {
+            DNSRecord.TYPE_A, DNSRecord.TYPE_NS, DNSRecord.TYPE_CNAME, DNSRecord.TYPE_SOA, DNSRecord.TYPE_PTR,
+            DNSRecord.TYPE_MX, DNSRecord.TYPE_TXT, DNSRecord.TYPE_AAAA, DNSRecord.TYPE_SRV, DNSRecord.TYPE_HTTPS,
+            DNSRecord.TYPE_ANY
+    };
+
+    private QueryReplay() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String log = System.getProperty("replay.log");
+        int names = Integer.getInteger("replay.names", 100_000);
+        double zipf = Double.parseDouble(System.getProperty("replay.zipf", "1.0"));
+        int seconds = Integer.getInteger("replay.seconds", 10);
+        int warmupSeconds = Integer.getInteger("replay.warmupSeconds", 3);
+        int senders = Integer.getInteger("replay.senders", 4);
+        int shards = Integer.getInteger("replay.shards", 1);
+        double maxLoss = Double.parseDouble(System.getProperty("replay.maxLoss", "0.01"));
+        long p99Ms = Long.getLong("replay.p99Ms", 50);
+        long requireQps = Long.getLong("replay.requireQps", 0);
+        List<Integer> rates = new ArrayList<>();
+        for (String rate : System.getProperty("replay.rates", "5000,10000,20000,40000,80000,160000").split(",")) {
+            rates.add(Integer.parseInt(rate.trim()));
+        }
+
+        Workload workload = log != null ? Workload.fromLog(Path.of(log)) : Workload.zipf(names, zipf);
+        System.out.println("Workload: " + workload);
+
+        try (FakeUpstream upstream = new FakeUpstream(Integer.getInteger("upstream.ttl", 3600))) {
+            upstream.latency(Integer.getInteger("upstream.latencyMs", 0), Integer.getInteger("upstream.jitterMs", 0))
+                    .loss(Double.parseDouble(System.getProperty("upstream.loss", "0")))
+                    .nxdomain(Double.parseDouble(System.getProperty("upstream.nxdomain", "0")));
+            DNSServer server = new DNSServer(0, Runtime.getRuntime().availableProcessors(), shards,
+                    List.of(upstream.getAddress()), DNSServer.defaultCache());
+            Thread serverThread = new Thread(() -> {
+                try {
+                    server.runServer();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "server-receive");
+            serverThread.setDaemon(true);
+            serverThread.start();
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+
+            System.out.printf("%10s %10s %8s %8s %8s %8s %8s %8s %7s %9s %9s%n", "target/s", "achieved/s", "loss%",
+                    "p50ms", "p90ms", "p99ms", "p999ms", "maxms", "hit%", "servfail", "nxdomain");
+            long capacity = 0;
+            long[] sent = {0};
+            try {
+                if (warmupSeconds > 0) {
+                    runStep(server, address, workload, rates.get(0), warmupSeconds, senders, sent, "  (warm-up)");
+                }
+                for (int rate : rates) {
+                    Step step = runStep(server, address, workload, rate, seconds, senders, sent, null);
+                    if (step.lossRatio() > maxLoss || step.latency.getValueAtPercentile(99) > p99Ms * 1000) {
+                        System.out.println("^ not kept up");
+                        break;
+                    }
+                    capacity = rate;
+                }
+            } finally {
+                server.stop();
+            }
+            System.out.printf("Upstream: %d queries, %d dropped, %d NXDOMAIN%n",
+                    upstream.getQueries(), upstream.getDropped(), upstream.getNxdomains());
+            System.out.printf("Capacity: %d queries/s (loss <= %.2f%%, p99 <= %d ms)%n", capacity, 100 * maxLoss, p99Ms);
+            if (capacity < requireQps) {
+                System.out.println("Below the required " + requireQps + " queries/s");
+                System.exit(1);
+            }
+        }
+    }
+
+    //One step, reported with note after it if there is one; sent[0] is the number of queries sent so far, and is added to
+    private static Step runStep(DNSServer server, InetSocketAddress address, Workload workload, int rate, int seconds,
+                                int senders, long[] sent, String note) throws Exception {
+        Step step = new Step(address, workload, rate, seconds, senders, sent[0]);
+        long hits = server.getCache().getHits();
+        long misses = server.getCache().getMisses();
+        step.run();
+        sent[0] += step.sent();
+        hits = server.getCache().getHits() - hits;
+        misses = server.getCache().getMisses() - misses;
+        LatencyHistogram latency = step.latency;
+        System.out.printf("%10d %10.0f %8.2f %8.2f %8.2f %8.2f %8.2f %8.2f %7.1f %9d %9d%s%n",
+                rate, step.achievedQps(), 100 * step.lossRatio(),
+                millis(latency.getValueAtPercentile(50)), millis(latency.getValueAtPercentile(90)),
+                millis(latency.getValueAtPercentile(99)), millis(latency.getValueAtPercentile(99.9)),
+                millis(latency.getValueAtPercentile(100)),
+                hits + misses == 0 ? 0 : 100.0 * hits / (hits + misses),
+                step.servfails.sum(), step.nxdomains.sum(), note == null ? "" : note);
+        return step;
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+
+    /*
+    The queries to send, as packets with the ID left for the sender to fill in
+    Zipf: query i is name rank(i), picked by the cumulative popularity of the ranks, so it's the same
+    sequence on every run
+     */
+    static final class Workload {
+        private final byte[][] queries;
+        //Zipf: cumulative popularity of each rank, up to 1; null for a log, which is replayed in order
+        private final double[] cumulative;
+        private final String description;
+
+        private Workload(byte[][] queries, double[] cumulative, String description) {
+            this.queries = queries;
+            this.cumulative = cumulative;
+            this.description = description;
+        }
+
+        static Workload zipf(int names, double exponent) {
+            byte[][] queries = new byte[names][];
+            double[] cumulative = new double[names];
+            double total = 0;
+            for (int rank = 0; rank < names; rank++) {
+                queries[rank] = Packets.query(0, "n" + rank + ".replay.example");
+                total += 1 / Math.pow(rank + 1, exponent);
+                cumulative[rank] = total;
+            }
+            for (int rank = 0; rank < names; rank++) {
+                cumulative[rank] /= total;
+            }
+            return new Workload(queries, cumulative, names + " names, Zipf exponent " + exponent);
+        }
+
+        static Workload fromLog(Path log) throws IOException {
+            List<byte[]> queries = new ArrayList<>();
+            int skipped = 0;
+            for (String line : Files.readAllLines(log)) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#") || line.startsWith(";")) {
+                    continue;
+                }
+                int marker = line.indexOf("query: ");
+                String[] fields = (marker < 0 ? line : line.substring(marker + "query: ".length())).split("\\s+");
+                //BIND: name class type; otherwise name [type]
+                String typeName = marker >= 0 && fields.length > 2 ? fields[2] : fields.length > 1 ? fields[1] : "A";
+                int type = parseType(typeName);
+                String name = fields[0].endsWith(".") ? fields[0].substring(0, fields[0].length() - 1) : fields[0];
+                if (type < 0 || name.isEmpty()) {
+                    skipped++;
+                    continue;
+                }
+                queries.add(Packets.query(0, name, type));
+            }
+            if (queries.isEmpty()) {
+                throw new IllegalArgumentException("No queries in " + log);
+            }
+            return new Workload(queries.toArray(new byte[0][]), null,
+                    queries.size() + " queries from " + log + (skipped > 0 ? " (" + skipped + " lines skipped)" : ""));
+        }
+
+        //A, AAAA, ... or TYPE123 (RFC 3597); -1 if it's neither
+        private static int parseType(String name) {
+            String upper = name.toUpperCase(Locale.ROOT);
+            for (int i = 0; i < TYPE_NAMES.length; i++) {
+                if (TYPE_NAMES[i].equals(upper)) {
+                    return TYPES[i];
+                }
+            }
+            if (upper.startsWith("TYPE")) {
+                try {
+                    int type = Integer.parseInt(upper.substring(4));
+                    return type >= 0 && type <= 0xffff ? type : -1;
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+            return -1;
+        }
+
+        //The query to send as the n-th one overall
+        byte[] query(long n, Random random) {
+            if (cumulative == null) {
+                return queries[(int) (n % queries.length)];
+            }
+            int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+            return queries[Math.min(rank < 0 ? -rank - 1 : rank, queries.length - 1)];
+        }
+
+        @Override
+        public String toString() {
+            return description;
+        }
+    }
+
+    /*
+    One rate for a number of seconds: senders senders, each sending every senders-th query on a socket of its own,
+    with a receiver thread matching answers to the time their query was due
+     */
+    static final class Step {
+        private final InetSocketAddress server;
+        private final Workload workload;
+        private final int rate;
+        private final int seconds;
+        private final int senders;
+        //Queries sent in earlier steps, so a log carries on where the last step stopped
+        private final long offset;
+        //Where each sender sends from (empty: wherever the system picks)
+        private final List<InetAddress> sources;
+        final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder sentCount = new LongAdder();
+        private final LongAdder answered = new LongAdder();
+        final LongAdder servfails = new LongAdder();
+        final LongAdder nxdomains = new LongAdder();
+
+        Step(InetSocketAddress server, Workload workload, int rate, int seconds, int senders, long offset) {
+            this(server, workload, rate, seconds, senders, offset, List.of());
+        }
+
+        //One sender per source address, e.g. to look like clients on many networks
+        Step(InetSocketAddress server, Workload workload, int rate, int seconds, long offset, List<InetAddress> sources) {
+            this(server, workload, rate, seconds, sources.size(), offset, sources);
+        }
+
+        private Step(InetSocketAddress server, Workload workload, int rate, int seconds, int senders, long offset,
+                     List<InetAddress> sources) {
+            this.server = server;
+            this.workload = workload;
+            this.rate = rate;
+            this.seconds = seconds;
+            this.senders = senders;
+            this.offset = offset;
+            this.sources = sources;
+        }
+
+        void run() throws Exception {
+            long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10);
+            long total = (long) rate * seconds;
+            List<Thread> threads = new ArrayList<>();
+            List<DatagramSocket> sockets = new ArrayList<>();
+            for (int s = 0; s < senders; s++) {
+                DatagramSocket socket = sources.isEmpty() ? new DatagramSocket()
+                        : new DatagramSocket(new InetSocketAddress(sources.get(s), 0));
+                socket.connect(server);
+                socket.setSoTimeout(RECEIVE_TIMEOUT_MS);
+                sockets.add(socket);
+                //Due time of the query out with each ID, 0 once it's answered
+                AtomicLongArray due = new AtomicLongArray(0x10000);
+                int sender = s;
+                Thread receiver = new Thread(() -> receive(socket, due), "replay-receive-" + s);
+                receiver.setDaemon(true);
+                receiver.start();
+                Thread thread = new Thread(() -> send(socket, due, sender, start, total), "replay-send-" + s);
+                thread.start();
+                threads.add(thread);
+                threads.add(receiver);
+            }
+            //Senders first, then what's still on its way
+            for (int s = 0; s < senders; s++) {
+                threads.get(2 * s).join();
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_MS);
+            while (answered.sum() < sentCount.sum() && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            for (DatagramSocket socket : sockets) {
+                socket.close();
+            }
+            for (int s = 0; s < senders; s++) {
+                threads.get(2 * s + 1).join();
+            }
+        }
+
+        //Queries sender, sender + senders, ... of the step, each when it's due
+        private void send(DatagramSocket socket, AtomicLongArray due, int sender, long start, long total) {
+            Random random = new Random(offset + sender);
+            byte[] buffer = new byte[512];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            int id = 0;
+            try {
+                for (long n = sender; n < total; n += senders) {
+                    long dueNanos = start + n * 1_000_000_000L / rate;
+                    long wait = dueNanos - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    byte[] query = workload.query(offset + n, random);
+                    System.arraycopy(query, 0, buffer, 0, query.length);
+                    buffer[0] = (byte) (id >>> 8);
+                    buffer[1] = (byte) id;
+                    //An ID still out from 65536 queries ago: its answer is as good as lost
+                    due.set(id, dueNanos);
+                    packet.setLength(query.length);
+                    socket.send(packet);
+                    sentCount.increment();
+                    id = (id + 1) & 0xffff;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void receive(DatagramSocket socket, AtomicLongArray due) {
+            byte[] buffer = new byte[4096];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            while (!socket.isClosed()) {
+                try {
+                    packet.setLength(buffer.length);
+                    socket.receive(packet);
+                } catch (SocketException e) {
+                    //Closed at the end of the step
+                    return;
+                } catch (IOException e) {
+                    //Timed out: look again, unless the step is over
+                    continue;
+                }
+                long now = System.nanoTime();
+                if (packet.getLength() < DNSHeader.HEADER_LENGTH) {
+                    continue;
+                }
+                long dueNanos = due.getAndSet((buffer[0] & 0xff) << 8 | (buffer[1] & 0xff), 0);
+                if (dueNanos == 0) {
+                    //A duplicate, or the answer to a query whose ID has been reused since
+                    continue;
+                }
+                latency.record(now - dueNanos);
+                answered.increment();
+                int rcode = buffer[3] & 0x0f;
+                if (rcode == RCODE_SERVFAIL) {
+                    servfails.increment();
+                } else if (rcode == DNSCacheEntry.RCODE_NXDOMAIN) {
+                    nxdomains.increment();
+                }
+            }
+        }
+
+        long sent() { return sentCount.sum(); }
+
+        double achievedQps() { return answered.sum() / (double) seconds; }
+
+        double lossRatio() {
+            long sent = sentCount.sum();
+            return sent == 0 ? 0 : (sent - answered.sum()) / (double) sent;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.company;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+Whether legitimate clients keep their latency while another network abuses the server
+ - a FakeUpstream with upstreamMs of latency stands in for Google
+ - legitimate clients on NETWORKS networks (127.2.0.1, 127.2.1.1, ...; all of 127/8 reaches lo on Linux) send a
+   Zipf workload open-loop (QueryReplay's steps), after a warm-up
+ - at the same time an attacker on 127.0.1.1 (another /24) floods the server at attackRate:
+     reflection        the same name over and over (what an amplification attack sends, spoofed)
+     random-subdomain  a name never asked before every time, so every query is a miss (water torture)
+ - every case runs on a fresh server three ways: no attack, the attack on an unprotected server, and the attack
+   with rate limiting on (20 responses/s per network and question, bursts of 40, slip 2, 50 misses/s per network
+   when busy). Limits that low are for one network asking about one name; a single network sending all of
+   the legitimate load would have its popular names limited too, which is why RRL is off by default
+Prints the legitimate clients' latency and loss, how many answers the attacker got back, and the server's
+RRL and shedding counters
+Run from the benchmarks directory:
+    java -cp target/benchmarks.jar com.company.RateLimitUnderAbuse [legitRate] [attackRate] [seconds] [upstreamMs]
+ */
+public final class RateLimitUnderAbuse {
+    private static final String ATTACKER = "127.0.1.1";
+    private static final int NETWORKS = 32;
+
+    private RateLimitUnderAbuse() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int legitRate = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int attackRate = args.length > 1 ? Integer.parseInt(args[1]) : 50_000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int upstreamMs = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+        QueryReplay.Workload workload = QueryReplay.Workload.zipf(10_000, 1.0);
+
+        System.out.printf("legitimate %d/s, attack %d/s, upstream %d ms%n", legitRate, attackRate, upstreamMs);
+        System.out.printf("%-17s %-12s %8s %8s %8s %8s %12s %10s %10s %10s%n", "attack", "server", "p50ms", "p99ms",
+                "p999ms", "loss%", "attackerGot", "rrlDropped", "rrlSlipped", "shed");
+        for (String attack : new String[]{"reflection", "random-subdomain"}) {
+            run(workload, legitRate, 0, seconds, upstreamMs, attack, false);
+            run(workload, legitRate, attackRate, seconds, upstreamMs, attack, false);
+            run(workload, legitRate, attackRate, seconds, upstreamMs, attack, true);
+        }
+    }
+
+    private static void run(QueryReplay.Workload workload, int legitRate, int attackRate, int seconds, int upstreamMs,
+                            String attack, boolean limited) throws Exception {
+        try (FakeUpstream upstream = new FakeUpstream(3600).latency(upstreamMs, upstreamMs / 10)) {
+            DNSServer server = new DNSServer(0, Runtime.getRuntime().availableProcessors(), 1,
+                    List.of(upstream.getAddress()), DNSServer.defaultCache());
+            if (limited) {
+                server.enableRateLimiting(new RateLimiter(20, 40, 2, 50, 1 << 16));
+            }
+            Thread serverThread = new Thread(() -> {
+                try {
+                    server.runServer();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "server-receive");
+            serverThread.setDaemon(true);
+            serverThread.start();
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+
+            List<InetAddress> networks = new ArrayList<>();
+            for (int i = 0; i < NETWORKS; i++) {
+                networks.add(InetAddress.getByAddress(new byte[]{127, 2, (byte) i, 1}));
+            }
+            try {
+                new QueryReplay.Step(address, workload, legitRate, 2, 0, networks).run();
+
+                LongAdder attackerGot = new LongAdder();
+                long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+                Thread flood = null;
+                if (attackRate > 0) {
+                    flood = new Thread(() -> flood(address, attack, attackRate, end, attackerGot), "attacker");
+                    flood.start();
+                }
+                QueryReplay.Step step = new QueryReplay.Step(address, workload, legitRate, seconds, 1_000_000, networks);
+                step.run();
+                if (flood != null) {
+                    flood.join();
+                }
+
+                RateLimiter limiter = server.getRateLimiter();
+                System.out.printf("%-17s %-12s %8.2f %8.2f %8.2f %8.2f %12d %10d %10d %10d%n",
+                        attackRate == 0 ? "none" : attack, attackRate == 0 ? "-" : limited ? "rate limited" : "unprotected",
+                        step.latency.getValueAtPercentile(50) / 1000.0, step.latency.getValueAtPercentile(99) / 1000.0,
+                        step.latency.getValueAtPercentile(99.9) / 1000.0, 100 * step.lossRatio(), attackerGot.sum(),
+                        limiter == null ? 0 : limiter.getDropped(), limiter == null ? 0 : limiter.getSlipped(), server.getShed());
+            } finally {
+                server.stop();
+            }
+        }
+    }
+
+    //Queries from ATTACKER at rate until end, counting the answers that come back
+    private static void flood(InetSocketAddress server, String attack, int rate, long end, LongAdder answers) {
+        try (DatagramSocket socket = new DatagramSocket(new InetSocketAddress(ATTACKER, 0))) {
+            socket.connect(server);
+            socket.setSoTimeout(50);
+            Thread receiver = new Thread(() -> {
+                byte[] buffer = new byte[4096];
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                while (!socket.isClosed()) {
+                    try {
+                        packet.setLength(buffer.length);
+                        socket.receive(packet);
+                        answers.increment();
+                    } catch (IOException e) {
+                        //Timed out, or closed at the end
+                    }
+                }
+            }, "attacker-receive");
+            receiver.setDaemon(true);
+            receiver.start();
+
+            byte[] reflected = Packets.query(0, "www.example.com");
+            long start = System.nanoTime();
+            for (long n = 0; ; n++) {
+                long due = start + n * 1_000_000_000L / rate;
+                if (due > end) {
+                    break;
+                }
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                byte[] query = attack.equals("reflection") ? reflected : Packets.query((int) n, "r" + n + ".victim.example");
+                socket.send(new DatagramPacket(query, query.length));
+            }
+            Thread.sleep(500);
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+}
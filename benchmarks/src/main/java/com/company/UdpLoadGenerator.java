@@ -0,0 +1,124 @@
+package com.company;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+Packets per second through the UDP path on loopback, for 1, 2, 4, ... SO_REUSEPORT shards
+Not a JMH benchmark: every run starts a server of its own and the clients keep many queries in flight at once,
+which a JMH thread waiting on each reply can't do.
+ - the server answers from a warm cache (every name asked once before measuring), so this measures
+   receive/lookup/respond, not the upstream
+ - every client thread has a socket of its own (a different source port, which the kernel hashes to pick the
+   shard) and keeps WINDOW queries outstanding, sending the next one as each reply comes in
+ - a reply lost on a full socket buffer is made up for after a short timeout, so the window never drains
+Clients run in the same JVM and take CPU too, so the curve flattens once shards and clients together
+outnumber the cores; on a 2N-core machine, compare up to N shards
+Run from the benchmarks directory:
+    java -cp target/benchmarks.jar com.company.UdpLoadGenerator [maxShards] [clients] [seconds]
+ */
+public final class UdpLoadGenerator {
+    private static final int NAMES = 1000;
+    private static final int WINDOW = 32;
+    private static final int RECEIVE_TIMEOUT_MS = 50;
+
+    private UdpLoadGenerator() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int maxShards = args.length > 0 ? Integer.parseInt(args[0]) : cores;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : Math.max(2, cores);
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        byte[][] queries = new byte[NAMES][];
+        for (int i = 0; i < NAMES; i++) {
+            queries[i] = Packets.query(i, "host" + i + ".example.com");
+        }
+
+        double baseline = 0;
+        for (int shards = 1; shards <= maxShards; shards *= 2) {
+            double qps = run(shards, clients, seconds, queries);
+            if (shards == 1) {
+                baseline = qps;
+            }
+            System.out.printf("shards=%-3d clients=%-3d %,12.0f queries/s  (x%.2f)%n", shards, clients, qps, qps / baseline);
+        }
+    }
+
+    private static double run(int shards, int clients, int seconds, byte[][] queries) throws Exception {
+        try (FakeUpstream upstream = new FakeUpstream(3600)) {
+            DNSServer server = new DNSServer(0, Runtime.getRuntime().availableProcessors(), shards,
+                    List.of(upstream.getAddress()), DNSServer.defaultCache());
+            Thread serverThread = new Thread(() -> {
+                try {
+                    server.runServer();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "server-receive");
+            serverThread.setDaemon(true);
+            serverThread.start();
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+
+            try (DatagramSocket warm = new DatagramSocket()) {
+                warm.connect(address);
+                warm.setSoTimeout(2000);
+                byte[] reply = new byte[512];
+                for (byte[] query : queries) {
+                    warm.send(new DatagramPacket(query, query.length));
+                    warm.receive(new DatagramPacket(reply, reply.length));
+                }
+            }
+
+            LongAdder replies = new LongAdder();
+            long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            Thread[] threads = new Thread[clients];
+            for (int c = 0; c < clients; c++) {
+                int client = c;
+                threads[c] = new Thread(() -> runClient(address, queries, client, end, replies), "load-client-" + c);
+                threads[c].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            server.stop();
+            return replies.sum() / (double) seconds;
+        }
+    }
+
+    //Keep WINDOW queries in flight until end, counting replies
+    private static void runClient(InetSocketAddress server, byte[][] queries, int client, long end, LongAdder replies) {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.connect(server);
+            socket.setSoTimeout(RECEIVE_TIMEOUT_MS);
+            byte[] reply = new byte[512];
+            DatagramPacket replyPacket = new DatagramPacket(reply, reply.length);
+            int next = client * 7919;
+            for (int i = 0; i < WINDOW; i++) {
+                byte[] query = queries[next++ % queries.length];
+                socket.send(new DatagramPacket(query, query.length));
+            }
+            while (System.nanoTime() < end) {
+                try {
+                    replyPacket.setLength(reply.length);
+                    socket.receive(replyPacket);
+                    replies.increment();
+                } catch (SocketTimeoutException e) {
+                    //Lost somewhere; send a replacement so the window stays full
+                }
+                byte[] query = queries[next++ % queries.length];
+                socket.send(new DatagramPacket(query, query.length));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
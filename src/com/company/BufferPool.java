@@ -0,0 +1,35 @@
+package com.company;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/*
+Receive buffers that are handed back once a request is done with them, instead of a new buffer per packet
+ - every buffer is the same size, and direct, so a datagram is read straight into it without a copy
+ - the pool holds at most capacity spare buffers; when it's empty a new one is made,
+   when it's full a returned buffer is left for the GC
+ */
+final class BufferPool {
+    private final int bufferSize;
+    private final ArrayBlockingQueue<ByteBuffer> free;
+
+    BufferPool(int bufferSize, int capacity) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(capacity);
+    }
+
+    //Cleared, ready to receive into
+    ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        return buffer != null ? buffer.clear() : ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    //The caller must not touch the buffer afterwards
+    void release(ByteBuffer buffer) {
+        if (buffer.capacity() == bufferSize) {
+            free.offer(buffer);
+        }
+    }
+
+    int getBufferSize() { return bufferSize; }
+}
@@ -0,0 +1,131 @@
+package com.company;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongPredicate;
+import java.util.function.Predicate;
+
+/*
+Cache snapshot file, so a restarted server starts with a warm cache
+File layout (big-endian):
+    int    magic "DNSC"
+    short  version
+    then one block per entry, until the end of the file:
+        long   when the entry was cached  (ms since the epoch)
+        long   when the entry expires     (ms since the epoch)
+        short  length of the response
+        bytes  the response in wire format, with its original TTLs (as pre-encoded)
+Times are written as wall-clock time, since CoarseClock/System.nanoTime() only mean something within one process
+ - written to a temporary file first and moved over the old one, so a crash mid-write never leaves half a snapshot
+ - loaded by memory-mapping the file and walking it block by block; an entry that has expired
+   (past the cache's grace period) is skipped on its header alone, without decoding the response
+ - a loaded entry is one copy of its response out of the map, decoded lazily over that copy;
+   nothing is re-encoded
+ - loading stops once the cache is full
+ - works for either cache backend: it only sees entries, which expiries are worth keeping, and where loaded entries go
+ - a block that is cut short or won't decode ends or skips the load, it never fails the server; entries skipped
+   that way are counted and reported in one line once loading is done, with the first one's error
+ */
+final class CacheSnapshot {
+    private static final int MAGIC = 0x444E5343;
+    private static final short VERSION = 1;
+    //Bytes in front of every response
+    private static final int BLOCK_HEADER = 8 + 8 + 2;
+
+    private CacheSnapshot() {
+    }
+
+    //Write every entry whose expiry (CoarseClock nanoseconds) keep accepts
+    static int write(Iterable<DNSCacheEntry> entries, LongPredicate keep, Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        long nanoNow = CoarseClock.nanoTime();
+        long wallNow = System.currentTimeMillis();
+        int written = 0;
+
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+            output.writeInt(MAGIC);
+            output.writeShort(VERSION);
+            for (DNSCacheEntry entry : entries) {
+                if (!keep.test(entry.getExpiresAtNanos())) {
+                    continue;
+                }
+                byte[] response = entry.toWireFormat();
+                output.writeLong(toWallClock(entry.getCreatedNanos(), nanoNow, wallNow));
+                output.writeLong(toWallClock(entry.getExpiresAtNanos(), nanoNow, wallNow));
+                output.writeShort(response.length);
+                output.write(response);
+                written++;
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return written;
+    }
+
+    //Hand restore every entry whose expiry keep accepts, until it returns false (full)
+    static int load(Path file, LongPredicate keep, boolean preEncode, Predicate<DNSCacheEntry> restore) throws IOException {
+        long nanoNow = CoarseClock.nanoTime();
+        long wallNow = System.currentTimeMillis();
+        int loaded = 0;
+        //Entries that wouldn't decode, and why the first of them didn't
+        int skipped = 0;
+        Exception firstError = null;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot too big to map: " + channel.size() + " bytes");
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (mapped.remaining() < 6 || mapped.getInt() != MAGIC || mapped.getShort() != VERSION) {
+                throw new IOException("Not a cache snapshot: " + file);
+            }
+
+            while (mapped.remaining() >= BLOCK_HEADER) {
+                long createdNanos = toNanoTime(mapped.getLong(), nanoNow, wallNow);
+                long expiresAtNanos = toNanoTime(mapped.getLong(), nanoNow, wallNow);
+                int length = mapped.getShort() & 0xffff;
+                if (mapped.remaining() < length) {
+                    break;
+                }
+                int start = mapped.position();
+                mapped.position(start + length);
+                if (!keep.test(expiresAtNanos)) {
+                    continue;
+                }
+
+                byte[] response = new byte[length];
+                mapped.get(start, response);
+                try {
+                    DNSCacheEntry entry = DNSCacheEntry.fromSnapshot(response, createdNanos, expiresAtNanos, preEncode);
+                    if (!restore.test(entry)) {
+                        break;
+                    }
+                    loaded++;
+                } catch (IOException | RuntimeException e) {
+                    if (skipped++ == 0) {
+                        firstError = e;
+                    }
+                }
+            }
+        }
+        if (skipped > 0) {
+            System.err.println("Skipped " + skipped + " bad snapshot entries in " + file + ", first: " + firstError);
+        }
+        return loaded;
+    }
+
+    private static long toWallClock(long nanos, long nanoNow, long wallNow) {
+        return wallNow + TimeUnit.NANOSECONDS.toMillis(nanos - nanoNow);
+    }
+
+    private static long toNanoTime(long wallClock, long nanoNow, long wallNow) {
+        return nanoNow + TimeUnit.MILLISECONDS.toNanos(wallClock - wallNow);
+    }
+}
@@ -0,0 +1,37 @@
+package com.company;
+
+import java.util.concurrent.locks.LockSupport;
+
+/*
+A cheap clock for the hot path
+One ticker thread reads System.nanoTime() every millisecond and publishes it in a volatile,
+so cache lookups read a field instead of asking the OS for the time on every query
+ - monotonic: never jumps when the wall clock is changed
+ - good to about a millisecond, plenty for TTLs counted in seconds
+ */
+final class CoarseClock {
+    private static final long TICK_NANOS = 1_000_000L;
+
+    private static volatile long now = System.nanoTime();
+
+    static {
+        Thread ticker = new Thread(CoarseClock::tick, "coarse-clock");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    private CoarseClock() {
+    }
+
+    private static void tick() {
+        while (true) {
+            LockSupport.parkNanos(TICK_NANOS);
+            now = System.nanoTime();
+        }
+    }
+
+    //Nanoseconds on the System.nanoTime() scale, at most a tick or so behind
+    static long nanoTime() {
+        return now;
+    }
+}
@@ -1,35 +1,237 @@
 package com.company;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 /*
 A Local Cache
-Store the first answer for any question in the cache
+Store the complete response (answers + authority, or a negative answer) for any question in the cache
 Methods for querying and inserting records into the cache
 If an entry is too old (TTL has expired), remove it and return "not found"
+ - shared by every server worker, backed by a ConcurrentHashMap so lookups never block
+ - bounded: once it holds more than maxEntries, a few entries are sampled and the least
+   recently used one is evicted (approximate LRU, no global list to lock on every hit)
+ - every insert also sweeps a few entries for expired TTLs, so names that are never
+   asked for again don't stay in memory forever
+ - counts hits, misses, evictions and expirations, and hits per entry (for refresh-ahead, see Prefetcher)
+ - keyed by the question in wire format, ignoring case (see DNSCacheKey), so a lookup can
+   go straight from the request packet without decoding it
+ - pre-encoded mode also keeps every response in wire format, so a hit is a copy and a few patches
+ - can be written to a snapshot file and loaded back on startup, so a restart begins warm (see CacheSnapshot)
+ - for millions of entries, OffHeapDNSCache keeps the same entries out of the heap
+ - serve-stale (RFC 8767): with a grace period, expired entries are kept that much longer; lookup() treats them
+   as misses, but lookupStale() still returns them for when the upstream can't be reached in time
  */
-public class DNSCache {
-    private HashMap<DNSQuestion, DNSRecord> cache = new HashMap<>();
-
-    public boolean queryCache(DNSQuestion question){
-        if (cache.containsKey(question)) {
-            if (cache.get(question).timestampValid()) {
-                return true;
-            } else {
-                cache.remove(question);
-                return false;
+public class DNSCache implements DNSResponseCache {
+    public static final int DEFAULT_MAX_ENTRIES = 100_000;
+    //How many entries are compared when choosing one to evict
+    private static final int EVICTION_SAMPLES = 8;
+    //How many entries every insert checks for an expired TTL
+    private static final int SWEEP_PER_INSERT = 4;
+
+    private final ConcurrentHashMap<DNSCacheKey, DNSCacheEntry> cache = new ConcurrentHashMap<>();
+    private final int maxEntries;
+    private final boolean preEncoded;
+    //How long past expiry an entry is kept for serve-stale (0: dropped as soon as it expires)
+    private final long staleGraceNanos;
+    //One reusable probe key per thread for lookups straight from a packet
+    private final ThreadLocal<DNSCacheKey> probes = ThreadLocal.withInitial(DNSCacheKey::probe);
+
+    //Walks round the map for the TTL sweep and eviction sampling, only one thread moves it at a time
+    private final ReentrantLock sweepLock = new ReentrantLock();
+    private Iterator<Map.Entry<DNSCacheKey, DNSCacheEntry>> sweepCursor;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    public DNSCache() {
+        this(DEFAULT_MAX_ENTRIES, false);
+    }
+
+    public DNSCache(int maxEntries, boolean preEncoded) {
+        this(maxEntries, preEncoded, 0);
+    }
+
+    public DNSCache(int maxEntries, boolean preEncoded, int staleGraceSeconds) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        }
+        if (staleGraceSeconds < 0) {
+            throw new IllegalArgumentException("staleGraceSeconds must not be negative: " + staleGraceSeconds);
+        }
+        this.maxEntries = maxEntries;
+        this.preEncoded = preEncoded;
+        this.staleGraceNanos = TimeUnit.SECONDS.toNanos(staleGraceSeconds);
+    }
+
+    //Return the cached response for the question, or null if there is none (or it has expired)
+    @Override
+    public DNSCacheEntry lookup(DNSQuestion question) {
+        return lookup(DNSCacheKey.of(question));
+    }
+
+    //Same, for the uncompressed question between questionStart and questionEnd of a packet
+    //Allocates nothing
+    @Override
+    public DNSCacheEntry lookup(ByteBuffer packet, int questionStart, int questionEnd) {
+        return lookup(probes.get().set(packet, questionStart, questionEnd - questionStart));
+    }
+
+    //Expired entry for the question that is still inside the grace period, or null
+    //Only for answering when the upstream has failed or is too slow; doesn't count as a hit or miss
+    @Override
+    public DNSCacheEntry lookupStale(DNSQuestion question) {
+        DNSCacheEntry entry = cache.get(DNSCacheKey.of(question));
+        return entry != null && entry.withinGrace(staleGraceNanos) ? entry : null;
+    }
+
+    //One hash probe for a hit, entries past their grace period are dropped on the way
+    private DNSCacheEntry lookup(DNSCacheKey key) {
+        DNSCacheEntry entry = cache.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (!entry.timestampValid()) {
+            //The key asked with may be a probe pointing at a packet - remove by the stored key
+            if (!entry.withinGrace(staleGraceNanos) && cache.remove(entry.key, entry)) {
+                expirations.increment();
             }
-        } else {
+            misses.increment();
+            return null;
+        }
+        entry.lastAccess = CoarseClock.nanoTime();
+        entry.hits++;
+        hits.increment();
+        return entry;
+    }
+
+    //Cache an upstream response for the question if it is cacheable
+    //Returns whether it was cached
+    @Override
+    public boolean addToCache(DNSQuestion question, DNSMessage response) {
+        DNSCacheEntry entry = DNSCacheEntry.fromResponse(response, preEncoded);
+        if (entry == null) {
+            return false;
+        }
+        entry.key = DNSCacheKey.of(question);
+        cache.put(entry.key, entry);
+        maintain();
+        return true;
+    }
+
+    //Put back an entry read from a snapshot, unless a fresher answer is already cached
+    //Returns false once the cache is full - a snapshot never pushes out what's already there
+    boolean restore(DNSCacheEntry entry) {
+        if (cache.mappingCount() >= maxEntries) {
             return false;
         }
+        cache.putIfAbsent(entry.key, entry);
+        return true;
     }
 
-    public void addToCache(DNSQuestion question, DNSRecord answerRecord) {
-        cache.put(question, answerRecord);
+    //Write every entry still inside its grace period to file (see CacheSnapshot); returns how many
+    //Weakly consistent: inserts going on meanwhile may or may not be written
+    @Override
+    public int saveSnapshot(Path file) throws IOException {
+        return CacheSnapshot.write(cache.values(), this::isWorthKeeping, file);
     }
 
-    public DNSRecord getRecord(DNSQuestion question) {
-        return cache.get(question);
+    //Load the entries in a snapshot file that haven't expired (past the grace period) since it was written;
+    //returns how many
+    @Override
+    public int loadSnapshot(Path file) throws IOException {
+        return CacheSnapshot.load(file, this::isWorthKeeping, preEncoded, this::restore);
     }
 
+    //Whether an entry with this expiry (CoarseClock nanoseconds) would still be kept
+    boolean isWorthKeeping(long expiresAtNanos) {
+        return expiresAtNanos + staleGraceNanos - CoarseClock.nanoTime() > 0;
+    }
+
+    //Amortized upkeep after an insert: sweep a few expired entries, evict down to the bound
+    //If another thread is already doing it, skip - the map may briefly hold a few extra entries
+    private void maintain() {
+        if (!sweepLock.tryLock()) {
+            return;
+        }
+        try {
+            for (int i = 0; i < SWEEP_PER_INSERT; i++) {
+                Map.Entry<DNSCacheKey, DNSCacheEntry> next = nextSweepEntry();
+                if (next == null) {
+                    break;
+                }
+                if (!next.getValue().withinGrace(staleGraceNanos) && cache.remove(next.getKey(), next.getValue())) {
+                    expirations.increment();
+                }
+            }
+            //Only what's over the bound now: other threads keep inserting meanwhile, and waiting
+            //for the map to stop growing could keep this thread here for good
+            for (long excess = cache.mappingCount() - maxEntries; excess > 0; excess--) {
+                evictOne();
+            }
+        } finally {
+            sweepLock.unlock();
+        }
+    }
+
+    //Sample the next few entries and drop the least recently used of them
+    private void evictOne() {
+        Map.Entry<DNSCacheKey, DNSCacheEntry> victim = null;
+        for (int i = 0; i < EVICTION_SAMPLES; i++) {
+            Map.Entry<DNSCacheKey, DNSCacheEntry> candidate = nextSweepEntry();
+            if (candidate == null) {
+                break;
+            }
+            if (victim == null || candidate.getValue().lastAccess < victim.getValue().lastAccess) {
+                victim = candidate;
+            }
+        }
+        if (victim != null && cache.remove(victim.getKey(), victim.getValue())) {
+            evictions.increment();
+        }
+    }
+
+    //Next entry of the round-robin walk, starting over at the end of the map
+    private Map.Entry<DNSCacheKey, DNSCacheEntry> nextSweepEntry() {
+        if (sweepCursor == null || !sweepCursor.hasNext()) {
+            sweepCursor = cache.entrySet().iterator();
+            if (!sweepCursor.hasNext()) {
+                return null;
+            }
+        }
+        return sweepCursor.next();
+    }
+
+    @Override
+    public int size() { return cache.size(); }
+
+    public int getMaxEntries() { return maxEntries; }
+
+    @Override
+    public boolean isPreEncoded() { return preEncoded; }
+
+    public long getStaleGraceSeconds() { return TimeUnit.NANOSECONDS.toSeconds(staleGraceNanos); }
+
+    @Override
+    public long getHits() { return hits.sum(); }
+
+    @Override
+    public long getMisses() { return misses.sum(); }
+
+    @Override
+    public long getEvictions() { return evictions.sum(); }
+
+    @Override
+    public long getExpirations() { return expirations.sum(); }
+
 }
@@ -0,0 +1,350 @@
+package com.company;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+Everything the cache keeps for one question
+ - the complete answer, authority and additional sections of the upstream response (CNAME chains, multi-A names,
+   NS records and their glue); the upstream's OPT record is not kept, every response gets ours
+ - the response code, so NXDOMAIN and NODATA answers are cached too (RFC 2308)
+ - when the whole set expires:
+    positive answers: the lowest TTL in the set, glue included
+    negative answers: the lower of the SOA's TTL and its MINIMUM field
+ - in pre-encoded mode, the response already in wire format (ID 0, question, answers, authority, additional)
+   plus where each TTL sits in it; a hit copies it and patches ID, flags, question case and TTLs. The records
+   themselves aren't kept, they are decoded from the response if something asks for them
+ - an entry copied out of an off-heap cache (see OffHeapDNSCache) has only the encoded response;
+   its key and records are decoded from it the first time something asks for them
+Times are CoarseClock nanoseconds, worked out once on insert; every response written from an entry
+carries TTLs counted down by the time it has spent in the cache, so downstream caches don't keep it too long
+ */
+public class DNSCacheEntry {
+    static final byte RCODE_NOERROR = 0;
+    static final byte RCODE_NXDOMAIN = 3;
+
+    private final byte rcode;
+    //Decoded from encoded on first use if the entry was built from it alone
+    private volatile List<DNSRecord> answers;
+    private volatile List<DNSRecord> authorityRecords;
+    private volatile List<DNSRecord> additionalRecords;
+    private final long createdNanos;
+    private final long expiresAtNanos;
+    //Pre-encoded mode only
+    private byte[] encoded;
+    private int[] ttlOffsets;
+    private int[] ttls;
+    //The key the entry is stored under (see getKey)
+    DNSCacheKey key;
+    //Written on every hit without synchronization; a stale read only makes eviction slightly less exact
+    long lastAccess;
+    //Hits since the entry was cached, counted the same way (a lost increment only delays a prefetch)
+    int hits;
+
+    private DNSCacheEntry(byte rcode, List<DNSRecord> answers, List<DNSRecord> authorityRecords, List<DNSRecord> additionalRecords,
+                          long createdNanos, long expiresAtNanos) {
+        this.rcode = rcode;
+        this.answers = answers;
+        this.authorityRecords = authorityRecords;
+        this.additionalRecords = additionalRecords;
+        this.createdNanos = createdNanos;
+        this.expiresAtNanos = expiresAtNanos;
+        this.lastAccess = createdNanos;
+    }
+
+    //Build an entry from an upstream response, or return null if it shouldn't be cached
+    // - only NOERROR and NXDOMAIN are cacheable, SERVFAIL/REFUSED/etc. are not
+    // - truncated responses are incomplete
+    // - a negative answer without an SOA has no negative TTL, so it isn't cached (RFC 2308 section 5)
+    static DNSCacheEntry fromResponse(DNSMessage response, boolean preEncode) {
+        DNSHeader header = response.getHeader();
+        byte rcode = header.getRcode();
+        if ((rcode != RCODE_NOERROR && rcode != RCODE_NXDOMAIN) || header.getTc() != 0) {
+            return null;
+        }
+
+        List<DNSRecord> answers = response.getAnswers();
+        List<DNSRecord> authorityRecords = response.getAuthorityRecords();
+        List<DNSRecord> additionalRecords = response.getAdditionalRecordsWithoutOpt();
+        int ttl;
+        if (rcode == RCODE_NOERROR && !answers.isEmpty()) {
+            ttl = minimumTtl(answers, Integer.MAX_VALUE);
+            ttl = minimumTtl(authorityRecords, ttl);
+            ttl = minimumTtl(additionalRecords, ttl);
+        } else {
+            DNSRecord soa = findSoa(authorityRecords);
+            if (soa == null) {
+                return null;
+            }
+            ttl = Math.min(soa.getTtlSeconds(), soa.getSoaMinimum());
+        }
+
+        if (ttl <= 0) {
+            return null;
+        }
+        //The records outlive the upstream packet, take their names and data out of it
+        answers.forEach(DNSRecord::detach);
+        authorityRecords.forEach(DNSRecord::detach);
+        additionalRecords.forEach(DNSRecord::detach);
+        long now = CoarseClock.nanoTime();
+        DNSCacheEntry entry = new DNSCacheEntry(rcode, answers, authorityRecords, additionalRecords, now, now + TimeUnit.SECONDS.toNanos(ttl));
+        if (preEncode) {
+            entry.preEncode(response.getQuestions().get(0));
+        }
+        return entry;
+    }
+
+    //Rebuild an entry from a snapshot (see CacheSnapshot): the response as toWireFormat wrote it,
+    //and when it was cached and expires on the CoarseClock scale
+    //The entry owns the array from here on; its records stay lazily decoded over it (nothing else ever writes
+    //to it), and in pre-encoded mode it is used as the encoded response as it is - no re-encoding
+    static DNSCacheEntry fromSnapshot(byte[] response, long createdNanos, long expiresAtNanos, boolean preEncode) throws IOException {
+        DNSMessage message = DNSMessage.decodeMessage(response);
+        if (message.getQuestions().size() != 1 || message.getOpt() != null) {
+            throw new IOException("Not a cached response");
+        }
+        List<DNSRecord> answers = message.getAnswers();
+        List<DNSRecord> authorityRecords = message.getAuthorityRecords();
+        List<DNSRecord> additionalRecords = message.getAdditionalRecords();
+        DNSCacheEntry entry = new DNSCacheEntry(message.getHeader().getRcode(), answers, authorityRecords, additionalRecords,
+                createdNanos, expiresAtNanos);
+        entry.key = DNSCacheKey.probe()
+                .set(message.getBuffer(), DNSHeader.HEADER_LENGTH, message.getQuestions().get(0).getEndOffset() - DNSHeader.HEADER_LENGTH)
+                .copy();
+
+        if (preEncode) {
+            int records = answers.size() + authorityRecords.size() + additionalRecords.size();
+            entry.encoded = response;
+            entry.ttlOffsets = new int[records];
+            entry.ttls = new int[records];
+            int i = 0;
+            for (List<DNSRecord> section : List.of(answers, authorityRecords, additionalRecords)) {
+                for (DNSRecord record : section) {
+                    entry.ttlOffsets[i] = record.getTtlOffset();
+                    entry.ttls[i++] = record.getTtlSeconds();
+                }
+            }
+        }
+        return entry;
+    }
+
+    //Rebuild an entry from a response pre-encoded by this class, and where its TTLs are
+    //The original TTLs are read back out of the response; the key and records are only decoded if asked for
+    static DNSCacheEntry fromEncoded(byte[] encoded, int[] ttlOffsets, long createdNanos, long expiresAtNanos) {
+        ByteBuffer bytes = ByteBuffer.wrap(encoded);
+        DNSCacheEntry entry = new DNSCacheEntry((byte) (bytes.get(3) & 0x0f), null, null, null, createdNanos, expiresAtNanos);
+        entry.encoded = encoded;
+        entry.ttlOffsets = ttlOffsets;
+        entry.ttls = new int[ttlOffsets.length];
+        for (int i = 0; i < ttlOffsets.length; i++) {
+            entry.ttls[i] = bytes.getInt(ttlOffsets[i]);
+        }
+        return entry;
+    }
+
+    //The cached response in wire format with its original TTLs (ID 0), for snapshots
+    byte[] toWireFormat() {
+        if (encoded != null) {
+            return encoded;
+        }
+        return DNSMessage.buildMessage(key.toQuestion(), rcode, answers, authorityRecords, additionalRecords).toBytes();
+    }
+
+    //Records of a pre-encoded entry that was built without them
+    //Nothing else ever writes to encoded, so the records are decoded lazily over it like a snapshot entry
+    private void decodeRecords() {
+        try {
+            DNSMessage message = DNSMessage.decodeMessage(encoded);
+            additionalRecords = message.getAdditionalRecords();
+            authorityRecords = message.getAuthorityRecords();
+            answers = message.getAnswers();
+        } catch (IOException e) {
+            throw new IllegalStateException("Cached response doesn't decode", e);
+        }
+    }
+
+    //Encode the response once, remembering the original TTLs and where they were written
+    //The records are let go of afterwards: hits are answered from the encoded response, and anything that does
+    //want the records gets them decoded over it (as for an entry rebuilt from a snapshot), so an entry that is
+    //only ever hit by plain queries keeps two arrays and no record objects
+    private void preEncode(DNSQuestion question) {
+        int records = answers.size() + authorityRecords.size() + additionalRecords.size();
+        ttlOffsets = new int[records];
+        ttls = new int[records];
+        encoded = DNSMessage.buildMessage(question, rcode, answers, authorityRecords, additionalRecords).toBytes(ttlOffsets);
+
+        int i = 0;
+        for (List<DNSRecord> section : List.of(answers, authorityRecords, additionalRecords)) {
+            for (DNSRecord record : section) {
+                ttls[i++] = record.getTtlSeconds();
+            }
+        }
+        answers = null;
+        authorityRecords = null;
+        additionalRecords = null;
+    }
+
+    //Wire-format response to a plain query (see DNSMessage.simpleQueryQuestionEnd)
+    //Copies the pre-encoded response into this thread's MessageEncoder and patches in:
+    // - the request's ID, its opcode and RD, QR/RA set and our rcode
+    // - the request's question bytes, so the client sees its own capitalization back
+    // - our OPT record if the request had one, like buildResponse adds (after any cached additional records)
+    // - TTLs counted down by the time the entry has been in the cache
+    //Returns the encoder's buffer (see MessageEncoder.finish), or null if the entry wasn't pre-encoded
+    //Allocates nothing
+    ByteBuffer encodeFor(ByteBuffer request, int questionEnd) {
+        if (encoded == null) {
+            return null;
+        }
+        boolean edns = DNSMessage.simpleQueryHasOpt(request, questionEnd);
+        MessageEncoder encoder = MessageEncoder.local().begin();
+        encoder.putBytes(encoded);
+        if (edns) {
+            encoder.skip(DNSMessage.OPT_LENGTH);
+        }
+        ByteBuffer out = encoder.finish();
+
+        out.putShort(0, request.getShort(0));
+        out.putShort(2, (short) ((request.getShort(2) & DNSHeader.REQUEST_FLAGS) | DNSHeader.RESPONSE_FLAGS | rcode));
+        out.put(DNSHeader.HEADER_LENGTH, request, DNSHeader.HEADER_LENGTH, questionEnd - DNSHeader.HEADER_LENGTH);
+        if (edns) {
+            DNSMessage.putOpt(out, encoded.length, 0, DNSMessage.simpleQueryDnssecOk(request, questionEnd));
+            out.putShort(10, (short) (out.getShort(10) + 1));
+        }
+
+        int elapsedSeconds = elapsedSeconds();
+        for (int i = 0; i < ttlOffsets.length; i++) {
+            out.putInt(ttlOffsets[i], Math.max(ttls[i] - elapsedSeconds, 0));
+        }
+        return out;
+    }
+
+    //Wire-format response to any decoded request, built from the records
+    //(for requests the pre-encoded path doesn't cover), TTLs counted down the same way
+    //Also written into this thread's MessageEncoder
+    ByteBuffer encodeFor(DNSMessage request) {
+        return encodeFor(request, -1);
+    }
+
+    //Wire-format response from an expired entry (serve-stale), every TTL set to staleTtlSeconds
+    //so the client comes back for a fresh answer soon (RFC 8767 section 4)
+    ByteBuffer encodeStaleFor(DNSMessage request, int staleTtlSeconds) {
+        return encodeFor(request, staleTtlSeconds);
+    }
+
+    //TTLs counted down, or all set to fixedTtl if it isn't negative
+    private ByteBuffer encodeFor(DNSMessage request, int fixedTtl) {
+        List<DNSRecord> answers = getAnswers();
+        List<DNSRecord> authorityRecords = getAuthorityRecords();
+        List<DNSRecord> additionalRecords = getAdditionalRecords();
+        DNSMessage response = DNSMessage.buildResponse(request, rcode, answers, authorityRecords, additionalRecords);
+        int[] offsets = new int[answers.size() + authorityRecords.size() + response.getAdditionalRecords().size()];
+        ByteBuffer out = response.encode(MessageEncoder.local(), offsets);
+
+        int elapsedSeconds = elapsedSeconds();
+        int i = 0;
+        for (List<DNSRecord> section : List.of(answers, authorityRecords, additionalRecords)) {
+            for (DNSRecord record : section) {
+                out.putInt(offsets[i++], fixedTtl >= 0 ? fixedTtl : Math.max(record.getTtlSeconds() - elapsedSeconds, 0));
+            }
+        }
+        return out;
+    }
+
+    //Whole seconds since the entry was cached
+    int elapsedSeconds() {
+        return (int) TimeUnit.NANOSECONDS.toSeconds(CoarseClock.nanoTime() - createdNanos);
+    }
+
+    private static int minimumTtl(List<DNSRecord> records, int ttl) {
+        for (DNSRecord record : records) {
+            ttl = Math.min(ttl, record.getTtlSeconds());
+        }
+        return ttl;
+    }
+
+    private static DNSRecord findSoa(List<DNSRecord> records) {
+        for (DNSRecord record : records) {
+            if (record.getType() == DNSRecord.TYPE_SOA) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    //Whether at least fraction of the entry's TTL has gone by
+    boolean pastTtlFraction(double fraction) {
+        return CoarseClock.nanoTime() - createdNanos >= (long) ((expiresAtNanos - createdNanos) * fraction);
+    }
+
+    //Whether the entry hasn't been expired for longer than graceNanos (serve-stale)
+    boolean withinGrace(long graceNanos) {
+        return expiresAtNanos + graceNanos - CoarseClock.nanoTime() > 0;
+    }
+
+    //Return whether the TTL of the set has not run out yet
+    boolean timestampValid() {
+        return expiresAtNanos - CoarseClock.nanoTime() > 0;
+    }
+
+    //NXDOMAIN or NODATA
+    public boolean isNegative() {
+        if (rcode != RCODE_NOERROR) {
+            return true;
+        }
+        //ANCOUNT, rather than decoding the records of a pre-encoded entry
+        return encoded != null ? (encoded[6] | encoded[7]) == 0 : answers.isEmpty();
+    }
+
+    //The key the entry is stored under, taken from the encoded question if it wasn't set
+    DNSCacheKey getKey() {
+        if (key == null) {
+            key = DNSCacheKey.probe().set(ByteBuffer.wrap(encoded), DNSHeader.HEADER_LENGTH, questionLength(encoded)).copy();
+        }
+        return key;
+    }
+
+    //Length of the (uncompressed) question right after the header of an encoded response
+    private static int questionLength(byte[] response) {
+        int i = DNSHeader.HEADER_LENGTH;
+        while (response[i] != 0) {
+            i += (response[i] & 0xff) + 1;
+        }
+        return i + 1 + 4 - DNSHeader.HEADER_LENGTH;
+    }
+
+    //Pre-encoded mode only: the encoded response, where its TTLs are and what they were
+    byte[] getEncoded() { return encoded; }
+
+    int[] getTtlOffsets() { return ttlOffsets; }
+
+    long getCreatedNanos() { return createdNanos; }
+
+    long getExpiresAtNanos() { return expiresAtNanos; }
+
+    public byte getRcode() { return rcode; }
+
+    public List<DNSRecord> getAnswers() {
+        if (answers == null) {
+            decodeRecords();
+        }
+        return answers;
+    }
+
+    public List<DNSRecord> getAuthorityRecords() {
+        if (authorityRecords == null) {
+            decodeRecords();
+        }
+        return authorityRecords;
+    }
+
+    //Glue and other extra records, never an OPT record
+    public List<DNSRecord> getAdditionalRecords() {
+        if (additionalRecords == null) {
+            decodeRecords();
+        }
+        return additionalRecords;
+    }
+}
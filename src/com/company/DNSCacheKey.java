@@ -0,0 +1,145 @@
+package com.company;
+
+import java.nio.ByteBuffer;
+
+/*
+What the cache is keyed on: a question in wire format
+    name (length-prefixed labels, final 0) + 2-byte qtype + 2-byte qclass
+Names are compared ignoring ASCII case, so example.com and Example.COM share an entry
+ - stored keys own a case-folded copy of the bytes, as a bare array (no buffer around it)
+ - a probe key is a reusable view onto a question sitting in a request packet,
+   so a lookup straight from the packet allocates nothing
+ - the hash is DomainName's case-folded hash of the name, carried on over qtype and qclass
+ */
+final class DNSCacheKey {
+    //Stored keys: the folded key itself; probes: the packet the question is in, and where
+    private byte[] array;
+    private ByteBuffer bytes;
+    private int offset;
+    private int length;
+    private int hash;
+
+    private DNSCacheKey() {
+    }
+
+    //Stored key for a decoded question
+    static DNSCacheKey of(DNSQuestion question) {
+        byte[] name = question.getDomainName();
+        byte[] key = new byte[name.length + 4];
+        for (int i = 0; i < name.length; i++) {
+            key[i] = DomainName.toLower(name[i]);
+        }
+        key[name.length] = (byte) (question.getQtype() >>> 8);
+        key[name.length + 1] = (byte) question.getQtype();
+        key[name.length + 2] = (byte) (question.getQclass() >>> 8);
+        key[name.length + 3] = (byte) question.getQclass();
+
+        DNSCacheKey cacheKey = new DNSCacheKey();
+        cacheKey.array = key;
+        cacheKey.length = key.length;
+        cacheKey.hash = typeAndClassHash(DomainName.foldedHash(key, name.length), key, name.length);
+        return cacheKey;
+    }
+
+    //Empty key to be pointed at questions in packets with set()
+    static DNSCacheKey probe() {
+        return new DNSCacheKey();
+    }
+
+    //Point this key at the question between offset and offset + length of the packet
+    //The question must be uncompressed (as it always is first thing in a query)
+    DNSCacheKey set(ByteBuffer packet, int offset, int length) {
+        this.bytes = packet;
+        this.offset = offset;
+        this.length = length;
+
+        int h = DomainName.foldedHash(packet, offset, length - 4);
+        for (int i = length - 4; i < length; i++) {
+            h = 31 * h + (packet.get(offset + i) & 0xff);
+        }
+        this.hash = h;
+        return this;
+    }
+
+    //The name's hash carried on over the 4 bytes of qtype and qclass at from
+    private static int typeAndClassHash(int nameHash, byte[] key, int from) {
+        int h = nameHash;
+        for (int i = from; i < from + 4; i++) {
+            h = 31 * h + (key[i] & 0xff);
+        }
+        return h;
+    }
+
+    //Stored copy of whatever this key currently points at
+    DNSCacheKey copy() {
+        byte[] key = new byte[length];
+        for (int i = 0; i < length; i++) {
+            key[i] = (byte) byteAt(i);
+        }
+        DNSCacheKey cacheKey = new DNSCacheKey();
+        cacheKey.array = key;
+        cacheKey.length = length;
+        cacheKey.hash = hash;
+        return cacheKey;
+    }
+
+    //The question this key is for (name in lower case)
+    DNSQuestion toQuestion() {
+        byte[] name = new byte[length - 4];
+        for (int i = 0; i < name.length; i++) {
+            name[i] = (byte) byteAt(i);
+        }
+        int qtype = byteAt(length - 4) << 8 | byteAt(length - 3);
+        int qclass = byteAt(length - 2) << 8 | byteAt(length - 1);
+        return DNSQuestion.of(name, qtype, qclass);
+    }
+
+    //Whether the question at offset of buffer (length bytes, in any case) is the one this key is for
+    //Lets a cache that keeps questions outside of key objects compare them in place (see OffHeapDNSCache)
+    boolean matches(ByteBuffer buffer, int offset, int length) {
+        if (length != this.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            byte b = buffer.get(offset + i);
+            if (((i < length - 4 ? DomainName.toLower(b) : b) & 0xff) != byteAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int length() {
+        return length;
+    }
+
+    //Byte i of the key, with the name part case-folded (a stored key already is)
+    private int byteAt(int i) {
+        if (array != null) {
+            return array[i] & 0xff;
+        }
+        byte b = bytes.get(offset + i);
+        return (i < length - 4 ? DomainName.toLower(b) : b) & 0xff;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        DNSCacheKey that = (DNSCacheKey) o;
+        if (hash != that.hash || length != that.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (byteAt(i) != that.byteAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
@@ -1,19 +1,16 @@
 package com.company;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.OutputStream;;
-import java.util.Arrays;
+import java.io.EOFException;
+import java.nio.ByteBuffer;
 
 
 /* STORE ALL DATA PROVIDED BY 12 BYTE DNS HEADER
 ID: 16-bit identifier of a query
 QR: 1-bit query(0) or response(1)
-OPCODE: 4-bit (always 0)
+OPCODE: 4-bit kind of query, echoed back from the request in a response
 AA: 1-bit Authoritative Answer - is responding server authority on question? (0)
-TC: 1-bit Truncation (always 0?)
-RD: 1-bit indicates query should be pursued recursively (always 1)
+TC: 1-bit Truncation - set on a response cut down to fit the client (see DNSMessage.truncate)
+RD: 1-bit indicates query should be pursued recursively, echoed back from the request in a response
 RA: 1-bit in response - whether recursive query is supported in server or not (1 for response)
 Z: 1-bit reserved for future use (always 0)
 AD: 1-bit "Authentic Data" (0)
@@ -25,140 +22,142 @@ QDCOUNT: 16-bit number of entries in question section (1) (1)
 ANCOUNT: 16-bit number of resource records in answer section (0) (1)
 NSCOUNT: 16-bit authority records section (0) (0) ~IGNORE
 ARCOUNT: 16-bit resource records/ additional records section (0) (0) ~IGNORE
+
+All fields are kept as ints and read straight out of the packet - no per-field arrays
+The single-bit flags are picked out of the 16-bit flags word when asked for
 */
 
 public class DNSHeader {
-    private byte[] id;
-    private byte[] flags;
-    private byte qr = 0;
-    private byte opcode = 0;
-    private byte aa = 0;
-    private byte tc = 0;
-    private byte rd = 0;
-    private byte ra = 0;
-    private byte z = 0;
-    private byte ad = 0;
-    private byte cd = 0;
-    private byte rcode = 0;
-    private byte[] qdcount;
+    static final int HEADER_LENGTH = 12;
+    //The only flags a response takes from its request: opcode and RD
+    static final int REQUEST_FLAGS = 0x7900;
+    //The flags every response of ours sets: QR and RA
+    static final int RESPONSE_FLAGS = 0x8080;
+
+    private int id;
+    private int flags; //Contains: qr, opcode, aa, tc, rd, ra, z, ad, cd & rcode
     private int numQuestions;
-    private byte[] ancount;
     private int numAnswers;
-    private byte[] nscount;
     private int numAuthority;
-    private byte[] arcount;
     private int numAdditional;
 
-    // Read-in header
-    static DNSHeader decodeHeader(ByteArrayInputStream input) throws IOException {
+    // Read-in header from the first 12 bytes of the packet
+    static DNSHeader decodeHeader(ByteBuffer packet) throws EOFException {
+        if (packet.limit() < HEADER_LENGTH) {
+            throw new EOFException("Message is shorter than a DNS header");
+        }
         DNSHeader header = new DNSHeader();
-        header.id = input.readNBytes(2);
-
-        header.flags = input.readNBytes(2); //Contains: qr, opcode, aa, tc, rd, ra, z, ad, cd & rcode
-        header.qr = (byte) (header.flags[0] & 0b10000000);
-        header.opcode = (byte) (header.flags[0] & 0b01111000);
-        header.aa = (byte) (header.flags[0] & 0b00000100);
-        header.tc = (byte) (header.flags[0] & 0b00000010);
-        header.rd = (byte) (header.flags[0] & 0b00000001);
-        header.ra = (byte) (header.flags[1] & 0b10000000);
-        header.z =  (byte) (header.flags[1] & 0b01000000);
-        header.ad = (byte) (header.flags[1] & 0b00100000);
-        header.cd = (byte) (header.flags[1] & 0b00010000);
-        header.rcode = (byte) (header.flags[1] & 0b00001111);
-
-        header.qdcount = input.readNBytes(2);
-        header.numQuestions = header.getIntCount(header.qdcount);
-        header.ancount = input.readNBytes(2);
-        header.numAnswers = header.getIntCount(header.ancount);
-        header.nscount = input.readNBytes(2);
-        header.numAuthority = header.getIntCount(header.nscount);
-        header.arcount = input.readNBytes(2);
-        header.numAdditional = header.getIntCount(header.arcount);
+        header.id = packet.getShort(0) & 0xffff;
+        header.flags = packet.getShort(2) & 0xffff;
+        header.numQuestions = packet.getShort(4) & 0xffff;
+        header.numAnswers = packet.getShort(6) & 0xffff;
+        header.numAuthority = packet.getShort(8) & 0xffff;
+        header.numAdditional = packet.getShort(10) & 0xffff;
 
         return header;
     }
 
     //Copy fields from request to create header for response
-    static DNSHeader buildResponseHeader(DNSMessage request, DNSMessage response) {
+    static DNSHeader buildResponseHeader(DNSMessage request, DNSMessage response, byte rcode) {
         DNSHeader header = new DNSHeader();
 
         header.id = request.getHeader().getId();
-        header.flags = request.getHeader().getFlags();
-        header.flags[0] = (byte) (header.flags[0] | 0b10000000);
-        header.flags[1] = (byte) (header.flags[1] | 0b10000000);
+        //Keep the request's opcode and RD, set QR and RA, and our rcode
+        header.flags = (request.getHeader().getFlags() & REQUEST_FLAGS) | RESPONSE_FLAGS | (rcode & 0x0f);
 
-        header.qdcount = header.getByteCount(request.getQuestions().size());
-        header.ancount = header.getByteCount(response.getAnswers().size());
-        header.nscount = header.getByteCount(request.getAuthorityRecords().size());
-        header.arcount = header.getByteCount(request.getAdditionalRecords().size());
+        header.numQuestions = request.getQuestions().size();
+        header.numAnswers = response.getAnswers().size();
+        header.numAuthority = response.getAuthorityRecords().size();
+        header.numAdditional = response.getAdditionalRecords().size();
 
         return header;
     }
 
-    //Encode header to bytes to be sent back to client
-    void writeBytes(ByteArrayOutputStream output) {
-        output.writeBytes(id);
-        output.writeBytes(flags);
-        output.writeBytes(qdcount);
-        output.writeBytes(ancount);
-        output.writeBytes(nscount);
-        output.writeBytes(arcount);
-    }
+    //Header for a response that isn't answering a particular request (ID 0, RD and RA set)
+    static DNSHeader buildMessageHeader(DNSMessage message, byte rcode) {
+        DNSHeader header = new DNSHeader();
 
-    int getIntCount(byte[] array) {
-        return array[1] & 0xFF | (array[0]) << 8;
+        header.flags = RESPONSE_FLAGS | 0x0100 | (rcode & 0x0f);
+        header.numQuestions = message.getQuestions().size();
+        header.numAnswers = message.getAnswers().size();
+        header.numAuthority = message.getAuthorityRecords().size();
+        header.numAdditional = message.getAdditionalRecords().size();
+
+        return header;
     }
 
-    public byte[] getByteCount(int val) {
-        byte[] data = new byte[2];
-        data[1] = (byte) (val & 0xff);
-        data[0] = (byte) ((val >> 8) & 0xff);
+    //Header for a query of our own (ID 0 - the forwarder picks one - and RD set), counting its OPT record if it has one
+    static DNSHeader buildQueryHeader(DNSMessage message) {
+        DNSHeader header = new DNSHeader();
+
+        header.flags = 0x0100;
+        header.numQuestions = message.getQuestions().size();
+        header.numAdditional = message.getAdditionalRecords().size();
 
-        return data;
+        return header;
+    }
+
+    //Encode header to bytes to be sent back to client
+    void writeBytes(MessageEncoder output) {
+        output.putShort(id);
+        output.putShort(flags);
+        output.putShort(numQuestions);
+        output.putShort(numAnswers);
+        output.putShort(numAuthority);
+        output.putShort(numAdditional);
     }
 
     @Override
     public String toString() {
         return "DNSHeader{" +
-                "id=" + Arrays.toString(id) +
-                ", qr=" + qr +
-                ", opcode=" + opcode +
-                ", aa=" + aa +
-                ", tc=" + tc +
-                ", rd=" + rd +
-                ", ra=" + ra +
-                ", z=" + z +
-                ", ad=" + ad +
-                ", cd=" + cd +
-                ", rcode=" + rcode +
-                ", qdcount=" + Arrays.toString(qdcount) +
-                ", ancount=" + Arrays.toString(ancount) +
-                ", nscount=" + Arrays.toString(nscount) +
-                ", arcount=" + Arrays.toString(arcount) +
+                "id=" + id +
+                ", qr=" + getQr() +
+                ", opcode=" + getOpcode() +
+                ", aa=" + getAa() +
+                ", tc=" + getTc() +
+                ", rd=" + getRd() +
+                ", ra=" + getRa() +
+                ", z=" + getZ() +
+                ", ad=" + getAd() +
+                ", cd=" + getCd() +
+                ", rcode=" + getRcode() +
+                ", qdcount=" + numQuestions +
+                ", ancount=" + numAnswers +
+                ", nscount=" + numAuthority +
+                ", arcount=" + numAdditional +
                 '}';
     }
 
-    public byte[] getId() {
+    public int getId() {
         return id;
     }
 
-    public byte[] getFlags() { return flags; }
+    //Used by the upstream forwarder to give a reply back the client's transaction ID
+    void setId(int id) {
+        this.id = id;
+    }
+
+    public int getFlags() { return flags; }
+
+    public byte getQr() { return (byte) (flags >>> 15 & 1); }
+
+    public byte getOpcode() { return (byte) (flags >>> 11 & 0x0f); }
 
-    public byte getOpcode() { return opcode; }
+    public byte getAa() { return (byte) (flags >>> 10 & 1); }
 
-    public byte getAa() { return aa; }
+    public byte getTc() { return (byte) (flags >>> 9 & 1); }
 
-    public byte getTc() { return tc; }
+    public byte getRd() { return (byte) (flags >>> 8 & 1); }
 
-    public byte getRd() { return rd; }
+    public byte getRa() { return (byte) (flags >>> 7 & 1); }
 
-    public byte getZ() { return z; }
+    public byte getZ() { return (byte) (flags >>> 6 & 1); }
 
-    public byte getAd() { return ad; }
+    public byte getAd() { return (byte) (flags >>> 5 & 1); }
 
-    public byte getCd() { return cd; }
+    public byte getCd() { return (byte) (flags >>> 4 & 1); }
 
-    public byte getRcode() { return rcode; }
+    public byte getRcode() { return (byte) (flags & 0x0f); }
 
     public int getNumQuestions() {
         return numQuestions;
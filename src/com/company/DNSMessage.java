@@ -1,9 +1,10 @@
 package com.company;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.List;
 
 /*
 ENTIRE DNS MESSAGE:
@@ -12,224 +13,487 @@ Array of questions
 Array of answers
 Array of authority records
 Array of additional records
-Byte Array of complete message (to handle compression techniques)
+ByteBuffer of complete message (to handle compression techniques)
+
+Decoding works straight on the packet by offset:
+ - header and record fields are read as primitives
+ - names and record data stay where they are in the packet until someone asks for them,
+   so decoding a message costs a handful of small objects and no copies
+ - a record or question that outlives the packet (e.g. in the cache) is detached first
+Names that are taken out of the packet are kept in uncompressed wire format,
+ex. "utah.edu" -> [4]utah[3]edu[0]
  */
 public class DNSMessage {
+    //Longest name allowed on the wire, including length bytes and the final 0
+    static final int MAX_NAME_LENGTH = 255;
+    //The root name and the fixed fields: the least a question, and a record, can take up
+    private static final int MIN_QUESTION_LENGTH = 5;
+    private static final int MIN_RECORD_LENGTH = 11;
+
+    //UDP payload size we advertise and answer up to - big enough for most answers, small enough not to
+    //be fragmented on any common path (the DNS Flag Day 2020 figure)
+    static final int EDNS_UDP_PAYLOAD_SIZE = 1232;
+    //Plain DNS over UDP (RFC 1035 section 4.2.1)
+    static final int MIN_UDP_PAYLOAD_SIZE = 512;
+    //OPT record with no options: root name, type, class, TTL, rdlength
+    static final int OPT_LENGTH = 11;
+
+    private static final List<DNSRecord> NO_RECORDS = List.of();
+
     private DNSHeader header;
-    private ArrayList<DNSQuestion> questions;
-    private ArrayList<DNSRecord> answers, authorityRecords, additionalRecords;
-    private byte[] completeMessage;
+    private List<DNSQuestion> questions;
+    private List<DNSRecord> answers, authorityRecords, additionalRecords;
+    private ByteBuffer completeMessage;
+    //How far into completeMessage decoding has got
+    private int decodedLength;
 
     static DNSMessage decodeMessage(byte[] bytes) throws IOException {
+        return decodeMessage(ByteBuffer.wrap(bytes));
+    }
+
+    //Decode the message between position 0 and the limit of the buffer
+    //The buffer must not be changed while the message (or anything not detached from it) is in use
+    static DNSMessage decodeMessage(ByteBuffer packet) throws IOException {
         DNSMessage message = new DNSMessage();
         //Store the complete message
-        message.completeMessage = bytes;
-
-        //Create input stream to read each part of bytes
-        ByteArrayInputStream input = new ByteArrayInputStream(bytes);
+        message.completeMessage = packet;
 
         //Create header
-        message.header = DNSHeader.decodeHeader(input);
+        message.header = DNSHeader.decodeHeader(packet);
+        int offset = DNSHeader.HEADER_LENGTH;
 
         //Loop through each question and run it through decodeQuestion
-        message.questions = new ArrayList<>();
-        DNSQuestion question;
-        for (int i=0; i< message.header.getNumQuestions(); i++) {
-            question = DNSQuestion.decodeQuestion(input, message);
+        //The count is the sender's word: no more room is made than the bytes left could hold (5 bytes at least each)
+        int numQuestions = message.header.getNumQuestions();
+        message.questions = new ArrayList<>(Math.min(numQuestions, (packet.limit() - offset) / MIN_QUESTION_LENGTH));
+        for (int i=0; i<numQuestions; i++) {
+            DNSQuestion question = DNSQuestion.decodeQuestion(message, offset);
             message.questions.add(question);
+            offset = question.getEndOffset();
         }
 
-        //Loop through each answer and run it through decodeRecord
-        message.answers = new ArrayList<>();
-        DNSRecord answer;
-        for (int i=0; i<message.header.getNumAnswers(); i++) {
-            answer = DNSRecord.decodeRecord(input, message);
-            message.answers.add(answer);
-        }
-
-        //Loop through each authority record and run it through decodeRecord
-        message.authorityRecords = new ArrayList<>();
-        DNSRecord authorityRecord;
-        for (int i=0; i<message.header.getNumAuthority(); i++) {
-            authorityRecord = DNSRecord.decodeRecord(input, message);
-            message.authorityRecords.add(authorityRecord);
-        }
-
-        //Loop through each additional record and run it through decodeRecord
-        message.additionalRecords = new ArrayList<>();
-        DNSRecord additionalRecord;
-        for (int i=0; i<message.header.getNumAdditional(); i++) {
-            additionalRecord = DNSRecord.decodeRecord(input, message);
-            message.additionalRecords.add(additionalRecord);
-        }
+        //Answers, authority records and additional records all run through decodeRecord
+        message.decodedLength = offset;
+        message.answers = message.decodeRecords(message.header.getNumAnswers());
+        message.authorityRecords = message.decodeRecords(message.header.getNumAuthority());
+        message.additionalRecords = message.decodeRecords(message.header.getNumAdditional());
 
         return message;
     }
 
-    //Read the pieces of a domain name, starting from current position of input stream
-    String[] readDomainName(InputStream input) throws IOException {
-        //Check for compression
-        byte compressionPointer = input.readNBytes(1)[0];
-        int compressionCheck = ((int) compressionPointer & 0xff) >> 6;
-
-        if (compressionCheck == 3) {
-            byte compressionOffset = input.readNBytes(1)[0];
-            int entireCompression = (compressionPointer << 8) | compressionOffset;
-            int offset = entireCompression & 0x3fff;
-            return readDomainName(offset);
+    //Decode count records starting at decodedLength, moving decodedLength past the last one
+    //(room made for no more than the bytes left could hold, as for questions)
+    private List<DNSRecord> decodeRecords(int count) throws IOException {
+        if (count == 0) {
+            return NO_RECORDS;
         }
+        List<DNSRecord> records = new ArrayList<>(Math.min(count, (completeMessage.limit() - decodedLength) / MIN_RECORD_LENGTH));
+        for (int i=0; i<count; i++) {
+            DNSRecord record = DNSRecord.decodeRecord(this, decodedLength);
+            records.add(record);
+            decodedLength = record.getEndOffset();
+        }
+        return records;
+    }
 
-        //Store bytes from input stream
-        ArrayList<Byte> domainNameList = new ArrayList<>();
-        domainNameList.add(compressionPointer);
+    //Return the offset just past the name that starts at offset
+    //(past the final 0, or past the 2-byte compression pointer)
+    //Checks the name is well formed, so readDomainName can trust it later
+    int skipDomainName(int offset) throws IOException {
+        int end = -1;
+        int length = 0;
+        int position = offset;
+        //Where the labels being read started: the name itself, then the last pointer's target
+        int start = offset;
 
-        //domainName = Read-in bytes until 0
         while (true) {
-            int currentByte = input.read();
-            if (currentByte == 0) {
+            int labelLength = byteAt(position);
+            if (labelLength == 0) {
+                length++;
                 break;
             }
-            domainNameList.add((byte)currentByte);
+
+            //Check for compression
+            if ((labelLength & 0xC0) == 0xC0) {
+                int target = ((labelLength & 0x3f) << 8) | byteAt(position + 1);
+                if (end < 0) {
+                    end = position + 2;
+                }
+                //Only allow pointers to before where the labels they follow started, so every hop goes strictly
+                //further back and a name can't loop forever (pointing at its own first label included)
+                if (target >= start) {
+                    throw new IOException("Compression pointer does not point backwards: " + target);
+                }
+                position = target;
+                start = target;
+                continue;
+            }
+            if (labelLength > 63) {
+                throw new IOException("Bad label length: " + labelLength);
+            }
+
+            length += labelLength + 1;
+            position += labelLength + 1;
+            if (length > MAX_NAME_LENGTH) {
+                throw new IOException("Domain name longer than " + MAX_NAME_LENGTH + " bytes");
+            }
         }
 
-        //turn qname back into byte[]
-        byte[] domainNameArray = new byte[domainNameList.size()];
-        for(int i = 0; i<domainNameList.size(); i++) {
-            domainNameArray[i] = domainNameList.get(i);
+        if (length > MAX_NAME_LENGTH) {
+            throw new IOException("Domain name longer than " + MAX_NAME_LENGTH + " bytes");
         }
+        return end < 0 ? position + 1 : end;
+    }
 
-        //Assign domainName = qname as a split string
-        String qnameString = new String(domainNameArray);
-        String[] domainName = qnameString.split(" ");
+    //Read the name starting at offset into its own array, following any compression pointers
+    //Only call this for names skipDomainName has already checked
+    byte[] readDomainName(int offset) {
+        byte[] name = new byte[nameLength(offset)];
+        int length = 0;
+        int position = offset;
 
-        return domainName;
+        while (true) {
+            int labelLength = completeMessage.get(position) & 0xff;
+            if ((labelLength & 0xC0) == 0xC0) {
+                position = ((labelLength & 0x3f) << 8) | (completeMessage.get(position + 1) & 0xff);
+                continue;
+            }
+            name[length++] = (byte) labelLength;
+            if (labelLength == 0) {
+                return name;
+            }
+            completeMessage.get(position + 1, name, length, labelLength);
+            length += labelLength;
+            position += labelLength + 1;
+        }
     }
 
-    //Use this when there's compression, but need to find domain from earlier message
-    //Make a ByteArrayInputStream that starts at int firstByte
-    //Call other version of readDomainName
-    String[] readDomainName(int firstByte) throws IOException {
-        ByteArrayInputStream input = new ByteArrayInputStream(completeMessage);
-        input.readNBytes(firstByte);
-        String[] domainName = readDomainName(input);
+    //Length of the uncompressed name at offset (length bytes, labels and the final 0)
+    private int nameLength(int offset) {
+        int length = 0;
+        int position = offset;
+        while (true) {
+            int labelLength = completeMessage.get(position) & 0xff;
+            if ((labelLength & 0xC0) == 0xC0) {
+                position = ((labelLength & 0x3f) << 8) | (completeMessage.get(position + 1) & 0xff);
+                continue;
+            }
+            length += labelLength + 1;
+            if (labelLength == 0) {
+                return length;
+            }
+            position += labelLength + 1;
+        }
+    }
+
+    //Unsigned byte at offset, or EOFException past the end of the message
+    int byteAt(int offset) throws EOFException {
+        if (offset >= completeMessage.limit()) {
+            throw new EOFException("Message ends in the middle of a field");
+        }
+        return completeMessage.get(offset) & 0xff;
+    }
+
+    int shortAt(int offset) throws EOFException {
+        if (offset + 2 > completeMessage.limit()) {
+            throw new EOFException("Message ends in the middle of a field");
+        }
+        return completeMessage.getShort(offset) & 0xffff;
+    }
 
-        return domainName;
+    int intAt(int offset) throws EOFException {
+        if (offset + 4 > completeMessage.limit()) {
+            throw new EOFException("Message ends in the middle of a field");
+        }
+        return completeMessage.getInt(offset);
     }
 
-    //Build a response based off request and answers we'll send back
-    //answerArray is built in DNSServer
-    // - either answers are from cache or from Google
-    static DNSMessage buildResponse(DNSMessage request, ArrayList<DNSRecord> answerArray) {
+    //Build a response to request with a response code and the sections we'll send back
+    // - used for cached and upstream answers, including NXDOMAIN/NODATA with their SOA, and for SERVFAIL
+    // - rcode is the full 12-bit code; the upper bits go in the OPT record
+    // - additionalArray is glue and the like, without any OPT record
+    // - if the request came with an OPT record, the response carries ours after the additional records
+    //   (our payload size, the request's DO flag); the request's other additional records aren't echoed
+    static DNSMessage buildResponse(DNSMessage request, int rcode, List<DNSRecord> answerArray, List<DNSRecord> authorityArray,
+                                    List<DNSRecord> additionalArray) {
         DNSMessage response = new DNSMessage();
+        DNSRecord requestOpt = request.getOpt();
 
         response.questions = request.questions;
         response.answers = answerArray;
-        response.authorityRecords = request.authorityRecords;
-        response.additionalRecords = request.additionalRecords;
-        response.header = DNSHeader.buildResponseHeader(request, response);
+        response.authorityRecords = authorityArray;
+        if (requestOpt == null) {
+            response.additionalRecords = additionalArray;
+        } else {
+            response.additionalRecords = new ArrayList<>(additionalArray.size() + 1);
+            response.additionalRecords.addAll(additionalArray);
+            response.additionalRecords.add(DNSRecord.opt(EDNS_UDP_PAYLOAD_SIZE, rcode >>> 4, requestOpt.isDnssecOk()));
+        }
+        response.header = DNSHeader.buildResponseHeader(request, response, (byte) rcode);
 
         return response;
     }
 
+    //Message with one question and the given sections, not tied to any request (ID 0)
+    //Used to pre-encode cached responses
+    static DNSMessage buildMessage(DNSQuestion question, byte rcode, List<DNSRecord> answerArray, List<DNSRecord> authorityArray,
+                                   List<DNSRecord> additionalArray) {
+        DNSMessage message = new DNSMessage();
+
+        message.questions = List.of(question);
+        message.answers = answerArray;
+        message.authorityRecords = authorityArray;
+        message.additionalRecords = additionalArray;
+        message.header = DNSHeader.buildMessageHeader(message, rcode);
+
+        return message;
+    }
+
+    //Recursive query for one question, as if a client had sent it
+    //Decoded back from its own bytes, so it can be forwarded like any request
+    static DNSMessage buildQuery(DNSQuestion question) throws IOException {
+        DNSMessage message = new DNSMessage();
+
+        message.questions = List.of(question);
+        message.answers = NO_RECORDS;
+        message.authorityRecords = NO_RECORDS;
+        message.additionalRecords = NO_RECORDS;
+        message.header = DNSHeader.buildQueryHeader(message);
+
+        return decodeMessage(message.toBytes());
+    }
+
+    //Wire-format query we send upstream for question: ID 0 (the forwarder puts its own in), RD set, CD and AD
+    //clear, and our OPT record without DO or options. Nothing of the client's query goes with it, as the reply is
+    //cached for (and shared with) every client asking the same question
+    static byte[] forwardedQuery(DNSQuestion question) {
+        DNSMessage message = new DNSMessage();
+
+        message.questions = List.of(question);
+        message.answers = NO_RECORDS;
+        message.authorityRecords = NO_RECORDS;
+        message.additionalRecords = List.of(DNSRecord.opt(EDNS_UDP_PAYLOAD_SIZE, 0, false));
+        message.header = DNSHeader.buildQueryHeader(message);
+
+        return message.toBytes();
+    }
+
     //Get bytes to put in a packet to send
     //Call each class's writeBytes()
     byte[] toBytes() {
-        //Create hashmap that holds name and location of un-compressed domain names
-        HashMap<String, Integer> domainNameLocation = new HashMap<>();
+        return toBytes(null);
+    }
 
-        //Create an output stream
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
+    //Same, and if ttlOffsets isn't null fill it with where each record's TTL was written
+    //(answers, then authority, then additional records)
+    //Encoded in this thread's MessageEncoder and copied out
+    byte[] toBytes(int[] ttlOffsets) {
+        MessageEncoder encoder = MessageEncoder.local();
+        encode(encoder, ttlOffsets);
+        return encoder.toByteArray();
+    }
+
+    //Write the message into the encoder's buffer, compressing names as it goes
+    //Returns the buffer, with the message between 0 and its limit (good until the encoder's next message)
+    ByteBuffer encode(MessageEncoder output, int[] ttlOffsets) {
+        output.begin();
 
         //Get bytes from each portion of the message
         header.writeBytes(output);
 
         for (DNSQuestion question: this.questions) {
-            question.writeBytes(output, domainNameLocation);
+            question.writeBytes(output);
         }
+        int record = 0;
         for (DNSRecord answer: this.answers) {
-            answer.writeBytes(output, domainNameLocation);
+            int ttlOffset = answer.writeBytes(output);
+            if (ttlOffsets != null) ttlOffsets[record++] = ttlOffset;
         }
         for (DNSRecord authorityRecord: this.authorityRecords) {
-            authorityRecord.writeBytes(output, domainNameLocation);
+            int ttlOffset = authorityRecord.writeBytes(output);
+            if (ttlOffsets != null) ttlOffsets[record++] = ttlOffset;
         }
         for (DNSRecord additionalRecord: this.additionalRecords) {
-            additionalRecord.writeBytes(output, domainNameLocation);
+            int ttlOffset = additionalRecord.writeBytes(output);
+            if (ttlOffsets != null) ttlOffsets[record++] = ttlOffset;
         }
 
-        //Create and return a byte[] of the whole message
-        return output.toByteArray();
+        return output.finish();
     }
 
-    /*
-    If first time seeing domain name:
-        - write using DNS encoding - each segment of domain prefixed with length, and a 0 at the end
-        - add to hashmap
-    Else:
-        - write a back pointer to where domain has been previously
-     */
-    static void writeDomainName(ByteArrayOutputStream output, HashMap<String, Integer> domainNameLocations, String[] domainPieces) {
-        String domainName = DNSMessage.octetsToString(domainPieces);
-
-        //First time seeing domain name:
-        if (!domainNameLocations.containsKey(domainName)) {
-            //Write using DNS encoding - each segment of domain prefixed with length
-            for (String s: domainPieces) {
-                char[] chars = s.toCharArray();
-                for (char c: chars) {
-                    output.write(c);
-                }
-            }
-            //Add ending 0
-            output.write(0x00);
-
-            //Add to hashmap
-            domainNameLocations.put(domainName, output.size());
+    //End of the question in a plain query (one question, nothing in the answer or authority sections,
+    //and at most an OPT record in the additional section), read straight from the packet without
+    //decoding it; -1 for anything else
+    static int simpleQueryQuestionEnd(ByteBuffer packet) {
+        int limit = packet.limit();
+        if (limit < DNSHeader.HEADER_LENGTH
+                || (packet.getShort(2) & 0xf800) != 0          //QR = 0 and OPCODE = QUERY
+                || packet.getShort(4) != 1                    //QDCOUNT
+                || packet.getShort(6) != 0                    //ANCOUNT
+                || packet.getShort(8) != 0) {                 //NSCOUNT
+            return -1;
+        }
 
-        //Write a back pointer to where domain was seen previously
-        //Construct the 2-byte offset (indicating compression)
-        } else {
-            int offsetInt = domainNameLocations.get(domainName);
-            byte[] offsetBytes = DNSMessage.getBytes(offsetInt);
-            offsetBytes[0] = (byte) (offsetBytes[0] | 0xC0);
+        //The name must be plain labels - nothing to point back to this early in the message
+        int position = DNSHeader.HEADER_LENGTH;
+        while (position < limit) {
+            int labelLength = packet.get(position) & 0xff;
+            if (labelLength == 0) {
+                int end = position + 5;
+                return end - DNSHeader.HEADER_LENGTH <= MAX_NAME_LENGTH + 4 && isSimpleAdditional(packet, end) ? end : -1;
+            }
+            if (labelLength > 63) {
+                return -1;
+            }
+            position += labelLength + 1;
+        }
+        return -1;
+    }
 
-            output.writeBytes(offsetBytes);
+    //Nothing after the question, or exactly one OPT record
+    private static boolean isSimpleAdditional(ByteBuffer packet, int questionEnd) {
+        int limit = packet.limit();
+        int additional = packet.getShort(10) & 0xffff;
+        if (additional == 0) {
+            return limit == questionEnd;
         }
+        return additional == 1
+                && questionEnd + OPT_LENGTH <= limit
+                && packet.get(questionEnd) == 0
+                && (packet.getShort(questionEnd + 1) & 0xffff) == DNSRecord.TYPE_OPT
+                && questionEnd + OPT_LENGTH + (packet.getShort(questionEnd + 9) & 0xffff) == limit;
+    }
+
+    //Whether a plain query (see simpleQueryQuestionEnd) has an OPT record
+    static boolean simpleQueryHasOpt(ByteBuffer packet, int questionEnd) {
+        return packet.limit() > questionEnd;
     }
 
-    //Join pieces of a domain name with dots
-    // ex. ["utah", "edu"] -> "utah.edu"
-    public static String octetsToString(String[] octets) {
-        String domainName = "";
+    //UDP payload size a plain query can take (512 without an OPT record)
+    static int simpleQueryUdpPayloadSize(ByteBuffer packet, int questionEnd) {
+        return simpleQueryHasOpt(packet, questionEnd)
+                ? Math.max(packet.getShort(questionEnd + 3) & 0xffff, MIN_UDP_PAYLOAD_SIZE) : MIN_UDP_PAYLOAD_SIZE;
+    }
 
-        if (octets.length > 0) {
-            StringBuilder sb = new StringBuilder();
+    //DO flag of a plain query
+    static boolean simpleQueryDnssecOk(ByteBuffer packet, int questionEnd) {
+        return simpleQueryHasOpt(packet, questionEnd) && (packet.getShort(questionEnd + 7) & DNSRecord.OPT_DO_BIT) != 0;
+    }
 
-            for (String s: octets) {
-                sb.append(s).append(".");
-            }
+    //Write our OPT record (no options) at offset
+    static void putOpt(ByteBuffer out, int offset, int extendedRcode, boolean dnssecOk) {
+        out.put(offset, (byte) 0);
+        out.putShort(offset + 1, (short) DNSRecord.TYPE_OPT);
+        out.putShort(offset + 3, (short) EDNS_UDP_PAYLOAD_SIZE);
+        out.putInt(offset + 5, extendedRcode << 24 | (dnssecOk ? DNSRecord.OPT_DO_BIT : 0));
+        out.putShort(offset + 9, (short) 0);
+    }
 
-            domainName = sb.deleteCharAt(sb.length() - 1).toString();
+    //Cut a response that is too big for the client down to its header and question, with TC set,
+    //so the client knows to ask again over TCP (RFC 1035 section 4.2.1, RFC 2181 section 9)
+    //Done in place: the response's limit is brought in to the end of what's left
+    static void truncate(ByteBuffer response) throws IOException {
+        DNSMessage message = decodeMessage(response);
+        List<DNSQuestion> questions = message.getQuestions();
+        int questionEnd = questions.isEmpty() ? DNSHeader.HEADER_LENGTH : questions.get(questions.size() - 1).getEndOffset();
+
+        //The OPT record stays, so the client still learns our payload size (RFC 6891 section 7)
+        DNSRecord opt = message.getOpt();
+        response.putShort(2, (short) (response.getShort(2) | 0x0200));
+        response.putShort(6, (short) 0);
+        response.putShort(8, (short) 0);
+        response.putShort(10, (short) (opt == null ? 0 : 1));
+        if (opt != null) {
+            putOpt(response, questionEnd, opt.getExtendedRcode(), opt.isDnssecOk());
         }
-        return domainName;
+        response.limit(questionEnd + (opt == null ? 0 : OPT_LENGTH));
     }
 
-    public static byte[] getBytes(int val) {
-        byte[] data = new byte[2];
-        data[1] = (byte) (val & 0xff);
-        data[0] = (byte) ((val >>> 8) & 0xff);
+    //Turn a wire-format name into dotted form
+    // ex. [4]utah[3]edu[0] -> "utah.edu"
+    public static String octetsToString(byte[] domainName) {
+        StringBuilder sb = new StringBuilder();
+        int position = 0;
+
+        while (domainName[position] != 0) {
+            int labelLength = domainName[position] & 0xff;
+            if (sb.length() > 0) {
+                sb.append('.');
+            }
+            sb.append(new String(domainName, position + 1, labelLength, StandardCharsets.ISO_8859_1));
+            position += labelLength + 1;
+        }
+        return sb.toString();
+    }
 
-        return data;
+    //Turn a dotted name into wire format
+    // ex. "utah.edu" -> [4]utah[3]edu[0]
+    public static byte[] stringToOctets(String domainName) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (String label : domainName.split("\\.")) {
+            if (!label.isEmpty()) {
+                byte[] labelBytes = label.getBytes(StandardCharsets.ISO_8859_1);
+                output.write(labelBytes.length);
+                output.writeBytes(labelBytes);
+            }
+        }
+        output.write(0);
+        return output.toByteArray();
     }
 
     public DNSHeader getHeader() { return header; }
 
-    public ArrayList<DNSQuestion> getQuestions() { return questions; }
+    public List<DNSQuestion> getQuestions() { return questions; }
+
+    public List<DNSRecord> getAnswers() { return answers; }
+
+    public List<DNSRecord> getAuthorityRecords() { return authorityRecords; }
+
+    public List<DNSRecord> getAdditionalRecords() { return additionalRecords; }
 
-    public ArrayList<DNSRecord> getAnswers() { return answers; }
+    //The additional section without its OPT record: glue and the like, which belong with the answer,
+    //while the OPT record only describes the hop it came over
+    public List<DNSRecord> getAdditionalRecordsWithoutOpt() {
+        if (getOpt() == null) {
+            return additionalRecords;
+        }
+        List<DNSRecord> records = new ArrayList<>(additionalRecords.size() - 1);
+        for (DNSRecord record : additionalRecords) {
+            if (record.getType() != DNSRecord.TYPE_OPT) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    //The OPT record from the additional section, or null if the sender doesn't do EDNS
+    public DNSRecord getOpt() {
+        for (DNSRecord record : additionalRecords) {
+            if (record.getType() == DNSRecord.TYPE_OPT) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    //Full 12-bit response code: the header's 4 bits plus the OPT record's upper 8
+    public int getRcode() {
+        DNSRecord opt = getOpt();
+        return (opt == null ? 0 : opt.getExtendedRcode() << 4) | header.getRcode();
+    }
 
-    public ArrayList<DNSRecord> getAuthorityRecords() { return authorityRecords; }
+    //Largest UDP response the sender can take
+    public int getUdpPayloadSize() {
+        DNSRecord opt = getOpt();
+        return opt == null ? MIN_UDP_PAYLOAD_SIZE : opt.getUdpPayloadSize();
+    }
 
-    public ArrayList<DNSRecord> getAdditionalRecords() { return additionalRecords; }
+    //Copy of the bytes this message was decoded from
+    public byte[] getCompleteMessage() {
+        byte[] bytes = new byte[completeMessage.limit()];
+        completeMessage.get(0, bytes);
+        return bytes;
+    }
 
-    public byte[] getCompleteMessage() { return completeMessage; }
+    ByteBuffer getBuffer() { return completeMessage; }
 }
@@ -1,51 +1,98 @@
 package com.company;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.HashMap;
 
 //REPRESENTS CLIENT REQUEST
+//The name stays in the packet until it is first needed (hashing, comparing, writing)
 public class DNSQuestion {
-    private byte[] qtype;
-    private byte[] qclass;
-    private String[] domainName;
+    private int qtype;
+    private int qclass;
+    private byte[] domainName;
+    //Where the name sits in the packet, until it has been read out
+    private DNSMessage message;
+    private int nameOffset;
+    private int endOffset;
 
-    //Read question from input stream
-    static DNSQuestion decodeQuestion(InputStream input, DNSMessage request) throws IOException {
+    //Read question starting at offset of the message
+    static DNSQuestion decodeQuestion(DNSMessage request, int offset) throws IOException {
         DNSQuestion question = new DNSQuestion();
 
-        question.domainName = request.readDomainName(input);
-        question.qtype = input.readNBytes(2);
-        question.qclass = input.readNBytes(2);
+        question.message = request;
+        question.nameOffset = offset;
+        int position = request.skipDomainName(offset);
+        question.qtype = request.shortAt(position);
+        question.qclass = request.shortAt(position + 2);
+        question.endOffset = position + 4;
 
         return question;
     }
 
+    //Build a question that isn't tied to a packet
+    static DNSQuestion of(byte[] domainName, int qtype, int qclass) {
+        DNSQuestion question = new DNSQuestion();
+        question.domainName = domainName;
+        question.qtype = qtype;
+        question.qclass = qclass;
+        return question;
+    }
+
     //Write the question in bytes to send to client
-    //Hashmap used to compress the message (created in Message class)
-    void writeBytes(ByteArrayOutputStream output, HashMap<String, Integer> domainNameLocations) {
-        DNSMessage.writeDomainName(output,domainNameLocations,domainName);
-        output.writeBytes(qtype);
-        output.writeBytes(qclass);
+    //The encoder compresses the name against the ones already in the message
+    void writeBytes(MessageEncoder output) {
+        output.putName(getDomainName());
+        output.putShort(qtype);
+        output.putShort(qclass);
+    }
+
+    //Read the name out of the packet and let go of the packet
+    //Call before keeping the question around longer than its message
+    DNSQuestion detach() {
+        domainName = DomainName.internBytes(getDomainName());
+        message = null;
+        return this;
+    }
+
+    //Uncompressed wire-format name, read out of the packet the first time it's asked for
+    //Two threads racing here both read the same bytes, so no locking is needed
+    public byte[] getDomainName() {
+        if (domainName == null) {
+            domainName = message.readDomainName(nameOffset);
+        }
+        return domainName;
     }
 
+    public int getQtype() { return qtype; }
+
+    public int getQclass() { return qclass; }
+
+    int getEndOffset() { return endOffset; }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         DNSQuestion that = (DNSQuestion) o;
-        return Arrays.equals(qtype, that.qtype) &&
-                Arrays.equals(qclass, that.qclass) &&
-                Arrays.equals(domainName, that.domainName);
+        return qtype == that.qtype &&
+                qclass == that.qclass &&
+                Arrays.equals(getDomainName(), that.getDomainName());
     }
 
     @Override
     public int hashCode() {
-        int result = Arrays.hashCode(qtype);
-        result = 31 * result + Arrays.hashCode(qclass);
-        result = 31 * result + Arrays.hashCode(domainName);
+        int result = qtype;
+        result = 31 * result + qclass;
+        result = 31 * result + Arrays.hashCode(getDomainName());
         return result;
     }
+
+    @Override
+    public String toString() {
+        return "DNSQuestion{" +
+                "name=" + DNSMessage.octetsToString(getDomainName()) +
+                ", qtype=" + qtype +
+                ", qclass=" + qclass +
+                '}';
+    }
 }
@@ -2,75 +2,240 @@ package com.company;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.Calendar;
-import java.util.HashMap;
 
 //EVERYTHING AFTER THE HEADER AND QUESTION PARTS OF DNS MESSAGE
+//Fixed fields are read as primitives; the name and data stay in the packet until asked for
 public class DNSRecord {
-    String[] name;
-    byte[] type;
-    byte[] rclass;
-    byte[] ttl;
-    byte[] rdlength;
+    static final int TYPE_A = 1;
+    static final int TYPE_NS = 2;
+    static final int TYPE_CNAME = 5;
+    static final int TYPE_SOA = 6;
+    static final int TYPE_PTR = 12;
+    static final int TYPE_MX = 15;
+    static final int TYPE_TXT = 16;
+    static final int TYPE_AAAA = 28;
+    static final int TYPE_SRV = 33;
+    static final int TYPE_OPT = 41;
+    static final int TYPE_HTTPS = 65;
+    static final int TYPE_ANY = 255;
+    //DNSSEC OK flag in the TTL field of an OPT record (RFC 3225)
+    static final int OPT_DO_BIT = 0x8000;
+
+    byte[] name;
+    int type;
+    int rclass;
+    int ttl;
     byte[] rdata;
-    Calendar recordCreated;
+    //Where the name and data sit in the packet, until they have been read out
+    private DNSMessage message;
+    private int nameOffset;
+    private int rdataOffset;
+    private int rdlength;
+    private int endOffset;
 
     //All the fields listed in the spec
-    //Date object - stores when record was created by program
-    static DNSRecord decodeRecord(InputStream input, DNSMessage request) throws IOException {
+    static DNSRecord decodeRecord(DNSMessage request, int offset) throws IOException {
         DNSRecord record = new DNSRecord();
 
-        record.name = request.readDomainName(input);
-        record.type = input.readNBytes(2);
-        record.rclass = input.readNBytes(2);
-        record.ttl = input.readNBytes(4);
-        record.rdlength = input.readNBytes(2);
+        record.message = request;
+        record.nameOffset = offset;
+        int position = request.skipDomainName(offset);
+        record.type = request.shortAt(position);
+        record.rclass = request.shortAt(position + 2);
+        record.ttl = request.intAt(position + 4);
+        record.rdlength = request.shortAt(position + 8);
+        record.rdataOffset = position + 10;
+        record.endOffset = record.rdataOffset + record.rdlength;
 
-        //Read # bytes = rdlength #
-        record.rdata = input.readNBytes(record.getIntCount(record.rdlength));
+        //Check the data is all there (and that its names are sound) now, rather than when it's copied out
+        if (record.endOffset > request.getBuffer().limit()) {
+            throw new IOException("Record data runs past the end of the message");
+        }
+        if (hasNamesInData(record.type)) {
+            checkData(record.type, request, record.rdataOffset, record.rdlength);
+        }
 
-        //Current date and time
-        record.recordCreated = Calendar.getInstance();
+        return record;
+    }
 
+    //Build a record that isn't tied to a packet
+    static DNSRecord of(byte[] name, int type, int rclass, int ttl, byte[] rdata) {
+        DNSRecord record = new DNSRecord();
+        record.name = name;
+        record.type = type;
+        record.rclass = rclass;
+        record.ttl = ttl;
+        record.rdata = rdata;
+        record.rdlength = rdata.length;
         return record;
     }
 
-    //Write record in bytes
-    void writeBytes(ByteArrayOutputStream output, HashMap<String, Integer> domainNameLocations) {
-        DNSMessage.writeDomainName(output,domainNameLocations,name);
-        output.writeBytes(type);
-        output.writeBytes(rclass);
-        output.writeBytes(ttl);
-        output.writeBytes(rdlength);
-        output.writeBytes(rdata);
+    //EDNS(0) pseudo-record for the additional section (RFC 6891)
+    //Its class carries the UDP payload size the sender can take, its TTL the upper 8 bits of the rcode,
+    //the EDNS version (0) and the DO flag
+    static DNSRecord opt(int udpPayloadSize, int extendedRcode, boolean dnssecOk) {
+        return of(new byte[] {0}, TYPE_OPT, udpPayloadSize, extendedRcode << 24 | (dnssecOk ? OPT_DO_BIT : 0), new byte[0]);
+    }
+
+    //Record types whose data holds domain names that may be compressed
+    static boolean hasNamesInData(int type) {
+        return type == TYPE_NS || type == TYPE_CNAME || type == TYPE_SOA || type == TYPE_PTR || type == TYPE_MX;
+    }
+
+    //Make sure the names in the data are sound and fill the data exactly
+    private static void checkData(int type, DNSMessage message, int rdataStart, int rdlength) throws IOException {
+        int position = rdataStart;
+        //MX: 2-byte preference before the exchange name
+        if (type == TYPE_MX) {
+            position += 2;
+        }
+        position = message.skipDomainName(position);
+        //SOA: mname, rname, then serial/refresh/retry/expire/minimum
+        if (type == TYPE_SOA) {
+            position = message.skipDomainName(position) + 20;
+        }
+        if (position != rdataStart + rdlength) {
+            throw new IOException("Record data length doesn't match its contents");
+        }
+    }
+
+    //Copy the data out of the packet with every name written out in full,
+    //so the record can be written into a different message
+    private static byte[] expandData(int type, DNSMessage message, int rdataStart) throws IOException {
+        ByteBuffer packet = message.getBuffer();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int position = rdataStart;
+
+        if (type == TYPE_MX) {
+            output.write(packet.get(position));
+            output.write(packet.get(position + 1));
+            position += 2;
+        }
+        output.writeBytes(message.readDomainName(position));
+        position = message.skipDomainName(position);
+        if (type == TYPE_SOA) {
+            output.writeBytes(message.readDomainName(position));
+            position = message.skipDomainName(position);
+            byte[] counters = new byte[20];
+            packet.get(position, counters);
+            output.writeBytes(counters);
+        }
+        return output.toByteArray();
+    }
+
+    //Read the name and data out of the packet and let go of the packet
+    //Call before keeping the record around longer than its message
+    //The owner name, and the data of types that are nothing but a name (NS, CNAME, PTR), are interned,
+    //so records that are kept share one copy of each name (see DomainName)
+    DNSRecord detach() {
+        name = DomainName.internBytes(getName());
+        rdata = type == TYPE_NS || type == TYPE_CNAME || type == TYPE_PTR ? DomainName.internBytes(getRdata()) : getRdata();
+        message = null;
+        return this;
     }
 
-    //Return whether the creation date + time to live is after current time
-    boolean timestampValid() {
-        //The current time in milliseconds
-        Calendar date = Calendar.getInstance();
-        //Convert ttl (4 bytes) to an int
-        int ttlSeconds = ByteBuffer.wrap(this.ttl).getInt();
-        return ((this.recordCreated.getTimeInMillis() + (ttlSeconds * 1000)) > date.getTimeInMillis());
+    //Uncompressed wire-format owner name
+    public byte[] getName() {
+        if (name == null) {
+            name = message.readDomainName(nameOffset);
+        }
+        return name;
     }
 
-    public int getIntCount(byte[] array) {
-        return array[1] & 0xFF | (array[0]) << 8;
+    //Record data, with any names in it uncompressed
+    public byte[] getRdata() {
+        if (rdata == null) {
+            if (hasNamesInData(type)) {
+                try {
+                    rdata = expandData(type, message, rdataOffset);
+                } catch (IOException e) {
+                    //Already checked by decodeRecord
+                    throw new IllegalStateException(e);
+                }
+            } else {
+                byte[] data = new byte[rdlength];
+                message.getBuffer().get(rdataOffset, data);
+                rdata = data;
+            }
+        }
+        return rdata;
     }
 
+    //Write record in bytes
+    //Returns where the TTL was written, so cached copies can have it patched later
+    //Names in the data of the types RFC 1035 defines them for (NS, CNAME, SOA, PTR, MX) are compressed too
+    int writeBytes(MessageEncoder output) {
+        output.putName(getName());
+        byte[] data = getRdata();
+        output.putShort(type);
+        output.putShort(rclass);
+        int ttlOffset = output.position();
+        output.putInt(ttl);
+        if (!hasNamesInData(type)) {
+            output.putShort(data.length);
+            output.putBytes(data);
+            return ttlOffset;
+        }
+
+        int lengthOffset = output.skip(2);
+        int position = 0;
+        //MX: 2-byte preference before the exchange name
+        if (type == TYPE_MX) {
+            output.putShort((data[0] & 0xff) << 8 | (data[1] & 0xff));
+            position = 2;
+        }
+        position = output.putName(data, position);
+        //SOA: mname, rname, then serial/refresh/retry/expire/minimum
+        if (type == TYPE_SOA) {
+            position = output.putName(data, position);
+            for (; position < data.length; position += 4) {
+                output.putInt((data[position] & 0xff) << 24 | (data[position + 1] & 0xff) << 16
+                        | (data[position + 2] & 0xff) << 8 | (data[position + 3] & 0xff));
+            }
+        }
+        output.putShort(lengthOffset, output.position() - lengthOffset - 2);
+        return ttlOffset;
+    }
+
+    public int getType() { return type; }
+
+    public int getRclass() { return rclass; }
+
+    //TTLs with the top bit set are treated as 0 (RFC 2181)
+    public int getTtlSeconds() { return Math.max(ttl, 0); }
+
+    //MINIMUM field of an SOA record - the last 4 bytes of its data
+    //Negative answers are cached for min(SOA TTL, MINIMUM) (RFC 2308)
+    public int getSoaMinimum() {
+        byte[] data = getRdata();
+        return ByteBuffer.wrap(data, data.length - 4, 4).getInt();
+    }
+
+    int getEndOffset() { return endOffset; }
+
+    //Where the TTL sits in the packet the record was decoded from
+    int getTtlOffset() { return rdataOffset - 6; }
+
+    //OPT records only: the largest UDP response the sender can take
+    //Anything under 512 is treated as 512 (RFC 6891 section 6.2.3)
+    public int getUdpPayloadSize() { return Math.max(rclass, 512); }
+
+    //OPT records only: the upper 8 bits of the 12-bit rcode
+    public int getExtendedRcode() { return ttl >>> 24; }
+
+    //OPT records only: whether the sender wants DNSSEC records
+    public boolean isDnssecOk() { return (ttl & OPT_DO_BIT) != 0; }
+
     @Override
     public String toString() {
         return "DNSRecord{" +
-                "name=" + Arrays.toString(name) +
-                ", type=" + Arrays.toString(type) +
-                ", rclass=" + Arrays.toString(rclass) +
-                ", ttl=" + Arrays.toString(ttl) +
-                ", rdlength=" + Arrays.toString(rdlength) +
-                ", rdata=" + Arrays.toString(rdata) +
-                ", recordCreated=" + recordCreated +
+                "name=" + DNSMessage.octetsToString(getName()) +
+                ", type=" + type +
+                ", rclass=" + rclass +
+                ", ttl=" + ttl +
+                ", rdata=" + Arrays.toString(getRdata()) +
                 '}';
     }
 
@@ -0,0 +1,43 @@
+package com.company;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/*
+What DNSServer needs from a cache, so the backend can be chosen per server
+ - DNSCache: entries are objects on the heap in a ConcurrentHashMap
+ - OffHeapDNSCache: entries are encoded responses in direct memory, for caches of millions of entries
+Both have the same TTL, negative caching, serve-stale, eviction and snapshot behaviour
+ */
+public interface DNSResponseCache {
+    //Cached response for the question, or null if there is none (or it has expired)
+    DNSCacheEntry lookup(DNSQuestion question);
+
+    //Same, for the uncompressed question between questionStart and questionEnd of a packet
+    DNSCacheEntry lookup(ByteBuffer packet, int questionStart, int questionEnd);
+
+    //Expired entry still inside the serve-stale grace period, or null; doesn't count as a hit or miss
+    DNSCacheEntry lookupStale(DNSQuestion question);
+
+    //Cache an upstream response for the question if it is cacheable; returns whether it was cached
+    boolean addToCache(DNSQuestion question, DNSMessage response);
+
+    //Whether hits can be answered straight from the request packet (DNSCacheEntry.encodeFor(ByteBuffer, int))
+    boolean isPreEncoded();
+
+    int size();
+
+    //Entries written to / loaded from a snapshot file (see CacheSnapshot)
+    int saveSnapshot(Path file) throws IOException;
+
+    int loadSnapshot(Path file) throws IOException;
+
+    long getHits();
+
+    long getMisses();
+
+    long getEvictions();
+
+    long getExpirations();
+}
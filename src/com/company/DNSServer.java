@@ -1,111 +1,872 @@
 package com.company;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /*
-Open a UDP Socket (DatagramSocket class)
+Open a UDP Socket (DatagramChannel class)
 Listen for requests
+ - the receive loop only reads datagrams and hands them to the worker pool
+ - or, sharded: N sockets bound to the same port with SO_REUSEPORT, so the kernel spreads clients across
+   N receive queues; each socket has a thread of its own that receives, answers hits and hands misses to the
+   forwarder itself, with no handoff in between (cache hits never leave that thread)
+ - workers decode the request and answer straight from the cache when they can
+ - with a pre-encoded cache, plain queries are looked up and answered from the raw packet,
+   without decoding it or re-encoding the response
+ - cache misses are handed to the upstream forwarder, so a slow Google reply never
+   holds up the receive loop or the cached answers behind it
+ - identical misses arriving together share one upstream query (single flight)
+ - hot entries are refreshed in the background shortly before they expire (refresh-ahead)
+ - if Google is slow or failing, a client whose answer expired not too long ago gets the old answer
+   after a short deadline, with a short TTL, while the lookup carries on in the background (serve-stale)
 Look at all questions in a request
- - if valid answer in cache, add to response
- - else create another UDP socket to forward request to Google (8.8.8.8) and await response
-Send the dig additional record (type 41) back in the addition record part of response
+ - if valid answer in cache, add to response (the whole cached answer/authority/additional set, or the cached
+   NXDOMAIN/NODATA)
+ - else forward request to Google (8.8.8.8 or 8.8.4.4, or whichever upstreams were given) and answer the client
+   once the reply comes back, with whatever rcode Google gave; SERVFAIL if no upstream answered at all
+ - or, in iterative mode, find the answer from the root servers down instead (see IterativeResolver)
+ - a request with several questions gets each one answered separately and put together in one response
+ - responses, requests without a question and anything that doesn't decode are dropped; opcodes other than
+   QUERY get NOTIMP
+ - anything going wrong while handling a request loses that request only, never a receive loop (or, over TCP,
+   one of its connection's in-flight slots: see ResponseChannel.abandon)
+Names in the local policy (enableLocalPolicy, see LocalPolicy) are answered before the cache or the resolver is
+asked: blocked names get NXDOMAIN or a sinkhole address, overridden ones their own records, pre-encoded like a hit
+Under load and abuse
+ - response rate limiting (enableRateLimiting, see RateLimiter): a client network getting the same answer (or
+   negative answers from the same zone, or the same error) too often over UDP gets some of them dropped, or
+   slipped back empty with TC set. Checked on the response as it's sent, since that is what the key is made of
+ - overload shedding: once too many questions are on their way upstream or too many requests are waiting for
+   a worker, misses are turned away (a stale answer if there is one, otherwise dropped; SERVFAIL over TCP) so
+   the cache hits behind them keep being answered. Half way there, only misses from networks over their miss
+   rate are (with rate limiting on); a miss whose question is already in flight is never shed, it costs nothing.
+   Datagrams that arrive with the queue already that full are dropped before they are queued at all
+Send our own OPT record (type 41) back in the additional section when the client sent one
+EDNS(0): a client's OPT record says how big a UDP answer it can take; we answer up to that
+(capped at 1232 bytes), 512 for clients without one
+Answers bigger than that go back truncated (TC set); the same port also listens on TCP,
+where the client can ask again and get the whole answer
+Datagrams are received into pooled direct buffers of the EDNS size, handed back once the request is answered
+(a shard has just the one, as it answers before receiving again)
+Responses are written straight into the thread's MessageEncoder buffer and sent from there, so a cache hit
+allocates nothing from receive to send
+The cache is a DNSCache on the heap unless another backend is passed in (e.g. OffHeapDNSCache for millions of names)
+Nothing is logged per request: queries, responses by rcode, failures and latencies are counted (see ResolverMetrics)
+and can be scraped in Prometheus format from a local HTTP endpoint (enableMetrics)
  */
 public class DNSServer {
-    private DNSCache cache = new DNSCache();
+    static final int DEFAULT_PORT = 8053;
+    //Google's two public resolvers
+    static final List<InetSocketAddress> DEFAULT_UPSTREAMS = List.of(
+            new InetSocketAddress("8.8.8.8", 53), new InetSocketAddress("8.8.4.4", 53));
+    //How long to wait for Google before re-sending, and how many times to re-send
+    private static final int UPSTREAM_TIMEOUT_MS = 1000;
+    private static final int UPSTREAM_RETRIES = 2;
+    //Sockets shared by all outstanding upstream queries
+    private static final int UPSTREAM_SOCKETS = 4;
+    //Serve-stale (RFC 8767): expired entries are kept for a day; a client waits this long for Google
+    //before getting one, with this TTL
+    static final int STALE_GRACE_SECONDS = 24 * 60 * 60;
+    private static final int CLIENT_DEADLINE_MS = 1800;
+    private static final int STALE_TTL_SECONDS = 30;
+    private static final int RCODE_SERVFAIL = 2;
+    private static final int RCODE_NOTIMP = 4;
+    private static final int RCODE_REFUSED = 5;
+    private static final List<DNSRecord> NO_RECORDS = List.of();
+    //Refresh-ahead: entries hit this far through their TTL (and at least this often) are asked again early,
+    //no more than this many a second
+    private static final double PREFETCH_TTL_FRACTION = 0.9;
+    private static final int PREFETCH_MIN_HITS = 2;
+    private static final int PREFETCH_PER_SECOND = 100;
+    private static final int PREFETCH_QUEUE = 1024;
+    //Spare receive buffers kept around between requests
+    private static final int RECEIVE_BUFFERS = 1024;
+    //Overload: misses are shed once this many questions are on their way upstream, or this many requests
+    //are waiting for a worker (see shedMiss)
+    private static final int MAX_PENDING_MISSES = 8192;
+    private static final int MAX_QUEUED_REQUESTS = 8192;
 
+    private final DNSResponseCache cache;
+    //Decode + cache lookup + respond (CPU bound, sized to the number of cores), and the requests waiting for them
+    //New datagrams are only queued while fewer than MAX_QUEUED_REQUESTS are waiting; the queue itself has no
+    //capacity, as what else goes on it (upstream replies to requests already taken) must never be turned away
+    private final ExecutorService workers;
+    private final LinkedBlockingQueue<Runnable> workerQueue = new LinkedBlockingQueue<>();
+    //Where misses go: the upstream forwarder, or the iterative resolver
+    private final Resolver resolver;
+    private final Prefetcher prefetcher;
+    //Every UDP socket on the port: just one, or one per shard (the first picks the port)
+    private final DatagramChannel[] udpChannels;
+    //Same port over TCP, for answers too big for a datagram
+    private final DNSTcpListener tcp;
+    //Questions on their way to Google, and the reply everyone asking them is waiting for
+    private final ConcurrentHashMap<DNSCacheKey, CompletableFuture<DNSMessage>> inFlight = new ConcurrentHashMap<>();
+    //Misses that waited on a query already in flight instead of sending their own
+    private final LongAdder coalesced = new LongAdder();
+    //Clients answered from an expired entry
+    private final LongAdder servedStale = new LongAdder();
+    //Misses turned away under overload, and datagrams dropped on a full worker queue
+    private final LongAdder shed = new LongAdder();
+    //Names answered locally (null until enableLocalPolicy); replaced whole on reload, never changed in place
+    private volatile LocalPolicy localPolicy;
+    //Queries answered from it
+    private final LongAdder localAnswers = new LongAdder();
+    //What checks the policy file for changes, and when it last changed (null until enableLocalPolicy)
+    private ScheduledExecutorService localPolicyTimer;
+    private FileTime localPolicyModified;
+    //Response rate limiting for UDP clients (null until enableRateLimiting)
+    private volatile RateLimiter rateLimiter;
+    //Where the cache is saved for warm restarts, and what saves it (null until enableSnapshots)
+    private Path snapshotFile;
+    private ScheduledExecutorService snapshotTimer;
+    private final ResolverMetrics metrics = new ResolverMetrics();
+    //Serves scrapeMetrics() over HTTP (null until enableMetrics)
+    private MetricsEndpoint metricsEndpoint;
+    private final BufferPool receiveBuffers = new BufferPool(DNSMessage.EDNS_UDP_PAYLOAD_SIZE, RECEIVE_BUFFERS);
+
+    public DNSServer() throws IOException {
+        this(DEFAULT_UPSTREAMS);
+    }
+
+    public DNSServer(List<InetSocketAddress> upstreams) throws IOException {
+        this(DEFAULT_PORT, Runtime.getRuntime().availableProcessors(), upstreams);
+    }
+
+    public DNSServer(List<InetSocketAddress> upstreams, DNSResponseCache cache) throws IOException {
+        this(DEFAULT_PORT, Runtime.getRuntime().availableProcessors(), upstreams, cache);
+    }
+
+    public DNSServer(int port, int workerThreads, InetSocketAddress upstream) throws IOException {
+        this(port, workerThreads, List.of(upstream));
+    }
+
+    public DNSServer(int port, int workerThreads, List<InetSocketAddress> upstreams) throws IOException {
+        this(port, workerThreads, upstreams, defaultCache());
+    }
+
+    public DNSServer(int port, int workerThreads, InetSocketAddress upstream, DNSResponseCache cache) throws IOException {
+        this(port, workerThreads, List.of(upstream), cache);
+    }
+
+    public DNSServer(int port, int workerThreads, List<InetSocketAddress> upstreams, DNSResponseCache cache) throws IOException {
+        this(port, workerThreads, 1, upstreams, cache);
+    }
+
+    //Port 0 picks a free port, see getLocalPort()
+    //With more than one upstream, queries go to the fastest healthy one and are hedged (see UpstreamForwarder)
+    //udpShards > 1 opens that many SO_REUSEPORT sockets on the port, each read by a thread of its own (Linux, BSD)
+    public DNSServer(int port, int workerThreads, int udpShards, List<InetSocketAddress> upstreams, DNSResponseCache cache) throws IOException {
+        this(port, workerThreads, udpShards,
+                new UpstreamForwarder(upstreams, UPSTREAM_SOCKETS, UPSTREAM_TIMEOUT_MS, UPSTREAM_RETRIES, upstreams.size() > 1), cache);
+    }
+
+    //Misses go to the given resolver (e.g. an IterativeResolver), which the server closes on stop()
+    DNSServer(int port, int workerThreads, int udpShards, Resolver resolver, DNSResponseCache cache) throws IOException {
+        if (udpShards < 1) {
+            throw new IllegalArgumentException("udpShards must be positive: " + udpShards);
+        }
+        this.cache = cache;
+        this.udpChannels = udpShards == 1 ? new DatagramChannel[]{DatagramChannel.open().bind(new InetSocketAddress(port))}
+                : openShards(port, udpShards);
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS, workerQueue);
+        this.tcp = new DNSTcpListener(getLocalPort(), this::handleRequest, workers);
+        this.resolver = resolver;
+        this.prefetcher = new Prefetcher(this::refresh, PREFETCH_TTL_FRACTION, PREFETCH_MIN_HITS, PREFETCH_PER_SECOND, PREFETCH_QUEUE);
+    }
+
+    //Pre-encoded heap cache, keeping expired entries a day for serve-stale
+    static DNSResponseCache defaultCache() {
+        return new DNSCache(DNSCache.DEFAULT_MAX_ENTRIES, true, STALE_GRACE_SECONDS);
+    }
+
+    //Sockets sharing the port through SO_REUSEPORT; the first one picks the port if it is 0
+    private static DatagramChannel[] openShards(int port, int count) throws IOException {
+        DatagramChannel[] channels = new DatagramChannel[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                DatagramChannel channel = DatagramChannel.open();
+                channels[i] = channel;
+                if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    throw new IOException("SO_REUSEPORT isn't supported here, run with one UDP shard");
+                }
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                channel.bind(new InetSocketAddress(port));
+                port = channels[0].socket().getLocalPort();
+            }
+        } catch (IOException e) {
+            for (DatagramChannel channel : channels) {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+            throw e;
+        }
+        return channels;
+    }
+
+    //Receive requests until stop() is called
+    //UDP is read on the calling thread (and one more thread per extra shard),
+    //TCP connections are accepted on a thread of their own
     public void runServer() throws IOException {
-        //Socket object for carrying the data
-        DatagramSocket ds = new DatagramSocket(8053);
-        //Byte[] for packet data
-        byte[] data = new byte[512];
-        //Packet to receive request data
-        DatagramPacket dp = null;
+        Thread tcpThread = new Thread(tcp::run, "tcp-listener");
+        tcpThread.setDaemon(true);
+        tcpThread.start();
+
+        if (udpChannels.length > 1) {
+            for (int i = 1; i < udpChannels.length; i++) {
+                DatagramChannel channel = udpChannels[i];
+                Thread shard = new Thread(() -> runShard(channel), "udp-shard-" + i);
+                shard.setDaemon(true);
+                shard.start();
+            }
+            runShard(udpChannels[0]);
+            return;
+        }
 
-        while(true) {
-            //Create packet that will fill-in with request data
-            dp = new DatagramPacket(data, data.length);
+        DatagramChannel channel = udpChannels[0];
+        while (channel.isOpen()) {
+            //Buffer for packet data - the worker owns it until it's done with the request
+            ByteBuffer packet = receiveBuffers.acquire();
 
             //Receive the request and fill-in data
-            ds.receive(dp);
-            System.out.println("Received something from client...");
+            //A failed receive or a full worker queue only loses this datagram
+            SocketAddress sender;
+            try {
+                sender = channel.receive(packet);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                metrics.errors.increment();
+                receiveBuffers.release(packet);
+                continue;
+            }
+            //Overloaded: shed it here, before it takes a place in the queue
+            if (workerQueue.size() >= MAX_QUEUED_REQUESTS) {
+                shed.increment();
+                receiveBuffers.release(packet);
+                continue;
+            }
+            //Let a worker handle it, go straight back to receiving
+            //Only the bytes that were actually received
+            packet.flip();
+            UdpClient client = new UdpClient(channel, sender);
+            try {
+                workers.execute(() -> {
+                    handleRequest(packet, client);
+                    receiveBuffers.release(packet);
+                });
+            } catch (RejectedExecutionException e) {
+                metrics.errors.increment();
+                receiveBuffers.release(packet);
+            }
+        }
+    }
+
+    //One shard: receive and handle on this thread until the socket is closed
+    //A hit is answered before the next receive; a miss only starts its upstream query here and is answered
+    //by a worker, and the slow path copies the packet first - so one receive buffer does for the whole shard,
+    //and so does one client, pointed at each request's sender in turn (misses take a copy, see detach)
+    private void runShard(DatagramChannel channel) {
+        ByteBuffer packet = ByteBuffer.allocateDirect(DNSMessage.EDNS_UDP_PAYLOAD_SIZE);
+        UdpClient client = new UdpClient(channel);
+        while (channel.isOpen()) {
+            try {
+                packet.clear();
+                client.address = channel.receive(packet);
+            } catch (IOException e) {
+                if (channel.isOpen()) {
+                    metrics.errors.increment();
+                }
+                continue;
+            }
+            handleRequest(packet.flip(), client);
+        }
+    }
+
+    //Decode one request and answer it from the cache, or pass it on to Google
+    //Works the same for UDP and TCP; client says where the answer goes and how big it may be
+    //Any failure only loses this request, never the receive loop
+    //Package-private for the hot path benchmark, which feeds it packets directly
+    void handleRequest(ByteBuffer packet, ResponseChannel client) {
+        long startNanos = System.nanoTime();
+        metrics.queries.increment();
+        try {
+            //Fast path: look the question up straight from the packet and answer with a patched copy
+            //of the cached wire-format response (or the local policy's, which comes first)
+            LocalPolicy policy = localPolicy;
+            int questionEnd = cache.isPreEncoded() || policy != null ? DNSMessage.simpleQueryQuestionEnd(packet) : -1;
+            DNSCacheEntry cached = null;
+            boolean lookedUp = false;
+            if (questionEnd > 0) {
+                LocalPolicy.Action local = policy == null ? null : policy.match(packet, DNSHeader.HEADER_LENGTH, questionEnd - 4);
+                ByteBuffer encoded = null;
+                if (local != null) {
+                    encoded = local.encodeFor(packet, questionEnd);
+                } else if (cache.isPreEncoded()) {
+                    cached = cache.lookup(packet, DNSHeader.HEADER_LENGTH, questionEnd);
+                    lookedUp = true;
+                    encoded = cached == null ? null : cached.encodeFor(packet, questionEnd);
+                }
+                if (encoded != null) {
+                    if (local != null) {
+                        localAnswers.increment();
+                    } else {
+                        prefetcher.onHit(cached);
+                    }
+                    sendResponse(encoded, client, DNSMessage.simpleQueryUdpPayloadSize(packet, questionEnd), startNanos);
+                    return;
+                }
+            }
 
             //Read-in request message and handle
-            DNSMessage requestMessage = DNSMessage.decodeMessage(data);
+            //Decoded from a copy - the message lives on past this method, the receive buffer doesn't
+            byte[] data = new byte[packet.limit()];
+            packet.get(0, data);
+            DNSMessage requestMessage;
+            try {
+                requestMessage = DNSMessage.decodeMessage(data);
+            } catch (IOException | RuntimeException e) {
+                metrics.malformed.increment();
+                return;
+            }
+            //A response isn't a request (answering it could start a loop), and neither is a message without a question
+            DNSHeader header = requestMessage.getHeader();
+            if (header.getQr() != 0 || requestMessage.getQuestions().isEmpty()) {
+                metrics.malformed.increment();
+                return;
+            }
+            //Only standard queries are answered; NOTIFY, UPDATE etc. get NOTIMP
+            if (header.getOpcode() != 0) {
+                sendResponse(DNSMessage.buildResponse(requestMessage, RCODE_NOTIMP, NO_RECORDS, NO_RECORDS, NO_RECORDS)
+                        .encode(MessageEncoder.local(), null), client, requestMessage.getUdpPayloadSize(), startNanos);
+                return;
+            }
+            if (requestMessage.getQuestions().size() > 1) {
+                answerEach(requestMessage, client.detach(), startNanos);
+                return;
+            }
+            DNSQuestion question = requestMessage.getQuestions().get(0);
+            LocalPolicy.Action local = policy == null ? null : policy.match(question);
+            if (local != null) {
+                localAnswers.increment();
+                sendResponse(DNSMessage.buildResponse(requestMessage, local.getRcode(), local.answersFor(question),
+                        local.authorityFor(question), NO_RECORDS).encode(MessageEncoder.local(), null),
+                        client, requestMessage.getUdpPayloadSize(), startNanos);
+                return;
+            }
+
+            //Does my cache already contain the answer? (already asked above if this is a plain query)
+            if (!lookedUp) {
+                cached = cache.lookup(question);
+            }
+            if (cached != null) {
+                prefetcher.onHit(cached);
+                //Construct response with original request + cached answers (TTLs counted down)
+                sendResponse(cached.encodeFor(requestMessage), client, requestMessage.getUdpPayloadSize(), startNanos);
+
+            } else {
+                //Answered later, from another thread
+                ResponseChannel replyTo = client.detach();
+                //An expired answer still inside its grace period is the fallback if Google is slow or failing
+                DNSCacheEntry stale = cache.lookupStale(requestMessage.getQuestions().get(0));
+                if (shedMiss(requestMessage.getQuestions().get(0), client)) {
+                    shed.increment();
+                    if (stale != null) {
+                        serveStale(requestMessage, stale, replyTo, startNanos);
+                    } else if (client.limitedAddress() == null) {
+                        serveFailure(requestMessage, replyTo, startNanos);
+                    }
+                    return;
+                }
+                CompletableFuture<DNSMessage> reply = resolve(requestMessage);
+                if (stale != null) {
+                    //On a copy, so the deadline only cuts this client short - the query itself carries on
+                    //and refreshes the cache when Google does answer
+                    reply = reply.copy().completeOnTimeout(null, CLIENT_DEADLINE_MS, TimeUnit.MILLISECONDS);
+                }
+                reply.whenCompleteAsync((googleResponseMessage, error) -> {
+                    if (stale != null && (googleResponseMessage == null || isServerFailure(googleResponseMessage))) {
+                        serveStale(requestMessage, stale, replyTo, startNanos);
+                    } else if (error != null) {
+                        metrics.upstreamFailures.increment();
+                        serveFailure(requestMessage, replyTo, startNanos);
+                    } else {
+                        handleGoogleResponse(requestMessage, googleResponseMessage, replyTo, startNanos);
+                    }
+                }, workers);
+            }
+        } catch (Exception e) {
+            metrics.errors.increment();
+            //It may have been detached to be answered later, which now won't happen
+            client.abandon();
+        }
+    }
+
+    //RRL decision for a response to a UDP client (see RateLimiter); always ALLOW for TCP, or with rate limiting off
+    private int rateLimit(ResponseChannel client, ByteBuffer response) {
+        RateLimiter limiter = rateLimiter;
+        InetAddress address = limiter == null ? null : client.limitedAddress();
+        return address == null ? RateLimiter.ALLOW : limiter.checkResponse(address, RateLimiter.responseHash(response));
+    }
+
+    //Overload: whether a miss should be turned away before it reaches the resolver, so the hits keep being answered
+    // - saturated (MAX_PENDING_MISSES questions on their way upstream, or MAX_QUEUED_REQUESTS waiting for a worker): yes
+    // - busy (half of either): if it's from a UDP client whose network is over its miss rate (with rate limiting on)
+    // - a question already in flight only waits for that reply, so it's never shed
+    private boolean shedMiss(DNSQuestion question, ResponseChannel client) {
+        int pending = inFlight.size();
+        int queued = workerQueue.size();
+        if (pending < MAX_PENDING_MISSES / 2 && queued < MAX_QUEUED_REQUESTS / 2) {
+            return false;
+        }
+        if (inFlight.containsKey(DNSCacheKey.of(question))) {
+            return false;
+        }
+        if (pending >= MAX_PENDING_MISSES || queued >= MAX_QUEUED_REQUESTS) {
+            return true;
+        }
+        RateLimiter limiter = rateLimiter;
+        InetAddress address = limiter == null ? null : client.limitedAddress();
+        return address != null && !limiter.allowMiss(address);
+    }
+
+    //Google's reply to the request's question
+    //Single flight: if the same question is already on its way to Google, wait for that reply instead of
+    //asking again, so a popular name expiring doesn't send a burst of identical queries upstream
+    //The reply is cached before anyone waiting on it is answered, so later misses find it in the cache
+    private CompletableFuture<DNSMessage> resolve(DNSMessage requestMessage) {
+        DNSCacheKey key = DNSCacheKey.of(requestMessage.getQuestions().get(0));
+        CompletableFuture<DNSMessage> pending = new CompletableFuture<>();
+        CompletableFuture<DNSMessage> inFlight = this.inFlight.putIfAbsent(key, pending);
+        if (inFlight != null) {
+            coalesced.increment();
+            return inFlight;
+        }
+
+        resolver.resolve(requestMessage).whenCompleteAsync((googleResponseMessage, error) -> {
+            if (error == null) {
+                try {
+                    //Add Google's answers to cache (NXDOMAIN/NODATA too, if they come with an SOA)
+                    cache.addToCache(googleResponseMessage.getQuestions().get(0), googleResponseMessage);
+                    //Every waiter reads the records, take them out of the packet before handing them round
+                    googleResponseMessage.getAnswers().forEach(DNSRecord::detach);
+                    googleResponseMessage.getAuthorityRecords().forEach(DNSRecord::detach);
+                    googleResponseMessage.getAdditionalRecords().forEach(DNSRecord::detach);
+                } catch (RuntimeException e) {
+                    error = e;
+                }
+            }
+            this.inFlight.remove(key, pending);
+            if (error != null) {
+                pending.completeExceptionally(error);
+            } else {
+                pending.complete(googleResponseMessage);
+            }
+        }, workers);
+        return pending;
+    }
+
+    //SERVFAIL and REFUSED - Google couldn't answer, a stale answer is better (RFC 8767 section 5)
+    private static boolean isServerFailure(DNSMessage response) {
+        int rcode = response.getRcode();
+        return rcode == RCODE_SERVFAIL || rcode == RCODE_REFUSED;
+    }
 
-            //Does my cache already contain the answer?
-            if (cache.queryCache(requestMessage.getQuestions().get(0))) {
-                //Create an array with the correct answer
-                ArrayList<DNSRecord> answers = new ArrayList<>();
-                answers.add(cache.getRecord(requestMessage.getQuestions().get(0)));
+    //Answer from an expired entry, with a short TTL
+    private void serveStale(DNSMessage requestMessage, DNSCacheEntry stale, ResponseChannel client, long startNanos) {
+        try {
+            servedStale.increment();
+            sendResponse(stale.encodeStaleFor(requestMessage, STALE_TTL_SECONDS), client, requestMessage.getUdpPayloadSize(), startNanos);
+        } catch (Exception e) {
+            metrics.errors.increment();
+            client.abandon();
+        }
+    }
+
+    //Ask Google for a cached question again before its entry expires (see Prefetcher)
+    private CompletableFuture<DNSMessage> refresh(DNSQuestion question) {
+        try {
+            return resolve(DNSMessage.buildQuery(question));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
 
-                //Construct response with original request + cached answers
-                DNSMessage cacheResponseAnswer = DNSMessage.buildResponse(requestMessage, answers);
-                byte[] finalResponse = cacheResponseAnswer.toBytes();
+    //Answer one client once Google replies (already cached by resolve)
+    //Every client waiting on the same reply gets its own response, with its own ID and question
+    //(NXDOMAIN included - the URL in question doesn't exist - counted with the other rcodes)
+    private void handleGoogleResponse(DNSMessage requestMessage, DNSMessage googleResponseMessage, ResponseChannel client, long startNanos) {
+        try {
+            //Construct response with original request + Google answer (every section but Google's OPT record)
+            DNSMessage googleResponseAnswer = DNSMessage.buildResponse(requestMessage, googleResponseMessage.getRcode(),
+                    googleResponseMessage.getAnswers(), googleResponseMessage.getAuthorityRecords(),
+                    googleResponseMessage.getAdditionalRecordsWithoutOpt());
+            sendResponse(googleResponseAnswer.encode(MessageEncoder.local(), null), client, requestMessage.getUdpPayloadSize(), startNanos);
+        } catch (Exception e) {
+            metrics.errors.increment();
+            client.abandon();
+        }
+    }
 
-                //Send the response back to client
-                InetAddress clientIP = dp.getAddress();
-                int clientPort = dp.getPort();
-                DatagramPacket finalData = new DatagramPacket(finalResponse, finalResponse.length, clientIP, clientPort);
-                ds.send(finalData);
+    //SERVFAIL, when no upstream answered at all - the client hears straight away instead of timing out
+    private void serveFailure(DNSMessage requestMessage, ResponseChannel client, long startNanos) {
+        try {
+            DNSMessage failure = DNSMessage.buildResponse(requestMessage, RCODE_SERVFAIL, NO_RECORDS, NO_RECORDS, NO_RECORDS);
+            sendResponse(failure.encode(MessageEncoder.local(), null), client, requestMessage.getUdpPayloadSize(), startNanos);
+        } catch (Exception e) {
+            metrics.errors.increment();
+            client.abandon();
+        }
+    }
 
+    //A request with more than one question (allowed by RFC 1035, though hardly anything sends one)
+    //Each question is answered on its own - from the cache, or by a query of its own to Google, single flight
+    //and all - and the response carries every question with all of their records, question by question
+    // - the rcode is the first one that isn't NOERROR, with a question Google didn't answer counting as SERVFAIL
+    // - cached TTLs are counted down as for any other hit
+    private void answerEach(DNSMessage requestMessage, ResponseChannel client, long startNanos) throws IOException {
+        List<DNSQuestion> questions = requestMessage.getQuestions();
+        List<CompletableFuture<Part>> parts = new ArrayList<>(questions.size());
+        LocalPolicy policy = localPolicy;
+        for (DNSQuestion question : questions) {
+            LocalPolicy.Action local = policy == null ? null : policy.match(question);
+            if (local != null) {
+                localAnswers.increment();
+                parts.add(CompletableFuture.completedFuture(Part.of(local, question)));
+                continue;
+            }
+            DNSCacheEntry cached = cache.lookup(question);
+            if (cached != null) {
+                prefetcher.onHit(cached);
+                parts.add(CompletableFuture.completedFuture(Part.of(cached)));
             } else {
-                //Open new socket, send request onto google
-                DatagramSocket googleDS = new DatagramSocket();
-                byte[] googleData = new byte[512];
-                DatagramPacket googleDP = null;
-
-                //Send to Google
-                InetAddress googleIP = InetAddress.getByName("8.8.8.8");
-                DatagramPacket dp2 = new DatagramPacket(data, data.length, googleIP, 53);
-                System.out.println("Data being forwarded on to Google!");
-                googleDS.send(dp2);
-
-                //Wait for response from Google
-                googleDP = new DatagramPacket(googleData, googleData.length);
-                googleDS.receive(googleDP);
-
-                //Read-in Google response message and handle
-                DNSMessage googleResponseMessage = DNSMessage.decodeMessage(googleData);
-
-                //What if the URL in question doesn't exist?
-                if (googleResponseMessage.getHeader().getRcode() == 3) {
-                    byte[] finalResponse = googleResponseMessage.toBytes();
-                    //Send Google's response directly to client
-                    InetAddress clientIP = dp.getAddress();
-                    int clientPort = dp.getPort();
-                    DatagramPacket finalData = new DatagramPacket(finalResponse, finalResponse.length, clientIP, clientPort);
-                    ds.send(finalData);
-
-                    System.out.println("Bad URL; Forwarding google's response!");
-
-                } else {
-                    //Add Google answer to cache
-                    cache.addToCache(googleResponseMessage.getQuestions().get(0),googleResponseMessage.getAnswers().get(0));
-
-                    //Construct response with original request + Google answer
-                    DNSMessage googleResponseAnswer = DNSMessage.buildResponse(requestMessage, googleResponseMessage.getAnswers());
-                    byte[] finalResponse = googleResponseAnswer.toBytes();
-
-                    //Send the response back to client
-                    InetAddress clientIP = dp.getAddress();
-                    int clientPort = dp.getPort();
-                    DatagramPacket finalData = new DatagramPacket(finalResponse, finalResponse.length, clientIP, clientPort);
-                    ds.send(finalData);
-
-                    //Clear data after each request?
-                    googleData = new byte[512];
+                parts.add(resolve(DNSMessage.buildQuery(question)).handle((reply, error) -> {
+                    if (error != null) {
+                        metrics.upstreamFailures.increment();
+                        return Part.FAILED;
+                    }
+                    return Part.of(reply);
+                }));
+            }
+        }
+        CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).whenCompleteAsync((ignored, error) -> {
+            try {
+                sendResponse(Part.encode(requestMessage, parts.stream().map(CompletableFuture::join).toList()),
+                        client, requestMessage.getUdpPayloadSize(), startNanos);
+            } catch (Exception e) {
+                metrics.errors.increment();
+                client.abandon();
+            }
+        }, workers);
+    }
+
+    //Close the sockets (ending runServer) and shut the workers and resolver down
+    //and write a last snapshot if snapshots are on
+    public void stop() {
+        for (DatagramChannel channel : udpChannels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Closing UDP socket failed: " + e);
+            }
+        }
+        try {
+            tcp.close();
+        } catch (IOException e) {
+            System.err.println("Closing TCP listener failed: " + e);
+        }
+        workers.shutdown();
+        prefetcher.close();
+        if (metricsEndpoint != null) {
+            metricsEndpoint.close();
+        }
+        resolver.close();
+        if (localPolicyTimer != null) {
+            localPolicyTimer.shutdownNow();
+        }
+        if (snapshotTimer != null) {
+            snapshotTimer.shutdownNow();
+            saveSnapshot();
+        }
+    }
+
+    //Warm restarts: load the cache from file now (if there is one), save it every intervalSeconds and on stop()
+    //Call before runServer()
+    public void enableSnapshots(Path file, int intervalSeconds) {
+        snapshotFile = file;
+        if (Files.exists(file)) {
+            try {
+                long start = System.nanoTime();
+                int loaded = cache.loadSnapshot(file);
+                System.out.println("Loaded " + loaded + " cache entries from " + file + " in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+            } catch (IOException e) {
+                System.err.println("Couldn't load cache snapshot: " + e);
+            }
+        }
+        snapshotTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cache-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotTimer.scheduleWithFixedDelay(this::saveSnapshot, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    private void saveSnapshot() {
+        try {
+            cache.saveSnapshot(snapshotFile);
+        } catch (IOException e) {
+            System.err.println("Couldn't save cache snapshot: " + e);
+        }
+    }
+
+    //Answer the names in file locally (see LocalPolicy), loading it now and again whenever it changes (checked every
+    //checkSeconds). A file that doesn't load now is an error; one that doesn't load later leaves the rules as they were
+    //Queries never wait for a reload: the new policy is built on the timer thread and swapped in whole, so write
+    //a new file beside the old one and rename it over, rather than rewriting it in place
+    public void enableLocalPolicy(Path file, int checkSeconds) throws IOException {
+        localPolicyModified = Files.getLastModifiedTime(file);
+        localPolicy = loadLocalPolicy(file);
+        localPolicyTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "local-policy");
+            thread.setDaemon(true);
+            return thread;
+        });
+        localPolicyTimer.scheduleWithFixedDelay(() -> {
+            try {
+                FileTime modified = Files.getLastModifiedTime(file);
+                if (!modified.equals(localPolicyModified)) {
+                    localPolicyModified = modified;
+                    localPolicy = loadLocalPolicy(file);
                 }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Couldn't reload local policy: " + e);
             }
+        }, checkSeconds, checkSeconds, TimeUnit.SECONDS);
+    }
+
+    private static LocalPolicy loadLocalPolicy(Path file) throws IOException {
+        long start = System.nanoTime();
+        LocalPolicy policy = LocalPolicy.load(file);
+        System.out.println("Loaded " + policy.size() + " local names from " + file + " in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms"
+                + (policy.getSkipped() > 0 ? ", skipped " + policy.getSkipped() + " lines that didn't parse" : ""));
+        return policy;
+    }
+
+    //Rate limit responses to UDP clients (see RateLimiter); can be turned on while running
+    public void enableRateLimiting(RateLimiter limiter) {
+        rateLimiter = limiter;
+    }
 
-            //Clear data after each request
-            data = new byte[512];
+    //Serve scrapeMetrics() at http://127.0.0.1:port/metrics (port 0 picks a free one, see getMetricsPort())
+    public void enableMetrics(int port) throws IOException {
+        metricsEndpoint = new MetricsEndpoint(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), this::scrapeMetrics);
+    }
+
+    //Everything the server, its cache and resolver (forwarder and upstreams, or iterative resolver) count, in Prometheus text format
+    String scrapeMetrics() {
+        PrometheusText out = new PrometheusText();
+        metrics.writeTo(out);
+        out.counter("dns_request_errors_total", "Requests dropped on an unexpected error, e.g. the response couldn't be sent",
+                metrics.errors.sum());
+        out.counter("dns_cache_hits_total", "Cache lookups answered from the cache", cache.getHits());
+        out.counter("dns_cache_misses_total", "Cache lookups that found nothing fresh", cache.getMisses());
+        out.counter("dns_cache_evictions_total", "Entries evicted to keep the cache in bounds", cache.getEvictions());
+        out.counter("dns_cache_expirations_total", "Entries dropped past their TTL (and grace period)", cache.getExpirations());
+        out.gauge("dns_cache_entries", "Entries in the cache", cache.size());
+        out.counter("dns_coalesced_total", "Cache misses that joined a query already on its way upstream", coalesced.sum());
+        out.counter("dns_served_stale_total", "Clients answered from an expired entry", servedStale.sum());
+        out.counter("dns_shed_total", "Requests turned away because the server was overloaded: misses before reaching the resolver,"
+                + " datagrams before being queued", shed.sum());
+        out.gauge("dns_pending_questions", "Questions on their way upstream", inFlight.size());
+        out.gauge("dns_queued_requests", "Requests waiting for a worker", workerQueue.size());
+        RateLimiter limiter = rateLimiter;
+        if (limiter != null) {
+            limiter.writeTo(out);
+        }
+        LocalPolicy policy = localPolicy;
+        if (policy != null) {
+            out.counter("dns_local_answers_total", "Queries answered from the local policy (blocked or overridden names)",
+                    localAnswers.sum());
+            out.gauge("dns_local_names", "Names with a local policy rule", policy.size());
         }
+        out.counter("dns_prefetch_sent_total", "Refresh-ahead queries sent", prefetcher.getSent());
+        out.counter("dns_prefetch_dropped_total", "Refresh-ahead candidates dropped on a full queue", prefetcher.getDropped());
+        out.counter("dns_prefetch_failed_total", "Refresh-ahead queries the upstream didn't answer", prefetcher.getFailed());
+        resolver.writeTo(out);
+        return out.toString();
     }
 
+    //UDP and TCP share the port
+    public int getLocalPort() { return udpChannels[0].socket().getLocalPort(); }
+
+    //-1 until enableMetrics
+    public int getMetricsPort() { return metricsEndpoint == null ? -1 : metricsEndpoint.getPort(); }
+
+    ResolverMetrics getMetrics() { return metrics; }
+
+    DNSResponseCache getCache() { return cache; }
+
+    long getCoalesced() { return coalesced.sum(); }
+
+    Prefetcher getPrefetcher() { return prefetcher; }
+
+    //null when resolving iteratively
+    UpstreamForwarder getForwarder() { return resolver instanceof UpstreamForwarder ? (UpstreamForwarder) resolver : null; }
+
+    Resolver getResolver() { return resolver; }
+
+    long getServedStale() { return servedStale.sum(); }
+
+    long getShed() { return shed.sum(); }
+
+    long getLocalAnswers() { return localAnswers.sum(); }
+
+    //null unless enableRateLimiting
+    RateLimiter getRateLimiter() { return rateLimiter; }
+
+    //Send the response back to client
+    //Anything bigger than the client can take is cut down to a TC response, so it retries over TCP
+    //Over a UDP client's rate limit, it's dropped or slipped (cut down the same way)
+    //Counted, with the time since startNanos, once it's gone
+    private void sendResponse(ByteBuffer finalResponse, ResponseChannel client, int advertisedUdpSize, long startNanos) throws IOException {
+        int decision = rateLimit(client, finalResponse);
+        if (decision == RateLimiter.DROP) {
+            return;
+        }
+        if (decision == RateLimiter.SLIP || finalResponse.limit() > client.maxResponseSize(advertisedUdpSize)) {
+            DNSMessage.truncate(finalResponse);
+        }
+        client.send(finalResponse);
+        metrics.recordResponse(finalResponse, startNanos);
+    }
+
+    //One question's share of a multi-question response: its rcode and records, and how long they have been cached
+    private static final class Part {
+        static final Part FAILED = new Part(RCODE_SERVFAIL, NO_RECORDS, NO_RECORDS, NO_RECORDS, 0);
+
+        final int rcode;
+        final List<DNSRecord> answers;
+        final List<DNSRecord> authorityRecords;
+        final List<DNSRecord> additionalRecords;
+        final int elapsedSeconds;
+
+        private Part(int rcode, List<DNSRecord> answers, List<DNSRecord> authorityRecords, List<DNSRecord> additionalRecords,
+                     int elapsedSeconds) {
+            this.rcode = rcode;
+            this.answers = answers;
+            this.authorityRecords = authorityRecords;
+            this.additionalRecords = additionalRecords;
+            this.elapsedSeconds = elapsedSeconds;
+        }
+
+        static Part of(DNSCacheEntry entry) {
+            return new Part(entry.getRcode(), entry.getAnswers(), entry.getAuthorityRecords(), entry.getAdditionalRecords(),
+                    entry.elapsedSeconds());
+        }
+
+        static Part of(LocalPolicy.Action local, DNSQuestion question) {
+            return new Part(local.getRcode(), local.answersFor(question), local.authorityFor(question), NO_RECORDS, 0);
+        }
+
+        static Part of(DNSMessage reply) {
+            return new Part(reply.getRcode(), reply.getAnswers(), reply.getAuthorityRecords(), reply.getAdditionalRecordsWithoutOpt(), 0);
+        }
+
+        //The response to the request, section by section in question order, into this thread's MessageEncoder
+        static ByteBuffer encode(DNSMessage request, List<Part> parts) {
+            int rcode = 0;
+            List<DNSRecord> answers = new ArrayList<>();
+            List<DNSRecord> authorityRecords = new ArrayList<>();
+            List<DNSRecord> additionalRecords = new ArrayList<>();
+            for (Part part : parts) {
+                if (rcode == 0) {
+                    rcode = part.rcode;
+                }
+                answers.addAll(part.answers);
+                authorityRecords.addAll(part.authorityRecords);
+                additionalRecords.addAll(part.additionalRecords);
+            }
+            DNSMessage response = DNSMessage.buildResponse(request, rcode, answers, authorityRecords, additionalRecords);
+            int[] offsets = new int[answers.size() + authorityRecords.size() + response.getAdditionalRecords().size()];
+            ByteBuffer out = response.encode(MessageEncoder.local(), offsets);
+
+            //TTLs counted down, in the order they were written
+            int i = 0;
+            for (int section = 0; section < 3; section++) {
+                for (Part part : parts) {
+                    List<DNSRecord> records = section == 0 ? part.answers : section == 1 ? part.authorityRecords : part.additionalRecords;
+                    for (DNSRecord record : records) {
+                        out.putInt(offsets[i++], Math.max(record.getTtlSeconds() - part.elapsedSeconds, 0));
+                    }
+                }
+            }
+            return out;
+        }
+    }
+
+    //A UDP client, answered through the socket its request came in on
+    //DatagramChannel.send is safe to call from several workers at once, and sends a direct buffer without copying it
+    private static final class UdpClient implements ResponseChannel {
+        private final DatagramChannel channel;
+        //Set by the shard for every request when the client is reused
+        private SocketAddress address;
+        private final boolean reused;
+
+        UdpClient(DatagramChannel channel, SocketAddress address) {
+            this.channel = channel;
+            this.address = address;
+            this.reused = false;
+        }
+
+        //One client for every request a shard receives
+        UdpClient(DatagramChannel channel) {
+            this.channel = channel;
+            this.reused = true;
+        }
+
+        @Override
+        public void send(ByteBuffer response) throws IOException {
+            channel.send(response, address);
+        }
+
+        //What the client asked for, but no more than we advertise
+        @Override
+        public int maxResponseSize(int advertisedUdpSize) {
+            return Math.min(advertisedUdpSize, DNSMessage.EDNS_UDP_PAYLOAD_SIZE);
+        }
+
+        @Override
+        public InetAddress limitedAddress() {
+            return ((InetSocketAddress) address).getAddress();
+        }
+
+        @Override
+        public ResponseChannel detach() {
+            return reused ? new UdpClient(channel, address) : this;
+        }
+    }
 
 }
@@ -0,0 +1,192 @@
+package com.company;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+/*
+TCP front end (RFC 1035 section 4.2.2, RFC 7766)
+ - every message is prefixed with its 2-byte length
+ - a client can keep its connection open and send many queries without waiting for answers (pipelining);
+   each query is handed to the server's workers and answered as soon as it's ready, possibly out of order
+ - a connection has at most MAX_IN_FLIGHT queries waiting for answers; at that many, nothing more is read from
+   it until one is answered, so one client can't fill the workers' queue (TCP flow control holds the rest back)
+ - connections idle for IDLE_TIMEOUT_MS are closed, and so are ones whose answers don't free a slot in that time;
+   at most MAX_CONNECTIONS are served at once
+ */
+class DNSTcpListener implements Closeable {
+    private static final int IDLE_TIMEOUT_MS = 10_000;
+    private static final int MAX_CONNECTIONS = 256;
+    private static final int MAX_IN_FLIGHT = 64;
+
+    private final ServerSocket serverSocket;
+    private final BiConsumer<ByteBuffer, ResponseChannel> handler;
+    private final ExecutorService workers;
+    //One reader thread per open connection
+    private final ExecutorService connections = Executors.newCachedThreadPool();
+    private final Semaphore connectionSlots = new Semaphore(MAX_CONNECTIONS);
+
+    //handler is run on workers for every query read
+    DNSTcpListener(int port, BiConsumer<ByteBuffer, ResponseChannel> handler, ExecutorService workers) throws IOException {
+        this.serverSocket = new ServerSocket(port);
+        this.handler = handler;
+        this.workers = workers;
+    }
+
+    //Accept connections until closed
+    void run() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                if (!connectionSlots.tryAcquire()) {
+                    socket.close();
+                    continue;
+                }
+                connections.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.err.println("TCP accept failed: " + e);
+                }
+            }
+        }
+    }
+
+    //Read queries off one connection until the client closes it or goes quiet
+    private void serve(Socket socket) {
+        try (socket) {
+            socket.setSoTimeout(IDLE_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            Connection connection = new Connection(socket.getOutputStream());
+            Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+
+            while (true) {
+                if (!inFlight.tryAcquire(IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+                int length;
+                try {
+                    length = input.readUnsignedShort();
+                } catch (EOFException | SocketTimeoutException e) {
+                    return;
+                }
+                byte[] query = new byte[length];
+                input.readFully(query);
+                Query pending = new Query(connection, inFlight);
+                workers.execute(() -> {
+                    try {
+                        handler.accept(ByteBuffer.wrap(query), pending);
+                    } finally {
+                        pending.handled();
+                    }
+                });
+            }
+        } catch (SocketException | InterruptedException e) {
+            //Connection reset or closed underneath us, or the listener closing
+        } catch (IOException e) {
+            System.err.println("TCP connection failed: " + e);
+        } finally {
+            connectionSlots.release();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        connections.shutdownNow();
+    }
+
+    int getLocalPort() { return serverSocket.getLocalPort(); }
+
+    //Answers going back down one connection; workers may finish in any order, so writes are serialized
+    private static final class Connection implements ResponseChannel {
+        private final OutputStream output;
+
+        Connection(OutputStream output) {
+            this.output = output;
+        }
+
+        @Override
+        public void send(ByteBuffer response) throws IOException {
+            int length = response.remaining();
+            byte[] framed = new byte[length + 2];
+            framed[0] = (byte) (length >>> 8);
+            framed[1] = (byte) length;
+            response.get(response.position(), framed, 2, length);
+            synchronized (this) {
+                output.write(framed);
+                output.flush();
+            }
+        }
+
+        @Override
+        public int maxResponseSize(int advertisedUdpSize) {
+            return 0xffff;
+        }
+    }
+
+    //One query's way back down its connection, holding one of the connection's in-flight slots
+    //The slot is given back when the answer is sent, when answering is abandoned, or when the handler returns
+    //without having detached the channel to answer later (it answered already, or dropped the query)
+    private static final class Query implements ResponseChannel {
+        private final Connection connection;
+        private final Semaphore inFlight;
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private volatile boolean detached;
+
+        Query(Connection connection, Semaphore inFlight) {
+            this.connection = connection;
+            this.inFlight = inFlight;
+        }
+
+        @Override
+        public void send(ByteBuffer response) throws IOException {
+            try {
+                connection.send(response);
+            } finally {
+                finish();
+            }
+        }
+
+        @Override
+        public int maxResponseSize(int advertisedUdpSize) {
+            return connection.maxResponseSize(advertisedUdpSize);
+        }
+
+        @Override
+        public ResponseChannel detach() {
+            detached = true;
+            return this;
+        }
+
+        @Override
+        public void abandon() {
+            finish();
+        }
+
+        void handled() {
+            if (!detached) {
+                finish();
+            }
+        }
+
+        private void finish() {
+            if (finished.compareAndSet(false, true)) {
+                inFlight.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.company;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+Zone cuts learned while resolving iteratively: which servers each zone was delegated to
+ - keyed by the zone's DomainName, so case doesn't matter
+ - an entry holds the zone's NS names and whatever IPv4 addresses are known for them (glue, or looked up
+   separately when a referral came without any), and expires with the NS records' TTL, capped at a day
+ - closest(name) walks up from the name one label at a time, so a question under example.com goes to
+   example.com's servers once they're known, to com's before that, and to the root hints before anything
+ - the root is the hints, and never expires
+ - bounded: once full, expired zones are swept out; if that doesn't make room the new zone isn't kept
+ */
+final class DelegationCache {
+    private static final int MAX_TTL_SECONDS = 24 * 60 * 60;
+
+    private final ConcurrentHashMap<DomainName, Delegation> zones = new ConcurrentHashMap<>();
+    private final Delegation root;
+    private final int maxEntries;
+
+    DelegationCache(List<InetSocketAddress> rootHints, int maxEntries) {
+        if (rootHints.isEmpty()) {
+            throw new IllegalArgumentException("No root hints");
+        }
+        this.root = new Delegation(DomainName.ROOT, List.of(), List.copyOf(rootHints), Long.MAX_VALUE);
+        this.maxEntries = maxEntries;
+    }
+
+    //The deepest zone known to contain name
+    Delegation closest(DomainName name) {
+        long now = CoarseClock.nanoTime();
+        DomainName zone = name;
+        while (!zone.isRoot()) {
+            Delegation delegation = zones.get(zone);
+            if (delegation != null) {
+                if (delegation.expiresAtNanos - now > 0) {
+                    return delegation;
+                }
+                zones.remove(zone, delegation);
+            }
+            zone = zone.parent();
+        }
+        return root;
+    }
+
+    //Remember a referral, replacing what was known about the zone
+    Delegation put(DomainName zone, List<DomainName> nameServers, List<InetSocketAddress> addresses, int ttlSeconds) {
+        long expiresAt = CoarseClock.nanoTime() + TimeUnit.SECONDS.toNanos(Math.min(ttlSeconds, MAX_TTL_SECONDS));
+        Delegation delegation = new Delegation(zone, List.copyOf(nameServers), List.copyOf(addresses), expiresAt);
+        if (zones.size() >= maxEntries && !zones.containsKey(zone)) {
+            long now = CoarseClock.nanoTime();
+            zones.values().removeIf(entry -> entry.expiresAtNanos - now <= 0);
+            if (zones.size() >= maxEntries) {
+                return delegation;
+            }
+        }
+        zones.put(zone, delegation);
+        return delegation;
+    }
+
+    //Addresses looked up for one of the delegation's NS names, added to it
+    //The zone keeps its expiry; if it has been replaced in the meantime the newer entry is left alone
+    Delegation addAddresses(Delegation delegation, List<InetSocketAddress> addresses) {
+        List<InetSocketAddress> merged = new ArrayList<>(delegation.addresses);
+        for (InetSocketAddress address : addresses) {
+            if (!merged.contains(address)) {
+                merged.add(address);
+            }
+        }
+        Delegation updated = new Delegation(delegation.zone, delegation.nameServers, List.copyOf(merged), delegation.expiresAtNanos);
+        if (delegation != root) {
+            zones.replace(delegation.zone, delegation, updated);
+        }
+        return updated;
+    }
+
+    int size() { return zones.size(); }
+
+    //One zone cut: the zone, its NS names and the addresses known for them
+    static final class Delegation {
+        final DomainName zone;
+        final List<DomainName> nameServers;
+        final List<InetSocketAddress> addresses;
+        final long expiresAtNanos;
+
+        Delegation(DomainName zone, List<DomainName> nameServers, List<InetSocketAddress> addresses, long expiresAtNanos) {
+            this.zone = zone;
+            this.nameServers = nameServers;
+            this.addresses = addresses;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Delegation{zone=" + zone + ", nameServers=" + nameServers + ", addresses=" + addresses + '}';
+        }
+    }
+}
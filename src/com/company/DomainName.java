@@ -0,0 +1,150 @@
+package com.company;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+A domain name as it goes on the wire: length-prefixed labels and a final 0, uncompressed
+    [3]www[7]example[3]com[0]
+ - equals and hashCode ignore ASCII case, as DNS does; the hash is worked out once, from the case-folded bytes
+   (the same hash DNSCacheKey uses for the name part of a question, see foldedHash)
+ - the bytes keep the case they came with, so an answer can be written back the way it was asked
+ - intern() hands out one shared copy per name: records that outlive their packet (cached answers, NS targets,
+   glue) point at the same bytes instead of a copy each. The table is fixed-size and lossy: a name that collides
+   with another just replaces it, so it never grows and never needs cleaning
+ */
+final class DomainName {
+    //Slots in the intern table (a power of two)
+    private static final int INTERN_SLOTS = 1 << 16;
+    private static final DomainName[] INTERNED = new DomainName[INTERN_SLOTS];
+    //ASCII lower case of every byte value
+    private static final byte[] LOWER = new byte[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            LOWER[i] = (byte) (i >= 'A' && i <= 'Z' ? i + ('a' - 'A') : i);
+        }
+    }
+
+    //After LOWER, which hashing it needs
+    static final DomainName ROOT = new DomainName(new byte[]{0});
+
+    private final byte[] wire;
+    private final int hash;
+
+    private DomainName(byte[] wire) {
+        this.wire = wire;
+        this.hash = foldedHash(wire, wire.length);
+    }
+
+    //Wrap wire-format bytes (not copied; the caller must not change them afterwards)
+    static DomainName of(byte[] wire) {
+        return new DomainName(wire);
+    }
+
+    //Dotted form to wire format
+    static DomainName of(String name) {
+        return new DomainName(DNSMessage.stringToOctets(name));
+    }
+
+    //The shared copy of a name (same bytes, same case) if there is one, otherwise this one becomes it
+    static DomainName intern(byte[] wire) {
+        int hash = foldedHash(wire, wire.length);
+        int slot = (hash ^ (hash >>> 16)) & (INTERN_SLOTS - 1);
+        //Racing threads may each put their own copy in; names are immutable, so any of them will do
+        DomainName interned = INTERNED[slot];
+        if (interned != null && interned.hash == hash && Arrays.equals(interned.wire, wire)) {
+            return interned;
+        }
+        DomainName name = new DomainName(wire);
+        INTERNED[slot] = name;
+        return name;
+    }
+
+    //The shared copy of the name's bytes (see intern)
+    static byte[] internBytes(byte[] wire) {
+        return intern(wire).wire;
+    }
+
+    //The wire-format bytes; not to be changed
+    byte[] wire() { return wire; }
+
+    int length() { return wire.length; }
+
+    boolean isRoot() { return wire.length == 1; }
+
+    //The name with its first label taken off (the root stays the root)
+    DomainName parent() {
+        return isRoot() ? this : new DomainName(Arrays.copyOfRange(wire, (wire[0] & 0xff) + 1, wire.length));
+    }
+
+    //Whether this name is zone or somewhere under it, ignoring case
+    boolean isWithin(DomainName zone) {
+        int offset = wire.length - zone.wire.length;
+        if (offset < 0) {
+            return false;
+        }
+        //zone has to start on one of our label boundaries
+        int position = 0;
+        while (position < offset) {
+            position += (wire[position] & 0xff) + 1;
+        }
+        if (position != offset) {
+            return false;
+        }
+        for (int i = 0; i < zone.wire.length; i++) {
+            if (LOWER[wire[offset + i] & 0xff] != LOWER[zone.wire[i] & 0xff]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Polynomial (31) hash of the first length bytes, each folded to lower case
+    static int foldedHash(byte[] bytes, int length) {
+        int h = 1;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + (LOWER[bytes[i] & 0xff] & 0xff);
+        }
+        return h;
+    }
+
+    static int foldedHash(ByteBuffer bytes, int offset, int length) {
+        int h = 1;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + (LOWER[bytes.get(offset + i) & 0xff] & 0xff);
+        }
+        return h;
+    }
+
+    static byte toLower(byte b) {
+        return LOWER[b & 0xff];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        DomainName that = (DomainName) o;
+        if (hash != that.hash || wire.length != that.wire.length) {
+            return false;
+        }
+        for (int i = 0; i < wire.length; i++) {
+            if (LOWER[wire[i] & 0xff] != LOWER[that.wire[i] & 0xff]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    //Dotted, without the final dot; "." for the root
+    @Override
+    public String toString() {
+        return isRoot() ? "." : DNSMessage.octetsToString(wire);
+    }
+}
@@ -0,0 +1,724 @@
+package com.company;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+Resolves cache misses itself, from the root servers down, instead of forwarding them to an upstream resolver
+ - a question starts at the closest zone cut the DelegationCache knows (the root hints, the first time) and follows
+   referrals down: NS records in the authority section name the servers of a zone closer to the question,
+   A records in the additional section (glue) give their addresses
+ - every referral is remembered, so the next question under example.com goes straight to example.com's servers
+ - glue is only believed for names inside the zone of the server that sent it, and answer records only for names
+   inside the zone being asked (bailiwick), so a server can't redirect names it isn't responsible for
+ - name servers that came without glue are looked up themselves (from the root if need be), up to MAX_DEPTH deep
+ - a CNAME without the records asked for is followed to its target, up to MAX_CNAMES links; the answer carries
+   the whole chain
+ - a zone's servers are picked as the forwarder picks upstreams (see Upstream): healthy, untried, then lowest
+   smoothed RTT; one that doesn't answer in time, answers SERVFAIL/REFUSED or sends a referral that gets no closer
+   is counted against and the next one is asked
+ - a question gets at most MAX_QUERIES queries in all, NS lookups and CNAMEs included, then it fails
+   (SERVFAIL for the client)
+Queries go out with RD clear and our OPT record, and replies are matched back by (socket, server, ID, question) as the
+forwarder's are; a truncated reply is asked again over TCP, from a thread of its own so the one reading every UDP
+socket never waits on a TCP connection or write
+Source ports are random, as RFC 5452 asks: glue from these servers goes into the DelegationCache, so an off-path
+attacker who could guess which reply to forge could poison whole zones (Kaminsky). With a fixed port, the 16-bit ID
+would be all there is to guess; here it's the ID and the port
+ - queries go out on a few socket slots in turn, and a slot's socket is swapped for a new one, on a random port,
+   after QUERIES_PER_PORT queries. The old one is closed once its queries have timed out
+ - every socket is non-blocking and read by one selector thread
+Only IPv4 addresses are used for name servers (A glue and lookups), all on serverPort - 53, except when testing
+against fake servers on loopback addresses
+ */
+public class IterativeResolver implements Resolver {
+    //The IPv4 addresses of a.root-servers.net to m.root-servers.net
+    static final List<InetSocketAddress> DEFAULT_ROOT_HINTS = List.of(
+            new InetSocketAddress("198.41.0.4", 53), new InetSocketAddress("170.247.170.2", 53),
+            new InetSocketAddress("192.33.4.12", 53), new InetSocketAddress("199.7.91.13", 53),
+            new InetSocketAddress("192.203.230.10", 53), new InetSocketAddress("192.5.5.241", 53),
+            new InetSocketAddress("192.112.36.4", 53), new InetSocketAddress("198.97.190.53", 53),
+            new InetSocketAddress("192.36.148.17", 53), new InetSocketAddress("192.58.128.30", 53),
+            new InetSocketAddress("193.0.14.129", 53), new InetSocketAddress("199.7.83.42", 53),
+            new InetSocketAddress("202.12.27.33", 53));
+    private static final int MAX_DATAGRAM = 65535;
+    //Socket slots queries take turns on, how many queries a socket sends before it's replaced with one on a new
+    //port, and how long a server gets before the next one is asked
+    private static final int SOCKETS = 4;
+    private static final int QUERIES_PER_PORT = 32;
+    private static final int TIMEOUT_MS = 800;
+    //Limits for one client question
+    private static final int MAX_QUERIES = 32;
+    private static final int MAX_DEPTH = 4;
+    private static final int MAX_CNAMES = 8;
+    //Zone cuts kept, and servers whose RTT is tracked (forgotten all at once past this many)
+    private static final int MAX_ZONES = 100_000;
+    private static final int MAX_SERVERS = 10_000;
+    //Servers with a TCP connection kept open, for truncated replies
+    private static final int MAX_TCP_SERVERS = 64;
+    private static final int CLASS_IN = 1;
+    private static final int RCODE_NXDOMAIN = 3;
+
+    private final DelegationCache delegations;
+    private final int serverPort;
+    private final int timeoutMs;
+    private final AtomicReferenceArray<QuerySocket> sockets;
+    private final Selector selector;
+    private final ConcurrentHashMap<PendingKey, Attempt> pending = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<InetSocketAddress, Upstream> servers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<InetSocketAddress, TcpUpstreamPool> tcpPools = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+    private final ExecutorService tcpRetryExecutor;
+    private final AtomicInteger nextSocket = new AtomicInteger();
+    private volatile boolean closed;
+
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder referrals = new LongAdder();
+    private final LongAdder delegationHits = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder lameReplies = new LongAdder();
+    private final LongAdder tcpRetries = new LongAdder();
+    private final LongAdder malformedReplies = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    public IterativeResolver() throws IOException {
+        this(DEFAULT_ROOT_HINTS);
+    }
+
+    public IterativeResolver(List<InetSocketAddress> rootHints) throws IOException {
+        this(rootHints, 53, SOCKETS, TIMEOUT_MS);
+    }
+
+    //Root hints keep their own ports; every server learned from a referral is asked on serverPort
+    //timeoutMs is how long one server gets before the next one is asked
+    public IterativeResolver(List<InetSocketAddress> rootHints, int serverPort, int socketCount, int timeoutMs) throws IOException {
+        this.delegations = new DelegationCache(rootHints, MAX_ZONES);
+        this.serverPort = serverPort;
+        this.timeoutMs = timeoutMs;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "iterative-timer"));
+        this.tcpRetryExecutor = Executors.newSingleThreadExecutor(r -> daemon(r, "iterative-tcp-retry"));
+
+        this.selector = Selector.open();
+        this.sockets = new AtomicReferenceArray<>(socketCount);
+        for (int i = 0; i < socketCount; i++) {
+            sockets.set(i, openSocket());
+        }
+        daemon(this::readReplies, "iterative-reader").start();
+    }
+
+    @Override
+    public CompletableFuture<DNSMessage> resolve(DNSMessage request) {
+        int id = request.getHeader().getId();
+        return lookup(request.getQuestions().get(0), 0, 0, new AtomicInteger(MAX_QUERIES)).whenComplete((reply, error) -> {
+            if (error != null) {
+                failures.increment();
+            } else {
+                reply.getHeader().setId(id);
+            }
+        });
+    }
+
+    //The answer to one question, asked from the closest known zone cut down
+    private CompletableFuture<DNSMessage> lookup(DNSQuestion question, int depth, int cnames, AtomicInteger budget) {
+        Lookup lookup = new Lookup(question, depth, cnames, budget);
+        DelegationCache.Delegation start = delegations.closest(lookup.name);
+        if (!start.zone.isRoot()) {
+            delegationHits.increment();
+        }
+        ask(lookup, start);
+        return lookup.future;
+    }
+
+    //Send the question to the best of the delegation's servers not asked yet,
+    //looking up an address for one of its NS names first if none is left
+    private void ask(Lookup lookup, DelegationCache.Delegation delegation) {
+        InetSocketAddress server = pickServer(delegation, lookup.tried);
+        if (server == null) {
+            DomainName nameServer = nextNameServer(delegation, lookup.lookedUp);
+            if (nameServer == null || lookup.depth >= MAX_DEPTH) {
+                lookup.future.completeExceptionally(new IOException("No servers left to ask for zone " + delegation.zone));
+                return;
+            }
+            lookup.lookedUp.add(nameServer);
+            DNSQuestion question = DNSQuestion.of(nameServer.wire(), DNSRecord.TYPE_A, CLASS_IN);
+            lookup(question, lookup.depth + 1, 0, lookup.budget).whenComplete((reply, error) -> {
+                List<InetSocketAddress> addresses = error == null ? addresses(reply.getAnswers(), null) : List.of();
+                ask(lookup, addresses.isEmpty() ? delegation : delegations.addAddresses(delegation, addresses));
+            });
+            return;
+        }
+        if (lookup.budget.getAndDecrement() <= 0) {
+            lookup.future.completeExceptionally(new IOException("Gave up after " + MAX_QUERIES + " queries"));
+            return;
+        }
+        lookup.tried.add(server);
+        query(server, lookup.question).whenComplete((reply, error) -> {
+            try {
+                onReply(lookup, delegation, reply);
+            } catch (RuntimeException e) {
+                lookup.future.completeExceptionally(e);
+            }
+        });
+    }
+
+    //What a server said: an answer (or NXDOMAIN/NODATA), a referral further down, or nothing of use
+    //reply is null if the server didn't answer
+    private void onReply(Lookup lookup, DelegationCache.Delegation delegation, DNSMessage reply) {
+        if (reply == null) {
+            ask(lookup, delegation);
+            return;
+        }
+        int rcode = reply.getRcode();
+        if (rcode != 0 && rcode != RCODE_NXDOMAIN) {
+            lameReplies.increment();
+            ask(lookup, delegation);
+            return;
+        }
+        if (rcode == RCODE_NXDOMAIN || !reply.getAnswers().isEmpty()) {
+            answer(lookup, delegation, reply);
+            return;
+        }
+
+        DelegationCache.Delegation referral = referral(lookup, delegation, reply);
+        if (referral != null) {
+            referrals.increment();
+            lookup.tried.clear();
+            ask(lookup, referral);
+        } else if (reply.getHeader().getAa() == 0 && hasType(reply.getAuthorityRecords(), DNSRecord.TYPE_NS)) {
+            //Sent back up or sideways - the server doesn't know the zone it was delegated
+            lameReplies.increment();
+            ask(lookup, delegation);
+        } else {
+            //NODATA
+            lookup.future.complete(finish(lookup.question, delegation, reply));
+        }
+    }
+
+    //An answer from the zone's servers; a CNAME to a name the answer doesn't cover is followed
+    private void answer(Lookup lookup, DelegationCache.Delegation delegation, DNSMessage reply) {
+        int qtype = lookup.question.getQtype();
+        DNSMessage answer = finish(lookup.question, delegation, reply);
+        if (qtype == DNSRecord.TYPE_CNAME || answer.getRcode() != 0) {
+            lookup.future.complete(answer);
+            return;
+        }
+
+        //Walk the chain as far as the answer goes
+        List<DNSRecord> answers = answer.getAnswers();
+        DomainName name = lookup.name;
+        byte[] target = null;
+        for (int i = 0; i < answers.size(); i++) {
+            DNSRecord cname = find(answers, name, DNSRecord.TYPE_CNAME);
+            if (cname == null) {
+                break;
+            }
+            target = cname.getRdata();
+            name = DomainName.of(target);
+        }
+        if (target == null || find(answers, name, qtype) != null || lookup.cnames >= MAX_CNAMES) {
+            lookup.future.complete(answer);
+            return;
+        }
+
+        DNSQuestion next = DNSQuestion.of(target, qtype, lookup.question.getQclass());
+        lookup(next, lookup.depth, lookup.cnames + 1, lookup.budget).whenComplete((rest, error) -> {
+            if (error != null) {
+                lookup.future.completeExceptionally(error);
+                return;
+            }
+            List<DNSRecord> chain = new ArrayList<>(answers);
+            chain.addAll(rest.getAnswers());
+            lookup.future.complete(DNSMessage.buildMessage(lookup.question, (byte) rest.getRcode(), chain,
+                    rest.getAuthorityRecords(), rest.getAdditionalRecords()));
+        });
+    }
+
+    //The reply as our answer to the question: only records inside the zone asked, no OPT
+    private static DNSMessage finish(DNSQuestion question, DelegationCache.Delegation delegation, DNSMessage reply) {
+        return DNSMessage.buildMessage(question, (byte) reply.getRcode(), inZone(reply.getAnswers(), delegation.zone),
+                inZone(reply.getAuthorityRecords(), delegation.zone), inZone(reply.getAdditionalRecordsWithoutOpt(), delegation.zone));
+    }
+
+    //A referral to a zone below the delegation's that holds the question, remembered for next time
+    //null if the reply isn't one
+    private DelegationCache.Delegation referral(Lookup lookup, DelegationCache.Delegation delegation, DNSMessage reply) {
+        DomainName zone = null;
+        List<DomainName> nameServers = new ArrayList<>();
+        int ttl = Integer.MAX_VALUE;
+        for (DNSRecord record : reply.getAuthorityRecords()) {
+            if (record.getType() != DNSRecord.TYPE_NS) {
+                continue;
+            }
+            DomainName owner = DomainName.of(record.getName());
+            if (zone == null) {
+                if (owner.equals(delegation.zone) || !owner.isWithin(delegation.zone) || !lookup.name.isWithin(owner)) {
+                    return null;
+                }
+                zone = owner;
+            } else if (!owner.equals(zone)) {
+                continue;
+            }
+            nameServers.add(DomainName.intern(record.getRdata()));
+            ttl = Math.min(ttl, record.getTtlSeconds());
+        }
+        if (zone == null) {
+            return null;
+        }
+
+        //Glue, for names the referring server is responsible for
+        List<InetSocketAddress> glue = new ArrayList<>();
+        for (DomainName nameServer : nameServers) {
+            if (nameServer.isWithin(delegation.zone)) {
+                glue.addAll(addresses(reply.getAdditionalRecords(), nameServer));
+            }
+        }
+        return delegations.put(zone, nameServers, glue, ttl);
+    }
+
+    //Addresses in the A records (owned by name, unless it's null) of a section, on serverPort
+    private List<InetSocketAddress> addresses(List<DNSRecord> records, DomainName name) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (DNSRecord record : records) {
+            if (record.getType() == DNSRecord.TYPE_A && record.getRdata().length == 4
+                    && (name == null || name.equals(DomainName.of(record.getName())))) {
+                try {
+                    addresses.add(new InetSocketAddress(InetAddress.getByAddress(record.getRdata()), serverPort));
+                } catch (IOException e) {
+                    //Only thrown for a bad length
+                }
+            }
+        }
+        return addresses;
+    }
+
+    //Best server of the delegation's that hasn't been asked yet, null if there's none
+    private InetSocketAddress pickServer(DelegationCache.Delegation delegation, List<InetSocketAddress> tried) {
+        Upstream best = null;
+        for (InetSocketAddress address : delegation.addresses) {
+            if (!tried.contains(address)) {
+                Upstream server = server(address);
+                if (best == null || server.isBetterThan(best)) {
+                    best = server;
+                }
+            }
+        }
+        return best == null ? null : best.getAddress();
+    }
+
+    //An NS name of the delegation that hasn't been looked up yet, names outside the zone first
+    //(one inside it that came without glue can only be found through the zone itself)
+    private static DomainName nextNameServer(DelegationCache.Delegation delegation, Set<DomainName> lookedUp) {
+        DomainName inside = null;
+        for (DomainName nameServer : delegation.nameServers) {
+            if (!lookedUp.contains(nameServer)) {
+                if (!nameServer.isWithin(delegation.zone)) {
+                    return nameServer;
+                }
+                if (inside == null) {
+                    inside = nameServer;
+                }
+            }
+        }
+        return inside;
+    }
+
+    private Upstream server(InetSocketAddress address) {
+        Upstream server = servers.get(address);
+        if (server == null) {
+            if (servers.size() >= MAX_SERVERS) {
+                servers.clear();
+            }
+            server = servers.computeIfAbsent(address, Upstream::new);
+        }
+        return server;
+    }
+
+    //Send the question to one server; completes with its reply, or null if it doesn't answer
+    private CompletableFuture<DNSMessage> query(InetSocketAddress address, DNSQuestion question) {
+        QuerySocket socket = nextSocket();
+        Attempt attempt = new Attempt(server(address));
+
+        //Pick an ID nobody else is waiting on for this question from this server on this socket
+        PendingKey key;
+        do {
+            key = new PendingKey(socket, address, ThreadLocalRandom.current().nextInt(0x10000), question);
+        } while (pending.putIfAbsent(key, attempt) != null);
+        attempt.message = encodeQuery(key.id, question);
+        queries.increment();
+
+        try {
+            socket.channel.send(ByteBuffer.wrap(attempt.message), address);
+        } catch (IOException e) {
+            pending.remove(key, attempt);
+            attempt.server.recordFailure(false);
+            attempt.future.complete(null);
+            return attempt.future;
+        }
+        PendingKey sent = key;
+        attempt.timeout = timer.schedule(() -> {
+            if (pending.remove(sent, attempt)) {
+                timeouts.increment();
+                attempt.server.recordFailure(true);
+                attempt.future.complete(null);
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+        return attempt.future;
+    }
+
+    //Our query for the question: RD clear, with our OPT record so the server can answer up to 1232 bytes over UDP
+    private static byte[] encodeQuery(int id, DNSQuestion question) {
+        byte[] name = question.getDomainName();
+        ByteBuffer out = ByteBuffer.allocate(DNSHeader.HEADER_LENGTH + name.length + 4 + DNSMessage.OPT_LENGTH);
+        out.putShort((short) id).putShort((short) 0).putShort((short) 1).putShort((short) 0).putShort((short) 0).putShort((short) 1);
+        out.put(name).putShort((short) question.getQtype()).putShort((short) question.getQclass());
+        DNSMessage.putOpt(out, out.position(), 0, false);
+        return out.array();
+    }
+
+    //The slot's socket for the next query, replaced with a fresh one on a new port once it has sent QUERIES_PER_PORT
+    //If a new one can't be opened, the old one carries on for now
+    private QuerySocket nextSocket() {
+        int index = Math.floorMod(nextSocket.getAndIncrement(), sockets.length());
+        while (true) {
+            QuerySocket socket = sockets.get(index);
+            if (socket.sent.incrementAndGet() <= QUERIES_PER_PORT) {
+                return socket;
+            }
+            QuerySocket fresh;
+            try {
+                fresh = openSocket();
+            } catch (IOException e) {
+                return socket;
+            }
+            if (sockets.compareAndSet(index, socket, fresh)) {
+                //Replies to what it sent can still come in until those queries time out
+                timer.schedule(() -> closeQuietly(socket), timeoutMs * 2L, TimeUnit.MILLISECONDS);
+            } else {
+                //Another thread replaced it first, take a turn on that one
+                closeQuietly(fresh);
+            }
+        }
+    }
+
+    //A non-blocking socket on a random port, registered with the reader's selector
+    private QuerySocket openSocket() throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            SourcePorts.bindRandom(channel);
+            channel.configureBlocking(false);
+            QuerySocket socket = new QuerySocket(channel);
+            channel.register(selector, SelectionKey.OP_READ, socket);
+            selector.wakeup();
+            return socket;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static void closeQuietly(QuerySocket socket) {
+        try {
+            socket.channel.close();
+        } catch (IOException ignored) {
+            //Closing anyway
+        }
+    }
+
+    //Reader loop for every socket: match every reply with the query waiting on it
+    private void readReplies() {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM);
+        while (!closed) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> ready = selector.selectedKeys().iterator();
+                while (ready.hasNext()) {
+                    SelectionKey selected = ready.next();
+                    ready.remove();
+                    QuerySocket socket = (QuerySocket) selected.attachment();
+                    //Everything waiting on the socket; one that was closed meanwhile just stops
+                    while (selected.isValid()) {
+                        buffer.clear();
+                        SocketAddress from;
+                        try {
+                            from = socket.channel.receive(buffer);
+                        } catch (IOException e) {
+                            break;
+                        }
+                        if (from == null) {
+                            break;
+                        }
+                        onDatagram(socket, from, Arrays.copyOf(buffer.array(), buffer.position()));
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                if (!closed) {
+                    malformedReplies.increment();
+                }
+            }
+        }
+    }
+
+    private void onDatagram(QuerySocket socket, SocketAddress from, byte[] data) {
+        DNSMessage reply;
+        try {
+            reply = DNSMessage.decodeMessage(data);
+        } catch (IOException | RuntimeException e) {
+            malformedReplies.increment();
+            return;
+        }
+        if (reply.getHeader().getQr() == 0 || reply.getQuestions().isEmpty()) {
+            return;
+        }
+
+        PendingKey key = new PendingKey(socket, from, reply.getHeader().getId(), reply.getQuestions().get(0));
+        Attempt attempt = pending.remove(key);
+        if (attempt == null) {
+            //Late, or not an answer to anything we asked
+            return;
+        }
+        ScheduledFuture<?> timeout = attempt.timeout;
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+        attempt.server.recordReply(System.nanoTime() - attempt.sentNanos);
+
+        if (reply.getHeader().getTc() != 0) {
+            try {
+                tcpRetryExecutor.execute(() -> retryOverTcp(attempt));
+            } catch (RejectedExecutionException e) {
+                //Closing
+                attempt.future.complete(null);
+            }
+        } else {
+            attempt.future.complete(reply);
+        }
+    }
+
+    //Ask the same server again over TCP; no answer there counts as no answer
+    //Runs on tcpRetryExecutor: the pool connects on its own threads, but sending the query can still block
+    private void retryOverTcp(Attempt attempt) {
+        tcpRetries.increment();
+        tcpPool(attempt.server.getAddress()).query(attempt.message).whenComplete((data, error) -> {
+            DNSMessage reply = null;
+            if (error == null) {
+                try {
+                    reply = DNSMessage.decodeMessage(data);
+                } catch (IOException e) {
+                    malformedReplies.increment();
+                }
+            }
+            attempt.future.complete(reply);
+        });
+    }
+
+    //A server's TCP connection, opened on first use
+    //Past MAX_TCP_SERVERS another server's is closed to make room (whatever is waiting on it goes to the next server)
+    private TcpUpstreamPool tcpPool(InetSocketAddress address) {
+        TcpUpstreamPool pool = tcpPools.get(address);
+        if (pool != null) {
+            return pool;
+        }
+        if (tcpPools.size() >= MAX_TCP_SERVERS) {
+            Iterator<TcpUpstreamPool> victims = tcpPools.values().iterator();
+            if (victims.hasNext()) {
+                TcpUpstreamPool victim = victims.next();
+                victims.remove();
+                victim.close();
+            }
+        }
+        pool = tcpPools.computeIfAbsent(address, server -> new TcpUpstreamPool(server, 1, timeoutMs * 2, timer));
+        if (closed) {
+            pool.close();
+        }
+        return pool;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        tcpPools.values().forEach(TcpUpstreamPool::close);
+        timer.shutdownNow();
+        tcpRetryExecutor.shutdownNow();
+        for (int i = 0; i < sockets.length(); i++) {
+            closeQuietly(sockets.get(i));
+        }
+        try {
+            //Closes the retired sockets still registered with it too
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        } catch (IOException | ClosedSelectorException ignored) {
+            //Closing anyway
+        }
+        pending.forEach((key, attempt) -> {
+            if (pending.remove(key, attempt)) {
+                attempt.future.complete(null);
+            }
+        });
+    }
+
+    @Override
+    public void writeTo(PrometheusText out) {
+        out.counter("dns_iterative_queries_total", "Queries sent to root, TLD and authoritative servers", queries.sum());
+        out.counter("dns_iterative_referrals_total", "Referrals followed to a zone closer to the question", referrals.sum());
+        out.counter("dns_iterative_delegation_hits_total", "Lookups that started at a known zone cut instead of the root",
+                delegationHits.sum());
+        out.counter("dns_iterative_timeouts_total", "Queries a server didn't answer in time", timeouts.sum());
+        out.counter("dns_iterative_lame_replies_total", "Replies that were neither an answer nor a referral closer to one",
+                lameReplies.sum());
+        out.counter("dns_iterative_tcp_retries_total", "Truncated replies asked again over TCP", tcpRetries.sum());
+        out.counter("dns_iterative_malformed_replies_total", "Replies dropped because they didn't decode", malformedReplies.sum());
+        out.counter("dns_iterative_failures_total", "Questions no server could be got to answer", failures.sum());
+        out.gauge("dns_iterative_zones", "Zone cuts in the delegation cache", delegations.size());
+    }
+
+    long getQueries() { return queries.sum(); }
+
+    long getReferrals() { return referrals.sum(); }
+
+    long getDelegationHits() { return delegationHits.sum(); }
+
+    DelegationCache getDelegations() { return delegations; }
+
+    //Records owned by names inside zone
+    private static List<DNSRecord> inZone(List<DNSRecord> records, DomainName zone) {
+        List<DNSRecord> kept = new ArrayList<>(records.size());
+        for (DNSRecord record : records) {
+            if (DomainName.of(record.getName()).isWithin(zone)) {
+                kept.add(record);
+            }
+        }
+        return kept;
+    }
+
+    private static DNSRecord find(List<DNSRecord> records, DomainName name, int type) {
+        for (DNSRecord record : records) {
+            if (record.getType() == type && name.equals(DomainName.of(record.getName()))) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    private static boolean hasType(List<DNSRecord> records, int type) {
+        for (DNSRecord record : records) {
+            if (record.getType() == type) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread thread = new Thread(r, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    //One question being resolved, and where it has been so far
+    private static final class Lookup {
+        final DNSQuestion question;
+        final DomainName name;
+        final int depth;
+        final int cnames;
+        //Queries left for the client's whole question, shared with the lookups it starts
+        final AtomicInteger budget;
+        final CompletableFuture<DNSMessage> future = new CompletableFuture<>();
+        //Servers of the current zone already asked, and NS names already looked up
+        //Only touched by whichever thread moves the lookup on, one step at a time
+        final List<InetSocketAddress> tried = new ArrayList<>();
+        final Set<DomainName> lookedUp = new HashSet<>();
+
+        Lookup(DNSQuestion question, int depth, int cnames, AtomicInteger budget) {
+            this.question = question;
+            this.name = DomainName.of(question.getDomainName());
+            this.depth = depth;
+            this.cnames = cnames;
+            this.budget = budget;
+        }
+    }
+
+    //One socket queries are sent from, and how many it has sent
+    private static final class QuerySocket {
+        final DatagramChannel channel;
+        final AtomicInteger sent = new AtomicInteger();
+
+        QuerySocket(DatagramChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    //What a reply is matched on (the socket by identity)
+    private static final class PendingKey {
+        final QuerySocket socket;
+        final SocketAddress server;
+        final int id;
+        final DNSQuestion question;
+
+        PendingKey(QuerySocket socket, SocketAddress server, int id, DNSQuestion question) {
+            this.socket = socket;
+            this.server = server;
+            this.id = id;
+            this.question = question;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            PendingKey that = (PendingKey) o;
+            return socket == that.socket &&
+                    id == that.id &&
+                    server.equals(that.server) &&
+                    question.equals(that.question);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(socket, server, id, question);
+        }
+    }
+
+    //One query to one server
+    private static final class Attempt {
+        final Upstream server;
+        //Taken before the attempt is published, so the reader sees it
+        final long sentNanos = System.nanoTime();
+        final CompletableFuture<DNSMessage> future = new CompletableFuture<>();
+        volatile byte[] message;
+        volatile ScheduledFuture<?> timeout;
+
+        Attempt(Upstream server) {
+            this.server = server;
+        }
+    }
+}
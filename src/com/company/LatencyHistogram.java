@@ -0,0 +1,101 @@
+package com.company;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+Latency histogram for the hot path, after HdrHistogram's log-linear layout
+ - values are kept in microseconds, from 1us up to about 35 minutes (anything longer lands in the last bucket)
+ - every power of two is split into SUB_BUCKETS linear buckets, so any value is off by at most 1/32 (about 3%)
+ - recording is one array increment (lock-free, no allocation); reading walks the array,
+   so counts and percentiles are a moment's snapshot, not an exact cut
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    //Largest value that gets a bucket of its own, in microseconds
+    private static final long MAX_MICROS = (1L << 31) - 1;
+    private static final int BUCKETS = bucketIndex(MAX_MICROS) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sumMicros = new LongAdder();
+
+    void record(long nanos) {
+        long micros = Math.min(Math.max(TimeUnit.NANOSECONDS.toMicros(nanos), 0), MAX_MICROS);
+        counts.incrementAndGet(bucketIndex(micros));
+        sumMicros.add(micros);
+    }
+
+    //Time since startNanos (System.nanoTime)
+    void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    long getSumMicros() {
+        return sumMicros.sum();
+    }
+
+    //How many values were at most micros (to the resolution of the buckets)
+    long getCountAtOrBelow(long micros) {
+        int last = bucketIndex(Math.min(micros, MAX_MICROS));
+        //A bucket straddling the bound only counts if all of it is below
+        if (bucketUpperBound(last) > micros) {
+            last--;
+        }
+        long count = 0;
+        for (int i = 0; i <= last; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    //The value below which percentile % of the values fall, in microseconds (0 if nothing was recorded)
+    long getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return bucketUpperBound(i);
+            }
+        }
+        return MAX_MICROS;
+    }
+
+    //Values below 2 * SUB_BUCKETS get a bucket each; above that, the top SUB_BUCKET_BITS + 1 bits pick the bucket
+    private static int bucketIndex(long micros) {
+        if (micros < 2 * SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (micros >>> shift) - SUB_BUCKETS;
+    }
+
+    //Largest value that lands in bucket i
+    private static long bucketUpperBound(int i) {
+        if (i < 2 * SUB_BUCKETS) {
+            return i;
+        }
+        int shift = i / SUB_BUCKETS - 1;
+        long top = i % SUB_BUCKETS + SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+}
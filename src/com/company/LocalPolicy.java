@@ -0,0 +1,477 @@
+package com.company;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/*
+Names answered here instead of by the cache or the upstream: blocklists (ads, malware) and local overrides
+Loaded from a file, one rule per line (# or ; starts a comment):
+    ads.example.com                  NXDOMAIN (a plain list of domains)
+    0.0.0.0 ads.example.com ...      hosts style: the names get that address as their A record (AAAA for an IPv6
+                                     address), so 0.0.0.0 sinkholes them
+    printer.lan A 10.0.0.5           a record of our own, A or AAAA; more lines for the same name add more records
+    tracker.example CNAME .          RPZ style NXDOMAIN; CNAME *. is NODATA
+    $TTL 60                          TTL of the answers for the lines after it (DEFAULT_TTL before any)
+ - a name starting with *. is a wildcard: it covers every name below it but not the name itself, as in RPZ.
+   A name's own rule wins, then the wildcard of the closest name above it
+ - a type with no records of its own gets NODATA; negative answers carry an SOA with the TTL as its MINIMUM
+ - a line that doesn't parse is skipped and counted, not fatal: lists off the internet are never quite clean
+Built for millions of names:
+ - every name is kept once, case-folded wire format, back to back in one byte array
+ - an open-addressing table of four ints a slot finds them: the name's hash, where it is, its own action and its
+   wildcard's. There is no object per name; what to answer is one of a few shared Actions (a million blocked names
+   all point at the same NXDOMAIN)
+ - a question is looked up as itself, then each suffix from the longest down. The hash is a plain polynomial, so a
+   suffix's hash is the whole name's less the prefix before it scaled up: one pass over the name hashes every suffix
+ - every Action has its answers pre-encoded, their owner a pointer to the question, so an answer is the request's
+   header and question copied with the answer bytes after them
+An instance never changes once loaded; a reload builds a new one to swap in (see DNSServer.enableLocalPolicy)
+ */
+final class LocalPolicy {
+    static final int DEFAULT_TTL = 300;
+    //The table doubles once more than 3/4 of its slots are taken
+    private static final int MAX_LOAD_NUMERATOR = 3;
+    private static final int MAX_LOAD_DENOMINATOR = 4;
+    //31^n, for taking a prefix off a name's hash
+    private static final int[] POWERS = new int[DNSMessage.MAX_NAME_LENGTH + 2];
+
+    static {
+        POWERS[0] = 1;
+        for (int i = 1; i < POWERS.length; i++) {
+            POWERS[i] = POWERS[i - 1] * 31;
+        }
+    }
+
+    private final byte[] names;
+    //Four ints a slot: hash, where the name starts in names + 1 (0 for an empty slot), its own action + 1 and
+    //its wildcard's + 1 (0 for none)
+    private final int[] slots;
+    private final Action[] actions;
+    private final int size;
+    //Whether there are any wildcards at all; if not, suffixes aren't looked up
+    private final boolean wildcards;
+    private final int skipped;
+
+    private LocalPolicy(Builder builder) {
+        this.names = Arrays.copyOf(builder.names, builder.length);
+        this.slots = builder.slots;
+        this.actions = builder.actions.toArray(new Action[0]);
+        this.size = builder.size;
+        this.wildcards = builder.wildcards > 0;
+        this.skipped = builder.skipped;
+    }
+
+    static LocalPolicy load(Path file) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.ISO_8859_1)) {
+            Builder builder = new Builder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                builder.parse(line);
+            }
+            return new LocalPolicy(builder);
+        }
+    }
+
+    //What to answer for the name between start and end (just past its final 0) of packet, or null to carry on
+    //as usual. Allocates nothing
+    Action match(ByteBuffer packet, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + (DomainName.toLower(packet.get(i)) & 0xff);
+        }
+        int own = find(hash, packet, start, end - start, 2);
+        if (own >= 0 || !wildcards) {
+            return own >= 0 ? actions[own] : null;
+        }
+        //Suffixes from the longest, each hashed by taking the labels in front of it off the whole name's hash
+        int prefix = 0;
+        int position = start;
+        while (true) {
+            int next = position + (packet.get(position) & 0xff) + 1;
+            for (int i = position; i < next; i++) {
+                prefix = 31 * prefix + (DomainName.toLower(packet.get(i)) & 0xff);
+            }
+            position = next;
+            //The root can't have a rule
+            if (packet.get(position) == 0) {
+                return null;
+            }
+            int wildcard = find(hash - prefix * POWERS[end - position], packet, position, end - position, 3);
+            if (wildcard >= 0) {
+                return actions[wildcard];
+            }
+        }
+    }
+
+    Action match(DNSQuestion question) {
+        byte[] name = question.getDomainName();
+        return match(ByteBuffer.wrap(name), 0, name.length);
+    }
+
+    //The action in field (2: own, 3: wildcard) of the slot holding the name, or -1
+    private int find(int hash, ByteBuffer packet, int start, int length, int field) {
+        int mask = slots.length / 4 - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (slots[slot * 4 + 1] != 0) {
+            if (slots[slot * 4] == hash && equalsFolded(names, slots[slot * 4 + 1] - 1, packet, start, length)) {
+                return slots[slot * 4 + field] - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    //Whether the (folded) name at offset of names is the length bytes at start of packet, ignoring case
+    //Both are well-formed names, so matching bytes can't run names past its own final 0
+    private static boolean equalsFolded(byte[] names, int offset, ByteBuffer packet, int start, int length) {
+        for (int i = 0; i < length; i++) {
+            if (names[offset + i] != DomainName.toLower(packet.get(start + i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Names with a rule (a name and its wildcard count once)
+    int size() { return size; }
+
+    //Lines that didn't parse
+    int getSkipped() { return skipped; }
+
+    //Collects rules line by line into a growing table, then hands its arrays to the policy
+    private static final class Builder {
+        private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+        private static final Pattern IPV4 = Pattern.compile("\\d{1,3}(\\.\\d{1,3}){3}");
+
+        private byte[] names = new byte[1 << 16];
+        private int length;
+        private int[] slots = new int[1024 * 4];
+        private int size;
+        private int wildcards;
+        private int skipped;
+        private int ttl = DEFAULT_TTL;
+        private final List<Action> actions = new ArrayList<>();
+        //Actions by what they answer, so every name answered the same way shares one
+        private final Map<String, Integer> actionIds = new HashMap<>();
+
+        void parse(String line) {
+            int comment = indexOfComment(line);
+            String[] tokens = WHITESPACE.split((comment < 0 ? line : line.substring(0, comment)).trim());
+            if (tokens[0].isEmpty()) {
+                return;
+            }
+            try {
+                if (tokens[0].startsWith("$")) {
+                    if (!tokens[0].equalsIgnoreCase("$TTL") || tokens.length != 2) {
+                        throw new IllegalArgumentException("Unknown directive");
+                    }
+                    int newTtl = Integer.parseInt(tokens[1]);
+                    if (newTtl < 0) {
+                        throw new IllegalArgumentException("Negative TTL");
+                    }
+                    ttl = newTtl;
+                } else if (tokens.length == 1) {
+                    add(tokens[0], action(DNSCacheEntry.RCODE_NXDOMAIN, new int[0], new byte[0][]), false);
+                } else if (isAddress(tokens[0])) {
+                    int record = record(parseAddress(tokens[0]));
+                    for (int i = 1; i < tokens.length; i++) {
+                        add(tokens[i], record, true);
+                    }
+                } else if (tokens.length == 3) {
+                    String type = tokens[1].toUpperCase(Locale.ROOT);
+                    if (type.equals("A") || type.equals("AAAA")) {
+                        byte[] address = parseAddress(tokens[2]);
+                        if (address.length != (type.equals("A") ? 4 : 16)) {
+                            throw new IllegalArgumentException("Not an " + type + " address");
+                        }
+                        add(tokens[0], record(address), true);
+                    } else if (type.equals("CNAME") && tokens[2].equals(".")) {
+                        add(tokens[0], action(DNSCacheEntry.RCODE_NXDOMAIN, new int[0], new byte[0][]), false);
+                    } else if (type.equals("CNAME") && tokens[2].equals("*.")) {
+                        add(tokens[0], action(DNSCacheEntry.RCODE_NOERROR, new int[0], new byte[0][]), false);
+                    } else {
+                        throw new IllegalArgumentException("Unsupported rule");
+                    }
+                } else {
+                    throw new IllegalArgumentException("Unsupported rule");
+                }
+            } catch (IllegalArgumentException | UnknownHostException e) {
+                skipped++;
+            }
+        }
+
+        //# anywhere (hosts files), ; only at the start of a token (zone files)
+        private static int indexOfComment(String line) {
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (c == '#' || (c == ';' && (i == 0 || Character.isWhitespace(line.charAt(i - 1))))) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        //An A or AAAA record for address
+        private int record(byte[] address) {
+            return action(DNSCacheEntry.RCODE_NOERROR, new int[]{address.length == 4 ? DNSRecord.TYPE_A : DNSRecord.TYPE_AAAA},
+                    new byte[][]{address});
+        }
+
+        //The id of the action that answers this way, made if it's the first
+        private int action(byte rcode, int[] types, byte[][] data) {
+            StringBuilder key = new StringBuilder().append(rcode).append('/').append(ttl);
+            for (int i = 0; i < types.length; i++) {
+                key.append('/').append(types[i]).append('=').append(Arrays.toString(data[i]));
+            }
+            return actionIds.computeIfAbsent(key.toString(), k -> {
+                actions.add(new Action(rcode, ttl, types, data));
+                return actions.size() - 1;
+            });
+        }
+
+        //Give name (dotted, *. in front for a wildcard) the action; with merge, records already there are kept
+        //and the action's added to them, otherwise the action replaces whatever was there
+        private void add(String name, int action, boolean merge) {
+            boolean wildcard = name.startsWith("*.");
+            byte[] wire = toWire(wildcard ? name.substring(2) : name);
+            int hash = 0;
+            for (byte b : wire) {
+                hash = 31 * hash + (b & 0xff);
+            }
+            int slot = slotFor(hash, wire);
+            int field = slot * 4 + (wildcard ? 3 : 2);
+            int old = slots[field] - 1;
+            if (old < 0 && wildcard) {
+                wildcards++;
+            }
+            if (merge && old >= 0) {
+                action = merged(actions.get(old), actions.get(action));
+            }
+            slots[field] = action + 1;
+        }
+
+        //The records of both, if old has any (an NXDOMAIN or NODATA rule is just replaced); a record old already
+        //has isn't added again, as when a hosts file lists a name twice
+        private int merged(Action old, Action added) {
+            if (old.types.length == 0) {
+                return action(added.rcode, added.types, added.data);
+            }
+            int[] types = Arrays.copyOf(old.types, old.types.length + added.types.length);
+            byte[][] data = Arrays.copyOf(old.data, old.data.length + added.data.length);
+            int count = old.types.length;
+            for (int i = 0; i < added.types.length; i++) {
+                if (!old.has(added.types[i], added.data[i])) {
+                    types[count] = added.types[i];
+                    data[count++] = added.data[i];
+                }
+            }
+            return action(DNSCacheEntry.RCODE_NOERROR, Arrays.copyOf(types, count), Arrays.copyOf(data, count));
+        }
+
+        //The slot holding wire, which is added (to the table and to names) if it isn't there yet
+        private int slotFor(int hash, byte[] wire) {
+            int mask = slots.length / 4 - 1;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (slots[slot * 4 + 1] != 0) {
+                int start = slots[slot * 4 + 1] - 1;
+                if (slots[slot * 4] == hash && Arrays.equals(names, start, start + wire.length, wire, 0, wire.length)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if ((size + 1) * MAX_LOAD_DENOMINATOR > slots.length / 4 * MAX_LOAD_NUMERATOR) {
+                grow();
+                return slotFor(hash, wire);
+            }
+            if (length + wire.length > names.length) {
+                names = Arrays.copyOf(names, Math.max(names.length * 2, length + wire.length));
+            }
+            System.arraycopy(wire, 0, names, length, wire.length);
+            slots[slot * 4] = hash;
+            slots[slot * 4 + 1] = length + 1;
+            length += wire.length;
+            size++;
+            return slot;
+        }
+
+        private void grow() {
+            int[] old = slots;
+            slots = new int[old.length * 2];
+            int mask = slots.length / 4 - 1;
+            for (int i = 0; i < old.length; i += 4) {
+                if (old[i + 1] != 0) {
+                    int slot = (old[i] ^ (old[i] >>> 16)) & mask;
+                    while (slots[slot * 4 + 1] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    System.arraycopy(old, i, slots, slot * 4, 4);
+                }
+            }
+        }
+
+        //Dotted name to case-folded wire format, checked the way a question would be: labels of 1 to 63 bytes,
+        //255 bytes in all, and not the root
+        private static byte[] toWire(String name) {
+            if (name.endsWith(".")) {
+                name = name.substring(0, name.length() - 1);
+            }
+            if (name.isEmpty() || name.length() + 2 > DNSMessage.MAX_NAME_LENGTH) {
+                throw new IllegalArgumentException("Bad name length");
+            }
+            byte[] wire = DNSMessage.stringToOctets(name);
+            if (wire.length != name.length() + 2) {
+                throw new IllegalArgumentException("Empty label");
+            }
+            //Folded as lookups fold, ASCII only
+            for (int i = 0; i < wire.length; i++) {
+                wire[i] = DomainName.toLower(wire[i]);
+            }
+            for (int i = 0; wire[i] != 0; i += (wire[i] & 0xff) + 1) {
+                if ((wire[i] & 0xff) > 63) {
+                    throw new IllegalArgumentException("Label too long");
+                }
+            }
+            return wire;
+        }
+
+        //A hosts file's first column: IPv4 dotted quad, or anything with a colon (IPv6)
+        private static boolean isAddress(String token) {
+            return token.indexOf(':') >= 0 || IPV4.matcher(token).matches();
+        }
+
+        //Only ever given literals, so InetAddress doesn't look anything up
+        private static byte[] parseAddress(String token) throws UnknownHostException {
+            if (!isAddress(token)) {
+                throw new UnknownHostException(token);
+            }
+            return InetAddress.getByName(token).getAddress();
+        }
+    }
+
+    /*
+    How one rule answers: NXDOMAIN, or records (none for NODATA) with the type asked for answered from the ones
+    of that type, ANY from all of them, and any other type with NODATA
+    Encoded once, on load: for each type there are records of, the answer section for it (every owner a pointer
+    to the question); and an authority section with an SOA (owner and names the root) for negative answers
+     */
+    static final class Action {
+        private final byte rcode;
+        private final int ttl;
+        private final int[] types;
+        private final byte[][] data;
+        //Pre-encoded answer sections: the type asked for, how many records, their bytes
+        private final int[] answerTypes;
+        private final int[] answerCounts;
+        private final byte[][] answerSections;
+        private final byte[] soaData;
+        private final byte[] negative;
+
+        private Action(byte rcode, int ttl, int[] types, byte[][] data) {
+            this.rcode = rcode;
+            this.ttl = ttl;
+            this.types = types;
+            this.data = data;
+
+            int[] distinct = Arrays.stream(types).distinct().toArray();
+            int sections = rcode == DNSCacheEntry.RCODE_NXDOMAIN || types.length == 0 ? 0 : distinct.length + 1;
+            answerTypes = new int[sections];
+            answerCounts = new int[sections];
+            answerSections = new byte[sections][];
+            for (int i = 0; i < sections; i++) {
+                answerTypes[i] = i < distinct.length ? distinct[i] : DNSRecord.TYPE_ANY;
+                ByteBuffer section = ByteBuffer.allocate(Arrays.stream(data).mapToInt(d -> 12 + d.length).sum());
+                for (int r = 0; r < types.length; r++) {
+                    if (answerTypes[i] == DNSRecord.TYPE_ANY || types[r] == answerTypes[i]) {
+                        section.putShort((short) (0xC000 | DNSHeader.HEADER_LENGTH)).putShort((short) types[r]).putShort((short) 1)
+                                .putInt(ttl).putShort((short) data[r].length).put(data[r]);
+                        answerCounts[i]++;
+                    }
+                }
+                answerSections[i] = Arrays.copyOf(section.array(), section.position());
+            }
+
+            //mname and rname the root, serial, refresh, retry, expire, then the TTL as MINIMUM
+            soaData = ByteBuffer.allocate(22).put((byte) 0).put((byte) 0).putInt(1).putInt(3600).putInt(600).putInt(86400)
+                    .putInt(ttl).array();
+            negative = ByteBuffer.allocate(11 + soaData.length).put((byte) 0).putShort((short) DNSRecord.TYPE_SOA).putShort((short) 1)
+                    .putInt(ttl).putShort((short) soaData.length).put(soaData).array();
+        }
+
+        //Which pre-encoded answer section a question of qtype gets, or -1 for a negative answer
+        private int sectionFor(int qtype) {
+            for (int i = 0; i < answerTypes.length; i++) {
+                if (answerTypes[i] == qtype) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        //Wire-format response to a plain query (see DNSMessage.simpleQueryQuestionEnd), written into this thread's
+        //MessageEncoder: the request's header and question as they came, the flags, counts and our OPT record (if
+        //the request had one) patched in as DNSCacheEntry.encodeFor does. Allocates nothing
+        ByteBuffer encodeFor(ByteBuffer request, int questionEnd) {
+            int section = sectionFor(request.getShort(questionEnd - 4) & 0xffff);
+            boolean edns = DNSMessage.simpleQueryHasOpt(request, questionEnd);
+            MessageEncoder encoder = MessageEncoder.local().begin();
+            encoder.putBytes(request, 0, questionEnd);
+            encoder.putBytes(section >= 0 ? answerSections[section] : negative);
+            int optOffset = encoder.skip(edns ? DNSMessage.OPT_LENGTH : 0);
+            ByteBuffer out = encoder.finish();
+
+            out.putShort(2, (short) ((request.getShort(2) & DNSHeader.REQUEST_FLAGS) | DNSHeader.RESPONSE_FLAGS | rcode));
+            out.putShort(6, (short) (section >= 0 ? answerCounts[section] : 0));
+            out.putShort(8, (short) (section >= 0 ? 0 : 1));
+            out.putShort(10, (short) (edns ? 1 : 0));
+            if (edns) {
+                DNSMessage.putOpt(out, optOffset, 0, DNSMessage.simpleQueryDnssecOk(request, questionEnd));
+            }
+            return out;
+        }
+
+        //The same answer as records, for requests that are built the long way (DNSMessage.buildResponse)
+        List<DNSRecord> answersFor(DNSQuestion question) {
+            int section = sectionFor(question.getQtype());
+            if (section < 0) {
+                return List.of();
+            }
+            List<DNSRecord> records = new ArrayList<>(answerCounts[section]);
+            for (int r = 0; r < types.length; r++) {
+                if (answerTypes[section] == DNSRecord.TYPE_ANY || types[r] == answerTypes[section]) {
+                    records.add(DNSRecord.of(question.getDomainName(), types[r], 1, ttl, data[r]));
+                }
+            }
+            return records;
+        }
+
+        List<DNSRecord> authorityFor(DNSQuestion question) {
+            return sectionFor(question.getQtype()) >= 0 ? List.of()
+                    : List.of(DNSRecord.of(new byte[]{0}, DNSRecord.TYPE_SOA, 1, ttl, soaData));
+        }
+
+        //Whether one of the records is this one
+        private boolean has(int type, byte[] recordData) {
+            for (int r = 0; r < types.length; r++) {
+                if (types[r] == type && Arrays.equals(data[r], recordData)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        byte getRcode() { return rcode; }
+    }
+}
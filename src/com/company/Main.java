@@ -1,11 +1,80 @@
 package com.company;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 public class Main {
+    //Cache snapshot for warm restarts, saved this often and when the process is stopped
+    private static final Path SNAPSHOT_FILE = Path.of("dns-cache.snapshot");
+    private static final int SNAPSHOT_INTERVAL_SECONDS = 300;
+    //Prometheus metrics at http://127.0.0.1:9153/metrics (the port CoreDNS uses for the same thing)
+    private static final int METRICS_PORT = 9153;
+    //-Dcache.offHeapEntries=N keeps up to N cache entries in direct memory instead of on the heap,
+    //with this much direct memory for each (see OffHeapDNSCache)
+    private static final String OFF_HEAP_ENTRIES_PROPERTY = "cache.offHeapEntries";
+    private static final long OFF_HEAP_BYTES_PER_ENTRY = 256;
+    //-Dudp.shards=N reads UDP through N SO_REUSEPORT sockets, one thread each (e.g. one per core); 1 by default
+    private static final String UDP_SHARDS_PROPERTY = "udp.shards";
+    //-Dresolver.iterative=true resolves misses from the root servers down instead of forwarding them (see IterativeResolver);
+    //-Dresolver.rootHints=host[:port],... replaces the root servers (e.g. fake ones for testing)
+    private static final String ITERATIVE_PROPERTY = "resolver.iterative";
+    private static final String ROOT_HINTS_PROPERTY = "resolver.rootHints";
+    //-Drrl.responsesPerSecond=N limits how often a client network gets the same answer over UDP (see RateLimiter), off by
+    //default: behind a NAT, a whole office is one client. -Drrl.burst (N by default), -Drrl.slip (every 2nd limited
+    //response goes back with TC; 0 drops them all) and -Drrl.missesPerSecond (per network, checked when busy) go with it
+    private static final String RRL_PROPERTY = "rrl.responsesPerSecond";
+    private static final int RRL_STRIPES = 1 << 16;
+    //-Dlocal.policy=file answers the names in it locally (blocklists, overrides; see LocalPolicy), reloading it
+    //whenever it changes
+    private static final String LOCAL_POLICY_PROPERTY = "local.policy";
+    private static final int LOCAL_POLICY_CHECK_SECONDS = 5;
 
+    //Arguments: upstream resolvers as host or host:port (Google's if none are given), unused when iterative
     public static void main(String[] args) throws IOException {
-        DNSServer server = new DNSServer();
+        List<InetSocketAddress> upstreams = parseAddresses(List.of(args));
+        if (upstreams.isEmpty()) {
+            upstreams = DNSServer.DEFAULT_UPSTREAMS;
+        }
+        Integer offHeapEntries = Integer.getInteger(OFF_HEAP_ENTRIES_PROPERTY);
+        DNSResponseCache cache = offHeapEntries == null ? DNSServer.defaultCache()
+                : new OffHeapDNSCache(offHeapEntries, offHeapEntries * OFF_HEAP_BYTES_PER_ENTRY, DNSServer.STALE_GRACE_SECONDS);
+        int udpShards = Integer.getInteger(UDP_SHARDS_PROPERTY, 1);
+        int workers = Runtime.getRuntime().availableProcessors();
+        DNSServer server;
+        if (Boolean.getBoolean(ITERATIVE_PROPERTY)) {
+            String rootHints = System.getProperty(ROOT_HINTS_PROPERTY);
+            IterativeResolver resolver = rootHints == null ? new IterativeResolver()
+                    : new IterativeResolver(parseAddresses(List.of(rootHints.split(","))));
+            server = new DNSServer(DNSServer.DEFAULT_PORT, workers, udpShards, resolver, cache);
+        } else {
+            server = new DNSServer(DNSServer.DEFAULT_PORT, workers, udpShards, upstreams, cache);
+        }
+        server.enableSnapshots(SNAPSHOT_FILE, SNAPSHOT_INTERVAL_SECONDS);
+        server.enableMetrics(METRICS_PORT);
+        Integer responsesPerSecond = Integer.getInteger(RRL_PROPERTY);
+        if (responsesPerSecond != null) {
+            server.enableRateLimiting(new RateLimiter(responsesPerSecond, Integer.getInteger("rrl.burst", responsesPerSecond),
+                    Integer.getInteger("rrl.slip", 2), Integer.getInteger("rrl.missesPerSecond", 100), RRL_STRIPES));
+        }
+        String localPolicy = System.getProperty(LOCAL_POLICY_PROPERTY);
+        if (localPolicy != null) {
+            server.enableLocalPolicy(Path.of(localPolicy), LOCAL_POLICY_CHECK_SECONDS);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
         server.runServer();
     }
+
+    //host or host:port, port 53 if none is given
+    private static List<InetSocketAddress> parseAddresses(List<String> addresses) {
+        List<InetSocketAddress> parsed = new ArrayList<>();
+        for (String address : addresses) {
+            int colon = address.lastIndexOf(':');
+            parsed.add(colon < 0 ? new InetSocketAddress(address, 53)
+                    : new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+        }
+        return parsed;
+    }
 }
@@ -0,0 +1,275 @@
+package com.company;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+Writes DNS messages straight into a direct buffer that is reused for every message
+ - one encoder per thread (local()), so every worker and UDP shard writes into a buffer of its own, and a
+   message costs no ByteArrayOutputStream, no map and no map keys
+ - the buffer holds the largest message DNS allows (the TCP length limit), so it never has to grow
+ - name compression works on suffixes, as RFC 1035 section 4.1.4 allows: every name and every label written out
+   goes into a small open-addressing table (a label is keyed by its bytes and where the rest of its name is), and
+   a later name is written as its own labels up to the longest suffix already in the message, then a pointer to
+   it - cdn.example.com after www.example.com costs [3]cdn + pointer. A match is compared with the array it was
+   written from, so there are no false ones. Starting a message empties the table by moving to the next
+   generation, not by clearing it
+ - the finished message is the buffer between 0 and its limit (finish()), and stays there until the next
+   begin() on the same thread: send it or copy it out (toByteArray) before encoding anything else
+ */
+final class MessageEncoder {
+    static final int MAX_MESSAGE_LENGTH = 0xffff;
+    //Slots in the compression table (a power of two); names and labels past half of them aren't remembered
+    private static final int TABLE_SIZE = 512;
+    private static final int MAX_NAMES = TABLE_SIZE / 2;
+    //A name has at most 127 labels (255 bytes, one byte labels)
+    private static final int MAX_LABELS = 128;
+    //Where the suffix of a top-level label is: nowhere, it's just the final 0
+    private static final int ROOT = -1;
+    //The suffix of a whole name, looked up as one
+    private static final int WHOLE = -2;
+    private static final int MAX_PENDING = 64;
+    //Pointers can only reach the first 16k of a message
+    private static final int MAX_POINTER = 0x3fff;
+
+    private static final ThreadLocal<MessageEncoder> LOCAL = ThreadLocal.withInitial(MessageEncoder::new);
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_MESSAGE_LENGTH);
+    //Compression table, four ints a slot side by side: generation (in use if it's the current one), the label's
+    //hash, where the suffix after it is, and where it is | where it starts in the array it was written from << 16
+    //That array is kept too, to compare against (cheaper than reading the direct buffer back a byte at a time)
+    private final int[] slots = new int[TABLE_SIZE * 4];
+    private final byte[][] sources = new byte[TABLE_SIZE][];
+    private int generation;
+    private int names;
+    //Where each label of the name being written starts
+    private final int[] labelStarts = new int[MAX_LABELS];
+    //Names written whose labels aren't in the table yet: the array, and four ints each - where the name starts
+    //in it, how many bytes of labels were written out, where they went and where the suffix after them is
+    private final byte[][] pendingSources = new byte[MAX_PENDING][];
+    private final int[] pendingNames = new int[MAX_PENDING * 4];
+    private int pending;
+    //Whether any labels are in the table yet
+    private boolean labelled;
+
+    MessageEncoder() {
+    }
+
+    //This thread's encoder
+    static MessageEncoder local() {
+        return LOCAL.get();
+    }
+
+    //Start a new message at the beginning of the buffer, with nothing to compress against
+    MessageEncoder begin() {
+        buffer.clear();
+        if (++generation == 0) {
+            Arrays.fill(slots, 0);
+            generation = 1;
+        }
+        names = 0;
+        pending = 0;
+        labelled = false;
+        return this;
+    }
+
+    //Where the next byte goes
+    int position() {
+        return buffer.position();
+    }
+
+    void putShort(int value) {
+        buffer.putShort((short) value);
+    }
+
+    void putInt(int value) {
+        buffer.putInt(value);
+    }
+
+    void putBytes(byte[] bytes) {
+        buffer.put(bytes);
+    }
+
+    //Copy length bytes of source starting at offset, leaving source's position alone
+    void putBytes(ByteBuffer source, int offset, int length) {
+        int position = buffer.position();
+        buffer.put(position, source, offset, length);
+        buffer.position(position + length);
+    }
+
+    //Fill in two bytes left with skip()
+    void putShort(int offset, int value) {
+        buffer.putShort(offset, (short) value);
+    }
+
+    //Leave room for length bytes to be filled in once the message is finished; returns where they start
+    int skip(int length) {
+        int position = buffer.position();
+        buffer.position(position + length);
+        return position;
+    }
+
+    /*
+    A name that is already in the message as a whole (the answer's owner is nearly always the question's name)
+    is just a back pointer to it, found with one hash and one compare
+    Otherwise find the longest suffix of it already in the message, a label at a time from the top (com, then
+    example.com, ...): a label is looked up by its bytes and where the suffix after it is, so each step
+    only has to compare one label
+        - write the labels in front of it as they are (length-prefixed)
+        - then a back pointer to where the suffix is
+    If there is none, write the whole name as it is, with its 0 at the end
+    The name is remembered for the names after it; the labels written out for it are put aside, and only go
+    into the table once a later name needs them (a message that only repeats its question's name never does)
+     */
+    void putName(byte[] name) {
+        putName(name, 0);
+    }
+
+    //The same for a name that starts at from in bytes (e.g. inside record data); returns where it ends there
+    int putName(byte[] bytes, int from) {
+        //The root name is shorter than a pointer
+        if (bytes[from] == 0) {
+            buffer.put((byte) 0);
+            return from + 1;
+        }
+        //Only a name that is all of bytes can be looked up as a whole; inside record data it's just the suffixes
+        int wholeHash = 0;
+        if (from == 0) {
+            wholeHash = Arrays.hashCode(bytes);
+            int offset = find(wholeHash, WHOLE, bytes, 0, bytes.length);
+            if (offset >= 0) {
+                putShort(offset | 0xC000);
+                return bytes.length;
+            }
+        }
+        rememberPending();
+
+        int labels = 0;
+        int end = from;
+        while (bytes[end] != 0) {
+            labelStarts[labels++] = end;
+            end += (bytes[end] & 0xff) + 1;
+        }
+        end++;
+
+        //Labels found[..labels) are already in the message, starting at suffix
+        //(none can be before any labels are in the table)
+        int suffix = ROOT;
+        int found = labels;
+        while (found > 0 && labelled) {
+            int start = labelStarts[found - 1];
+            int offset = find(labelHash(bytes, start, suffix), suffix, bytes, start, (bytes[start] & 0xff) + 1);
+            if (offset < 0) {
+                break;
+            }
+            suffix = offset;
+            found--;
+        }
+
+        int nameStart = buffer.position();
+        int written;
+        if (found == labels) {
+            buffer.put(bytes, from, end - from);
+            written = end - 1 - from;
+        } else {
+            written = labelStarts[found] - from;
+            buffer.put(bytes, from, written);
+            putShort(suffix | 0xC000);
+        }
+        if (from == 0 && end == bytes.length) {
+            remember(wholeHash, WHOLE, bytes, 0, nameStart);
+        }
+        if (written > 0) {
+            if (pending == MAX_PENDING) {
+                rememberPending();
+            }
+            pendingSources[pending] = bytes;
+            pendingNames[pending * 4] = from;
+            pendingNames[pending * 4 + 1] = written;
+            pendingNames[pending * 4 + 2] = nameStart;
+            pendingNames[pending * 4 + 3] = suffix;
+            pending++;
+        }
+        return end;
+    }
+
+    //Put the labels of the names written so far into the table, each followed by the label after it, or by the
+    //suffix its name was found to end in
+    private void rememberPending() {
+        for (int i = 0; i < pending; i++) {
+            byte[] bytes = pendingSources[i];
+            int from = pendingNames[i * 4];
+            int nameStart = pendingNames[i * 4 + 2];
+            int suffix = pendingNames[i * 4 + 3];
+            int labels = 0;
+            for (int start = from; start < from + pendingNames[i * 4 + 1]; start += (bytes[start] & 0xff) + 1) {
+                labelStarts[labels++] = start;
+            }
+            for (int label = labels - 1; label >= 0; label--) {
+                int start = labelStarts[label];
+                int offset = nameStart + start - from;
+                remember(labelHash(bytes, start, suffix), suffix, bytes, start, offset);
+                suffix = offset;
+            }
+            labelled = true;
+        }
+        pending = 0;
+    }
+
+    //Where the length bytes at start of bytes, followed by the suffix at offset suffix, already are in the message,
+    //or -1
+    private int find(int hash, int suffix, byte[] bytes, int start, int length) {
+        int slot = (hash ^ (hash >>> 16)) & (TABLE_SIZE - 1);
+        while (slots[slot * 4] == generation) {
+            int at = slots[slot * 4 + 3];
+            if (slots[slot * 4 + 1] == hash && slots[slot * 4 + 2] == suffix) {
+                byte[] source = sources[slot];
+                int sourceStart = at >>> 16;
+                if (sourceStart + length <= source.length
+                        && Arrays.equals(source, sourceStart, sourceStart + length, bytes, start, start + length)) {
+                    return at & 0xffff;
+                }
+            }
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+        return -1;
+    }
+
+    //Note that the bytes at start of bytes, followed by the suffix at offset suffix, were written at offset
+    //Past the first 16k, or once the table is half full, they aren't
+    private void remember(int hash, int suffix, byte[] bytes, int start, int offset) {
+        if (offset > MAX_POINTER || names >= MAX_NAMES) {
+            return;
+        }
+        int slot = (hash ^ (hash >>> 16)) & (TABLE_SIZE - 1);
+        while (slots[slot * 4] == generation) {
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+        slots[slot * 4] = generation;
+        slots[slot * 4 + 1] = hash;
+        slots[slot * 4 + 2] = suffix;
+        slots[slot * 4 + 3] = offset | start << 16;
+        sources[slot] = bytes;
+        names++;
+    }
+
+    //Only the label's length, first and last bytes and its suffix, so working it out doesn't loop: a match still
+    //has its bytes compared
+    private static int labelHash(byte[] bytes, int start, int suffix) {
+        int length = bytes[start] & 0xff;
+        int hash = length << 16 | (bytes[start + 1] & 0xff) << 8 | (bytes[start + length] & 0xff);
+        return hash * 0x9E3779B1 + suffix;
+    }
+
+    //The message so far, between 0 and the limit, for sending or patching in place
+    ByteBuffer finish() {
+        return buffer.flip();
+    }
+
+    //Copy of the finished message
+    byte[] toByteArray() {
+        byte[] bytes = new byte[buffer.limit()];
+        buffer.get(0, bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,559 @@
+package com.company;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+A cache for millions of entries that keeps them out of the Java heap
+DNSCache holds every entry as a key, an entry and its records - around ten objects each - which the
+garbage collector has to trace and copy; with millions of entries that becomes the longest pause the server has.
+Here an entry is one chunk of direct memory (see SlabAllocator):
+    long   when it was cached    (CoarseClock nanoseconds)
+    long   when it expires
+    int    hits
+    short  length of the response
+    short  length of the question (the key)
+    short  number of TTLs
+    int    key hash (as spread() gives it), which leads back to the entry's index slot
+    short  offset of each TTL in the response
+    bytes  the response, pre-encoded exactly as DNSCache does it (the key is the question inside it)
+ - split into segments by key hash, each with its own lock, memory and index, so threads rarely wait on each other
+ - the index is open addressing with linear probing over three flat arrays (hash, chunk address, last access),
+   sized up front to twice the segment's share of maxEntries and never resized; removal shifts the following
+   entries back, so there are no tombstones
+ - a lookup compares the key in place and copies the chunk out into a DNSCacheEntry of its own,
+   which answers the fast path directly; its records are only decoded if something asks for them
+ - same behaviour as DNSCache otherwise: TTLs, negative answers, serve-stale grace, hit counts for refresh-ahead,
+   sampled-LRU eviction and an amortized TTL sweep on insert, snapshots (see CacheSnapshot)
+ - bounded by entries (each segment holds its share of maxEntries) and by memory (maxBytes of direct memory,
+   split between the segments); when a segment's memory runs out, the least recently used of a sample of entries
+   the same size class as the new one is evicted, since its chunk is what the new one needs. If there are none of
+   that class, every entry on the page of a least recently used one goes, and the emptied page moves to the class.
+   That walks the page's chunks, each leading to its slot through its key hash, never the whole index
+ - a response that doesn't fit in the largest chunk isn't cached at all
+Direct memory counts against -XX:MaxDirectMemorySize (by default as much as the heap may grow to)
+ */
+public class OffHeapDNSCache implements DNSResponseCache {
+    public static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+    //Segment count is a power of two, picked by the top bits of the spread key hash
+    private static final int SEGMENT_BITS = 6;
+    //How many entries are compared when choosing one to evict
+    private static final int EVICTION_SAMPLES = 8;
+    //How many entries every insert checks for an expired TTL
+    private static final int SWEEP_PER_INSERT = 4;
+
+    //Where everything sits in a chunk
+    private static final int CREATED = 0;
+    private static final int EXPIRES = 8;
+    private static final int HITS = 16;
+    private static final int RESPONSE_LENGTH = 20;
+    private static final int KEY_LENGTH = 22;
+    private static final int TTL_COUNT = 24;
+    private static final int HASH = 26;
+    private static final int TTL_OFFSETS = 30;
+
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+    private final int maxEntries;
+    private final long maxBytes;
+    //How long past expiry an entry is kept for serve-stale (0: dropped as soon as it expires)
+    private final long staleGraceNanos;
+    //One reusable probe key per thread for lookups straight from a packet
+    private final ThreadLocal<DNSCacheKey> probes = ThreadLocal.withInitial(DNSCacheKey::probe);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    //Cacheable responses that were too big for a chunk or found no memory
+    private final LongAdder rejected = new LongAdder();
+
+    public OffHeapDNSCache(int maxEntries, long maxBytes, int staleGraceSeconds) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        }
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+        }
+        if (staleGraceSeconds < 0) {
+            throw new IllegalArgumentException("staleGraceSeconds must not be negative: " + staleGraceSeconds);
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.staleGraceNanos = TimeUnit.SECONDS.toNanos(staleGraceSeconds);
+        int entriesPerSegment = (maxEntries + segments.length - 1) / segments.length;
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(entriesPerSegment, maxBytes / segments.length);
+        }
+    }
+
+    @Override
+    public DNSCacheEntry lookup(DNSQuestion question) {
+        return lookup(DNSCacheKey.of(question));
+    }
+
+    //Allocates nothing but the copy of a hit
+    @Override
+    public DNSCacheEntry lookup(ByteBuffer packet, int questionStart, int questionEnd) {
+        return lookup(probes.get().set(packet, questionStart, questionEnd - questionStart));
+    }
+
+    @Override
+    public DNSCacheEntry lookupStale(DNSQuestion question) {
+        DNSCacheKey key = DNSCacheKey.of(question);
+        int hash = spread(key);
+        return segmentFor(hash).lookupStale(key, hash);
+    }
+
+    private DNSCacheEntry lookup(DNSCacheKey key) {
+        int hash = spread(key);
+        DNSCacheEntry entry = segmentFor(hash).lookup(key, hash);
+        if (entry == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return entry;
+    }
+
+    @Override
+    public boolean addToCache(DNSQuestion question, DNSMessage response) {
+        DNSCacheEntry entry = DNSCacheEntry.fromResponse(response, true);
+        return entry != null && put(DNSCacheKey.of(question), entry, false);
+    }
+
+    //Put back an entry read from a snapshot, unless the name is already cached
+    //Returns false once the cache is full - a snapshot never pushes out what's already there
+    private boolean restore(DNSCacheEntry entry) {
+        if (size() >= maxEntries) {
+            return false;
+        }
+        put(entry.getKey(), entry, true);
+        return true;
+    }
+
+    //Copy a pre-encoded entry into its segment; returns whether it's cached
+    private boolean put(DNSCacheKey key, DNSCacheEntry entry, boolean onlyIfAbsent) {
+        byte[] response = entry.getEncoded();
+        int[] ttlOffsets = entry.getTtlOffsets();
+        int size = TTL_OFFSETS + 2 * ttlOffsets.length + response.length;
+        //The question in the response is what lookups compare against, so it has to be the key's
+        if (size > SlabAllocator.MAX_CHUNK || !key.matches(ByteBuffer.wrap(response), DNSHeader.HEADER_LENGTH, key.length())) {
+            rejected.increment();
+            return false;
+        }
+        int hash = spread(key);
+        if (!segmentFor(hash).put(key, hash, entry, size, onlyIfAbsent)) {
+            rejected.increment();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int saveSnapshot(Path file) throws IOException {
+        return CacheSnapshot.write(this::entries, this::isWorthKeeping, file);
+    }
+
+    @Override
+    public int loadSnapshot(Path file) throws IOException {
+        return CacheSnapshot.load(file, this::isWorthKeeping, true, this::restore);
+    }
+
+    //Copies of every entry, one index slot at a time, for writing a snapshot
+    //Weakly consistent like DNSCache: inserts and removals going on meanwhile may or may not be seen
+    private Iterator<DNSCacheEntry> entries() {
+        return new Iterator<>() {
+            private int segment;
+            private int slot;
+            private DNSCacheEntry next = advance();
+
+            private DNSCacheEntry advance() {
+                while (segment < segments.length) {
+                    if (slot >= segments[segment].capacity()) {
+                        segment++;
+                        slot = 0;
+                        continue;
+                    }
+                    DNSCacheEntry entry = segments[segment].entryAt(slot++);
+                    if (entry != null) {
+                        return entry;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public DNSCacheEntry next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                DNSCacheEntry entry = next;
+                next = advance();
+                return entry;
+            }
+        };
+    }
+
+    //Whether an entry with this expiry (CoarseClock nanoseconds) would still be kept
+    private boolean isWorthKeeping(long expiresAtNanos) {
+        return expiresAtNanos + staleGraceNanos - CoarseClock.nanoTime() > 0;
+    }
+
+    //Fibonacci hashing, so the segment (top bits) and the slot (bottom bits) both depend on the whole key hash
+    private static int spread(DNSCacheKey key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[hash >>> (32 - SEGMENT_BITS)];
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.count;
+        }
+        return size;
+    }
+
+    public int getMaxEntries() { return maxEntries; }
+
+    public long getMaxBytes() { return maxBytes; }
+
+    //Direct memory the segments have taken so far
+    public long getReservedBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.reservedBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public boolean isPreEncoded() { return true; }
+
+    public long getStaleGraceSeconds() { return TimeUnit.NANOSECONDS.toSeconds(staleGraceNanos); }
+
+    @Override
+    public long getHits() { return hits.sum(); }
+
+    @Override
+    public long getMisses() { return misses.sum(); }
+
+    @Override
+    public long getEvictions() { return evictions.sum(); }
+
+    @Override
+    public long getExpirations() { return expirations.sum(); }
+
+    public long getRejected() { return rejected.sum(); }
+
+    //One lock, one allocator and one index; everything in here runs under the lock
+    private final class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final SlabAllocator slabs;
+        private final int maxEntries;
+        private final int mask;
+        //Slot i is empty when addresses[i] is 0
+        private final int[] hashes;
+        private final long[] addresses;
+        private final long[] lastAccess;
+        //Written under the lock, read without it by size()
+        private volatile int count;
+        //Walks round the index for the TTL sweep and eviction sampling
+        private int cursor;
+
+        Segment(int maxEntries, long maxBytes) {
+            int capacity = 16;
+            while (capacity < 2 * maxEntries) {
+                capacity <<= 1;
+            }
+            this.slabs = new SlabAllocator(maxBytes);
+            this.maxEntries = maxEntries;
+            this.mask = capacity - 1;
+            this.hashes = new int[capacity];
+            this.addresses = new long[capacity];
+            this.lastAccess = new long[capacity];
+        }
+
+        //A copy of the entry if it's fresh; entries past their grace period are dropped on the way
+        DNSCacheEntry lookup(DNSCacheKey key, int hash) {
+            lock.lock();
+            try {
+                int slot = find(key, hash);
+                if (slot < 0) {
+                    return null;
+                }
+                ByteBuffer page = slabs.page(addresses[slot]);
+                int chunk = SlabAllocator.offset(addresses[slot]);
+                long now = CoarseClock.nanoTime();
+                long expiresAtNanos = page.getLong(chunk + EXPIRES);
+                if (expiresAtNanos - now <= 0) {
+                    if (expiresAtNanos + staleGraceNanos - now <= 0) {
+                        remove(slot);
+                        expirations.increment();
+                    }
+                    return null;
+                }
+                int entryHits = page.getInt(chunk + HITS) + 1;
+                page.putInt(chunk + HITS, entryHits);
+                lastAccess[slot] = now;
+
+                DNSCacheEntry entry = copyOut(page, chunk);
+                entry.hits = entryHits;
+                entry.lastAccess = now;
+                return entry;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        //A copy of the entry if it's fresh or inside the grace period, without counting a hit
+        DNSCacheEntry lookupStale(DNSCacheKey key, int hash) {
+            lock.lock();
+            try {
+                int slot = find(key, hash);
+                if (slot < 0) {
+                    return null;
+                }
+                ByteBuffer page = slabs.page(addresses[slot]);
+                int chunk = SlabAllocator.offset(addresses[slot]);
+                return isWorthKeeping(page.getLong(chunk + EXPIRES)) ? copyOut(page, chunk) : null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        //Store the entry in a chunk of size bytes, replacing any entry for the key (unless onlyIfAbsent)
+        //Returns false if no memory could be found for it, or onlyIfAbsent and the segment is full
+        boolean put(DNSCacheKey key, int hash, DNSCacheEntry entry, int size, boolean onlyIfAbsent) {
+            lock.lock();
+            try {
+                sweep();
+                int slot = find(key, hash);
+                if (slot >= 0) {
+                    if (onlyIfAbsent) {
+                        return true;
+                    }
+                    remove(slot);
+                } else if (onlyIfAbsent && count >= maxEntries) {
+                    return false;
+                }
+                while (count >= maxEntries) {
+                    evictOne(-1);
+                }
+
+                long address = slabs.allocate(size);
+                if (address == 0 && count > 0) {
+                    int sizeClass = SlabAllocator.sizeClass(size);
+                    if (slabs.chunksInUse(sizeClass) > 0) {
+                        evictOne(sizeClass);
+                    } else {
+                        evictPage();
+                    }
+                    address = slabs.allocate(size);
+                }
+                if (address == 0) {
+                    return false;
+                }
+                write(slabs.page(address), SlabAllocator.offset(address), key, hash, entry);
+
+                slot = hash & mask;
+                while (addresses[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                hashes[slot] = hash;
+                addresses[slot] = address;
+                lastAccess[slot] = entry.getCreatedNanos();
+                count++;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        //Copy of the entry in slot, or null if the slot is empty, for entries()
+        DNSCacheEntry entryAt(int slot) {
+            lock.lock();
+            try {
+                return addresses[slot] == 0 ? null : copyOut(slabs.page(addresses[slot]), SlabAllocator.offset(addresses[slot]));
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int capacity() {
+            return mask + 1;
+        }
+
+        long reservedBytes() {
+            lock.lock();
+            try {
+                return slabs.getReservedBytes();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        //Slot of the entry for the key, or -1
+        private int find(DNSCacheKey key, int hash) {
+            for (int slot = hash & mask; addresses[slot] != 0; slot = (slot + 1) & mask) {
+                if (hashes[slot] == hash) {
+                    ByteBuffer page = slabs.page(addresses[slot]);
+                    int chunk = SlabAllocator.offset(addresses[slot]);
+                    int question = chunk + TTL_OFFSETS + 2 * page.getShort(chunk + TTL_COUNT) + DNSHeader.HEADER_LENGTH;
+                    if (key.matches(page, question, page.getShort(chunk + KEY_LENGTH))) {
+                        return slot;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        //Free the entry in slot, then move later entries of the same probe run back into the hole
+        //wherever that doesn't put them in front of their home slot
+        private void remove(int slot) {
+            slabs.free(addresses[slot]);
+            count--;
+
+            int hole = slot;
+            for (int next = (hole + 1) & mask; addresses[next] != 0; next = (next + 1) & mask) {
+                int home = hashes[next] & mask;
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    hashes[hole] = hashes[next];
+                    addresses[hole] = addresses[next];
+                    lastAccess[hole] = lastAccess[next];
+                    hole = next;
+                }
+            }
+            addresses[hole] = 0;
+        }
+
+        //Check the next few entries for ones past their grace period
+        private void sweep() {
+            for (int i = 0; i < SWEEP_PER_INSERT; i++) {
+                int slot = nextOccupied();
+                if (slot < 0) {
+                    return;
+                }
+                ByteBuffer page = slabs.page(addresses[slot]);
+                if (!isWorthKeeping(page.getLong(SlabAllocator.offset(addresses[slot]) + EXPIRES))) {
+                    remove(slot);
+                    expirations.increment();
+                }
+            }
+        }
+
+        //Sample the next few entries in a size class (any for -1) and drop the least recently used of them,
+        //which leaves its chunk free for another entry of that class
+        private void evictOne(int sizeClass) {
+            int victim = sample(sizeClass);
+            if (victim >= 0) {
+                remove(victim);
+                evictions.increment();
+            }
+        }
+
+        //Drop every entry on the page of a least recently used one, which leaves the page free for any size class
+        //The page is walked chunk by chunk, so this costs a page's worth of chunks however big the index is;
+        //a chunk that is free (or was never cut) leads to no slot, since no slot holds its address
+        private void evictPage() {
+            int victim = sample(-1);
+            if (victim < 0) {
+                return;
+            }
+            long onPage = addresses[victim];
+            int page = SlabAllocator.pageNumber(onPage);
+            ByteBuffer buffer = slabs.page(onPage);
+            int chunkSize = slabs.chunkSizeOf(onPage);
+            for (int chunk = 0; chunk + chunkSize <= slabs.getPageSize() && slabs.chunksOnPage(onPage) > 0; chunk += chunkSize) {
+                int slot = slotOf(buffer.getInt(chunk + HASH), SlabAllocator.address(page, chunk));
+                if (slot >= 0) {
+                    remove(slot);
+                    evictions.increment();
+                }
+            }
+        }
+
+        //Slot holding the chunk at address, probing from hash's home slot; -1 if there's none
+        private int slotOf(int hash, long address) {
+            for (int slot = hash & mask; addresses[slot] != 0; slot = (slot + 1) & mask) {
+                if (addresses[slot] == address) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        //Least recently used of the next EVICTION_SAMPLES entries of a size class (any for -1), or -1 if there are none
+        //At most one lap of the index is walked looking for them
+        private int sample(int sizeClass) {
+            int victim = -1;
+            int samples = 0;
+            for (int seen = 0, occupied = count; seen < occupied && samples < EVICTION_SAMPLES; seen++) {
+                int slot = nextOccupied();
+                if (slot < 0) {
+                    break;
+                }
+                if (sizeClass >= 0 && slabs.sizeClassOf(addresses[slot]) != sizeClass) {
+                    continue;
+                }
+                samples++;
+                if (victim < 0 || lastAccess[slot] < lastAccess[victim]) {
+                    victim = slot;
+                }
+            }
+            return victim;
+        }
+
+        //Next occupied slot of the round-robin walk, or -1 if the segment is empty
+        private int nextOccupied() {
+            if (count == 0) {
+                return -1;
+            }
+            do {
+                cursor = (cursor + 1) & mask;
+            } while (addresses[cursor] == 0);
+            return cursor;
+        }
+
+        private void write(ByteBuffer page, int chunk, DNSCacheKey key, int hash, DNSCacheEntry entry) {
+            byte[] response = entry.getEncoded();
+            int[] ttlOffsets = entry.getTtlOffsets();
+            page.putLong(chunk + CREATED, entry.getCreatedNanos());
+            page.putLong(chunk + EXPIRES, entry.getExpiresAtNanos());
+            page.putInt(chunk + HITS, 0);
+            page.putShort(chunk + RESPONSE_LENGTH, (short) response.length);
+            page.putShort(chunk + KEY_LENGTH, (short) key.length());
+            page.putShort(chunk + TTL_COUNT, (short) ttlOffsets.length);
+            page.putInt(chunk + HASH, hash);
+            for (int i = 0; i < ttlOffsets.length; i++) {
+                page.putShort(chunk + TTL_OFFSETS + 2 * i, (short) ttlOffsets[i]);
+            }
+            page.put(chunk + TTL_OFFSETS + 2 * ttlOffsets.length, response);
+        }
+
+        private DNSCacheEntry copyOut(ByteBuffer page, int chunk) {
+            int[] ttlOffsets = new int[page.getShort(chunk + TTL_COUNT)];
+            for (int i = 0; i < ttlOffsets.length; i++) {
+                ttlOffsets[i] = page.getShort(chunk + TTL_OFFSETS + 2 * i);
+            }
+            byte[] response = new byte[page.getShort(chunk + RESPONSE_LENGTH)];
+            page.get(chunk + TTL_OFFSETS + 2 * ttlOffsets.length, response);
+            return DNSCacheEntry.fromEncoded(response, ttlOffsets, page.getLong(chunk + CREATED), page.getLong(chunk + EXPIRES));
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.company;
+
+import java.io.Closeable;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/*
+Refresh-ahead for hot cache entries
+ - an entry that is hit after a set fraction of its TTL has gone by (e.g. 90%), and has been hit at least
+   minHits times in all, is queued to be asked again before it runs out
+ - one background thread sends the queued questions upstream, no more than maxPerSecond of them,
+   so a burst of hot names expiring together can't flood the upstream
+ - the queue is bounded; when it's full a candidate is dropped and the entry simply expires as before
+ - the refreshed answer replaces the entry in the cache, with its hit count starting again
+ - a name is only queued once until its refresh is done; that's tracked by key rather than on the entry,
+   since an off-heap cache hands out a fresh copy of the entry on every hit
+So popular names are replaced before they expire and their clients never see a miss
+ */
+class Prefetcher implements Closeable {
+    private final Function<DNSQuestion, CompletableFuture<?>> refresh;
+    private final double ttlFraction;
+    private final int minHits;
+    private final long nanosPerRefresh;
+    private final ArrayBlockingQueue<DNSCacheEntry> queue;
+    //Keys queued or being refreshed
+    private final Set<DNSCacheKey> queued = ConcurrentHashMap.newKeySet();
+    private final Thread refresher;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    //refresh asks upstream again and caches the answer
+    Prefetcher(Function<DNSQuestion, CompletableFuture<?>> refresh, double ttlFraction, int minHits, int maxPerSecond, int queueSize) {
+        this.refresh = refresh;
+        this.ttlFraction = ttlFraction;
+        this.minHits = minHits;
+        this.nanosPerRefresh = TimeUnit.SECONDS.toNanos(1) / maxPerSecond;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+
+        this.refresher = new Thread(this::run, "prefetcher");
+        refresher.setDaemon(true);
+        refresher.start();
+    }
+
+    //Called on every cache hit; cheap unless the entry is due for a refresh
+    void onHit(DNSCacheEntry entry) {
+        if (entry.hits < minHits || !entry.pastTtlFraction(ttlFraction) || !queued.add(entry.getKey())) {
+            return;
+        }
+        if (!queue.offer(entry)) {
+            queued.remove(entry.getKey());
+            dropped.increment();
+        }
+    }
+
+    //Send queued refreshes, spaced out to the rate limit
+    private void run() {
+        long nextSend = System.nanoTime();
+        while (!Thread.currentThread().isInterrupted()) {
+            DNSCacheEntry entry;
+            try {
+                entry = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            //Already gone (expired, evicted or replaced) by the time its turn came
+            if (!entry.timestampValid()) {
+                queued.remove(entry.getKey());
+                continue;
+            }
+
+            long wait = nextSend - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            nextSend = Math.max(nextSend, System.nanoTime() - nanosPerRefresh) + nanosPerRefresh;
+
+            try {
+                DNSCacheKey key = entry.getKey();
+                refresh.apply(key.toQuestion()).whenComplete((reply, error) -> {
+                    queued.remove(key);
+                    if (error != null) {
+                        failed.increment();
+                    }
+                });
+                sent.increment();
+            } catch (RuntimeException e) {
+                queued.remove(entry.getKey());
+                failed.increment();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        refresher.interrupt();
+    }
+
+    long getSent() { return sent.sum(); }
+
+    long getDropped() { return dropped.sum(); }
+
+    //Refreshes the upstream didn't answer (the entry just expires as it would have)
+    long getFailed() { return failed.sum(); }
+}
@@ -0,0 +1,64 @@
+package com.company;
+
+/*
+Prometheus text exposition format (version 0.0.4), written into a StringBuilder
+ - counter and gauge: HELP and TYPE once per metric name, then one sample per label set
+ - histogram: cumulative buckets at fixed bounds (seconds), plus _sum and _count, from a LatencyHistogram
+Label values are passed already formatted, e.g. qtype="A"
+ */
+final class PrometheusText {
+    //Histogram bucket bounds, in seconds
+    private static final double[] LATENCY_BOUNDS = {
+            0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5
+    };
+
+    private final StringBuilder out = new StringBuilder(8192);
+
+    //HELP and TYPE lines; call once before the metric's samples
+    PrometheusText describe(String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    PrometheusText counter(String name, String help, long value) {
+        return describe(name, "counter", help).sample(name, null, value);
+    }
+
+    PrometheusText gauge(String name, String help, double value) {
+        describe(name, "gauge", help);
+        out.append(name).append(' ').append(value).append('\n');
+        return this;
+    }
+
+    //One sample; labels may be null
+    PrometheusText sample(String name, String labels, long value) {
+        out.append(name);
+        if (labels != null) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+        return this;
+    }
+
+    //One histogram's samples (describe it as "histogram" first); labels may be null
+    PrometheusText histogram(String name, String labels, LatencyHistogram histogram) {
+        String prefix = labels == null ? "" : labels + ",";
+        for (double bound : LATENCY_BOUNDS) {
+            out.append(name).append("_bucket{").append(prefix).append("le=\"").append(bound).append("\"} ")
+                    .append(histogram.getCountAtOrBelow((long) (bound * 1_000_000))).append('\n');
+        }
+        long count = histogram.getCount();
+        out.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(count).append('\n');
+        out.append(name).append("_sum").append(labels == null ? "" : "{" + labels + "}").append(' ')
+                .append(histogram.getSumMicros() / 1e6).append('\n');
+        out.append(name).append("_count").append(labels == null ? "" : "{" + labels + "}").append(' ')
+                .append(count).append('\n');
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return out.toString();
+    }
+}
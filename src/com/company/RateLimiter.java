@@ -0,0 +1,211 @@
+package com.company;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/*
+Response rate limiting (RRL), after BIND's: how often one client network gets the same answer
+ - clients are grouped by network, /24 for IPv4 and /56 for IPv6, so a spoofer can't get round the limit by
+   walking through the addresses of one network, and a victim's whole network is protected as one
+ - a response is identified by what it says (see responseHash): an answer by its question, a negative answer by
+   the zone that gives it, an error by its rcode. A reflection attack asks for the same big answer over and over,
+   or for made-up names under one zone, each of which is new; a real client asks for a name now and again
+ - every (network, response) gets a token bucket: up to burst responses at once, refilled at responsesPerSecond.
+   Over the limit, a response is dropped, or every slip-th one on average is slipped: sent back empty with TC
+   set, so a real client retries over TCP (which can't be spoofed) while a spoofed victim gets next to nothing
+ - misses have a bucket of their own per network (missesPerSecond), which the server only checks when it's
+   busy (see DNSServer.shedMiss): one network sending random names can't then take the upstream from everyone else
+ - only for UDP, TCP clients have proven their address
+The buckets are striped: a fixed table of stripes, each key hashing to one. Keys that collide share a bucket,
+which can only make the limit stricter for them, and the table never grows however many keys are seen
+A bucket is a single long, updated with compare-and-set (no locks): the generic cell rate algorithm's
+"theoretical arrival time", the time its tokens will all be back. A response is allowed if that isn't more
+than a burst's worth of intervals ahead of now, and moves it on one interval
+ */
+final class RateLimiter {
+    static final int ALLOW = 0;
+    static final int DROP = 1;
+    static final int SLIP = 2;
+    //Salts that keep a network's miss bucket, and its buckets for each kind of response, apart
+    private static final int MISS_SALT = 0x5bd1e995;
+    private static final int NXDOMAIN_SALT = 0x27d4eb2f;
+    private static final int NODATA_SALT = 0x165667b1;
+    private static final int ERROR_SALT = 0x61c88647;
+
+    private final AtomicLongArray stripes;
+    private final long intervalNanos;
+    //How far ahead of now a bucket's arrival time may be (burst - 1 intervals)
+    private final long toleranceNanos;
+    private final long missIntervalNanos;
+    private final long missToleranceNanos;
+    //Every slip-th limited response on average is slipped, 0 for never
+    private final int slip;
+    //Nanoseconds, CoarseClock's unless a test gives its own
+    private final LongSupplier clock;
+    //Clock readings are taken from this point, so a fresh (0) bucket is always in the past
+    private final long epochNanos;
+    private final LongAdder allowed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder slipped = new LongAdder();
+
+    //stripes is rounded up to a power of two
+    RateLimiter(int responsesPerSecond, int burst, int slip, int missesPerSecond, int stripes) {
+        this(responsesPerSecond, burst, slip, missesPerSecond, stripes, CoarseClock::nanoTime);
+    }
+
+    RateLimiter(int responsesPerSecond, int burst, int slip, int missesPerSecond, int stripes, LongSupplier clock) {
+        if (responsesPerSecond <= 0 || burst <= 0 || missesPerSecond <= 0 || slip < 0) {
+            throw new IllegalArgumentException("Rates and burst must be positive, slip not negative");
+        }
+        this.stripes = new AtomicLongArray(Integer.highestOneBit(Math.max(stripes - 1, 1)) << 1);
+        this.intervalNanos = 1_000_000_000L / responsesPerSecond;
+        this.toleranceNanos = intervalNanos * (burst - 1);
+        this.missIntervalNanos = 1_000_000_000L / missesPerSecond;
+        this.missToleranceNanos = missIntervalNanos * (burst - 1);
+        this.slip = slip;
+        this.clock = clock;
+        this.epochNanos = clock.getAsLong() - 1;
+    }
+
+    //What to do with a response (see responseHash) for client
+    int checkResponse(InetAddress client, int responseHash) {
+        if (take(mix(networkHash(client), responseHash), intervalNanos, toleranceNanos)) {
+            allowed.increment();
+            return ALLOW;
+        }
+        if (slip > 0 && ThreadLocalRandom.current().nextInt(slip) == 0) {
+            slipped.increment();
+            return SLIP;
+        }
+        dropped.increment();
+        return DROP;
+    }
+
+    //Whether client's network may send another miss upstream
+    boolean allowMiss(InetAddress client) {
+        return take(mix(networkHash(client), MISS_SALT), missIntervalNanos, missToleranceNanos);
+    }
+
+    //One token from the key's bucket, if it has one
+    private boolean take(int key, long interval, long tolerance) {
+        int stripe = key & (stripes.length() - 1);
+        long now = clock.getAsLong() - epochNanos;
+        while (true) {
+            long arrival = stripes.get(stripe);
+            long from = Math.max(arrival, now);
+            if (from - now > tolerance) {
+                return false;
+            }
+            if (stripes.compareAndSet(stripe, arrival, from + interval)) {
+                return true;
+            }
+        }
+    }
+
+    //Which bucket a wire-format response goes in, as BIND's RRL keys them
+    // - an answer: its (first) question, name case-folded and type
+    // - NXDOMAIN, or NOERROR without answers (NODATA): the owner of the SOA in the authority section, the zone that
+    //   says so, so made-up names under one zone all share a bucket
+    // - any other rcode (SERVFAIL, REFUSED, ...), or a negative answer without an SOA: the rcode alone
+    static int responseHash(ByteBuffer response) {
+        int rcode = response.getShort(2) & 0x0f;
+        int questions = response.getShort(4) & 0xffff;
+        int answers = response.getShort(6) & 0xffff;
+        int authority = response.getShort(8) & 0xffff;
+        if ((rcode != DNSCacheEntry.RCODE_NOERROR && rcode != DNSCacheEntry.RCODE_NXDOMAIN) || questions == 0) {
+            return ERROR_SALT + rcode;
+        }
+        try {
+            int position = skipName(response, DNSHeader.HEADER_LENGTH);
+            if (rcode == DNSCacheEntry.RCODE_NOERROR && answers > 0) {
+                return DomainName.foldedHash(response, DNSHeader.HEADER_LENGTH, position - DNSHeader.HEADER_LENGTH) * 31
+                        + (response.getShort(position) & 0xffff);
+            }
+            position += 4;
+            for (int i = 1; i < questions; i++) {
+                position = skipName(response, position) + 4;
+            }
+            for (int i = 0; i < answers + authority; i++) {
+                int owner = position;
+                position = skipName(response, position);
+                if (i >= answers && (response.getShort(position) & 0xffff) == DNSRecord.TYPE_SOA) {
+                    return nameHash(response, owner) * 31 + (rcode == DNSCacheEntry.RCODE_NXDOMAIN ? NXDOMAIN_SALT : NODATA_SALT);
+                }
+                position += 10 + (response.getShort(position + 8) & 0xffff);
+            }
+        } catch (IndexOutOfBoundsException e) {
+            //Cut short (it has been truncated): keyed like one without an SOA
+        }
+        return ERROR_SALT + rcode;
+    }
+
+    //Just past the name at position, which may end in a compression pointer
+    private static int skipName(ByteBuffer packet, int position) {
+        while (true) {
+            int length = packet.get(position) & 0xff;
+            if (length == 0) {
+                return position + 1;
+            }
+            if ((length & 0xc0) == 0xc0) {
+                return position + 2;
+            }
+            position += length + 1;
+        }
+    }
+
+    //The name at position, pointers followed, hashed as DomainName.foldedHash hashes it uncompressed
+    private static int nameHash(ByteBuffer packet, int position) {
+        int hash = 1;
+        //A name can't take more jumps than it has bytes; more is a loop
+        for (int jumps = 0; jumps < DNSMessage.MAX_NAME_LENGTH; ) {
+            int length = packet.get(position) & 0xff;
+            if ((length & 0xc0) == 0xc0) {
+                position = packet.getShort(position) & 0x3fff;
+                jumps++;
+                continue;
+            }
+            for (int i = 0; i <= length; i++) {
+                hash = 31 * hash + (DomainName.toLower(packet.get(position + i)) & 0xff);
+            }
+            if (length == 0) {
+                break;
+            }
+            position += length + 1;
+        }
+        return hash;
+    }
+
+    //The client's /24 (IPv4) or /56 (IPv6)
+    //An IPv4 address's hashCode is the address itself, so that case doesn't allocate
+    private static int networkHash(InetAddress client) {
+        if (client instanceof Inet4Address) {
+            return client.hashCode() & 0xffffff00;
+        }
+        byte[] address = client.getAddress();
+        int hash = 1;
+        for (int i = 0; i < 7; i++) {
+            hash = 31 * hash + address[i];
+        }
+        return hash;
+    }
+
+    private static int mix(int network, int question) {
+        int h = network * 0x9E3779B1 ^ question;
+        return h ^ (h >>> 15);
+    }
+
+    void writeTo(PrometheusText out) {
+        out.counter("dns_rrl_allowed_total", "UDP responses within their client network's rate limit", allowed.sum());
+        out.counter("dns_rrl_dropped_total", "UDP responses dropped over their client network's rate limit", dropped.sum());
+        out.counter("dns_rrl_slipped_total", "UDP responses over the rate limit sent back empty with TC set", slipped.sum());
+    }
+
+    long getDropped() { return dropped.sum(); }
+
+    long getSlipped() { return slipped.sum(); }
+}
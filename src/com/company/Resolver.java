@@ -0,0 +1,21 @@
+package com.company;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+
+/*
+Where the server sends the questions its cache can't answer
+ - UpstreamForwarder hands them to upstream resolvers (Google by default)
+ - IterativeResolver finds the answer itself, starting from the root servers
+ */
+interface Resolver extends Closeable {
+    //The reply to the request's first question, with every section filled in and the request's ID
+    //Completes exceptionally when no server could be got to answer
+    CompletableFuture<DNSMessage> resolve(DNSMessage request);
+
+    //What it counts, for the metrics endpoint
+    void writeTo(PrometheusText out);
+
+    @Override
+    void close();
+}
@@ -0,0 +1,108 @@
+package com.company;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+What the server counts about the requests it answers
+ - queries received (UDP and TCP), responses sent, and responses by rcode (NXDOMAIN, SERVFAIL, ...)
+ - malformed requests (dropped without an answer) and questions the upstream couldn't answer in the end (SERVFAIL)
+ - client-facing latency, from picking the request up to sending the answer, overall and per qtype
+   (common types get a histogram each, everything else shares "other", so the label set stays small)
+Everything is a LongAdder or a LatencyHistogram: recording never locks or allocates
+The cache, forwarder and upstreams keep their own counters; DNSServer.scrapeMetrics() puts it all together
+ */
+final class ResolverMetrics {
+    //Query types with a latency histogram of their own
+    private static final int[] QTYPES = {
+            DNSRecord.TYPE_A, DNSRecord.TYPE_AAAA, DNSRecord.TYPE_CNAME, DNSRecord.TYPE_MX, DNSRecord.TYPE_NS,
+            DNSRecord.TYPE_PTR, DNSRecord.TYPE_SOA, DNSRecord.TYPE_SRV, DNSRecord.TYPE_TXT, DNSRecord.TYPE_HTTPS,
+            DNSRecord.TYPE_ANY
+    };
+    private static final String[] QTYPE_NAMES = {"A", "AAAA", "CNAME", "MX", "NS", "PTR", "SOA", "SRV", "TXT", "HTTPS", "ANY"};
+    //Responses are counted per rcode up to this one (BADVERS and the other extended rcodes share the last)
+    private static final int RCODES = 16;
+    private static final String[] RCODE_NAMES = {
+            "NOERROR", "FORMERR", "SERVFAIL", "NXDOMAIN", "NOTIMP", "REFUSED", "YXDOMAIN", "YXRRSET",
+            "NXRRSET", "NOTAUTH", "NOTZONE", "DSOTYPENI", "RCODE12", "RCODE13", "RCODE14", "RCODE15"
+    };
+
+    final LongAdder queries = new LongAdder();
+    final LongAdder malformed = new LongAdder();
+    final LongAdder upstreamFailures = new LongAdder();
+    //Requests lost to anything else, e.g. a response that couldn't be sent
+    final LongAdder errors = new LongAdder();
+    private final LongAdder[] responsesByRcode = new LongAdder[RCODES];
+    private final LatencyHistogram latency = new LatencyHistogram();
+    //One per QTYPES entry, plus "other" at the end
+    private final LatencyHistogram[] latencyByQtype = new LatencyHistogram[QTYPES.length + 1];
+
+    ResolverMetrics() {
+        for (int i = 0; i < RCODES; i++) {
+            responsesByRcode[i] = new LongAdder();
+        }
+        for (int i = 0; i < latencyByQtype.length; i++) {
+            latencyByQtype[i] = new LatencyHistogram();
+        }
+    }
+
+    //A response on its way to a client for a request picked up at startNanos
+    //The rcode and qtype are read out of the response itself
+    void recordResponse(ByteBuffer response, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        responsesByRcode[response.get(3) & 0x0f].increment();
+        latency.record(nanos);
+        latencyByQtype[qtypeIndex(questionType(response))].record(nanos);
+    }
+
+    //Qtype of the (uncompressed) question right after the header, or -1 if there isn't one
+    private static int questionType(ByteBuffer response) {
+        int length = response.limit();
+        if (length <= DNSHeader.HEADER_LENGTH || response.get(5) == 0) {
+            return -1;
+        }
+        int i = DNSHeader.HEADER_LENGTH;
+        while (i < length && response.get(i) != 0) {
+            i += (response.get(i) & 0xff) + 1;
+        }
+        return i + 2 < length ? response.getShort(i + 1) & 0xffff : -1;
+    }
+
+    private static int qtypeIndex(int qtype) {
+        for (int i = 0; i < QTYPES.length; i++) {
+            if (QTYPES[i] == qtype) {
+                return i;
+            }
+        }
+        return QTYPES.length;
+    }
+
+    long getResponses(int rcode) {
+        return responsesByRcode[rcode].sum();
+    }
+
+    LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    void writeTo(PrometheusText out) {
+        out.counter("dns_queries_total", "Requests received over UDP and TCP", queries.sum());
+        out.counter("dns_malformed_requests_total", "Requests dropped because they didn't decode or weren't queries", malformed.sum());
+        out.counter("dns_upstream_failures_total", "Questions answered with SERVFAIL because every upstream attempt failed",
+                upstreamFailures.sum());
+        out.describe("dns_responses_total", "counter", "Responses sent, by rcode");
+        for (int i = 0; i < RCODES; i++) {
+            long count = responsesByRcode[i].sum();
+            if (count > 0 || i == 0 || i == 2 || i == 3) {
+                out.sample("dns_responses_total", "rcode=\"" + RCODE_NAMES[i] + "\"", count);
+            }
+        }
+        out.describe("dns_request_duration_seconds", "histogram", "Time from picking a request up to sending its response");
+        out.histogram("dns_request_duration_seconds", null, latency);
+        out.describe("dns_request_duration_by_qtype_seconds", "histogram", "Time to respond, by query type");
+        for (int i = 0; i < latencyByQtype.length; i++) {
+            String qtype = i < QTYPES.length ? QTYPE_NAMES[i] : "other";
+            out.histogram("dns_request_duration_by_qtype_seconds", "qtype=\"" + qtype + "\"", latencyByQtype[i]);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.company;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/*
+Where the answer to one request goes back to: a UDP client address or a TCP connection
+ */
+interface ResponseChannel {
+    //Send a complete DNS message back to the client: the bytes between the buffer's position and its limit
+    //The buffer may be a thread's MessageEncoder buffer, so it's only good for the length of the call
+    void send(ByteBuffer response) throws IOException;
+
+    //Largest response the client can take in one message, given the UDP payload size
+    //its request advertised (512 without EDNS); stream transports can ignore it
+    int maxResponseSize(int advertisedUdpSize);
+
+    //The address responses are rate limited for (see RateLimiter): the client's, for UDP; null for TCP,
+    //whose clients can't spoof their address
+    default InetAddress limitedAddress() {
+        return null;
+    }
+
+    //The channel to answer on once the request has left the thread that received it
+    //A channel that is reused for the next request (a UDP shard's) returns a copy of itself
+    default ResponseChannel detach() {
+        return this;
+    }
+
+    //Nothing is going to be sent after all (answering failed): let go of whatever the channel holds for the
+    //answer, a TCP connection's in-flight slot. Harmless after send, or more than once
+    default void abandon() {
+    }
+}
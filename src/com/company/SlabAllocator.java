@@ -0,0 +1,190 @@
+package com.company;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+Off-heap memory for OffHeapDNSCache, handed out in chunks of a few fixed sizes
+ - memory comes in pages of direct ByteBuffers, allocated as they are needed up to a budget and kept from then on
+ - every page belongs to one size class; a chunk is the smallest size class the request fits in, and comes off
+   that class's free list, or is cut from the end of the class's newest page
+ - a freed chunk goes back on its class's free list, for the next entry of about the same size
+ - a page whose chunks have all been freed leaves its class and goes to whichever class next needs a page,
+   so memory follows the sizes being cached instead of staying with the first ones seen
+ - pages are PAGE_SIZE, or smaller for a small budget (down to MAX_CHUNK) so it still makes MIN_PAGES of them;
+   a budget smaller than MAX_CHUNK gets no pages, and nothing is allocated
+ - an address is the page number (counted from 1, so 0 means none) in the high half and the offset in the low half
+The heap only sees a handful of page objects, a few ints per page and one long[] free list per size class,
+however many entries there are
+Not thread-safe: every cache segment has an allocator of its own and only uses it under the segment's lock
+ */
+final class SlabAllocator {
+    static final int PAGE_SIZE = 256 * 1024;
+    //Pages a budget is split into if PAGE_SIZE would give fewer, so several size classes can have one
+    private static final int MIN_PAGES = 16;
+    private static final int[] SIZE_CLASSES = {64, 96, 128, 192, 256, 384, 512, 768, 1024, 1536, 2048, 3072, 4096};
+    //Largest chunk there is
+    static final int MAX_CHUNK = SIZE_CLASSES[SIZE_CLASSES.length - 1];
+
+    private final int pageSize;
+    private final int maxPages;
+    private final List<ByteBuffer> pages = new ArrayList<>();
+    //Per page, by page number: its size class (-1 while empty) and how many of its chunks are allocated
+    private int[] pageClasses = new int[16];
+    private int[] pageChunks = new int[16];
+    //Pages with nothing allocated, waiting for a class to need one
+    private int[] emptyPages = new int[16];
+    private int emptyCount;
+    //Per size class: the page chunks are cut from (0 for none), where the next one starts, and chunks allocated
+    private final int[] cutPages = new int[SIZE_CLASSES.length];
+    private final int[] tops = new int[SIZE_CLASSES.length];
+    private final int[] classChunks = new int[SIZE_CLASSES.length];
+    private final long[][] freeLists = new long[SIZE_CLASSES.length][];
+    private final int[] freeCounts = new int[SIZE_CLASSES.length];
+
+    SlabAllocator(long maxBytes) {
+        long pageSize = Long.highestOneBit(Math.max(1, maxBytes / MIN_PAGES));
+        this.pageSize = (int) Math.min(PAGE_SIZE, Math.max(MAX_CHUNK, pageSize));
+        this.maxPages = (int) Math.min(maxBytes / this.pageSize, Integer.MAX_VALUE);
+        Arrays.setAll(freeLists, i -> new long[16]);
+    }
+
+    //Address of a chunk of at least size bytes, or 0 if size is bigger than MAX_CHUNK
+    //or the budget is used up and no chunk of its class or empty page is free
+    long allocate(int size) {
+        int sizeClass = sizeClass(size);
+        if (sizeClass < 0) {
+            return 0;
+        }
+        long address;
+        if (freeCounts[sizeClass] > 0) {
+            address = freeLists[sizeClass][--freeCounts[sizeClass]];
+        } else {
+            int chunk = SIZE_CLASSES[sizeClass];
+            if (cutPages[sizeClass] == 0 || tops[sizeClass] + chunk > pageSize) {
+                int page = takePage(sizeClass);
+                if (page == 0) {
+                    return 0;
+                }
+                cutPages[sizeClass] = page;
+                tops[sizeClass] = 0;
+            }
+            address = address(cutPages[sizeClass], tops[sizeClass]);
+            tops[sizeClass] += chunk;
+        }
+        pageChunks[pageNumber(address)]++;
+        classChunks[sizeClass]++;
+        return address;
+    }
+
+    //Give back a chunk; if it was the last one in use on its page, the page is free for any class
+    void free(long address) {
+        int page = pageNumber(address);
+        int sizeClass = pageClasses[page];
+        classChunks[sizeClass]--;
+        if (--pageChunks[page] == 0) {
+            releasePage(page, sizeClass);
+            return;
+        }
+        if (freeCounts[sizeClass] == freeLists[sizeClass].length) {
+            freeLists[sizeClass] = Arrays.copyOf(freeLists[sizeClass], freeCounts[sizeClass] * 2);
+        }
+        freeLists[sizeClass][freeCounts[sizeClass]++] = address;
+    }
+
+    //The page a chunk is in; the chunk starts at offset(address)
+    ByteBuffer page(long address) {
+        return pages.get(pageNumber(address) - 1);
+    }
+
+    static int offset(long address) {
+        return (int) address;
+    }
+
+    static int pageNumber(long address) {
+        return (int) (address >>> 32);
+    }
+
+    //Address of the chunk at offset on a page
+    static long address(int pageNumber, int offset) {
+        return (long) pageNumber << 32 | offset;
+    }
+
+    //Size class a chunk was allocated from, comparable with sizeClass(size)
+    int sizeClassOf(long address) {
+        return pageClasses[pageNumber(address)];
+    }
+
+    //Size of the chunks on a chunk's page, the stride to walk the page by
+    int chunkSizeOf(long address) {
+        return SIZE_CLASSES[pageClasses[pageNumber(address)]];
+    }
+
+    //Smallest size class size bytes fit in, or -1 if none is big enough
+    static int sizeClass(int size) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (size <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    //Chunks of a size class in use
+    int chunksInUse(int sizeClass) {
+        return classChunks[sizeClass];
+    }
+
+    //Chunks on a page in use; 0 once the page has been given up
+    int chunksOnPage(long address) {
+        return pageChunks[pageNumber(address)];
+    }
+
+    int getPageSize() {
+        return pageSize;
+    }
+
+    //Direct memory taken so far
+    long getReservedBytes() {
+        return (long) pages.size() * pageSize;
+    }
+
+    //An empty page for a size class, or a new one while the budget allows; 0 if there is neither
+    private int takePage(int sizeClass) {
+        int page;
+        if (emptyCount > 0) {
+            page = emptyPages[--emptyCount];
+        } else if (pages.size() < maxPages) {
+            pages.add(ByteBuffer.allocateDirect(pageSize));
+            page = pages.size();
+            if (page == pageClasses.length) {
+                pageClasses = Arrays.copyOf(pageClasses, page * 2);
+                pageChunks = Arrays.copyOf(pageChunks, page * 2);
+                emptyPages = Arrays.copyOf(emptyPages, page * 2);
+            }
+        } else {
+            return 0;
+        }
+        pageClasses[page] = sizeClass;
+        return page;
+    }
+
+    //Take an emptied page away from its class: off the free list and, if chunks were still being cut from it, that too
+    private void releasePage(int page, int sizeClass) {
+        long[] freeList = freeLists[sizeClass];
+        int kept = 0;
+        for (int i = 0; i < freeCounts[sizeClass]; i++) {
+            if (pageNumber(freeList[i]) != page) {
+                freeList[kept++] = freeList[i];
+            }
+        }
+        freeCounts[sizeClass] = kept;
+        if (cutPages[sizeClass] == page) {
+            cutPages[sizeClass] = 0;
+        }
+        pageClasses[page] = -1;
+        emptyPages[emptyCount++] = page;
+    }
+}
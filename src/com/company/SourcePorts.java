@@ -0,0 +1,35 @@
+package com.company;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+Random source ports for the sockets queries go out on (RFC 5452)
+With a fixed port, the 16-bit ID is all an off-path attacker has to guess to get a forged reply believed;
+with a random one it's the ID and the port. Used by the forwarder and the iterative resolver, which both
+swap their sockets for new ones every so many queries
+ */
+final class SourcePorts {
+    //Ports are picked from above the well-known ones, and this many are tried before leaving it to the system
+    private static final int MIN_PORT = 1024;
+    private static final int TRIES = 8;
+
+    private SourcePorts() {
+    }
+
+    //Bind to a port picked at random; if TRIES of them are all taken, whichever the system picks
+    static void bindRandom(DatagramChannel channel) throws IOException {
+        for (int i = 0; i < TRIES; i++) {
+            try {
+                channel.bind(new InetSocketAddress(ThreadLocalRandom.current().nextInt(MIN_PORT, 0x10000)));
+                return;
+            } catch (BindException e) {
+                //Taken, try another
+            }
+        }
+        channel.bind(null);
+    }
+}
@@ -0,0 +1,202 @@
+package com.company;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+Persistent, pipelined TCP connections to the upstream (RFC 7766)
+Used when a UDP reply comes back truncated, so big answers don't pay for a handshake every time
+ - a few connections are opened on first use and kept; queries are spread over them
+ - connecting happens on the connection's own reader thread, outside the pool's lock: queries wait on it without
+   blocking the caller, which is usually a UDP reader thread
+ - every query gets a fresh ID on its connection, replies are matched back by ID in any order
+ - the query's own ID is put back into the reply
+ - a connection that fails (or that the upstream closes) fails what's waiting on it and is
+   reopened on next use. So does one a query times out on: an upstream that keeps the connection open but has
+   stopped answering on it would otherwise swallow every query sent its way
+ */
+class TcpUpstreamPool implements Closeable {
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+
+    private final InetSocketAddress upstream;
+    private final Connection[] connections;
+    private final int timeoutMs;
+    private final ScheduledExecutorService timer;
+    private final AtomicInteger nextConnection = new AtomicInteger();
+    private volatile boolean closed;
+
+    //timer is shared with the UDP forwarder
+    TcpUpstreamPool(InetSocketAddress upstream, int connectionCount, int timeoutMs, ScheduledExecutorService timer) {
+        this.upstream = upstream;
+        this.connections = new Connection[connectionCount];
+        this.timeoutMs = timeoutMs;
+        this.timer = timer;
+    }
+
+    //Send a wire-format query and complete with the raw reply, carrying the query's ID
+    CompletableFuture<byte[]> query(byte[] message) {
+        int index = Math.floorMod(nextConnection.getAndIncrement(), connections.length);
+        return connection(index).ready.thenCompose(connection -> {
+            try {
+                return connection.query(message);
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        });
+    }
+
+    //Connection for a slot, starting a new one if there is none or the old one died
+    //Only the slot is taken under the lock; the connect itself is left to the new connection's reader thread
+    private synchronized Connection connection(int index) {
+        Connection connection = connections[index];
+        if (closed) {
+            connection = new Connection(new Socket());
+            connection.ready.completeExceptionally(new SocketException("Pool closed"));
+        } else if (connection == null || connection.socket.isClosed() || connection.ready.isCompletedExceptionally()) {
+            connection = new Connection(new Socket());
+            connections[index] = connection;
+            Thread reader = new Thread(connection::connectAndRead, "tcp-upstream-reader-" + index);
+            reader.setDaemon(true);
+            reader.start();
+        }
+        return connection;
+    }
+
+    //Closing a socket also ends a connect still under way, which fails the queries waiting on it
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (Connection connection : connections) {
+            if (connection != null) {
+                connection.fail(new SocketException("Pool closed"));
+            }
+        }
+    }
+
+    private final class Connection {
+        final Socket socket;
+        //Completes once connected, or fails if that doesn't work out
+        final CompletableFuture<Connection> ready = new CompletableFuture<>();
+        final ConcurrentHashMap<Integer, Pending> pending = new ConcurrentHashMap<>();
+        OutputStream output;
+
+        Connection(Socket socket) {
+            this.socket = socket;
+        }
+
+        //Connect, hand the connection to the queries waiting on it, then read their replies
+        void connectAndRead() {
+            try {
+                socket.connect(upstream, CONNECT_TIMEOUT_MS);
+                socket.setTcpNoDelay(true);
+                output = socket.getOutputStream();
+            } catch (IOException e) {
+                closeSocket();
+                ready.completeExceptionally(e);
+                return;
+            }
+            ready.complete(this);
+            readReplies();
+        }
+
+        CompletableFuture<byte[]> query(byte[] message) throws IOException {
+            Pending query = new Pending(message[0], message[1]);
+            int id;
+            do {
+                id = ThreadLocalRandom.current().nextInt(0x10000);
+            } while (pending.putIfAbsent(id, query) != null);
+
+            byte[] framed = new byte[message.length + 2];
+            framed[0] = (byte) (message.length >>> 8);
+            framed[1] = (byte) message.length;
+            System.arraycopy(message, 0, framed, 2, message.length);
+            framed[2] = (byte) (id >>> 8);
+            framed[3] = (byte) id;
+
+            final int queryId = id;
+            timer.schedule(() -> {
+                if (pending.remove(queryId, query)) {
+                    SocketTimeoutException timeout = new SocketTimeoutException("No TCP reply from " + upstream);
+                    query.future.completeExceptionally(timeout);
+                    fail(timeout);
+                }
+            }, timeoutMs, TimeUnit.MILLISECONDS);
+
+            try {
+                synchronized (this) {
+                    output.write(framed);
+                    output.flush();
+                }
+            } catch (IOException e) {
+                fail(e);
+                throw e;
+            }
+            return query.future;
+        }
+
+        //Match length-prefixed replies with the queries waiting on them
+        void readReplies() {
+            try {
+                DataInputStream input = new DataInputStream(socket.getInputStream());
+                while (true) {
+                    byte[] reply = new byte[input.readUnsignedShort()];
+                    input.readFully(reply);
+                    if (reply.length < DNSHeader.HEADER_LENGTH) {
+                        continue;
+                    }
+                    int id = (reply[0] & 0xff) << 8 | (reply[1] & 0xff);
+                    Pending query = pending.remove(id);
+                    if (query != null) {
+                        reply[0] = query.id0;
+                        reply[1] = query.id1;
+                        query.future.complete(reply);
+                    }
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        //Close the connection and fail everything still waiting on it
+        void fail(IOException e) {
+            closeSocket();
+            pending.forEach((id, query) -> {
+                if (pending.remove(id, query)) {
+                    query.future.completeExceptionally(e);
+                }
+            });
+        }
+
+        void closeSocket() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                //Closing anyway
+            }
+        }
+    }
+
+    //One outstanding query, with the ID to give back
+    private static final class Pending {
+        final byte id0;
+        final byte id1;
+        final CompletableFuture<byte[]> future = new CompletableFuture<>();
+
+        Pending(byte id0, byte id1) {
+            this.id0 = id0;
+            this.id1 = id1;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.company;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+One upstream resolver (or authoritative server, when resolving iteratively) and how well it has been doing
+ - smoothed RTT and RTT variance, as TCP keeps them (RFC 6298: 1/8 and 1/4 gains)
+ - failure rate: a moving average of timeouts/send errors against replies, so a server that starts
+   failing is dropped quickly and one that recovers is picked again after a few good replies
+ - p95 of the last RECENT_SAMPLES round trips, the point after which a query is worth hedging
+ - every round trip in a LatencyHistogram as well, for the metrics endpoint
+Updated by the forwarder's (or iterative resolver's) reader and timer threads, read on every query without locking
+ */
+final class Upstream {
+    //Round trips kept for the percentile
+    private static final int RECENT_SAMPLES = 64;
+    //Weight of the latest outcome in the failure rate
+    private static final double FAILURE_GAIN = 0.1;
+    //Failure rate past which the upstream is only used if every other one is worse
+    static final double UNHEALTHY_FAILURE_RATE = 0.5;
+
+    private final InetSocketAddress address;
+
+    private volatile long srttNanos;
+    private volatile long rttVarNanos;
+    private volatile double failureRate;
+    private volatile long p95Nanos;
+    private final long[] recent = new long[RECENT_SAMPLES];
+    private int samples;
+
+    private final LongAdder replies = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LatencyHistogram rtt = new LatencyHistogram();
+
+    Upstream(InetSocketAddress address) {
+        this.address = address;
+    }
+
+    //A reply came back rttNanos after the query was sent
+    synchronized void recordReply(long rttNanos) {
+        rtt.record(rttNanos);
+        if (samples == 0) {
+            srttNanos = rttNanos;
+            rttVarNanos = rttNanos / 2;
+        } else {
+            rttVarNanos += (Math.abs(srttNanos - rttNanos) - rttVarNanos) / 4;
+            srttNanos += (rttNanos - srttNanos) / 8;
+        }
+        failureRate *= 1 - FAILURE_GAIN;
+
+        recent[samples % RECENT_SAMPLES] = rttNanos;
+        samples++;
+        //Sorting 64 longs now and then is cheaper than keeping a live percentile
+        if (samples % 8 == 0 || samples < RECENT_SAMPLES) {
+            int n = Math.min(samples, RECENT_SAMPLES);
+            long[] sorted = Arrays.copyOf(recent, n);
+            Arrays.sort(sorted);
+            p95Nanos = sorted[(int) Math.ceil(n * 0.95) - 1];
+        }
+        replies.increment();
+    }
+
+    //A query timed out or couldn't be sent
+    synchronized void recordFailure(boolean timedOut) {
+        failureRate = failureRate * (1 - FAILURE_GAIN) + FAILURE_GAIN;
+        failures.increment();
+        if (timedOut) {
+            timeouts.increment();
+        }
+    }
+
+    //Healthy beats unhealthy, then untried beats measured (so every server gets measured), then lower RTT
+    boolean isBetterThan(Upstream other) {
+        if (isHealthy() != other.isHealthy()) {
+            return isHealthy();
+        }
+        if (!isHealthy()) {
+            return failureRate < other.failureRate;
+        }
+        if (isMeasured() != other.isMeasured()) {
+            return !isMeasured();
+        }
+        return srttNanos < other.srttNanos;
+    }
+
+    boolean isHealthy() { return failureRate < UNHEALTHY_FAILURE_RATE; }
+
+    //Whether there have been any replies to learn a round trip from
+    boolean isMeasured() { return srttNanos > 0; }
+
+    InetSocketAddress getAddress() { return address; }
+
+    long getSrttNanos() { return srttNanos; }
+
+    long getRttVarNanos() { return rttVarNanos; }
+
+    double getFailureRate() { return failureRate; }
+
+    //0 until there have been replies
+    long getP95Nanos() { return p95Nanos; }
+
+    long getReplies() { return replies.sum(); }
+
+    long getFailures() { return failures.sum(); }
+
+    long getTimeouts() { return timeouts.sum(); }
+
+    LatencyHistogram getRtt() { return rtt; }
+
+    @Override
+    public String toString() {
+        return "Upstream{" +
+                "address=" + address +
+                ", srttMs=" + TimeUnit.NANOSECONDS.toMillis(srttNanos) +
+                ", p95Ms=" + TimeUnit.NANOSECONDS.toMillis(p95Nanos) +
+                ", failureRate=" + String.format("%.2f", failureRate) +
+                '}';
+    }
+}
@@ -0,0 +1,549 @@
+package com.company;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+Forwards cache misses to a set of upstream resolvers (Google by default) over a small pool of sockets
+ - what goes upstream is built from the question alone: RD set, CD and AD clear, our OPT record without DO or
+   options. The reply is cached and shared with every client asking the same question, so no client's flags or
+   EDNS options (client subnet, cookies) may shape it
+ - every outgoing query gets a fresh transaction ID so many clients can share one socket
+ - replies are matched back to the waiting query by (socket, upstream, ID, question)
+ - the client's own ID is put back into the reply before it is decoded
+ - queries take turns on a few socket slots, each read by a thread of its own that completes the waiting futures
+ - source ports are random (RFC 5452, see SourcePorts): what comes back is cached for every client, so a guessable
+   port would leave the 16-bit ID as all a spoofer has to get right. A slot's socket is swapped for a new one, on a
+   new random port, after QUERIES_PER_PORT queries, and the old one is closed once its queries have timed out
+ - a query that hasn't been answered in time is re-sent (to the best upstream other than the one that
+   didn't answer, if there is one), and fails once its retries run out
+ - a reply with TC set didn't fit in a datagram; the query is asked again over a pooled TCP connection
+   to the same upstream and the full answer is returned instead. That happens on a thread of its own, so a reader
+   never waits on a TCP write; a TCP retry that fails counts against the upstream
+Choosing an upstream (see Upstream for what is tracked)
+ - the healthy upstream with the lowest smoothed RTT; upstreams nobody has heard from yet are tried first
+ - an unhealthy one is only used when all of them are; 1 query in EXPLORE_EVERY is also sent to a random
+   other upstream, so a server that has recovered (or got faster) is noticed without a client waiting on it;
+   a probe that fails counts against its upstream but not against the query's retries, and isn't re-sent
+ - hedging: if the first upstream hasn't answered by its p95 round trip, the query is also sent to the
+   next best one, and whichever answers first wins
+ */
+public class UpstreamForwarder implements Resolver {
+    //Largest datagram there can be, so a big reply is never cut short by our buffer
+    private static final int MAX_DATAGRAM = 65535;
+    //Connections kept open to each upstream for truncated replies
+    private static final int TCP_CONNECTIONS = 2;
+    //One query in this many is also sent to a random upstream
+    private static final int EXPLORE_EVERY = 64;
+    //p95 isn't trusted until there have been this many replies
+    private static final int HEDGE_MIN_REPLIES = 16;
+    //Queries a socket sends before it's replaced with one on a new port
+    private static final int QUERIES_PER_PORT = 64;
+
+    private final Upstream[] upstreams;
+    private final Map<SocketAddress, Integer> upstreamIndex = new HashMap<>();
+    private final TcpUpstreamPool[] tcpPools;
+    //Each slot's current socket, and the selector its reader waits on (the slot's retired sockets stay on it too)
+    private final AtomicReferenceArray<QuerySocket> sockets;
+    private final Selector[] selectors;
+    private final int timeoutMs;
+    private final int retries;
+    private final boolean hedge;
+    private final ConcurrentHashMap<PendingKey, Attempt> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+    private final ExecutorService tcpRetryExecutor;
+    private final AtomicInteger nextSocket = new AtomicInteger();
+    private volatile boolean closed;
+    private final LongAdder hedges = new LongAdder();
+    //Replies dropped because they didn't decode
+    private final LongAdder malformedReplies = new LongAdder();
+
+    public UpstreamForwarder(InetSocketAddress upstream, int socketCount, int timeoutMs, int retries) throws IOException {
+        this(List.of(upstream), socketCount, timeoutMs, retries, false);
+    }
+
+    public UpstreamForwarder(List<InetSocketAddress> upstreams, int socketCount, int timeoutMs, int retries, boolean hedge) throws IOException {
+        if (upstreams.isEmpty()) {
+            throw new IllegalArgumentException("No upstreams");
+        }
+        this.timeoutMs = timeoutMs;
+        this.retries = retries;
+        this.hedge = hedge;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "upstream-timer"));
+        this.tcpRetryExecutor = Executors.newSingleThreadExecutor(r -> daemon(r, "upstream-tcp-retry"));
+
+        this.upstreams = new Upstream[upstreams.size()];
+        this.tcpPools = new TcpUpstreamPool[upstreams.size()];
+        for (int i = 0; i < upstreams.size(); i++) {
+            this.upstreams[i] = new Upstream(upstreams.get(i));
+            this.tcpPools[i] = new TcpUpstreamPool(upstreams.get(i), TCP_CONNECTIONS, timeoutMs * (retries + 1), timer);
+            upstreamIndex.put(upstreams.get(i), i);
+        }
+
+        this.sockets = new AtomicReferenceArray<>(socketCount);
+        this.selectors = new Selector[socketCount];
+        try {
+            for (int i = 0; i < socketCount; i++) {
+                selectors[i] = Selector.open();
+                sockets.set(i, openSocket(i));
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        for (int i = 0; i < socketCount; i++) {
+            final int slot = i;
+            daemon(() -> readReplies(slot), "upstream-reader-" + i).start();
+        }
+    }
+
+    //Send the request upstream under a new ID
+    //The future completes with the decoded reply, carrying the request's original ID
+    CompletableFuture<DNSMessage> forward(DNSMessage request) {
+        Query query = new Query(request);
+        int upstream = pickUpstream(-1);
+        send(query, upstream, false);
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (upstreams.length > 1 && random.nextInt(EXPLORE_EVERY) == 0) {
+            int probe = random.nextInt(upstreams.length - 1);
+            send(query, probe < upstream ? probe : probe + 1, true);
+        }
+        return query.future;
+    }
+
+    @Override
+    public CompletableFuture<DNSMessage> resolve(DNSMessage request) {
+        return forward(request);
+    }
+
+    //Best upstream to send to, other than exclude (-1 for none) if there's a choice
+    private int pickUpstream(int exclude) {
+        if (upstreams.length == 1) {
+            return 0;
+        }
+        int best = -1;
+        for (int i = 0; i < upstreams.length; i++) {
+            if (i != exclude && (best < 0 || upstreams[i].isBetterThan(upstreams[best]))) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    //Send one attempt of the query to an upstream, and arm its timeout (and its hedge, for the first one)
+    //probe: an exploration probe, sent alongside the query's own attempts rather than as one of them
+    private void send(Query query, int upstream, boolean probe) {
+        QuerySocket socket = nextSocket();
+        Attempt attempt = new Attempt(query, upstream, probe);
+
+        //Pick an ID nobody else is waiting on for this question on this socket
+        PendingKey key;
+        do {
+            key = new PendingKey(socket, upstream, ThreadLocalRandom.current().nextInt(0x10000), query.question);
+            attempt.key = key;
+        } while (pending.putIfAbsent(key, attempt) != null);
+        query.attempts.add(attempt);
+
+        byte[] data = Arrays.copyOf(query.outgoing, query.outgoing.length);
+        data[0] = (byte) (key.id >>> 8);
+        data[1] = (byte) key.id;
+
+        try {
+            socket.channel.send(ByteBuffer.wrap(data), upstreams[upstream].getAddress());
+        } catch (IOException e) {
+            onFailure(attempt, e);
+            return;
+        }
+        attempt.timeout = timer.schedule(() -> {
+            if (pending.remove(attempt.key, attempt)) {
+                onFailure(attempt, new SocketTimeoutException("No reply from " + upstreams[upstream].getAddress()));
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+
+        long hedgeAfter = upstreams[upstream].getP95Nanos();
+        if (hedge && query.attempts.size() == 1 && upstreams.length > 1
+                && upstreams[upstream].getReplies() >= HEDGE_MIN_REPLIES && hedgeAfter < TimeUnit.MILLISECONDS.toNanos(timeoutMs)) {
+            attempt.hedge = timer.schedule(() -> {
+                if (!query.future.isDone()) {
+                    hedges.increment();
+                    send(query, pickUpstream(upstream), false);
+                }
+            }, hedgeAfter, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    //An attempt timed out or couldn't be sent: count it against its upstream, and try elsewhere or give up
+    //A probe's failure only fails the query if the query's own attempts have run out and nothing else is in the air
+    private void onFailure(Attempt attempt, Exception e) {
+        Query query = attempt.query;
+        pending.remove(attempt.key, attempt);
+        cancelTimers(attempt);
+        upstreams[attempt.upstream].recordFailure(e instanceof SocketTimeoutException);
+        if (query.future.isDone()) {
+            return;
+        }
+
+        if (attempt.probe) {
+            if (query.retriesUsed.get() <= retries) {
+                return;
+            }
+        } else if (query.retriesUsed.getAndIncrement() < retries) {
+            send(query, pickUpstream(attempt.upstream), false);
+            return;
+        }
+        if (query.attempts.stream().noneMatch(other -> pending.get(other.key) == other)) {
+            //Nothing else (a hedge or a probe) still in the air
+            query.future.completeExceptionally(new SocketTimeoutException(
+                    "No reply from upstream after " + (retries + 1) + " attempts, last error: " + e.getMessage()));
+        }
+    }
+
+    //The slot's socket for the next query, replaced with a fresh one on a new port once it has sent QUERIES_PER_PORT
+    //If a new one can't be opened, the old one carries on for now
+    private QuerySocket nextSocket() {
+        int slot = Math.floorMod(nextSocket.getAndIncrement(), sockets.length());
+        while (true) {
+            QuerySocket socket = sockets.get(slot);
+            if (socket.sent.incrementAndGet() <= QUERIES_PER_PORT) {
+                return socket;
+            }
+            QuerySocket fresh;
+            try {
+                fresh = openSocket(slot);
+            } catch (IOException e) {
+                return socket;
+            }
+            if (sockets.compareAndSet(slot, socket, fresh)) {
+                //Replies to what it sent can still come in until those queries time out
+                timer.schedule(() -> closeQuietly(socket), timeoutMs * 2L, TimeUnit.MILLISECONDS);
+            } else {
+                //Another thread replaced it first, take a turn on that one
+                closeQuietly(fresh);
+            }
+        }
+    }
+
+    //A non-blocking socket on a random port, registered with the slot's selector
+    private QuerySocket openSocket(int slot) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            SourcePorts.bindRandom(channel);
+            channel.configureBlocking(false);
+            QuerySocket socket = new QuerySocket(channel);
+            channel.register(selectors[slot], SelectionKey.OP_READ, socket);
+            selectors[slot].wakeup();
+            return socket;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static void closeQuietly(QuerySocket socket) {
+        try {
+            socket.channel.close();
+        } catch (IOException ignored) {
+            //Closing anyway
+        }
+    }
+
+    //Reader loop for one slot: match every reply, on its current socket or one it retired, with the query waiting on it
+    private void readReplies(int slot) {
+        Selector selector = selectors[slot];
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM);
+        while (!closed) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> ready = selector.selectedKeys().iterator();
+                while (ready.hasNext()) {
+                    SelectionKey selected = ready.next();
+                    ready.remove();
+                    QuerySocket socket = (QuerySocket) selected.attachment();
+                    //Everything waiting on the socket; one that was closed meanwhile just stops
+                    while (selected.isValid()) {
+                        buffer.clear();
+                        SocketAddress from;
+                        try {
+                            from = socket.channel.receive(buffer);
+                        } catch (IOException e) {
+                            break;
+                        }
+                        if (from == null) {
+                            break;
+                        }
+                        onDatagram(socket, from, Arrays.copyOf(buffer.array(), buffer.position()));
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                if (!closed) {
+                    malformedReplies.increment();
+                }
+            }
+        }
+    }
+
+    private void onDatagram(QuerySocket socket, SocketAddress from, byte[] data) {
+        //Ignore anything that doesn't come from an upstream we ask
+        Integer upstream = upstreamIndex.get(from);
+        if (upstream == null) {
+            return;
+        }
+        DNSMessage reply;
+        try {
+            reply = DNSMessage.decodeMessage(data);
+        } catch (IOException | RuntimeException e) {
+            malformedReplies.increment();
+            return;
+        }
+        if (reply.getQuestions().isEmpty()) {
+            return;
+        }
+
+        int id = (data[0] & 0xff) << 8 | (data[1] & 0xff);
+        PendingKey key = new PendingKey(socket, upstream, id, reply.getQuestions().get(0));
+        Attempt attempt = pending.remove(key);
+        if (attempt == null) {
+            //Late reply to a query that already timed out or was answered by another upstream, or a spoofed one
+            return;
+        }
+        upstreams[upstream].recordReply(System.nanoTime() - attempt.sentNanos);
+        Query query = attempt.query;
+        //Whichever attempt answers first wins, the rest are called off
+        for (Attempt other : query.attempts) {
+            pending.remove(other.key, other);
+            cancelTimers(other);
+        }
+
+        //Didn't fit in a datagram - ask the same upstream again over TCP for the whole answer
+        if (reply.getHeader().getTc() != 0) {
+            try {
+                tcpRetryExecutor.execute(() -> retryOverTcp(query, upstream));
+            } catch (RejectedExecutionException e) {
+                //Closing
+                query.future.completeExceptionally(new SocketException("Forwarder closed"));
+            }
+            return;
+        }
+
+        //Hand the reply back under the ID the client used
+        data[0] = (byte) (query.clientId >>> 8);
+        data[1] = (byte) query.clientId;
+        reply.getHeader().setId((data[0] & 0xff) << 8 | (data[1] & 0xff));
+        query.future.complete(reply);
+    }
+
+    //The timeout and hedge may not be armed yet if the reply beat the scheduler
+    private static void cancelTimers(Attempt attempt) {
+        ScheduledFuture<?> timeout = attempt.timeout;
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+        ScheduledFuture<?> hedge = attempt.hedge;
+        if (hedge != null) {
+            hedge.cancel(false);
+        }
+    }
+
+    //Send the query over TCP and complete it with that reply (already under the client's ID)
+    //Runs on tcpRetryExecutor: the pool connects on its own threads, but sending the query can still block
+    private void retryOverTcp(Query query, int upstream) {
+        byte[] message = Arrays.copyOf(query.outgoing, query.outgoing.length);
+        message[0] = (byte) (query.clientId >>> 8);
+        message[1] = (byte) query.clientId;
+        tcpPools[upstream].query(message).whenComplete((data, error) -> {
+            if (error != null) {
+                //Usually wrapped, having come through the pool's connect
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                upstreams[upstream].recordFailure(cause instanceof SocketTimeoutException);
+                query.future.completeExceptionally(error);
+                return;
+            }
+            try {
+                query.future.complete(DNSMessage.decodeMessage(data));
+            } catch (IOException e) {
+                query.future.completeExceptionally(e);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        for (TcpUpstreamPool tcpPool : tcpPools) {
+            tcpPool.close();
+        }
+        closed = true;
+        timer.shutdownNow();
+        tcpRetryExecutor.shutdownNow();
+        for (Selector selector : selectors) {
+            if (selector == null) {
+                continue;
+            }
+            try {
+                //Closes the retired sockets still registered with it too
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            } catch (IOException | ClosedSelectorException ignored) {
+                //Closing anyway
+            }
+        }
+        pending.forEach((key, attempt) -> {
+            if (pending.remove(key, attempt)) {
+                attempt.query.future.completeExceptionally(new SocketException("Forwarder closed"));
+            }
+        });
+    }
+
+    @Override
+    public void writeTo(PrometheusText out) {
+        out.counter("dns_upstream_hedges_total", "Queries also sent to a second upstream", hedges.sum());
+        out.counter("dns_upstream_malformed_replies_total", "Upstream replies dropped because they didn't decode",
+                malformedReplies.sum());
+
+        out.describe("dns_upstream_replies_total", "counter", "Replies received, per upstream");
+        for (Upstream upstream : upstreams) {
+            out.sample("dns_upstream_replies_total", upstreamLabel(upstream), upstream.getReplies());
+        }
+        out.describe("dns_upstream_attempt_failures_total", "counter", "Attempts that timed out or couldn't be sent, per upstream");
+        for (Upstream upstream : upstreams) {
+            out.sample("dns_upstream_attempt_failures_total", upstreamLabel(upstream), upstream.getFailures());
+        }
+        out.describe("dns_upstream_timeouts_total", "counter", "Attempts that timed out, per upstream");
+        for (Upstream upstream : upstreams) {
+            out.sample("dns_upstream_timeouts_total", upstreamLabel(upstream), upstream.getTimeouts());
+        }
+        out.describe("dns_upstream_rtt_seconds", "histogram", "Round trip to each upstream");
+        for (Upstream upstream : upstreams) {
+            out.histogram("dns_upstream_rtt_seconds", upstreamLabel(upstream), upstream.getRtt());
+        }
+    }
+
+    private static String upstreamLabel(Upstream upstream) {
+        InetSocketAddress address = upstream.getAddress();
+        return "upstream=\"" + address.getHostString() + ":" + address.getPort() + "\"";
+    }
+
+    //The upstreams and what has been learned about them, in the order they were given
+    List<Upstream> getUpstreams() { return List.of(upstreams); }
+
+    //Queries that were also sent to a second upstream
+    long getHedges() { return hedges.sum(); }
+
+    long getMalformedReplies() { return malformedReplies.sum(); }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread thread = new Thread(r, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    //One socket queries are sent from, and how many it has sent
+    private static final class QuerySocket {
+        final DatagramChannel channel;
+        final AtomicInteger sent = new AtomicInteger();
+
+        QuerySocket(DatagramChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    //What a reply is matched on (the socket by identity)
+    private static final class PendingKey {
+        final QuerySocket socket;
+        final int upstream;
+        final int id;
+        final DNSQuestion question;
+
+        PendingKey(QuerySocket socket, int upstream, int id, DNSQuestion question) {
+            this.socket = socket;
+            this.upstream = upstream;
+            this.id = id;
+            this.question = question;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            PendingKey that = (PendingKey) o;
+            return socket == that.socket &&
+                    upstream == that.upstream &&
+                    id == that.id &&
+                    question.equals(that.question);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(socket, upstream, id, question);
+        }
+    }
+
+    //One client query, however many times and places it is sent
+    private static final class Query {
+        //The ID the client used, for the reply to go back under
+        final int clientId;
+        //What goes on the wire, apart from the ID: built from the question alone (see DNSMessage.forwardedQuery)
+        final byte[] outgoing;
+        final DNSQuestion question;
+        final CompletableFuture<DNSMessage> future = new CompletableFuture<>();
+        final List<Attempt> attempts = new CopyOnWriteArrayList<>();
+        final AtomicInteger retriesUsed = new AtomicInteger();
+
+        Query(DNSMessage request) {
+            this.clientId = request.getHeader().getId();
+            this.question = request.getQuestions().get(0);
+            //Our OPT record lets the upstream answer up to 1232 bytes over UDP instead of truncating at 512
+            this.outgoing = DNSMessage.forwardedQuery(question);
+        }
+    }
+
+    //One send of a query to one upstream
+    private static final class Attempt {
+        final Query query;
+        final int upstream;
+        final boolean probe;
+        //Taken before the attempt is published, so the reader sees it
+        final long sentNanos = System.nanoTime();
+        PendingKey key;
+        volatile ScheduledFuture<?> timeout;
+        volatile ScheduledFuture<?> hedge;
+
+        Attempt(Query query, int upstream, boolean probe) {
+            this.query = query;
+            this.upstream = upstream;
+            this.probe = probe;
+        }
+    }
+}
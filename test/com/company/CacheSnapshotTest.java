@@ -0,0 +1,121 @@
+package com.company;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+Cache snapshots written to a file and loaded into a new cache, for both backends
+ - every entry comes back, answering with the records and TTLs it had
+ - times are written as wall-clock time and moved onto the loading process's clock: a snapshot written
+   100 seconds ago answers with 100 seconds taken off, and keeps counting down from there
+ - an entry that expired since the snapshot was written is skipped
+ - a file cut short loads every entry before the cut
+ */
+class CacheSnapshotTest {
+    private static final List<Supplier<DNSResponseCache>> BACKENDS = List.of(
+            () -> new DNSCache(1000, true, 0),
+            () -> new DNSCache(1000, false, 0),
+            () -> new OffHeapDNSCache(1000, 64 * 64 * 1024, 0));
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void entriesComeBack() throws IOException {
+        for (Supplier<DNSResponseCache> backend : BACKENDS) {
+            Path file = saved(backend.get(), 300, 600, 900);
+            DNSResponseCache restored = backend.get();
+            assertEquals(3, restored.loadSnapshot(file));
+            assertEquals(3, restored.size());
+            for (int i = 0; i < 3; i++) {
+                DNSCacheEntry entry = restored.lookup(question(i));
+                assertNotNull(entry, restored + " host" + i);
+                assertArrayEquals(new byte[]{10, 0, 0, (byte) i}, entry.getAnswers().get(0).getRdata());
+                int ttl = ttl(entry, i);
+                assertTrue(ttl <= 300 * (i + 1) && ttl >= 300 * (i + 1) - 1, restored + " TTL " + ttl);
+            }
+        }
+    }
+
+    //The TTL-60 entry expired 40 seconds before loading; the other answers with 100 seconds gone
+    @Test
+    void timesMoveOntoTheNewClock() throws IOException, InterruptedException {
+        for (Supplier<DNSResponseCache> backend : BACKENDS) {
+            Path file = saved(backend.get(), 300, 60);
+            age(file, 100_000);
+            DNSResponseCache restored = backend.get();
+            assertEquals(1, restored.loadSnapshot(file));
+            assertNull(restored.lookup(question(1)));
+
+            DNSCacheEntry entry = restored.lookup(question(0));
+            assertNotNull(entry, restored.toString());
+            int ttl = ttl(entry, 0);
+            assertTrue(ttl >= 199 && ttl <= 201, restored + " TTL " + ttl);
+            //And it keeps counting down
+            Thread.sleep(1100);
+            assertTrue(ttl(restored.lookup(question(0)), 0) < ttl, restored.toString());
+        }
+    }
+
+    @Test
+    void truncatedFileLoadsWhatCameBeforeTheCut() throws IOException {
+        for (Supplier<DNSResponseCache> backend : BACKENDS) {
+            Path file = saved(backend.get(), 300, 300, 300);
+            byte[] whole = Files.readAllBytes(file);
+            //Into the last response
+            Files.write(file, Arrays.copyOf(whole, whole.length - 5));
+            assertEquals(2, backend.get().loadSnapshot(file));
+            //Into the second block's header
+            int firstBlock = 8 + 8 + 2 + (ByteBuffer.wrap(whole).getShort(6 + 16) & 0xffff);
+            Files.write(file, Arrays.copyOf(whole, 6 + firstBlock + 10));
+            assertEquals(1, backend.get().loadSnapshot(file));
+        }
+    }
+
+    //host0, host1... cached with these TTLs, saved to a file
+    private Path saved(DNSResponseCache cache, int... ttls) throws IOException {
+        for (int i = 0; i < ttls.length; i++) {
+            DNSQuestion question = question(i);
+            DNSMessage query = DNSMessage.buildQuery(question);
+            assertTrue(cache.addToCache(question, DNSMessage.decodeMessage(FakeServer.response(query, 0,
+                    List.of(FakeServer.a("host" + i + ".example", ttls[i], 10, 0, 0, i)), List.of(), List.of()))));
+        }
+        Path file = directory.resolve("cache.snapshot");
+        assertEquals(ttls.length, cache.saveSnapshot(file));
+        return file;
+    }
+
+    //Move every time in the file back, as if it had been written that many milliseconds ago
+    private static void age(Path file, long millis) throws IOException {
+        ByteBuffer snapshot = ByteBuffer.wrap(Files.readAllBytes(file));
+        for (int block = 6; block < snapshot.limit(); block += 8 + 8 + 2 + (snapshot.getShort(block + 16) & 0xffff)) {
+            snapshot.putLong(block, snapshot.getLong(block) - millis);
+            snapshot.putLong(block + 8, snapshot.getLong(block + 8) - millis);
+        }
+        Files.write(file, snapshot.array());
+    }
+
+    //The TTL an answer from this entry carries now
+    private static int ttl(DNSCacheEntry entry, int i) throws IOException {
+        DNSMessage reply = DNSMessage.decodeMessage(entry.encodeFor(DNSMessage.buildQuery(question(i))));
+        return reply.getAnswers().get(0).getTtlSeconds();
+    }
+
+    private static DNSQuestion question(int i) {
+        return DNSQuestion.of(DNSMessage.stringToOctets("host" + i + ".example"), DNSRecord.TYPE_A, 1);
+    }
+}
@@ -0,0 +1,77 @@
+package com.company;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+/*
+Compression pointers in names that arrive off the network
+ - a name that points back at its own first label used to make skipDomainName loop forever,
+   pinning whatever thread was decoding it
+Counts that arrive off the network
+ - a header claiming far more questions or records than the packet holds is rejected, without room being made for
+   all of them first
+ */
+class DNSMessageTest {
+    private static final Duration LIMIT = Duration.ofSeconds(1);
+
+    //One question: [1]a then a pointer to offset 12, i.e. back to the [1]a it follows
+    @Test
+    void pointerToOwnNameIsRejected() {
+        byte[] packet = {
+                0x12, 0x34, 0x01, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
+                0x01, 'a', (byte) 0xC0, 0x0C,
+                0x00, 0x01, 0x00, 0x01
+        };
+        assertTimeoutPreemptively(LIMIT, () -> assertThrows(IOException.class, () -> DNSMessage.decodeMessage(packet)));
+    }
+
+    //An answer whose owner, [1]b at offset 19, points at itself
+    @Test
+    void pointerToOwnRecordNameIsRejected() {
+        byte[] packet = {
+                0x12, 0x34, (byte) 0x81, (byte) 0x80, 0x00, 0x01, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00,
+                0x01, 'a', 0x00,
+                0x00, 0x01, 0x00, 0x01,
+                0x01, 'b', (byte) 0xC0, 0x13,
+                0x00, 0x01, 0x00, 0x01, 0x00, 0x00, 0x00, 0x3c, 0x00, 0x04, 10, 0, 0, 1
+        };
+        assertTimeoutPreemptively(LIMIT, () -> assertThrows(IOException.class, () -> DNSMessage.decodeMessage(packet)));
+    }
+
+    //Ordinary compression still decodes: the answer's owner is [1]b then a pointer to the question's [1]a
+    @Test
+    void backwardPointerIsFollowed() throws IOException {
+        byte[] packet = {
+                0x12, 0x34, (byte) 0x81, (byte) 0x80, 0x00, 0x01, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00,
+                0x01, 'a', 0x00,
+                0x00, 0x01, 0x00, 0x01,
+                0x01, 'b', (byte) 0xC0, 0x0C,
+                0x00, 0x01, 0x00, 0x01, 0x00, 0x00, 0x00, 0x3c, 0x00, 0x04, 10, 0, 0, 1
+        };
+        DNSMessage message = DNSMessage.decodeMessage(packet);
+        assertArrayEquals(new byte[]{1, 'b', 1, 'a', 0}, message.getAnswers().get(0).getName());
+    }
+
+    //A bare header claiming 65535 of everything
+    @Test
+    void countsBeyondThePacketAreRejected() {
+        byte[] header = {
+                0x12, 0x34, 0x01, 0x00, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+                (byte) 0xff, (byte) 0xff
+        };
+        assertThrows(IOException.class, () -> DNSMessage.decodeMessage(header));
+        //One real question, then nothing for the 65535 answers
+        byte[] packet = {
+                0x12, 0x34, (byte) 0x81, (byte) 0x80, 0x00, 0x01, (byte) 0xff, (byte) 0xff, 0x00, 0x00, 0x00, 0x00,
+                0x01, 'a', 0x00,
+                0x00, 0x01, 0x00, 0x01
+        };
+        assertThrows(IOException.class, () -> DNSMessage.decodeMessage(packet));
+    }
+}
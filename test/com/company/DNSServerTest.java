@@ -0,0 +1,153 @@
+package com.company;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+The server as a whole, on loopback
+ - a scrape must describe every metric once: Prometheus throws the whole scrape away on a repeated TYPE line
+ - a client over its response rate limit is slipped an empty reply with TC set, so a real one can retry over TCP
+ - a TCP query whose answer can't be sent gives its connection's in-flight slot back, so the connection is still read
+ */
+class DNSServerTest {
+    @Test
+    void everyMetricIsDescribedOnce() throws Exception {
+        InetSocketAddress upstream = new InetSocketAddress(InetAddress.getLoopbackAddress(), 9);
+        DNSServer server = new DNSServer(0, 1, 1, List.of(upstream, new InetSocketAddress(InetAddress.getLoopbackAddress(), 19)), DNSServer.defaultCache());
+        try {
+            Set<String> described = new HashSet<>();
+            for (String line : server.scrapeMetrics().split("\n")) {
+                if (line.startsWith("# TYPE ")) {
+                    String name = line.split(" ")[2];
+                    assertTrue(described.add(name), "TYPE repeated for " + name);
+                }
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void overTheRateLimitIsSlippedWithTc() throws Exception {
+        InetSocketAddress upstream = new InetSocketAddress(InetAddress.getLoopbackAddress(), 9);
+        DNSServer server = new DNSServer(0, 1, 1, List.of(upstream), DNSServer.defaultCache());
+        DNSQuestion question = DNSQuestion.of(DNSMessage.stringToOctets("cached.example"), DNSRecord.TYPE_A, 1);
+        DNSMessage query = DNSMessage.buildQuery(question);
+        server.getCache().addToCache(question, DNSMessage.decodeMessage(
+                FakeServer.response(query, 0, List.of(FakeServer.a("cached.example", 3600, 10, 0, 0, 1)), List.of(), List.of())));
+        //Bursts of 2, and every response over that slipped
+        server.enableRateLimiting(new RateLimiter(1, 2, 1, 100, 1024));
+        Thread serving = new Thread(() -> {
+            try {
+                server.runServer();
+            } catch (Exception e) {
+                //Stopped
+            }
+        }, "dns-server");
+        serving.setDaemon(true);
+        serving.start();
+
+        try (DatagramSocket client = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            client.setSoTimeout(5000);
+            byte[] request = query.toBytes();
+            for (int i = 0; i < 3; i++) {
+                client.send(new DatagramPacket(request, request.length, InetAddress.getLoopbackAddress(), server.getLocalPort()));
+                byte[] buffer = new byte[512];
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                client.receive(packet);
+                DNSMessage reply = DNSMessage.decodeMessage(Arrays.copyOf(buffer, packet.getLength()));
+
+                assertEquals(query.getHeader().getId(), reply.getHeader().getId());
+                assertEquals(i < 2 ? 0 : 1, reply.getHeader().getTc());
+                assertEquals(i < 2 ? 1 : 0, reply.getAnswers().size());
+            }
+            assertEquals(1, server.getRateLimiter().getSlipped());
+        } finally {
+            server.stop();
+        }
+    }
+
+    //More failed answers than a connection has slots, then one that works
+    @Test
+    void failedTcpAnswersGiveTheirSlotBack() throws Exception {
+        DNSServer server = new DNSServer(0, 2, 1, new FailingResolver(), DNSServer.defaultCache());
+        Thread serving = new Thread(() -> {
+            try {
+                server.runServer();
+            } catch (Exception e) {
+                //Stopped
+            }
+        }, "dns-server");
+        serving.setDaemon(true);
+        serving.start();
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort())) {
+            socket.setSoTimeout(5000);
+            DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+            for (int i = 0; i < 100; i++) {
+                byte[] query = DNSMessage.buildQuery(question("bad" + i + ".example")).toBytes();
+                output.writeShort(query.length);
+                output.write(query);
+            }
+            byte[] query = DNSMessage.buildQuery(question("good.example")).toBytes();
+            output.writeShort(query.length);
+            output.write(query);
+            output.flush();
+
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            byte[] reply = new byte[input.readUnsignedShort()];
+            input.readFully(reply);
+            DNSMessage answer = DNSMessage.decodeMessage(reply);
+            assertEquals("good.example", FakeServer.name(answer));
+            assertEquals(1, answer.getAnswers().size());
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static DNSQuestion question(String name) {
+        return DNSQuestion.of(DNSMessage.stringToOctets(name), DNSRecord.TYPE_A, 1);
+    }
+
+    //Answers good.example; every other name gets a SERVFAIL too big to be encoded, so answering it throws
+    private static final class FailingResolver implements Resolver {
+        @Override
+        public CompletableFuture<DNSMessage> resolve(DNSMessage request) {
+            DNSQuestion question = request.getQuestions().get(0);
+            if (FakeServer.name(request).equals("good.example")) {
+                try {
+                    return CompletableFuture.completedFuture(DNSMessage.decodeMessage(FakeServer.response(request, 0,
+                            List.of(FakeServer.a("good.example", 60, 10, 0, 0, 1)), List.of(), List.of())));
+                } catch (IOException e) {
+                    return CompletableFuture.failedFuture(e);
+                }
+            }
+            DNSRecord huge = DNSRecord.of(question.getDomainName(), DNSRecord.TYPE_A, 1, 60, new byte[40_000]);
+            return CompletableFuture.completedFuture(DNSMessage.buildResponse(request, 2, List.of(huge, huge), List.of(), List.of()));
+        }
+
+        @Override
+        public void writeTo(PrometheusText out) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
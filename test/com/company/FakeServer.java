@@ -0,0 +1,169 @@
+package com.company;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+A scripted DNS server on loopback for the tests, over UDP and TCP on the same port
+ - every query is handed to the handler, which says what to send back (or null for no answer at all)
+ - queries are counted per transport, and the source port of every UDP query is kept
+Several can share a port on different loopback addresses (127.0.0.2, 127.0.0.3, ... all reach lo on Linux)
+ */
+class FakeServer implements Closeable {
+    interface Handler {
+        //The reply to send, or null to stay silent
+        byte[] reply(DNSMessage query, boolean tcp) throws IOException;
+    }
+
+    private final DatagramSocket udp;
+    private final ServerSocket tcp;
+    private volatile Handler handler;
+    private final AtomicInteger udpQueries = new AtomicInteger();
+    private final AtomicInteger tcpQueries = new AtomicInteger();
+    private final Set<Integer> sourcePorts = ConcurrentHashMap.newKeySet();
+
+    //Port 0 picks a free one, for UDP and TCP both
+    FakeServer(InetAddress address, int port, Handler handler) throws IOException {
+        this.handler = handler;
+        this.udp = new DatagramSocket(new InetSocketAddress(address, port));
+        this.tcp = new ServerSocket();
+        try {
+            tcp.bind(new InetSocketAddress(address, udp.getLocalPort()));
+        } catch (IOException e) {
+            udp.close();
+            throw e;
+        }
+        daemon(this::serveUdp, "fake-server-udp").start();
+        daemon(this::acceptTcp, "fake-server-tcp").start();
+    }
+
+    FakeServer(Handler handler) throws IOException {
+        this(InetAddress.getLoopbackAddress(), 0, handler);
+    }
+
+    InetSocketAddress getAddress() {
+        return (InetSocketAddress) udp.getLocalSocketAddress();
+    }
+
+    //Takes effect from the next query
+    void setHandler(Handler handler) { this.handler = handler; }
+
+    int getUdpQueries() { return udpQueries.get(); }
+
+    int getTcpQueries() { return tcpQueries.get(); }
+
+    Set<Integer> getSourcePorts() { return sourcePorts; }
+
+    //The response to query with these sections, as DNSMessage.buildResponse makes it (RA set, the query's opcode and RD kept)
+    static byte[] response(DNSMessage query, int rcode, List<DNSRecord> answers, List<DNSRecord> authority,
+                           List<DNSRecord> additional) {
+        return DNSMessage.buildResponse(query, rcode, answers, authority, additional).toBytes();
+    }
+
+    //An empty NOERROR response with TC set, as a server sends when the answer doesn't fit
+    static byte[] truncated(DNSMessage query) {
+        byte[] reply = response(query, 0, List.of(), List.of(), List.of());
+        reply[2] |= 0x02;
+        return reply;
+    }
+
+    static DNSRecord a(String name, int ttl, int... address) {
+        byte[] data = new byte[address.length];
+        for (int i = 0; i < address.length; i++) {
+            data[i] = (byte) address[i];
+        }
+        return DNSRecord.of(DNSMessage.stringToOctets(name), DNSRecord.TYPE_A, 1, ttl, data);
+    }
+
+    static DNSRecord ns(String zone, String nameServer) {
+        return DNSRecord.of(DNSMessage.stringToOctets(zone), DNSRecord.TYPE_NS, 1, 3600, DNSMessage.stringToOctets(nameServer));
+    }
+
+    static DNSRecord cname(String name, String target) {
+        return DNSRecord.of(DNSMessage.stringToOctets(name), DNSRecord.TYPE_CNAME, 1, 3600, DNSMessage.stringToOctets(target));
+    }
+
+    //The query's name, dotted and without the final dot
+    static String name(DNSMessage query) {
+        return DNSMessage.octetsToString(query.getQuestions().get(0).getDomainName());
+    }
+
+    private void serveUdp() {
+        byte[] buffer = new byte[65535];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!udp.isClosed()) {
+            try {
+                packet.setLength(buffer.length);
+                udp.receive(packet);
+                udpQueries.incrementAndGet();
+                sourcePorts.add(packet.getPort());
+                byte[] reply = handler.reply(DNSMessage.decodeMessage(Arrays.copyOf(buffer, packet.getLength())), false);
+                if (reply != null) {
+                    udp.send(new DatagramPacket(reply, reply.length, packet.getSocketAddress()));
+                }
+            } catch (IOException | RuntimeException e) {
+                //Closed, or a query the handler didn't like: no answer
+            }
+        }
+    }
+
+    private void acceptTcp() {
+        while (!tcp.isClosed()) {
+            try {
+                Socket connection = tcp.accept();
+                daemon(() -> serveTcp(connection), "fake-server-tcp-connection").start();
+            } catch (IOException e) {
+                //Closed
+            }
+        }
+    }
+
+    private void serveTcp(Socket connection) {
+        try (connection) {
+            DataInputStream input = new DataInputStream(connection.getInputStream());
+            DataOutputStream output = new DataOutputStream(connection.getOutputStream());
+            while (true) {
+                byte[] query = new byte[input.readUnsignedShort()];
+                input.readFully(query);
+                tcpQueries.incrementAndGet();
+                byte[] reply = handler.reply(DNSMessage.decodeMessage(query), true);
+                if (reply != null) {
+                    output.writeShort(reply.length);
+                    output.write(reply);
+                    output.flush();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            //Connection closed
+        }
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread thread = new Thread(r, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    @Override
+    public void close() {
+        udp.close();
+        try {
+            tcp.close();
+        } catch (IOException ignored) {
+            //Closing anyway
+        }
+    }
+}
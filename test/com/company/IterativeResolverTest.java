@@ -0,0 +1,183 @@
+package com.company;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+Iterative resolution against a fake hierarchy on loopback, every server on one port (see FakeServer):
+    .             127.0.0.2   com -> a.nic.com, net -> a.nic.net (with glue)
+    com           127.0.0.3   example.com -> ns1.example.com (with glue),
+                              victim.com -> ns.victim.net, with "glue" for it pointing at 127.0.0.9
+    net           127.0.0.6   ns.victim.net -> 127.0.0.5
+    victim.com    127.0.0.5   www
+    example.com   127.0.0.4   hostN, host, www -> host, big (truncated over UDP)
+    (anything)    127.0.0.9   answers every question with its own address, and should never be asked
+ - referrals are followed from the root down, and remembered for the next name in the same zone
+ - glue for a name outside the referring server's zone isn't believed; the name server is looked up instead
+ - a CNAME is followed to its target and the answer carries the whole chain
+ - a truncated reply is asked again over TCP
+ - source ports are random and change as the sockets are replaced
+ */
+class IterativeResolverTest {
+    private static final int TIMEOUT_MS = 500;
+
+    private FakeServer root;
+    private FakeServer com;
+    private FakeServer example;
+    private FakeServer victim;
+    private FakeServer net;
+    private FakeServer evil;
+    private int port;
+
+    @BeforeEach
+    void startServers() throws IOException {
+        root = new FakeServer(loopback(2), 0, (query, tcp) -> {
+            String name = FakeServer.name(query);
+            if (name.endsWith("com")) {
+                return referral(query, "com", "a.nic.com", 3);
+            }
+            return name.endsWith("net") ? referral(query, "net", "a.nic.net", 6) : nxdomain(query);
+        });
+        port = root.getAddress().getPort();
+        com = new FakeServer(loopback(3), port, (query, tcp) -> {
+            String name = FakeServer.name(query);
+            if (name.endsWith("example.com")) {
+                return referral(query, "example.com", "ns1.example.com", 4);
+            }
+            //Out of bailiwick: com has no say over where ns.victim.net is
+            return name.endsWith("victim.com") ? referral(query, "victim.com", "ns.victim.net", 9) : nxdomain(query);
+        });
+        net = new FakeServer(loopback(6), port, (query, tcp) ->
+                FakeServer.name(query).equals("ns.victim.net") ? answer(query, FakeServer.a("ns.victim.net", 3600, 127, 0, 0, 5))
+                        : nxdomain(query));
+        victim = new FakeServer(loopback(5), port, (query, tcp) ->
+                FakeServer.name(query).equals("www.victim.com") ? answer(query, FakeServer.a("www.victim.com", 60, 10, 5, 0, 1))
+                        : nxdomain(query));
+        evil = new FakeServer(loopback(9), port, (query, tcp) ->
+                answer(query, FakeServer.a(FakeServer.name(query), 60, 127, 0, 0, 9)));
+        example = new FakeServer(loopback(4), port, (query, tcp) -> {
+            String name = FakeServer.name(query);
+            switch (name) {
+                case "www.example.com":
+                    return answer(query, FakeServer.cname(name, "host.example.com"));
+                case "big.example.com":
+                    return tcp ? answer(query, FakeServer.a(name, 60, 10, 0, 0, 2)) : FakeServer.truncated(query);
+                default:
+                    return name.startsWith("host") ? answer(query, FakeServer.a(name, 60, 10, 0, 0, 1)) : nxdomain(query);
+            }
+        });
+    }
+
+    @AfterEach
+    void stopServers() {
+        for (FakeServer server : new FakeServer[]{root, com, net, victim, evil, example}) {
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+
+    private IterativeResolver resolver(int socketCount) throws IOException {
+        return new IterativeResolver(List.of(root.getAddress()), port, socketCount, TIMEOUT_MS);
+    }
+
+    private static DNSMessage resolve(IterativeResolver resolver, String name) throws Exception {
+        DNSQuestion question = DNSQuestion.of(DNSMessage.stringToOctets(name), DNSRecord.TYPE_A, 1);
+        return resolver.resolve(DNSMessage.buildQuery(question)).get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void referralsAreFollowedAndRemembered() throws Exception {
+        try (IterativeResolver resolver = resolver(2)) {
+            DNSMessage reply = resolve(resolver, "host1.example.com");
+            assertEquals(0, reply.getRcode());
+            assertArrayEquals(new byte[]{10, 0, 0, 1}, reply.getAnswers().get(0).getRdata());
+            assertEquals(1, root.getUdpQueries());
+            assertEquals(1, com.getUdpQueries());
+            assertEquals(1, example.getUdpQueries());
+
+            //Straight to example.com's server this time
+            resolve(resolver, "host2.example.com");
+            assertEquals(1, root.getUdpQueries());
+            assertEquals(1, com.getUdpQueries());
+            assertEquals(2, example.getUdpQueries());
+            assertEquals(2, resolver.getReferrals());
+            assertEquals(1, resolver.getDelegationHits());
+        }
+    }
+
+    @Test
+    void outOfBailiwickGlueIsIgnored() throws Exception {
+        try (IterativeResolver resolver = resolver(2)) {
+            DNSMessage reply = resolve(resolver, "www.victim.com");
+            assertArrayEquals(new byte[]{10, 5, 0, 1}, reply.getAnswers().get(0).getRdata());
+            assertEquals(0, evil.getUdpQueries());
+            //ns.victim.net was looked up from the root instead
+            assertEquals(1, net.getUdpQueries());
+            assertEquals(1, victim.getUdpQueries());
+        }
+    }
+
+    @Test
+    void cnameIsFollowed() throws Exception {
+        try (IterativeResolver resolver = resolver(2)) {
+            DNSMessage reply = resolve(resolver, "www.example.com");
+            List<DNSRecord> answers = reply.getAnswers();
+            assertEquals(2, answers.size());
+            assertEquals(DNSRecord.TYPE_CNAME, answers.get(0).getType());
+            assertEquals(DNSRecord.TYPE_A, answers.get(1).getType());
+            assertArrayEquals(DNSMessage.stringToOctets("host.example.com"), answers.get(1).getName());
+            assertEquals(2, example.getUdpQueries());
+        }
+    }
+
+    @Test
+    void truncatedReplyIsAskedAgainOverTcp() throws Exception {
+        try (IterativeResolver resolver = resolver(2)) {
+            DNSMessage reply = resolve(resolver, "big.example.com");
+            assertEquals(0, reply.getHeader().getTc());
+            assertArrayEquals(new byte[]{10, 0, 0, 2}, reply.getAnswers().get(0).getRdata());
+            assertEquals(1, example.getTcpQueries());
+        }
+    }
+
+    //One socket slot, so every time its socket is replaced shows up as a new port
+    @Test
+    void sourcePortsAreRandomAndChange() throws Exception {
+        try (IterativeResolver resolver = resolver(1)) {
+            for (int i = 0; i < 100; i++) {
+                assertEquals(0, resolve(resolver, "host" + i + ".example.com").getRcode());
+            }
+        }
+        assertTrue(example.getSourcePorts().size() >= 3, "ports used: " + example.getSourcePorts());
+        assertTrue(example.getSourcePorts().stream().allMatch(sourcePort -> sourcePort >= 1024));
+    }
+
+    private static InetAddress loopback(int last) throws IOException {
+        return InetAddress.getByAddress(new byte[]{127, 0, 0, (byte) last});
+    }
+
+    private static byte[] answer(DNSMessage query, DNSRecord record) {
+        return FakeServer.response(query, 0, List.of(record), List.of(), List.of());
+    }
+
+    private static byte[] nxdomain(DNSMessage query) {
+        return FakeServer.response(query, DNSCacheEntry.RCODE_NXDOMAIN, List.of(), List.of(), List.of());
+    }
+
+    //zone is delegated to nameServer, at 127.0.0.<last>
+    private static byte[] referral(DNSMessage query, String zone, String nameServer, int last) {
+        return FakeServer.response(query, 0, List.of(), List.of(FakeServer.ns(zone, nameServer)),
+                List.of(FakeServer.a(nameServer, 3600, 127, 0, 0, last)));
+    }
+}
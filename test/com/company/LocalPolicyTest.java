@@ -0,0 +1,151 @@
+package com.company;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/*
+Policies loaded from a file
+ - a wildcard is found through the hash of a suffix, taken off the whole name's, however many labels come before
+   it and wherever the name sits in the packet; the name's own rule and the closest wildcard win
+ - the table keeps finding every name as it grows past 3/4 full
+ - A and AAAA lines for one name add up, and a record listed twice is only answered once
+ - $TTL applies to the lines after it (a bad one changes nothing); comments are ignored; lines that don't parse
+   are skipped and counted
+ - an answer takes only the opcode and RD from the request's flags
+ */
+class LocalPolicyTest {
+    @TempDir
+    Path directory;
+
+    private LocalPolicy load(String... lines) throws IOException {
+        Path file = directory.resolve("policy.txt");
+        Files.write(file, List.of(lines));
+        return LocalPolicy.load(file);
+    }
+
+    private static DNSQuestion question(String name, int qtype) {
+        return DNSQuestion.of(DNSMessage.stringToOctets(name), qtype, 1);
+    }
+
+    @Test
+    void wildcardsAreFoundBySuffix() throws IOException {
+        LocalPolicy policy = load(
+                "*.ads.example",
+                "*.example CNAME *.",
+                "keep.ads.example A 10.0.0.1");
+        LocalPolicy.Action nxdomain = policy.match(question("x.ads.example", DNSRecord.TYPE_A));
+        assertNotNull(nxdomain);
+        assertEquals(DNSCacheEntry.RCODE_NXDOMAIN, nxdomain.getRcode());
+        assertSame(nxdomain, policy.match(question("a.b.c.TRACKER.Ads.example", DNSRecord.TYPE_A)));
+        //The closest wildcard above it: ads.example itself isn't covered by its own
+        assertEquals(DNSCacheEntry.RCODE_NOERROR, policy.match(question("ads.example", DNSRecord.TYPE_A)).getRcode());
+        //Its own rule beats the wildcard
+        assertEquals(1, policy.match(question("keep.ads.example", DNSRecord.TYPE_A))
+                .answersFor(question("keep.ads.example", DNSRecord.TYPE_A)).size());
+        assertNull(policy.match(question("example", DNSRecord.TYPE_A)));
+        assertNull(policy.match(question("ads.example.org", DNSRecord.TYPE_A)));
+
+        //The same, read out of a query's bytes, the name 12 bytes in
+        byte[] query = DNSMessage.buildQuery(question("deep.er.x.ads.example", DNSRecord.TYPE_A)).toBytes();
+        ByteBuffer packet = ByteBuffer.wrap(query);
+        assertSame(nxdomain, policy.match(packet, DNSHeader.HEADER_LENGTH, DNSMessage.simpleQueryQuestionEnd(packet) - 4));
+    }
+
+    //The table starts at 1024 slots
+    @Test
+    void everyNameIsFoundAfterGrowing() throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            lines.add("blocked" + i + ".example");
+        }
+        LocalPolicy policy = load(lines.toArray(new String[0]));
+        assertEquals(5000, policy.size());
+        for (int i = 0; i < 5000; i++) {
+            assertNotNull(policy.match(question("blocked" + i + ".example", DNSRecord.TYPE_A)), "blocked" + i);
+        }
+        assertNull(policy.match(question("blocked5000.example", DNSRecord.TYPE_A)));
+    }
+
+    @Test
+    void recordsForOneNameAreMerged() throws IOException {
+        LocalPolicy policy = load(
+                "printer.lan A 10.0.0.5",
+                "printer.lan AAAA fd00::5",
+                "10.0.0.6 printer.lan",
+                //Again: no new record
+                "10.0.0.5 printer.lan other.lan");
+        DNSQuestion a = question("printer.lan", DNSRecord.TYPE_A);
+        LocalPolicy.Action action = policy.match(a);
+        List<DNSRecord> answers = action.answersFor(a);
+        assertEquals(2, answers.size());
+        assertArrayEquals(new byte[]{10, 0, 0, 5}, answers.get(0).getRdata());
+        assertArrayEquals(new byte[]{10, 0, 0, 6}, answers.get(1).getRdata());
+        assertEquals(1, action.answersFor(question("printer.lan", DNSRecord.TYPE_AAAA)).size());
+        assertEquals(3, action.answersFor(question("printer.lan", DNSRecord.TYPE_ANY)).size());
+        //NODATA for another type, with an SOA
+        assertEquals(0, action.answersFor(question("printer.lan", DNSRecord.TYPE_MX)).size());
+        assertEquals(1, action.authorityFor(question("printer.lan", DNSRecord.TYPE_MX)).size());
+        assertEquals(2, policy.size());
+    }
+
+    @Test
+    void ttlCommentsAndSkippedLines() throws IOException {
+        LocalPolicy policy = load(
+                "# a hosts file",
+                "before.lan A 10.0.0.1",
+                "$TTL 60",
+                "after.lan A 10.0.0.2   # trailing",
+                "blocked.lan ; zone file comment",
+                "; commented.lan",
+                "",
+                "bad.lan A 10.0.0",
+                "bad.lan AAAA 10.0.0.3",
+                "bad.lan MX mail.lan",
+                "too many tokens here",
+                "$TTL -1",
+                "$ORIGIN lan.",
+                //Still 60
+                "last.lan A 10.0.0.4");
+        assertEquals(300, policy.match(question("before.lan", DNSRecord.TYPE_A))
+                .answersFor(question("before.lan", DNSRecord.TYPE_A)).get(0).getTtlSeconds());
+        assertEquals(60, policy.match(question("after.lan", DNSRecord.TYPE_A))
+                .answersFor(question("after.lan", DNSRecord.TYPE_A)).get(0).getTtlSeconds());
+        assertEquals(60, policy.match(question("last.lan", DNSRecord.TYPE_A))
+                .answersFor(question("last.lan", DNSRecord.TYPE_A)).get(0).getTtlSeconds());
+        assertEquals(DNSCacheEntry.RCODE_NXDOMAIN, policy.match(question("blocked.lan", DNSRecord.TYPE_A)).getRcode());
+        assertNull(policy.match(question("commented.lan", DNSRecord.TYPE_A)));
+        assertNull(policy.match(question("bad.lan", DNSRecord.TYPE_A)));
+        assertEquals(6, policy.getSkipped());
+        assertEquals(4, policy.size());
+    }
+
+    //RD and opcode QUERY asked for, along with AA, TC, Z, AD and CD a response shouldn't echo
+    @Test
+    void answerTakesOnlyOpcodeAndRdFromTheRequest() throws IOException {
+        LocalPolicy policy = load("printer.lan A 10.0.0.5", "blocked.lan");
+        for (String name : new String[]{"printer.lan", "blocked.lan"}) {
+            byte[] query = DNSMessage.buildQuery(question(name, DNSRecord.TYPE_A)).toBytes();
+            query[2] = 0x07;
+            query[3] = 0x70;
+            ByteBuffer packet = ByteBuffer.wrap(query);
+            int questionEnd = DNSMessage.simpleQueryQuestionEnd(packet);
+            LocalPolicy.Action action = policy.match(packet, DNSHeader.HEADER_LENGTH, questionEnd - 4);
+
+            DNSMessage reply = DNSMessage.decodeMessage(action.encodeFor(packet, questionEnd));
+            assertEquals(0x8180 | action.getRcode(), reply.getHeader().getFlags());
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.company;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/*
+Name compression, checked by encoding messages and decoding them back: every name and every record's data must
+come back exactly as it went in
+ - whole names and shared suffixes become pointers (cdn.example.com after www.example.com is [3]cdn + pointer)
+ - names inside NS, CNAME, MX, SOA and PTR data are compressed against the rest of the message, and it against them
+ - case is kept: names differing only in case aren't written as pointers to each other
+ - nothing is pointed at past 0x3fff, however much is written before it
+ - more names than the table remembers, and a message after another on the same encoder, still come back right
+ */
+class MessageEncoderTest {
+    @Test
+    void sharedSuffixIsAPointer() throws IOException {
+        DNSQuestion question = question("www.example.com");
+        List<DNSRecord> answers = List.of(record("www.example.com", DNSRecord.TYPE_CNAME, name("cdn.example.com")),
+                record("cdn.example.com", DNSRecord.TYPE_A, new byte[]{10, 0, 0, 1}));
+        byte[] encoded = roundTrip(question, answers, List.of(), List.of());
+        //Header, question; the CNAME's owner is a pointer, its data [3]cdn + pointer; the A's owner a pointer
+        assertEquals(12 + 17 + 4 + (2 + 10 + 6) + (2 + 10 + 4), encoded.length);
+    }
+
+    @Test
+    void partialSuffixesComeBackWhole() throws IOException {
+        DNSQuestion question = question("a.b.c.example.com");
+        List<DNSRecord> answers = new ArrayList<>();
+        for (String name : new String[]{"a.b.c.example.com", "b.c.example.com", "x.b.c.example.com", "c.example.com",
+                "example.com", "com", "example.org", "a.b.c.example.org", "x.example.com", "y.x.example.com"}) {
+            answers.add(record(name, DNSRecord.TYPE_A, new byte[]{10, 0, 0, 1}));
+        }
+        roundTrip(question, answers, List.of(), List.of());
+    }
+
+    @Test
+    void namesInRecordDataAreCompressed() throws IOException {
+        DNSQuestion question = question("example.com");
+        List<DNSRecord> answers = List.of(
+                record("example.com", DNSRecord.TYPE_NS, name("ns1.example.com")),
+                record("example.com", DNSRecord.TYPE_NS, name("ns2.example.net")),
+                record("example.com", DNSRecord.TYPE_MX, concat(new byte[]{0, 10}, name("mail.example.com"))),
+                record("www.example.com", DNSRecord.TYPE_CNAME, name("ns1.example.com")),
+                record("1.0.0.10.in-addr.arpa", DNSRecord.TYPE_PTR, name("host.example.net")));
+        List<DNSRecord> authority = List.of(record("example.com", DNSRecord.TYPE_SOA,
+                concat(name("ns1.example.com"), name("hostmaster.example.com"),
+                        new byte[]{0, 0, 0, 1, 0, 0, 14, 16, 0, 0, 2, 88, 0, 1, 81, -128, 0, 0, 0, 60})));
+        List<DNSRecord> additional = List.of(record("ns1.example.com", DNSRecord.TYPE_A, new byte[]{10, 0, 0, 53}),
+                record("ns2.example.net", DNSRecord.TYPE_A, new byte[]{10, 0, 0, 54}));
+        roundTrip(question, answers, authority, additional);
+    }
+
+    @Test
+    void caseIsKept() throws IOException {
+        DNSQuestion question = question("WWW.Example.COM");
+        List<DNSRecord> answers = List.of(record("www.example.com", DNSRecord.TYPE_CNAME, name("Cdn.EXAMPLE.com")),
+                record("cdn.example.com", DNSRecord.TYPE_A, new byte[]{10, 0, 0, 1}),
+                record("WWW.Example.COM", DNSRecord.TYPE_A, new byte[]{10, 0, 0, 2}));
+        roundTrip(question, answers, List.of(), List.of());
+    }
+
+    //Ten 2000-byte records take the message well past 0x3fff before the names that could point back
+    @Test
+    void nothingIsPointedAtPastPointerRange() throws IOException {
+        DNSQuestion question = question("big.example.com");
+        List<DNSRecord> answers = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            answers.add(record("big.example.com", DNSRecord.TYPE_TXT, new byte[2000]));
+        }
+        for (String name : new String[]{"late.example.org", "a.late.example.org", "b.late.example.org", "big.example.com",
+                "x.big.example.com", "late.example.org"}) {
+            answers.add(record(name, DNSRecord.TYPE_CNAME, name("target." + name)));
+        }
+        byte[] encoded = roundTrip(question, answers, List.of(), List.of());
+        //Every pointer there is reaches back into the first 16k
+        assertPointersInRange(encoded);
+    }
+
+    @Test
+    void moreNamesThanTheTableHolds() throws IOException {
+        DNSQuestion question = question("example.com");
+        List<DNSRecord> answers = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            answers.add(record("host" + i + ".zone" + i % 7 + ".example.com", DNSRecord.TYPE_CNAME, name("t" + i + ".zone" + i % 5 + ".example.com")));
+        }
+        roundTrip(question, answers, List.of(), List.of());
+    }
+
+    //The first message's names mustn't be pointed at from the second
+    @Test
+    void nextMessageStartsEmpty() throws IOException {
+        roundTrip(question("first.example.com"), List.of(record("other.example.com", DNSRecord.TYPE_A, new byte[]{10, 0, 0, 1})),
+                List.of(), List.of());
+        roundTrip(question("second.example.net"), List.of(record("other.example.com", DNSRecord.TYPE_A, new byte[]{10, 0, 0, 1}),
+                record("first.example.com", DNSRecord.TYPE_A, new byte[]{10, 0, 0, 2})), List.of(), List.of());
+    }
+
+    //Encode, decode, and check everything came back; returns the encoded bytes
+    private static byte[] roundTrip(DNSQuestion question, List<DNSRecord> answers, List<DNSRecord> authority,
+                                    List<DNSRecord> additional) throws IOException {
+        byte[] encoded = DNSMessage.buildMessage(question, (byte) 0, answers, authority, additional).toBytes();
+        DNSMessage decoded = DNSMessage.decodeMessage(encoded);
+        assertArrayEquals(question.getDomainName(), decoded.getQuestions().get(0).getDomainName());
+        assertSame(answers, decoded.getAnswers());
+        assertSame(authority, decoded.getAuthorityRecords());
+        assertSame(additional, decoded.getAdditionalRecords());
+        return encoded;
+    }
+
+    private static void assertSame(List<DNSRecord> expected, List<DNSRecord> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            DNSRecord record = expected.get(i);
+            String what = "record " + i + ": " + record;
+            assertArrayEquals(record.getName(), actual.get(i).getName(), what);
+            assertEquals(record.getType(), actual.get(i).getType(), what);
+            assertArrayEquals(record.getRdata(), actual.get(i).getRdata(), what);
+        }
+    }
+
+    //Walks the message the way a decoder does, checking every pointer in a name (owners and names in data)
+    private static void assertPointersInRange(byte[] encoded) {
+        ByteBuffer message = ByteBuffer.wrap(encoded);
+        int position = skipName(message, DNSHeader.HEADER_LENGTH) + 4;
+        int records = message.getShort(6) + message.getShort(8) + message.getShort(10);
+        for (int i = 0; i < records; i++) {
+            position = skipName(message, position);
+            int type = message.getShort(position);
+            int length = message.getShort(position + 8) & 0xffff;
+            if (type == DNSRecord.TYPE_CNAME) {
+                skipName(message, position + 10);
+            }
+            position += 10 + length;
+        }
+    }
+
+    private static int skipName(ByteBuffer message, int position) {
+        while (true) {
+            int length = message.get(position) & 0xff;
+            if (length == 0) {
+                return position + 1;
+            }
+            if ((length & 0xc0) == 0xc0) {
+                int target = message.getShort(position) & 0x3fff;
+                assertEquals(true, target < position && target <= 0x3fff, "pointer to " + target + " at " + position);
+                return position + 2;
+            }
+            position += length + 1;
+        }
+    }
+
+    private static DNSQuestion question(String name) {
+        return DNSQuestion.of(name(name), DNSRecord.TYPE_A, 1);
+    }
+
+    private static DNSRecord record(String name, int type, byte[] data) {
+        return DNSRecord.of(name(name), type, 1, 60, data);
+    }
+
+    private static byte[] name(String name) {
+        return DNSMessage.stringToOctets(name);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteBuffer joined = ByteBuffer.allocate(java.util.Arrays.stream(parts).mapToInt(part -> part.length).sum());
+        for (byte[] part : parts) {
+            joined.put(part);
+        }
+        return joined.array();
+    }
+}
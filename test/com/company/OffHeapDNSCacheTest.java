@@ -0,0 +1,64 @@
+package com.company;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+Memory running out in the off-heap cache
+ - small entries fill it, and a new small entry takes the chunk of an old one
+ - a big entry, of a size class no page has yet, empties a whole page of small ones and is cached there
+ */
+class OffHeapDNSCacheTest {
+    //64 segments of 16 pages of 4 KB
+    private static final long BUDGET = 64 * 64 * 1024;
+
+    @Test
+    void bigEntryEvictsAPageOfSmallOnes() throws IOException {
+        OffHeapDNSCache cache = new OffHeapDNSCache(1_000_000, BUDGET, 0);
+        //Well past what fits, so every segment is full
+        int names = 100_000;
+        for (int i = 0; i < names; i++) {
+            addSmall(cache, i);
+        }
+        assertTrue(cache.getEvictions() > 0);
+        assertEquals(BUDGET, cache.getReservedBytes());
+        //The newest small ones took the chunks of older ones
+        assertNotNull(cache.lookup(question("host" + (names - 1) + ".example")));
+
+        long evictions = cache.getEvictions();
+        DNSQuestion big = question("big.example");
+        List<DNSRecord> answers = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            answers.add(FakeServer.a("big.example", 3600, 10, 1, 0, i));
+        }
+        assertTrue(cache.addToCache(big, response(big, answers)));
+
+        DNSCacheEntry entry = cache.lookup(big);
+        assertNotNull(entry);
+        assertEquals(50, entry.getAnswers().size());
+        //A page of 96-byte chunks holds 42 of them
+        assertTrue(cache.getEvictions() - evictions <= 42, "evicted " + (cache.getEvictions() - evictions));
+        assertEquals(BUDGET, cache.getReservedBytes());
+    }
+
+    private static void addSmall(OffHeapDNSCache cache, int i) throws IOException {
+        DNSQuestion question = question("host" + i + ".example");
+        cache.addToCache(question, response(question, List.of(FakeServer.a("host" + i + ".example", 3600, 10, 0, i >>> 8, i))));
+    }
+
+    private static DNSQuestion question(String name) {
+        return DNSQuestion.of(DNSMessage.stringToOctets(name), DNSRecord.TYPE_A, 1);
+    }
+
+    private static DNSMessage response(DNSQuestion question, List<DNSRecord> answers) throws IOException {
+        DNSMessage query = DNSMessage.buildQuery(question);
+        return DNSMessage.decodeMessage(FakeServer.response(query, 0, answers, List.of(), List.of()));
+    }
+}
@@ -0,0 +1,177 @@
+package com.company;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+The limiter on a clock the test moves by hand
+ - a (network, question) gets burst responses at once, then one per interval as time passes, never more than a burst saved up
+ - IPv4 clients share a bucket with their /24, IPv6 ones with their /56; other networks and questions have their own
+ - negative answers share a bucket per zone (their SOA's owner), however the names under it are made up, and
+   errors one per rcode
+ - over the limit, a response is slipped (slip 1: every time) or dropped (slip 0)
+ - misses are counted apart from responses
+ */
+class RateLimiterTest {
+    //10 a second, bursts of 5, plenty of stripes so different keys don't collide
+    private static final int RATE = 10;
+    private static final int BURST = 5;
+    private static final int STRIPES = 1 << 16;
+    private static final long INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1) / RATE;
+
+    private final AtomicLong now = new AtomicLong(1_000_000_000L);
+    private final int question = answer("big.example");
+
+    private RateLimiter limiter(int slip) {
+        return new RateLimiter(RATE, BURST, slip, RATE, STRIPES, now::get);
+    }
+
+    @Test
+    void burstThenOnePerInterval() throws UnknownHostException {
+        RateLimiter limiter = limiter(0);
+        InetAddress client = InetAddress.getByName("192.0.2.1");
+        for (int i = 0; i < BURST; i++) {
+            assertEquals(RateLimiter.ALLOW, limiter.checkResponse(client, question));
+        }
+        assertEquals(RateLimiter.DROP, limiter.checkResponse(client, question));
+
+        now.addAndGet(INTERVAL_NANOS);
+        assertEquals(RateLimiter.ALLOW, limiter.checkResponse(client, question));
+        assertEquals(RateLimiter.DROP, limiter.checkResponse(client, question));
+
+        //A long quiet spell only saves up one burst
+        now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        for (int i = 0; i < BURST; i++) {
+            assertEquals(RateLimiter.ALLOW, limiter.checkResponse(client, question));
+        }
+        assertEquals(RateLimiter.DROP, limiter.checkResponse(client, question));
+        assertEquals(3, limiter.getDropped());
+    }
+
+    @Test
+    void ipv4ClientsShareTheirSlash24() throws UnknownHostException {
+        RateLimiter limiter = limiter(0);
+        for (int i = 0; i < BURST; i++) {
+            limiter.checkResponse(InetAddress.getByName("192.0.2." + (i + 1)), question);
+        }
+        assertEquals(RateLimiter.DROP, limiter.checkResponse(InetAddress.getByName("192.0.2.200"), question));
+        assertEquals(RateLimiter.ALLOW, limiter.checkResponse(InetAddress.getByName("192.0.3.1"), question));
+        int other = answer("small.example");
+        assertEquals(RateLimiter.ALLOW, limiter.checkResponse(InetAddress.getByName("192.0.2.1"), other));
+    }
+
+    @Test
+    void ipv6ClientsShareTheirSlash56() throws UnknownHostException {
+        RateLimiter limiter = limiter(0);
+        for (int i = 0; i < BURST; i++) {
+            limiter.checkResponse(InetAddress.getByName("2001:db8:0:100::" + (i + 1)), question);
+        }
+        //Same first 56 bits
+        assertEquals(RateLimiter.DROP, limiter.checkResponse(InetAddress.getByName("2001:db8:0:1ff:1234::1"), question));
+        //The next /56 along
+        assertEquals(RateLimiter.ALLOW, limiter.checkResponse(InetAddress.getByName("2001:db8:0:200::1"), question));
+    }
+
+    @Test
+    void overTheLimitIsSlippedOrDropped() throws UnknownHostException {
+        InetAddress client = InetAddress.getByName("192.0.2.1");
+        RateLimiter slipping = limiter(1);
+        RateLimiter dropping = limiter(0);
+        for (int i = 0; i < BURST; i++) {
+            slipping.checkResponse(client, question);
+            dropping.checkResponse(client, question);
+        }
+        for (int i = 0; i < 3; i++) {
+            assertEquals(RateLimiter.SLIP, slipping.checkResponse(client, question));
+            assertEquals(RateLimiter.DROP, dropping.checkResponse(client, question));
+        }
+        assertEquals(3, slipping.getSlipped());
+        assertEquals(0, slipping.getDropped());
+        assertEquals(0, dropping.getSlipped());
+    }
+
+    @Test
+    void missesHaveABucketOfTheirOwn() throws UnknownHostException {
+        RateLimiter limiter = limiter(0);
+        InetAddress client = InetAddress.getByName("192.0.2.1");
+        for (int i = 0; i < BURST; i++) {
+            limiter.checkResponse(client, question);
+        }
+        for (int i = 0; i < BURST; i++) {
+            assertTrue(limiter.allowMiss(client));
+        }
+        assertFalse(limiter.allowMiss(InetAddress.getByName("192.0.2.99")));
+        now.addAndGet(INTERVAL_NANOS);
+        assertTrue(limiter.allowMiss(client));
+    }
+
+    @Test
+    void randomSubdomainsShareTheirZonesBucket() throws UnknownHostException {
+        RateLimiter limiter = limiter(0);
+        for (int i = 0; i < BURST; i++) {
+            InetAddress client = InetAddress.getByName("192.0.2." + (i + 1));
+            assertEquals(RateLimiter.ALLOW, limiter.checkResponse(client, negative("x" + i + ".victim.example",
+                    DNSCacheEntry.RCODE_NXDOMAIN, "victim.example")));
+        }
+        InetAddress client = InetAddress.getByName("192.0.2.100");
+        assertEquals(RateLimiter.DROP, limiter.checkResponse(client, negative("another.victim.example",
+                DNSCacheEntry.RCODE_NXDOMAIN, "VICTIM.example")));
+        assertEquals(RateLimiter.DROP, limiter.checkResponse(client, negative("deep.under.victim.example",
+                DNSCacheEntry.RCODE_NXDOMAIN, "victim.example")));
+        //NODATA from the zone, and NXDOMAIN from another, are buckets of their own
+        assertEquals(RateLimiter.ALLOW, limiter.checkResponse(client, negative("www.victim.example",
+                DNSCacheEntry.RCODE_NOERROR, "victim.example")));
+        assertEquals(RateLimiter.ALLOW, limiter.checkResponse(client, negative("x.other.example",
+                DNSCacheEntry.RCODE_NXDOMAIN, "other.example")));
+    }
+
+    //SERVFAIL, then REFUSED
+    @Test
+    void errorsShareABucketPerRcode() throws UnknownHostException {
+        RateLimiter limiter = limiter(0);
+        InetAddress client = InetAddress.getByName("192.0.2.1");
+        for (int i = 0; i < BURST; i++) {
+            assertEquals(RateLimiter.ALLOW, limiter.checkResponse(client, error("name" + i + ".example", 2)));
+        }
+        assertEquals(RateLimiter.DROP, limiter.checkResponse(client, error("another.example", 2)));
+        assertEquals(RateLimiter.ALLOW, limiter.checkResponse(client, error("another.example", 5)));
+    }
+
+    private static DNSMessage query(String name) {
+        try {
+            return DNSMessage.buildQuery(DNSQuestion.of(DNSMessage.stringToOctets(name), DNSRecord.TYPE_A, 1));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    //The key of a response with one A record for name
+    private static int answer(String name) {
+        DNSMessage query = query(name);
+        return RateLimiter.responseHash(ByteBuffer.wrap(FakeServer.response(query, 0,
+                List.of(FakeServer.a(name, 60, 10, 0, 0, 1)), List.of(), List.of())));
+    }
+
+    //The key of a negative response for name, with the SOA of zone (its owner compressed where it can be)
+    private static int negative(String name, int rcode, String zone) {
+        byte[] soaData = new byte[22];
+        DNSRecord soa = DNSRecord.of(DNSMessage.stringToOctets(zone), DNSRecord.TYPE_SOA, 1, 60, soaData);
+        return RateLimiter.responseHash(ByteBuffer.wrap(FakeServer.response(query(name), rcode, List.of(), List.of(soa), List.of())));
+    }
+
+    private static int error(String name, int rcode) {
+        return RateLimiter.responseHash(ByteBuffer.wrap(FakeServer.response(query(name), rcode, List.of(), List.of(), List.of())));
+    }
+}
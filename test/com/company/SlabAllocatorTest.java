@@ -0,0 +1,117 @@
+package com.company;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+Chunks, pages and the budget
+ - a freed chunk is the next one handed out for its size class
+ - a page whose chunks have all been freed goes to whichever size class needs a page next
+ - once the budget is used up (and nothing of the class is free) there is nothing to hand out
+ - a small budget is split into smaller pages, down to MAX_CHUNK; one smaller than that gets none
+ */
+class SlabAllocatorTest {
+    //16 pages of 4 KB
+    private static final long SMALL_BUDGET = 64 * 1024;
+
+    @Test
+    void freedChunkIsHandedOutAgain() {
+        SlabAllocator slabs = new SlabAllocator(SMALL_BUDGET);
+        long first = slabs.allocate(100);
+        long second = slabs.allocate(128);
+        assertNotEquals(0, first);
+        assertEquals(SlabAllocator.pageNumber(first), SlabAllocator.pageNumber(second));
+        assertEquals(SlabAllocator.offset(first) + 128, SlabAllocator.offset(second));
+        assertEquals(SlabAllocator.sizeClass(100), slabs.sizeClassOf(first));
+        assertEquals(2, slabs.chunksInUse(SlabAllocator.sizeClass(100)));
+
+        slabs.free(first);
+        assertEquals(1, slabs.chunksInUse(SlabAllocator.sizeClass(100)));
+        assertEquals(first, slabs.allocate(120));
+        assertEquals(2, slabs.chunksOnPage(first));
+    }
+
+    @Test
+    void chunksAreWrittenWhereTheyAreSaid() {
+        SlabAllocator slabs = new SlabAllocator(SMALL_BUDGET);
+        long first = slabs.allocate(64);
+        long second = slabs.allocate(64);
+        slabs.page(first).putLong(SlabAllocator.offset(first), 1);
+        slabs.page(second).putLong(SlabAllocator.offset(second), 2);
+        assertEquals(1, slabs.page(first).getLong(SlabAllocator.offset(first)));
+        assertEquals(SlabAllocator.address(SlabAllocator.pageNumber(second), SlabAllocator.offset(second)), second);
+    }
+
+    @Test
+    void fullBudgetHandsOutNothing() {
+        SlabAllocator slabs = new SlabAllocator(SMALL_BUDGET);
+        int chunks = 0;
+        while (slabs.allocate(64) != 0) {
+            chunks++;
+        }
+        assertEquals(SMALL_BUDGET / 64, chunks);
+        assertEquals(SMALL_BUDGET, slabs.getReservedBytes());
+        assertEquals(0, slabs.allocate(1000));
+        //Too big for any chunk, whatever the budget
+        assertEquals(0, new SlabAllocator(SMALL_BUDGET).allocate(SlabAllocator.MAX_CHUNK + 1));
+    }
+
+    @Test
+    void emptiedPageMovesToAnotherSizeClass() {
+        SlabAllocator slabs = new SlabAllocator(SMALL_BUDGET);
+        List<Long> allocated = new ArrayList<>();
+        for (long address; (address = slabs.allocate(64)) != 0; ) {
+            allocated.add(address);
+        }
+        assertEquals(0, slabs.allocate(1000));
+
+        //Free one page's worth, but for a single chunk on another page
+        int page = SlabAllocator.pageNumber(allocated.get(0));
+        long elsewhere = 0;
+        for (long address : allocated) {
+            if (SlabAllocator.pageNumber(address) == page) {
+                slabs.free(address);
+            } else if (elsewhere == 0) {
+                elsewhere = address;
+                slabs.free(address);
+            }
+        }
+        assertEquals(0, slabs.chunksOnPage(allocated.get(0)));
+
+        long big = slabs.allocate(1000);
+        assertEquals(page, SlabAllocator.pageNumber(big));
+        assertEquals(SlabAllocator.sizeClass(1000), slabs.sizeClassOf(big));
+        assertEquals(1024, slabs.chunkSizeOf(big));
+        //The emptied page's 64-byte chunks are gone from the free list; the other freed one is still there
+        assertEquals(elsewhere, slabs.allocate(64));
+        assertEquals(0, slabs.allocate(64));
+        assertEquals(SMALL_BUDGET, slabs.getReservedBytes());
+    }
+
+    @Test
+    void pageSizeFollowsTheBudget() {
+        //Plenty: full-size pages
+        assertEquals(SlabAllocator.PAGE_SIZE, new SlabAllocator(1L << 30).getPageSize());
+        //1 MB: 16 pages of 64 KB
+        assertEquals(64 * 1024, new SlabAllocator(1 << 20).getPageSize());
+        //Not a power of two: rounded down, so MIN_PAGES still fit
+        SlabAllocator odd = new SlabAllocator(100_000);
+        assertEquals(4096, odd.getPageSize());
+        while (odd.allocate(SlabAllocator.MAX_CHUNK) != 0) {
+            assertTrue(odd.getReservedBytes() <= 100_000);
+        }
+        assertEquals(24 * 4096, odd.getReservedBytes());
+        //Never smaller than the largest chunk
+        assertEquals(SlabAllocator.MAX_CHUNK, new SlabAllocator(20_000).getPageSize());
+        //Smaller than one page: nothing at all
+        SlabAllocator tiny = new SlabAllocator(SlabAllocator.MAX_CHUNK - 1);
+        assertEquals(0, tiny.allocate(64));
+        assertEquals(0, tiny.getReservedBytes());
+    }
+}
@@ -0,0 +1,247 @@
+package com.company;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+The forwarder against fake upstreams on loopback (see FakeServer)
+ - an upstream that doesn't answer is counted against and the query is re-sent to another one
+ - once a hedged query is answered, the attempt still waiting is called off: it doesn't time out or get re-sent
+ - an exploration probe that fails doesn't use up the query's retries (nor send it again)
+ - a truncated reply is asked again over TCP, and a TCP retry that fails counts against its upstream; a TCP
+   connection a retry timed out on is replaced, not used again
+ - the upstream is asked the question alone: none of the client's flags (CD), DO or EDNS options go with it
+ - queries go out from random source ports that change as the sockets are replaced, and replies to a socket that
+   has been replaced still find their query
+ */
+class UpstreamForwarderTest {
+    private static final int TIMEOUT_MS = 200;
+
+    private final List<AutoCloseable> closing = new ArrayList<>();
+
+    @AfterEach
+    void close() throws Exception {
+        for (AutoCloseable closeable : closing) {
+            closeable.close();
+        }
+    }
+
+    private <T extends AutoCloseable> T closing(T closeable) {
+        closing.add(closeable);
+        return closeable;
+    }
+
+    private static DNSMessage query(String name) throws IOException {
+        return DNSMessage.buildQuery(DNSQuestion.of(DNSMessage.stringToOctets(name), DNSRecord.TYPE_A, 1));
+    }
+
+    private static byte[] answer(DNSMessage query, boolean tcp) {
+        return FakeServer.response(query, 0, List.of(FakeServer.a(FakeServer.name(query), 60, 10, 0, 0, 1)), List.of(), List.of());
+    }
+
+    //Truncated over UDP, whole over TCP
+    private static byte[] answerOverTcp(DNSMessage query, boolean tcp) {
+        return tcp ? FakeServer.response(query, 0, List.of(FakeServer.a(FakeServer.name(query), 60, 10, 0, 0, 1)), List.of(), List.of())
+                : FakeServer.truncated(query);
+    }
+
+    @Test
+    void truncatedReplyIsAskedAgainOverTcp() throws Exception {
+        FakeServer upstream = closing(new FakeServer(UpstreamForwarderTest::answerOverTcp));
+        UpstreamForwarder forwarder = closing(new UpstreamForwarder(upstream.getAddress(), 2, TIMEOUT_MS, 0));
+
+        DNSMessage request = query("big.example");
+        DNSMessage reply = forwarder.forward(request).get(5, TimeUnit.SECONDS);
+
+        assertEquals(0, reply.getHeader().getTc());
+        assertEquals(1, reply.getAnswers().size());
+        assertEquals(request.getHeader().getId(), reply.getHeader().getId());
+        assertEquals(1, upstream.getTcpQueries());
+    }
+
+    //The first connections stop reading after their first query, as if the upstream had hung; new ones work
+    @Test
+    void connectionIsReplacedAfterATcpTimeout() throws Exception {
+        AtomicBoolean stalled = new AtomicBoolean(true);
+        CountDownLatch hung = new CountDownLatch(1);
+        FakeServer upstream = closing(new FakeServer((query, tcp) -> {
+            if (!tcp) {
+                return FakeServer.truncated(query);
+            }
+            if (stalled.get()) {
+                try {
+                    hung.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return null;
+            }
+            return answerOverTcp(query, true);
+        }));
+        closing(hung::countDown);
+        UpstreamForwarder forwarder = closing(new UpstreamForwarder(upstream.getAddress(), 2, TIMEOUT_MS, 0));
+
+        //One for each pooled connection
+        for (int i = 0; i < 2; i++) {
+            DNSMessage request = query("stalled" + i + ".example");
+            assertThrows(ExecutionException.class, () -> forwarder.forward(request).get(5, TimeUnit.SECONDS));
+        }
+        stalled.set(false);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(1, forwarder.forward(query("big" + i + ".example")).get(5, TimeUnit.SECONDS).getAnswers().size());
+        }
+    }
+
+    //CD set, and an OPT record with DO and a cookie option
+    @Test
+    void onlyTheQuestionGoesUpstream() throws Exception {
+        AtomicReference<byte[]> asked = new AtomicReference<>();
+        FakeServer upstream = closing(new FakeServer((query, tcp) -> {
+            asked.set(query.getCompleteMessage());
+            return answer(query, tcp);
+        }));
+        UpstreamForwarder forwarder = closing(new UpstreamForwarder(upstream.getAddress(), 2, TIMEOUT_MS, 0));
+
+        byte[] plain = query("signed.example").toBytes();
+        ByteBuffer client = ByteBuffer.allocate(plain.length + 11 + 12).put(plain);
+        client.put((byte) 0).putShort((short) DNSRecord.TYPE_OPT).putShort((short) 4096).putInt(DNSRecord.OPT_DO_BIT)
+                .putShort((short) 12).putShort((short) 10).putShort((short) 8).putLong(0x0123456789abcdefL);
+        client.putShort(0, (short) 0x4242).putShort(2, (short) 0x0110).putShort(10, (short) 1);
+        DNSMessage request = DNSMessage.decodeMessage(client.array());
+
+        DNSMessage reply = forwarder.forward(request).get(5, TimeUnit.SECONDS);
+        assertEquals(0x4242, reply.getHeader().getId());
+
+        DNSMessage sent = DNSMessage.decodeMessage(asked.get());
+        assertEquals(0x0100, sent.getHeader().getFlags());
+        assertEquals(1, sent.getHeader().getNumAdditional());
+        DNSRecord opt = sent.getOpt();
+        assertEquals(0, opt.getRdata().length);
+        assertFalse(opt.isDnssecOk());
+        assertEquals(plain.length + DNSMessage.OPT_LENGTH, asked.get().length);
+    }
+
+    @Test
+    void failedTcpRetryCountsAgainstTheUpstream() throws Exception {
+        FakeServer upstream = closing(new FakeServer((query, tcp) -> tcp ? null : FakeServer.truncated(query)));
+        UpstreamForwarder forwarder = closing(new UpstreamForwarder(upstream.getAddress(), 2, TIMEOUT_MS, 0));
+
+        assertThrows(ExecutionException.class, () -> forwarder.forward(query("big.example")).get(5, TimeUnit.SECONDS));
+
+        Upstream tracked = forwarder.getUpstreams().get(0);
+        assertEquals(1, tracked.getFailures());
+        assertEquals(1, tracked.getTimeouts());
+    }
+
+    //One slot, so every socket change shows; a hundred in the air at a time, so some replies arrive on replaced
+    //sockets (not many more, or the fake's receive buffer would start dropping them)
+    @Test
+    void sourcePortChangesAsSocketsAreReplaced() throws Exception {
+        FakeServer upstream = closing(new FakeServer(UpstreamForwarderTest::answer));
+        UpstreamForwarder forwarder = closing(new UpstreamForwarder(upstream.getAddress(), 1, 2000, 0));
+
+        for (int batch = 0; batch < 3; batch++) {
+            List<CompletableFuture<DNSMessage>> replies = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                replies.add(forwarder.forward(query("name" + batch + "-" + i + ".example")));
+            }
+            for (CompletableFuture<DNSMessage> reply : replies) {
+                assertEquals(1, reply.get(5, TimeUnit.SECONDS).getAnswers().size());
+            }
+        }
+        assertTrue(upstream.getSourcePorts().size() >= 4, "ports used: " + upstream.getSourcePorts());
+    }
+
+    @Test
+    void silentUpstreamFailsOverToAnother() throws Exception {
+        FakeServer silent = closing(new FakeServer((query, tcp) -> null));
+        FakeServer answering = closing(new FakeServer(UpstreamForwarderTest::answer));
+        UpstreamForwarder forwarder = closing(new UpstreamForwarder(
+                List.of(silent.getAddress(), answering.getAddress()), 2, TIMEOUT_MS, 1, false));
+
+        //Neither has been heard from, so the first one given goes first
+        DNSMessage reply = forwarder.forward(query("failover.example")).get(5, TimeUnit.SECONDS);
+
+        assertEquals(1, reply.getAnswers().size());
+        List<Upstream> upstreams = forwarder.getUpstreams();
+        assertEquals(1, upstreams.get(0).getTimeouts());
+        assertEquals(1, upstreams.get(1).getReplies());
+        assertEquals(1, silent.getUdpQueries());
+    }
+
+    //The first upstream goes quiet once it has enough replies to hedge on; the other answers the hedge
+    @Test
+    void hedgedAttemptIsCalledOffWhenTheOtherAnswers() throws Exception {
+        FakeServer[] servers = {closing(new FakeServer(UpstreamForwarderTest::answer)), closing(new FakeServer(UpstreamForwarderTest::answer))};
+        UpstreamForwarder forwarder = closing(new UpstreamForwarder(
+                List.of(servers[0].getAddress(), servers[1].getAddress()), 2, TIMEOUT_MS, 0, true));
+        List<Upstream> upstreams = forwarder.getUpstreams();
+
+        //Which one the next query goes to, as pickUpstream chooses between two
+        int first = 0;
+        for (int i = 0; i < 1000; i++) {
+            first = upstreams.get(1).isBetterThan(upstreams.get(0)) ? 1 : 0;
+            if (upstreams.get(first).getReplies() >= 16 && upstreams.get(1 - first).isMeasured()) {
+                break;
+            }
+            forwarder.forward(query("warm" + i + ".example")).get(5, TimeUnit.SECONDS);
+        }
+        assertTrue(upstreams.get(first).getReplies() >= 16);
+
+        servers[first].setHandler((query, tcp) -> null);
+        int quietQueries = servers[first].getUdpQueries();
+        int otherQueries = servers[1 - first].getUdpQueries();
+        DNSMessage reply = forwarder.forward(query("hedged.example")).get(5, TimeUnit.SECONDS);
+        assertEquals(1, reply.getAnswers().size());
+
+        //Past the quiet attempt's timeout: it was called off, so it neither failed nor went out again
+        Thread.sleep(TIMEOUT_MS * 2);
+        assertEquals(0, upstreams.get(first).getFailures());
+        assertEquals(quietQueries + 1, servers[first].getUdpQueries());
+        //The hedge (or, one time in 64, an exploration probe sent with the query, which wins before the hedge is due)
+        assertEquals(otherQueries + 1, servers[1 - first].getUdpQueries());
+        assertTrue(forwarder.getHedges() <= 1);
+    }
+
+    //Port 0 can't be sent to, so every attempt at the broken upstream fails straight away; once it is unhealthy
+    //it's only sent exploration probes, and a failed probe must not send the query to the good one a second time
+    @Test
+    void failedProbeDoesNotUseUpARetry() throws Exception {
+        FakeServer answering = closing(new FakeServer(UpstreamForwarderTest::answer));
+        InetSocketAddress broken = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+        UpstreamForwarder forwarder = closing(new UpstreamForwarder(List.of(answering.getAddress(), broken), 2, 2000, 1, false));
+        Upstream brokenUpstream = forwarder.getUpstreams().get(1);
+
+        for (int i = 0; brokenUpstream.isHealthy(); i++) {
+            forwarder.forward(query("warm" + i + ".example")).get(5, TimeUnit.SECONDS);
+        }
+        long brokenFailures = brokenUpstream.getFailures();
+        int answered = answering.getUdpQueries();
+
+        //Enough that some get a probe (all but certain: 1 - (63/64)^1000)
+        //A probe to the broken upstream fails as it's sent, while the query's own attempt is still waiting
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(1, forwarder.forward(query("name" + i + ".example")).get(5, TimeUnit.SECONDS).getAnswers().size());
+        }
+        assertTrue(brokenUpstream.getFailures() > brokenFailures, "no probes were sent");
+        assertEquals(answered + 1000, answering.getUdpQueries());
+    }
+}